@@ -3,6 +3,8 @@ package com.licitador.configurator;
 import com.licitador.model.LicitacionData;
 import com.licitador.model.ArchivoRequerido;
 import com.licitador.model.ArticuloAnexo;
+import com.licitador.model.ConfiguracionCifrado;
+import com.licitador.service.CifradorSobre;
 import com.licitador.service.TextAreaLogger;
 import com.licitador.service.Logger;
 import com.licitador.service.ArticuloAnexoService;
@@ -11,8 +13,15 @@ import javax.swing.border.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Clase principal de la aplicación Configurador, que proporciona una interfaz
@@ -38,6 +47,13 @@ public class ConfiguradorApp extends JFrame {
     private final ArticuloAnexoService anexoService = new ArticuloAnexoService();
     // ----------------------------------
 
+    // --- CIFRADO DE LOS SOBRES DE LA OFERTA ---
+    private static final String SIN_CIFRADO = "Sin cifrar";
+    private JComboBox<Object> cmbCifrado;
+    private JLabel lblClavePublica;
+    private byte[] clavePublicaCifrado;
+    // ------------------------------------------
+
     // Campos añadidos para el sistema de Logging
     private JTextArea logTxt;
     private Logger logger;
@@ -136,6 +152,9 @@ public class ConfiguradorApp extends JFrame {
         logScrollPane.setPreferredSize(new Dimension(800, 150));
         bottomPanel.add(logScrollPane, BorderLayout.NORTH);
 
+        // Cifrado de los sobres de la oferta
+        bottomPanel.add(createCifradoPanel(), BorderLayout.CENTER);
+
         // Botón generar
         JButton btnGenerar = createGenerateButton();
         bottomPanel.add(btnGenerar, BorderLayout.SOUTH);
@@ -170,6 +189,198 @@ public class ConfiguradorApp extends JFrame {
     }
     // ----------------------------------------------------
 
+    /**
+     * Crea el panel en el que se elige si los sobres de la oferta se cifran
+     * hasta el acto de apertura, y las herramientas de claves del órgano.
+     */
+    private JPanel createCifradoPanel() {
+        JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        panel.setBorder(createTitledBorder("Cifrado de los sobres de la oferta", new Color(70, 130, 180)));
+
+        cmbCifrado = new JComboBox<>(new Object[]{SIN_CIFRADO, ConfiguracionCifrado.Modo.CONTRASENA, ConfiguracionCifrado.Modo.CLAVE_PUBLICA});
+        lblClavePublica = new JLabel("Sin clave pública cargada");
+        JButton btnGenerarClaves = new JButton("Generar par de claves...");
+        JButton btnCargarClave = new JButton("Cargar clave pública...");
+        JButton btnDescifrar = new JButton("Descifrar sobre...");
+        btnGenerarClaves.addActionListener(e -> generarParClaves());
+        btnCargarClave.addActionListener(e -> cargarClavePublica());
+        btnDescifrar.addActionListener(e -> descifrarSobre(btnDescifrar));
+        cmbCifrado.addActionListener(e -> {
+            boolean clavePublica = cmbCifrado.getSelectedItem() == ConfiguracionCifrado.Modo.CLAVE_PUBLICA;
+            btnGenerarClaves.setEnabled(clavePublica);
+            btnCargarClave.setEnabled(clavePublica);
+            lblClavePublica.setEnabled(clavePublica);
+        });
+        btnGenerarClaves.setEnabled(false);
+        btnCargarClave.setEnabled(false);
+        lblClavePublica.setEnabled(false);
+
+        panel.add(new JLabel("Cifrado:"));
+        panel.add(cmbCifrado);
+        panel.add(btnGenerarClaves);
+        panel.add(btnCargarClave);
+        panel.add(lblClavePublica);
+        panel.add(Box.createHorizontalStrut(30));
+        panel.add(btnDescifrar);
+        return panel;
+    }
+
+    /**
+     * Genera un par de claves RSA para la licitación: la clave privada se
+     * guarda en un fichero que el órgano debe custodiar hasta la apertura, y
+     * la pública se incluye en el JAR.
+     */
+    private void generarParClaves() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Guardar la clave privada del órgano");
+        fileChooser.setSelectedFile(new File("clave-privada-" + txtExpediente.getText().trim().replaceAll("[^a-zA-Z0-9_.-]", "_") + ".pem"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File privada = fileChooser.getSelectedFile();
+        try {
+            KeyPair claves = CifradorSobre.generarClaves();
+            File publica = new File(privada.getParentFile(), privada.getName().replaceFirst("\\.pem$", "") + ".pub.pem");
+            Files.write(privada.toPath(), CifradorSobre.aPem("PRIVATE KEY", claves.getPrivate().getEncoded()).getBytes(StandardCharsets.US_ASCII));
+            Files.write(publica.toPath(), CifradorSobre.aPem("PUBLIC KEY", claves.getPublic().getEncoded()).getBytes(StandardCharsets.US_ASCII));
+            clavePublicaCifrado = claves.getPublic().getEncoded();
+            lblClavePublica.setText("Clave pública: " + publica.getName());
+            logger.logInfo("Par de claves generado. Clave privada: " + privada.getAbsolutePath() + "; clave pública: " + publica.getAbsolutePath());
+            JOptionPane.showMessageDialog(this, "Se ha guardado la clave privada en:\n" + privada.getAbsolutePath()
+                    + "\n\nGuárdela en lugar seguro: sin ella no se podrán abrir los sobres de las ofertas.",
+                    "Par de claves generado", JOptionPane.WARNING_MESSAGE);
+        } catch (Exception ex) {
+            logger.logError("Error al generar el par de claves: " + ex.getMessage());
+            JOptionPane.showMessageDialog(this, "Error al generar el par de claves:\n" + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Carga la clave pública del órgano desde un fichero PEM o DER.
+     */
+    private void cargarClavePublica() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Seleccionar la clave pública del órgano");
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File fichero = fileChooser.getSelectedFile();
+        try {
+            clavePublicaCifrado = CifradorSobre.leerClavePublica(Files.readAllBytes(fichero.toPath())).getEncoded();
+            lblClavePublica.setText("Clave pública: " + fichero.getName());
+            logger.logInfo("Clave pública cargada: " + fichero.getAbsolutePath());
+        } catch (IOException ex) {
+            logger.logError("Error al cargar la clave pública: " + ex.getMessage());
+            JOptionPane.showMessageDialog(this, "Error al cargar la clave pública:\n" + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Descifra un sobre de una oferta en el acto de apertura, con la clave
+     * privada del órgano o con la contraseña, según cómo se cifró. La
+     * derivación de la clave y el descifrado se hacen en segundo plano, con
+     * una ventana de progreso que permite cancelarlo.
+     *
+     * @param boton El botón que lanza el descifrado; se desactiva mientras
+     * dura.
+     */
+    private void descifrarSobre(JButton boton) {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Seleccionar el sobre cifrado");
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Sobres cifrados (*" + CifradorSobre.EXTENSION + ")",
+                CifradorSobre.EXTENSION.substring(1)));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File cifrado = fileChooser.getSelectedFile();
+        String nombre = cifrado.getName().endsWith(CifradorSobre.EXTENSION)
+                ? cifrado.getName().substring(0, cifrado.getName().length() - CifradorSobre.EXTENSION.length()) : cifrado.getName() + ".zip";
+        File destino = new File(cifrado.getParentFile(), nombre);
+        PrivateKey clavePrivada = null;
+        char[] contrasena = null;
+        try {
+            if (CifradorSobre.leerModo(cifrado) == ConfiguracionCifrado.Modo.CLAVE_PUBLICA) {
+                JFileChooser claveChooser = new JFileChooser(cifrado.getParentFile());
+                claveChooser.setDialogTitle("Seleccionar la clave privada del órgano");
+                if (claveChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                clavePrivada = CifradorSobre.leerClavePrivada(Files.readAllBytes(claveChooser.getSelectedFile().toPath()));
+            } else {
+                JPasswordField campo = new JPasswordField(20);
+                if (JOptionPane.showConfirmDialog(this, new Object[]{"Contraseña del sobre:", campo}, "Descifrar sobre",
+                        JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+                contrasena = campo.getPassword();
+            }
+        } catch (IOException ex) {
+            logger.logError("Error al descifrar el sobre " + cifrado.getName() + ": " + ex.getMessage());
+            JOptionPane.showMessageDialog(this, "No se ha podido descifrar el sobre:\n" + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        PrivateKey clave = clavePrivada;
+        char[] secreto = contrasena;
+        ProgressMonitor monitor = new ProgressMonitor(this, "Descifrando " + cifrado.getName(), "Obteniendo la clave...", 0, 100);
+        monitor.setMillisToDecideToPopup(0);
+        monitor.setMillisToPopup(0);
+        boton.setEnabled(false);
+        SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
+            private volatile boolean cancelado;
+
+            @Override
+            protected Void doInBackground() throws Exception {
+                try {
+                    CifradorSobre.descifrar(cifrado, destino, clave, secreto, (leidos, total) -> {
+                        if (cancelado) {
+                            throw new InterruptedIOException("Descifrado cancelado por el usuario.");
+                        }
+                        publish(total > 0 ? (int) (leidos * 100 / total) : 100);
+                    });
+                } finally {
+                    if (secreto != null) {
+                        Arrays.fill(secreto, '\0');
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(List<Integer> chunks) {
+                if (monitor.isCanceled()) {
+                    cancelado = true;
+                    return;
+                }
+                int porcentaje = chunks.get(chunks.size() - 1);
+                monitor.setNote(porcentaje + " %");
+                monitor.setProgress(porcentaje);
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                boton.setEnabled(true);
+                try {
+                    get();
+                    logger.logInfo("Sobre descifrado y comprobado: " + destino.getAbsolutePath());
+                    JOptionPane.showMessageDialog(ConfiguradorApp.this, "El sobre es íntegro y se ha descifrado en:\n" + destino.getAbsolutePath(), "Sobre descifrado", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause() != null ? e.getCause() : e;
+                    if (causa instanceof InterruptedIOException) {
+                        logger.logInfo("Descifrado del sobre " + cifrado.getName() + " cancelado.");
+                        return;
+                    }
+                    logger.logError("Error al descifrar el sobre " + cifrado.getName() + ": " + causa.getMessage());
+                    JOptionPane.showMessageDialog(ConfiguradorApp.this, "No se ha podido descifrar el sobre:\n" + causa.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.execute();
+    }
+
     // Método createDatosBasicosPanel sin cambios...
     private JPanel createDatosBasicosPanel() {
         JPanel panel = new JPanel(new GridBagLayout());
@@ -471,6 +682,18 @@ public class ConfiguradorApp extends JFrame {
         // (Usamos la variable 'anexosSeleccionados' que definimos en ConfiguradorApp)
         ArticuloAnexo[] anexosArray = anexosSeleccionados.toArray(new ArticuloAnexo[0]);
 
+        ConfiguracionCifrado cifrado = null;
+        if (cmbCifrado.getSelectedItem() == ConfiguracionCifrado.Modo.CONTRASENA) {
+            cifrado = ConfiguracionCifrado.conContrasena();
+        } else if (cmbCifrado.getSelectedItem() == ConfiguracionCifrado.Modo.CLAVE_PUBLICA) {
+            if (clavePublicaCifrado == null) {
+                JOptionPane.showMessageDialog(this, "¡Genere un par de claves o cargue la clave pública del órgano para cifrar los sobres!", "Error", JOptionPane.ERROR_MESSAGE);
+                logger.logError("Generación cancelada: Falta la clave pública del órgano.");
+                return;
+            }
+            cifrado = ConfiguracionCifrado.conClavePublica(clavePublicaCifrado);
+        }
+
         // Crear objeto de datos LicitacionData
         int numLotes = rbSiLotes.isSelected() ? (Integer) spnNumLotes.getValue() : 0;
 
@@ -482,7 +705,8 @@ public class ConfiguradorApp extends JFrame {
                 numLotes,
                 archivosComunesList.toArray(new ArchivoRequerido[0]),
                 documentosOfertaList.toArray(new ArchivoRequerido[0]),
-                anexosArray // Se añade la lista de anexos
+                anexosArray, // Se añade la lista de anexos
+                cifrado
         );
 
         logger.logInfo("Datos de licitación recolectados correctamente.");
@@ -490,6 +714,7 @@ public class ConfiguradorApp extends JFrame {
         // CORRECCIÓN: Usamos el getter de LicitacionData, no de Configuracion
         logger.logInfo("Lotes: " + (datos.tieneLotes() ? datos.getNumLotes() : "No"));
         logger.logInfo("Anexos administrativos seleccionados: " + datos.getArticulosAnexos().length); // Corregido para leer desde 'datos'
+        logger.logInfo("Cifrado de los sobres de la oferta: " + (cifrado != null ? cifrado : "No"));
 
         // 2. GENERAR JAR
         try {
@@ -0,0 +1,85 @@
+package com.licitador.model;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Cifrado que exige el órgano de contratación para los sobres de la oferta
+ * (la documentación de cada lote) hasta el acto de apertura.
+ * <p>
+ * Con {@link Modo#CLAVE_PUBLICA} el configurador incluye en la licitación la
+ * clave pública RSA del órgano y solo su clave privada permite abrir los
+ * sobres. Con {@link Modo#CONTRASENA} el licitador cifra con una contraseña
+ * que le comunica el órgano (la contraseña nunca se guarda en la
+ * licitación).
+ * </p>
+ */
+public class ConfiguracionCifrado implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Forma de obtener la clave de cada sobre.
+     */
+    public enum Modo {
+        CONTRASENA("Contraseña comunicada por el órgano"),
+        CLAVE_PUBLICA("Clave pública del órgano");
+
+        private final String etiqueta;
+
+        Modo(String etiqueta) {
+            this.etiqueta = etiqueta;
+        }
+
+        @Override
+        public String toString() {
+            return etiqueta;
+        }
+    }
+
+    private final Modo modo;
+    private final byte[] clavePublica;
+
+    private ConfiguracionCifrado(Modo modo, byte[] clavePublica) {
+        this.modo = Objects.requireNonNull(modo);
+        this.clavePublica = clavePublica;
+    }
+
+    /**
+     * Cifrado con una contraseña que el licitador introduce al comprimir.
+     *
+     * @return La configuración.
+     */
+    public static ConfiguracionCifrado conContrasena() {
+        return new ConfiguracionCifrado(Modo.CONTRASENA, null);
+    }
+
+    /**
+     * Cifrado con la clave pública RSA del órgano.
+     *
+     * @param clavePublica La clave pública codificada en X.509 (DER).
+     * @return La configuración.
+     */
+    public static ConfiguracionCifrado conClavePublica(byte[] clavePublica) {
+        return new ConfiguracionCifrado(Modo.CLAVE_PUBLICA, Objects.requireNonNull(clavePublica).clone());
+    }
+
+    public Modo getModo() {
+        return modo;
+    }
+
+    /**
+     * Clave pública del órgano.
+     *
+     * @return La clave en X.509 (DER), o {@code null} en el modo con
+     * contraseña.
+     */
+    public byte[] getClavePublica() {
+        return clavePublica != null ? clavePublica.clone() : null;
+    }
+
+    @Override
+    public String toString() {
+        return modo.toString();
+    }
+}
@@ -25,6 +25,7 @@ public class LicitacionData implements Serializable {
     private final ArchivoRequerido[] archivosComunes;
     private final ArchivoRequerido[] documentosOferta;
     private final ArticuloAnexo[] anexosAdministrativos;
+    private final ConfiguracionCifrado cifrado;
 
     /**
      * Constructor que inicializa todos los campos de datos de la licitación.
@@ -42,6 +43,26 @@ public class LicitacionData implements Serializable {
     public LicitacionData(String expediente, String objeto, boolean tieneLotes, int numLotes,
             ArchivoRequerido[] archivosComunes, ArchivoRequerido[] documentosOferta,
             ArticuloAnexo[] anexosAdministrativos) {
+        this(expediente, objeto, tieneLotes, numLotes, archivosComunes, documentosOferta, anexosAdministrativos, null);
+    }
+
+    /**
+     * Constructor que incluye el cifrado exigido para los sobres de la
+     * oferta.
+     *
+     * @param expediente El número o código del expediente de la licitación.
+     * @param objeto La descripción del objeto del contrato.
+     * @param tieneLotes {@code true} si la licitación está dividida en lotes.
+     * @param numLotes El número total de lotes, o 1 si no tiene lotes.
+     * @param archivosComunes Los archivos comunes requeridos.
+     * @param documentosOferta Los documentos de oferta requeridos.
+     * @param anexosAdministrativos Los anexos administrativos.
+     * @param cifrado El cifrado de los sobres de la oferta, o {@code null} si
+     * no se cifran.
+     */
+    public LicitacionData(String expediente, String objeto, boolean tieneLotes, int numLotes,
+            ArchivoRequerido[] archivosComunes, ArchivoRequerido[] documentosOferta,
+            ArticuloAnexo[] anexosAdministrativos, ConfiguracionCifrado cifrado) {
         this.expediente = expediente;
         this.objeto = objeto;
         this.tieneLotes = tieneLotes;
@@ -49,6 +70,7 @@ public class LicitacionData implements Serializable {
         this.archivosComunes = archivosComunes;
         this.documentosOferta = documentosOferta;
         this.anexosAdministrativos = anexosAdministrativos; // Campo nuevo
+        this.cifrado = cifrado;
     }
 
     // Getters
@@ -131,4 +153,14 @@ public class LicitacionData implements Serializable {
     public ArticuloAnexo[] getArticulosAnexos() {
         return anexosAdministrativos;
     }
+
+    /**
+     * Obtiene el cifrado exigido para los sobres de la oferta. Las
+     * licitaciones generadas con versiones anteriores no lo tienen.
+     *
+     * @return El cifrado, o {@code null} si los sobres no se cifran.
+     */
+    public ConfiguracionCifrado getCifrado() {
+        return cifrado;
+    }
 }
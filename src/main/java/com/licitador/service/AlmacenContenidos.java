@@ -0,0 +1,136 @@
+package com.licitador.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Almacén de contenidos direccionado por huella SHA-256.
+ * <p>
+ * Cada contenido distinto se registra una única vez; los {@link FileData} de
+ * los distintos huecos (archivos comunes, ofertas por lote, ficheros del
+ * anexo) comparten la misma instancia de {@link ContenidoArchivo}. Así, cargar
+ * el mismo documento en decenas de lotes solo cuesta un objeto de metadatos
+ * por lote, y al guardar la sesión la serialización de Java escribe cada
+ * contenido una sola vez (las demás apariciones son referencias).
+ * </p>
+ * <p>
+ * Es seguro para hilos, de modo que las importaciones pueden registrar
+ * contenidos en segundo plano.
+ * </p>
+ */
+public class AlmacenContenidos implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Contenidos registrados, indexados por su huella SHA-256.
+     */
+    private final Map<String, ContenidoArchivo> contenidosPorHuella = new ConcurrentHashMap<>();
+
+    /**
+     * Registra un fichero de disco. Si ya existe un contenido con la misma
+     * huella se devuelve la instancia existente y el nuevo fichero solo se ha
+     * leído para calcular la huella.
+     *
+     * @param archivo El fichero a registrar.
+     * @return El contenido canónico para esa huella.
+     * @throws IOException Si el fichero no se puede leer.
+     */
+    public ContenidoArchivo registrarArchivo(File archivo) throws IOException {
+        return registrar(ContenidoArchivo.desdeArchivo(archivo));
+    }
+
+    /**
+     * Registra un contenido ya creado. Si existe otro con la misma huella se
+     * devuelve el existente, salvo que este último estuviera respaldado por un
+     * fichero que ya no está disponible, en cuyo caso se sustituye por el
+     * nuevo.
+     *
+     * @param contenido El contenido a registrar.
+     * @return El contenido canónico para su huella.
+     */
+    public ContenidoArchivo registrar(ContenidoArchivo contenido) {
+        String huella = contenido.getHuella();
+        return contenidosPorHuella.merge(huella, contenido,
+                (existente, nuevo) -> existente.estaDisponible() ? existente : nuevo);
+    }
+
+    /**
+     * Busca un contenido por su huella.
+     *
+     * @param huella La huella SHA-256 en hexadecimal.
+     * @return El contenido, o {@code null} si no está registrado.
+     */
+    public ContenidoArchivo obtener(String huella) {
+        return contenidosPorHuella.get(huella);
+    }
+
+    /**
+     * Elimina del almacén los contenidos que ya no están referenciados por
+     * ningún hueco de la sesión.
+     *
+     * @param huellasEnUso Las huellas todavía referenciadas.
+     * @return El número de contenidos eliminados.
+     */
+    public int purgar(Set<String> huellasEnUso) {
+        int eliminados = 0;
+        Iterator<Map.Entry<String, ContenidoArchivo>> it = contenidosPorHuella.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ContenidoArchivo> entrada = it.next();
+            if (!huellasEnUso.contains(entrada.getKey())) {
+                it.remove();
+                entrada.getValue().descartar();
+                eliminados++;
+            }
+        }
+        return eliminados;
+    }
+
+    /**
+     * Vacía el almacén.
+     */
+    public void limpiar() {
+        for (ContenidoArchivo contenido : contenidosPorHuella.values()) {
+            contenido.descartar();
+        }
+        contenidosPorHuella.clear();
+    }
+
+    /**
+     * Obtiene los contenidos registrados.
+     *
+     * @return Vista de solo lectura de los contenidos únicos.
+     */
+    public Collection<ContenidoArchivo> getContenidos() {
+        return Collections.unmodifiableCollection(contenidosPorHuella.values());
+    }
+
+    /**
+     * Obtiene el número de contenidos únicos registrados.
+     *
+     * @return El número de huellas distintas.
+     */
+    public int getNumeroContenidos() {
+        return contenidosPorHuella.size();
+    }
+
+    /**
+     * Obtiene la suma de los tamaños de los contenidos únicos.
+     *
+     * @return El total de bytes únicos.
+     */
+    public long getBytesUnicos() {
+        long total = 0;
+        for (ContenidoArchivo contenido : contenidosPorHuella.values()) {
+            total += contenido.getTamano();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,709 @@
+package com.licitador.service;
+
+import com.licitador.model.LicitadorData;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Archivo de sesión indexado (versión 4).
+ * <p>
+ * A diferencia de la versión 2 (un único objeto serializado), el archivo
+ * separa los metadatos de los documentos:
+ * </p>
+ * <pre>
+ * cabecera ({@value #TAMANO_CABECERA} bytes): "LICSES03" | versión (4) | posición del índice (8)
+ *                                            | longitud del índice (4) | huella SHA-256 del índice (32)
+ * contenidos: los bytes de cada documento distinto, uno tras otro
+ * índice: datos del licitador, participación por lote, contenidos
+ *         (huella, CRC-32, tamaño, posición, compresión, longitud almacenada,
+ *         fichero de origen) y huecos (clave, nombre, confidencialidad, contenido)
+ * </pre>
+ * <p>
+ * Los documentos que se reducen lo suficiente (texto, declaraciones, anexos
+ * generados...) se guardan comprimidos con {@link CodecLZ}; los ya
+ * comprimidos (la mayoría de PDF e imágenes) se guardan tal cual. La versión
+ * 3 (sin compresión) se sigue pudiendo abrir.
+ * </p>
+ * <p>
+ * Al abrir una sesión solo se lee el índice, proyectado en memoria, de modo
+ * que el tiempo no depende del volumen de los documentos. Cada documento
+ * sigue respaldado por su fichero de origen si no ha cambiado y, si no, por
+ * su {@link Region} del archivo de sesión, que se lee solo cuando hace falta
+ * (al empaquetar, al previsualizar...). Cada contenido se guarda una vez
+ * aunque aparezca en varios huecos.
+ * </p>
+ */
+final class ArchivoSesion {
+
+    /**
+     * Extensión de los archivos de sesión indexados.
+     */
+    static final String EXTENSION = ".sesion";
+    private static final byte[] MAGIA = "LICSES03".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 4;
+    private static final int VERSION_SIN_COMPRESION = 3;
+    /**
+     * Formato de los bytes de una {@link Region}.
+     */
+    static final byte SIN_COMPRIMIR = 0;
+    static final byte COMPRIMIDO_LZ = 1;
+    /**
+     * DEFLATE sin envoltorio, como en las entradas de un ZIP. No se usa en el
+     * archivo de sesión.
+     */
+    static final byte COMPRIMIDO_DEFLATE = 2;
+    /**
+     * Bytes del principio de cada documento con los que se decide si se
+     * comprime.
+     */
+    private static final int TAMANO_MUESTRA = 64 * 1024;
+    private static final int TAMANO_CABECERA = 64;
+    /**
+     * Límite de la longitud del índice, para no proyectar un fichero dañado.
+     */
+    private static final int MAXIMO_INDICE = 256 * 1024 * 1024;
+    /**
+     * Bytes que se transfieren de una vez desde un fichero de origen, para
+     * poder informar del avance.
+     */
+    private static final long BLOQUE_TRANSFERENCIA = 8L * 1024 * 1024;
+
+    /**
+     * Contenido de una sesión.
+     */
+    static final class Datos {
+
+        final Map<String, FileData> archivosComunes;
+        final Map<String, FileData> archivosOferta;
+        final LicitadorData licitadorData;
+        final Map<Integer, Boolean> participacionPorLote;
+
+        Datos(Map<String, FileData> archivosComunes, Map<String, FileData> archivosOferta, LicitadorData licitadorData, Map<Integer, Boolean> participacionPorLote) {
+            this.archivosComunes = archivosComunes;
+            this.archivosOferta = archivosOferta;
+            this.licitadorData = licitadorData;
+            this.participacionPorLote = participacionPorLote;
+        }
+    }
+
+    /**
+     * Bytes de un documento dentro de un fichero: un archivo de sesión, un
+     * contenido del diario de recuperación o una entrada de un paquete ZIP.
+     * Antes de cada lectura se comprueba que el fichero no ha cambiado desde
+     * que se abrió.
+     */
+    static final class Region {
+
+        private final Path fichero;
+        private final long desplazamiento;
+        private final long longitud;
+        private final byte compresion;
+        private final long tamanoFichero;
+        private final long fechaFichero;
+
+        /**
+         * @param fichero El fichero que contiene la región.
+         * @param desplazamiento Posición del primer byte.
+         * @param longitud Bytes que ocupa la región en el fichero.
+         * @param compresion Formato de los bytes: {@link #SIN_COMPRIMIR},
+         * {@link #COMPRIMIDO_LZ} (flujo de {@link CodecLZ}) o
+         * {@link #COMPRIMIDO_DEFLATE}.
+         * @param tamanoFichero Tamaño del fichero al abrirlo.
+         * @param fechaFichero Fecha de modificación del fichero al abrirlo.
+         */
+        Region(Path fichero, long desplazamiento, long longitud, byte compresion, long tamanoFichero, long fechaFichero) {
+            this.fichero = fichero;
+            this.desplazamiento = desplazamiento;
+            this.longitud = longitud;
+            this.compresion = compresion;
+            this.tamanoFichero = tamanoFichero;
+            this.fechaFichero = fechaFichero;
+        }
+
+        Path getFichero() {
+            return fichero;
+        }
+
+        long getDesplazamiento() {
+            return desplazamiento;
+        }
+
+        long getLongitud() {
+            return longitud;
+        }
+
+        byte getCompresion() {
+            return compresion;
+        }
+
+        long getTamanoFichero() {
+            return tamanoFichero;
+        }
+
+        long getFechaFichero() {
+            return fechaFichero;
+        }
+
+        /**
+         * Abre un canal que lee los bytes de la región.
+         *
+         * @return El canal, que el llamante debe cerrar.
+         * @throws IOException Si el fichero ha desaparecido o ha cambiado.
+         */
+        ReadableByteChannel abrir() throws IOException {
+            comprobarSinCambios();
+            CanalRegion canal = new CanalRegion(FileChannel.open(fichero, StandardOpenOption.READ), desplazamiento, longitud);
+            if (compresion == SIN_COMPRIMIR) {
+                return canal;
+            }
+            try {
+                InputStream entrada = new BufferedInputStream(Channels.newInputStream(canal), ContenidoArchivo.TAMANO_BUFFER);
+                if (compresion == COMPRIMIDO_DEFLATE) {
+                    // El byte de relleno final lo pide Inflater con nowrap, como en java.util.zip.ZipFile.
+                    Inflater inflater = new Inflater(true);
+                    return Channels.newChannel(new InflaterInputStream(new SequenceInputStream(entrada, new ByteArrayInputStream(new byte[1])), inflater) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                inflater.end();
+                            }
+                        }
+                    });
+                }
+                return Channels.newChannel(new CodecLZ.Entrada(entrada));
+            } catch (IOException e) {
+                canal.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Lee un fragmento de la región.
+         *
+         * @param desde Posición dentro de la región.
+         * @param destino Array en el que se copian los bytes.
+         * @param bytes Número de bytes a leer.
+         * @return Los bytes leídos.
+         * @throws IOException Si falla la lectura.
+         */
+        int leer(long desde, byte[] destino, int bytes) throws IOException {
+            if (compresion != SIN_COMPRIMIR) {
+                // Con CodecLZ se saltan sin descomprimir los bloques anteriores a la posición.
+                try (InputStream entrada = Channels.newInputStream(abrir())) {
+                    long saltar = desde;
+                    while (saltar > 0) {
+                        long saltados = entrada.skip(saltar);
+                        if (saltados <= 0) {
+                            return 0;
+                        }
+                        saltar -= saltados;
+                    }
+                    int leidos = 0;
+                    while (leidos < bytes) {
+                        int n = entrada.read(destino, leidos, bytes - leidos);
+                        if (n < 0) {
+                            break;
+                        }
+                        leidos += n;
+                    }
+                    return leidos;
+                }
+            }
+            comprobarSinCambios();
+            try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.wrap(destino, 0, (int) Math.max(0, Math.min(bytes, longitud - desde)));
+                while (buffer.hasRemaining()) {
+                    if (canal.read(buffer, desplazamiento + desde + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                return buffer.position();
+            }
+        }
+
+        boolean estaDisponible() {
+            try {
+                comprobarSinCambios();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void comprobarSinCambios() throws IOException {
+            if (!Files.isRegularFile(fichero)) {
+                throw new IOException("El archivo ya no existe: " + fichero);
+            }
+            if (Files.size(fichero) != tamanoFichero || Files.getLastModifiedTime(fichero).toMillis() != fechaFichero) {
+                throw new IOException("El archivo ha sido modificado desde que se abrió: " + fichero
+                        + ". Vuelva a cargar la sesión.");
+            }
+        }
+    }
+
+    /**
+     * Canal de lectura limitado a una región de un fichero.
+     */
+    private static final class CanalRegion implements ReadableByteChannel {
+
+        private final FileChannel canal;
+        private final long fin;
+        private long posicion;
+
+        CanalRegion(FileChannel canal, long desde, long longitud) {
+            this.canal = canal;
+            this.posicion = desde;
+            this.fin = desde + longitud;
+        }
+
+        @Override
+        public int read(ByteBuffer destino) throws IOException {
+            if (!canal.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (posicion >= fin) {
+                return -1;
+            }
+            int limite = destino.limit();
+            destino.limit(destino.position() + (int) Math.min(destino.remaining(), fin - posicion));
+            try {
+                int leidos = canal.read(destino, posicion);
+                if (leidos < 0) {
+                    throw new IOException("El archivo está truncado.");
+                }
+                posicion += leidos;
+                return leidos;
+            } finally {
+                destino.limit(limite);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return canal.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            canal.close();
+        }
+    }
+
+    private ArchivoSesion() {
+    }
+
+    /**
+     * Indica si un fichero es un archivo de sesión indexado (y no una sesión
+     * serializada de la versión 2).
+     *
+     * @param fichero El fichero a comprobar.
+     * @return {@code true} si empieza con la cabecera de la versión 3.
+     * @throws IOException Si no se puede leer.
+     */
+    static boolean esIndexado(File fichero) throws IOException {
+        try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magia = ByteBuffer.allocate(MAGIA.length);
+            while (magia.hasRemaining() && canal.read(magia) >= 0) {
+                // Se leen los primeros bytes.
+            }
+            return Arrays.equals(magia.array(), MAGIA);
+        }
+    }
+
+    /**
+     * Guarda la sesión. Los documentos que se leían de una sesión anterior
+     * pasan a leerse de la nueva, de modo que se puede guardar sobre el mismo
+     * archivo que se abrió.
+     *
+     * @param destino El archivo de sesión (se sustituye de forma atómica).
+     * @param datos La sesión.
+     * @throws IOException Si no se puede escribir o algún documento no se
+     * puede leer.
+     */
+    static void guardar(File destino, Datos datos) throws IOException {
+        guardar(destino, datos, null);
+    }
+
+    /**
+     * Igual que {@link #guardar(File, Datos)}, notificando los bytes de
+     * documentos escritos al receptor indicado.
+     *
+     * @param destino El archivo de sesión (se sustituye de forma atómica).
+     * @param datos La sesión.
+     * @param progreso Receptor del avance, o {@code null}.
+     * @throws IOException Si no se puede escribir, algún documento no se
+     * puede leer o el receptor cancela el guardado.
+     */
+    static void guardar(File destino, Datos datos, ContenidoArchivo.ProgresoLectura progreso) throws IOException {
+        List<ContenidoArchivo> contenidos = new ArrayList<>();
+        List<Long> posiciones = new ArrayList<>();
+        List<Long> longitudes = new ArrayList<>();
+        List<Boolean> comprimidos = new ArrayList<>();
+        Map<String, Integer> indicePorHuella = new LinkedHashMap<>();
+        long total = 0;
+        for (Map<String, FileData> huecos : Arrays.asList(datos.archivosComunes, datos.archivosOferta)) {
+            for (FileData fileData : huecos.values()) {
+                ContenidoArchivo contenido = fileData.getFuente();
+                if (!indicePorHuella.containsKey(contenido.getHuella())) {
+                    indicePorHuella.put(contenido.getHuella(), contenidos.size());
+                    contenidos.add(contenido);
+                    total += contenido.getTamano();
+                }
+            }
+        }
+        long tamanoFichero;
+        try (SalidaAtomica salida = SalidaAtomica.crear(destino)) {
+            try (FileChannel canal = FileChannel.open(salida.getTemporal().toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                canal.position(TAMANO_CABECERA);
+                long procesados = 0;
+                for (ContenidoArchivo contenido : contenidos) {
+                    posiciones.add(canal.position());
+                    boolean comprimir = mereceComprimir(contenido);
+                    escribirContenido(contenido, canal, comprimir, progreso, procesados, total);
+                    comprimidos.add(comprimir);
+                    longitudes.add(canal.position() - posiciones.get(posiciones.size() - 1));
+                    procesados += contenido.getTamano();
+                }
+
+                byte[] indice = construirIndice(datos, contenidos, posiciones, longitudes, comprimidos, indicePorHuella);
+                long posicionIndice = canal.position();
+                escribirCompleto(canal, ByteBuffer.wrap(indice), posicionIndice);
+                ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+                cabecera.put(MAGIA).putInt(VERSION).putLong(posicionIndice).putInt(indice.length).put(ContenidoArchivo.nuevoDigest().digest(indice));
+                cabecera.clear();
+                escribirCompleto(canal, cabecera, 0);
+                tamanoFichero = posicionIndice + indice.length;
+            }
+            salida.confirmar();
+        }
+
+        Path fichero = destino.toPath().toAbsolutePath();
+        long fecha = Files.getLastModifiedTime(fichero).toMillis();
+        for (int i = 0; i < contenidos.size(); i++) {
+            if (contenidos.get(i).getRegionSesion() != null) {
+                contenidos.get(i).reubicarEnSesion(new Region(fichero, posiciones.get(i), longitudes.get(i), comprimidos.get(i) ? COMPRIMIDO_LZ : SIN_COMPRIMIR, tamanoFichero, fecha));
+            }
+        }
+    }
+
+    /**
+     * Abre una sesión leyendo solo su índice.
+     *
+     * @param fichero El archivo de sesión.
+     * @return La sesión.
+     * @throws IOException Si no es un archivo de sesión indexado o está
+     * dañado.
+     */
+    static Datos abrir(File fichero) throws IOException {
+        Path ruta = fichero.toPath().toAbsolutePath();
+        long tamanoFichero = Files.size(ruta);
+        long fecha = Files.getLastModifiedTime(ruta).toMillis();
+        ByteBuffer indice;
+        long posicionIndice;
+        int version;
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            if (tamanoFichero < TAMANO_CABECERA) {
+                throw new IOException("El archivo de sesión está incompleto.");
+            }
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+            while (cabecera.hasRemaining() && canal.read(cabecera, cabecera.position()) >= 0) {
+                // Se lee la cabecera completa.
+            }
+            cabecera.flip();
+            byte[] magia = new byte[MAGIA.length];
+            cabecera.get(magia);
+            if (!Arrays.equals(magia, MAGIA)) {
+                throw new IOException("El fichero no es un archivo de sesión indexado.");
+            }
+            version = cabecera.getInt();
+            if (version != VERSION && version != VERSION_SIN_COMPRESION) {
+                throw new IOException("El archivo de sesión es de una versión posterior (" + version + ").");
+            }
+            posicionIndice = cabecera.getLong();
+            int longitudIndice = cabecera.getInt();
+            byte[] huellaIndice = new byte[32];
+            cabecera.get(huellaIndice);
+            if (posicionIndice < TAMANO_CABECERA || longitudIndice < 0 || longitudIndice > MAXIMO_INDICE
+                    || posicionIndice + longitudIndice != tamanoFichero) {
+                throw new IOException("El archivo de sesión está incompleto o dañado.");
+            }
+            // Se lee a memoria en lugar de proyectarlo: una proyección mantiene el
+            // fichero en uso (en Windows impide sustituirlo al volver a guardar).
+            indice = ByteBuffer.allocate(longitudIndice);
+            while (indice.hasRemaining()) {
+                if (canal.read(indice, posicionIndice + indice.position()) < 0) {
+                    throw new IOException("El archivo de sesión está incompleto o dañado.");
+                }
+            }
+            indice.flip();
+            MessageDigest digest = ContenidoArchivo.nuevoDigest();
+            digest.update(indice.duplicate());
+            if (!Arrays.equals(digest.digest(), huellaIndice)) {
+                throw new IOException("El índice del archivo de sesión está dañado.");
+            }
+        }
+
+        try {
+            LicitadorData licitadorData = null;
+            byte[] licitador = leerBytes(indice);
+            if (licitador != null) {
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(licitador))) {
+                    licitadorData = (LicitadorData) ois.readObject();
+                } catch (ClassNotFoundException | ClassCastException e) {
+                    throw new IOException("Los datos del licitador de la sesión no son válidos.", e);
+                }
+            }
+
+            Map<Integer, Boolean> participacion = new LinkedHashMap<>();
+            for (int i = indice.getInt(); i > 0; i--) {
+                participacion.put(indice.getInt(), indice.get() != 0);
+            }
+
+            ContenidoArchivo[] contenidos = new ContenidoArchivo[indice.getInt()];
+            for (int i = 0; i < contenidos.length; i++) {
+                String huella = leerTexto(indice);
+                long crc = indice.getLong();
+                long tamano = indice.getLong();
+                long posicion = indice.getLong();
+                byte compresion = SIN_COMPRIMIR;
+                long longitud = tamano;
+                if (version >= VERSION) {
+                    compresion = indice.get();
+                    longitud = indice.getLong();
+                }
+                String rutaOrigen = leerTexto(indice);
+                long fechaModificacion = indice.getLong();
+                if (posicion < TAMANO_CABECERA || tamano < 0 || longitud < 0 || posicion + longitud > posicionIndice
+                        || (compresion != SIN_COMPRIMIR && compresion != COMPRIMIDO_LZ)) {
+                    throw new IOException("El índice del archivo de sesión está dañado.");
+                }
+                contenidos[i] = ContenidoArchivo.desdeSesion(rutaOrigen, tamano, fechaModificacion, huella, crc,
+                        new Region(ruta, posicion, longitud, compresion, tamanoFichero, fecha));
+            }
+
+            Map<String, FileData> archivosComunes = leerHuecos(indice, contenidos);
+            Map<String, FileData> archivosOferta = leerHuecos(indice, contenidos);
+            return new Datos(archivosComunes, archivosOferta, licitadorData, participacion);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("El índice del archivo de sesión está dañado.", e);
+        }
+    }
+
+    // --- ESCRITURA ---
+    /**
+     * Decide por una muestra del principio si merece la pena comprimir el
+     * documento.
+     */
+    static boolean mereceComprimir(ContenidoArchivo contenido) throws IOException {
+        byte[] muestra = new byte[(int) Math.min(TAMANO_MUESTRA, contenido.getTamano())];
+        return CodecLZ.mereceComprimir(muestra, contenido.leerFragmento(0, muestra));
+    }
+
+    private static void escribirContenido(ContenidoArchivo contenido, FileChannel destino, boolean comprimir, ContenidoArchivo.ProgresoLectura progreso, long procesados, long total) throws IOException {
+        long inicio = destino.position();
+        if (comprimir) {
+            // El flujo se termina sin cerrar el canal del archivo de sesión.
+            CodecLZ.Salida salida = new CodecLZ.Salida(Channels.newOutputStream(destino));
+            long leidos = 0;
+            try (InputStream entrada = contenido.abrirStream()) {
+                byte[] buffer = new byte[CodecLZ.TAMANO_BLOQUE];
+                int n;
+                while ((n = entrada.read(buffer)) != -1) {
+                    salida.write(buffer, 0, n);
+                    leidos += n;
+                    if (progreso != null) {
+                        progreso.avanzar(procesados + leidos, total);
+                    }
+                }
+            }
+            salida.terminar();
+            if (leidos != contenido.getTamano()) {
+                throw new IOException("El tamaño del contenido ha cambiado durante el guardado: " + contenido.getRutaOrigen());
+            }
+            return;
+        }
+        if (contenido.estaEnDisco()) {
+            try (FileChannel origen = contenido.abrirCanal()) {
+                long copiados = 0;
+                while (copiados < contenido.getTamano()) {
+                    long n = origen.transferTo(copiados, Math.min(contenido.getTamano() - copiados, BLOQUE_TRANSFERENCIA), destino);
+                    if (n <= 0) {
+                        break;
+                    }
+                    copiados += n;
+                    if (progreso != null) {
+                        progreso.avanzar(procesados + destino.position() - inicio, total);
+                    }
+                }
+            }
+        } else {
+            try (ReadableByteChannel origen = contenido.abrirCanalLectura()) {
+                ByteBuffer buffer = ByteBuffer.allocate(ContenidoArchivo.TAMANO_BUFFER);
+                while (origen.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        destino.write(buffer);
+                    }
+                    buffer.clear();
+                    if (progreso != null) {
+                        progreso.avanzar(procesados + destino.position() - inicio, total);
+                    }
+                }
+            }
+        }
+        if (destino.position() - inicio != contenido.getTamano()) {
+            throw new IOException("El tamaño del contenido ha cambiado durante el guardado: " + contenido.getRutaOrigen());
+        }
+    }
+
+    private static byte[] construirIndice(Datos datos, List<ContenidoArchivo> contenidos, List<Long> posiciones, List<Long> longitudes, List<Boolean> comprimidos, Map<String, Integer> indicePorHuella) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream salida = new DataOutputStream(bytes);
+
+        byte[] licitador = null;
+        if (datos.licitadorData != null) {
+            ByteArrayOutputStream serializado = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(serializado)) {
+                oos.writeObject(datos.licitadorData);
+            }
+            licitador = serializado.toByteArray();
+        }
+        escribirBytes(salida, licitador);
+
+        Map<Integer, Boolean> participacion = datos.participacionPorLote != null ? datos.participacionPorLote : new LinkedHashMap<>();
+        salida.writeInt(participacion.size());
+        for (Map.Entry<Integer, Boolean> lote : participacion.entrySet()) {
+            salida.writeInt(lote.getKey());
+            salida.writeBoolean(Boolean.TRUE.equals(lote.getValue()));
+        }
+
+        salida.writeInt(contenidos.size());
+        for (int i = 0; i < contenidos.size(); i++) {
+            ContenidoArchivo contenido = contenidos.get(i);
+            escribirTexto(salida, contenido.getHuella());
+            salida.writeLong(contenido.getCrc());
+            salida.writeLong(contenido.getTamano());
+            salida.writeLong(posiciones.get(i));
+            salida.writeByte(comprimidos.get(i) ? COMPRIMIDO_LZ : SIN_COMPRIMIR);
+            salida.writeLong(longitudes.get(i));
+            escribirTexto(salida, contenido.getRutaOrigen());
+            salida.writeLong(contenido.getFechaModificacion());
+        }
+
+        for (Map<String, FileData> huecos : Arrays.asList(datos.archivosComunes, datos.archivosOferta)) {
+            salida.writeInt(huecos.size());
+            for (Map.Entry<String, FileData> hueco : huecos.entrySet()) {
+                FileData fileData = hueco.getValue();
+                escribirTexto(salida, hueco.getKey());
+                escribirTexto(salida, fileData.getNombre());
+                salida.writeBoolean(fileData.esConfidencial());
+                escribirTextos(salida, fileData.getSupuestosSeleccionados());
+                escribirTextos(salida, fileData.getMotivosSupuestos());
+                salida.writeInt(indicePorHuella.get(fileData.getFuente().getHuella()));
+            }
+        }
+        salida.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void escribirCompleto(FileChannel canal, ByteBuffer datos, long posicion) throws IOException {
+        long destino = posicion;
+        while (datos.hasRemaining()) {
+            destino += canal.write(datos, destino);
+        }
+    }
+
+    /**
+     * Escribe un array precedido de su longitud (-1 si es {@code null}). Los
+     * textos y las listas de textos se codifican igual; también los usa
+     * {@link DiarioSesion}.
+     */
+    static void escribirBytes(DataOutputStream salida, byte[] bytes) throws IOException {
+        salida.writeInt(bytes != null ? bytes.length : -1);
+        if (bytes != null) {
+            salida.write(bytes);
+        }
+    }
+
+    static void escribirTexto(DataOutputStream salida, String texto) throws IOException {
+        escribirBytes(salida, texto != null ? texto.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    static void escribirTextos(DataOutputStream salida, String[] textos) throws IOException {
+        salida.writeInt(textos != null ? textos.length : -1);
+        if (textos != null) {
+            for (String texto : textos) {
+                escribirTexto(salida, texto);
+            }
+        }
+    }
+
+    // --- LECTURA DEL ÍNDICE ---
+    private static Map<String, FileData> leerHuecos(ByteBuffer indice, ContenidoArchivo[] contenidos) {
+        Map<String, FileData> huecos = new LinkedHashMap<>();
+        for (int i = indice.getInt(); i > 0; i--) {
+            String clave = leerTexto(indice);
+            String nombre = leerTexto(indice);
+            boolean confidencial = indice.get() != 0;
+            String[] supuestos = leerTextos(indice);
+            String[] motivos = leerTextos(indice);
+            huecos.put(clave, new FileData(nombre, contenidos[indice.getInt()], confidencial, supuestos, motivos));
+        }
+        return huecos;
+    }
+
+    static byte[] leerBytes(ByteBuffer indice) {
+        int longitud = indice.getInt();
+        if (longitud < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[longitud];
+        indice.get(bytes);
+        return bytes;
+    }
+
+    static String leerTexto(ByteBuffer indice) {
+        byte[] bytes = leerBytes(indice);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    static String[] leerTextos(ByteBuffer indice) {
+        int numero = indice.getInt();
+        if (numero < 0) {
+            return null;
+        }
+        String[] textos = new String[numero];
+        for (int i = 0; i < numero; i++) {
+            textos[i] = leerTexto(indice);
+        }
+        return textos;
+    }
+}
@@ -0,0 +1,289 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Caché de documentos ya comprimidos que se rellena en segundo plano, con
+ * prioridad baja, a medida que se importan.
+ * <p>
+ * Para cada contenido se aplica la misma {@link PoliticaCompresion} que al
+ * empaquetar y, si se va a comprimir, se genera su flujo DEFLATE con el mismo
+ * procedimiento por bloques que {@link EmpaquetadorZip} (mismos bloques,
+ * diccionarios y vaciados). El resultado es idéntico byte a byte al que
+ * produciría el empaquetador, de modo que al empaquetar basta con copiarlo
+ * tal cual en el ZIP: la compresión de última hora se reduce a una copia de
+ * disco.
+ * </p>
+ * <p>
+ * Las entradas se identifican por la huella SHA-256 del contenido y el nivel
+ * de compresión, y se guardan en el área temporal de la sesión (se borran al
+ * cerrar la aplicación, como los volcados). El espacio total está acotado por
+ * {@value #PROPIEDAD_MAXIMO_MB} (por defecto, la cuarta parte del espacio
+ * libre hasta un máximo de 4 GB); al superarlo se descartan las más antiguas.
+ * Mientras se empaqueta la caché se pausa con {@link #pausar()} para no
+ * competir por disco y procesador.
+ * </p>
+ */
+public class CachePrecompresion {
+
+    /**
+     * Propiedad de sistema con el tamaño máximo de la caché en megabytes (0
+     * la desactiva).
+     */
+    public static final String PROPIEDAD_MAXIMO_MB = "licitador.precompresion.maximoMB";
+    private static final long MAXIMO_POR_DEFECTO = 4L * 1024 * 1024 * 1024;
+    private static final String EXTENSION = ".deflate";
+
+    private final ExecutorService trabajador;
+    private final Set<String> pendientes = ConcurrentHashMap.newKeySet();
+    private final Object monitorPausa = new Object();
+    private volatile boolean pausada;
+    private volatile long maximo = -1;
+    private volatile Path carpeta;
+
+    /**
+     * Crea la caché con un único hilo de baja prioridad.
+     */
+    public CachePrecompresion() {
+        ThreadPoolExecutor ejecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread hilo = new Thread(r, "precompresion");
+            hilo.setDaemon(true);
+            hilo.setPriority(Thread.MIN_PRIORITY);
+            return hilo;
+        });
+        ejecutor.allowCoreThreadTimeOut(true);
+        this.trabajador = ejecutor;
+    }
+
+    /**
+     * Encola la precompresión de un contenido con el perfil indicado. No hace
+     * nada si ya está en caché, encolado o si la caché está desactivada.
+     *
+     * @param contenido El contenido importado.
+     * @param perfil El perfil con el que se empaquetará.
+     */
+    public void encolar(ContenidoArchivo contenido, PoliticaCompresion.Perfil perfil) {
+        if (contenido == null || contenido.getTamano() == 0 || getMaximo() <= 0) {
+            return;
+        }
+        String huella = contenido.getHuellaSiConocida();
+        String clavePendiente = (huella != null ? huella : String.valueOf(System.identityHashCode(contenido))) + "-" + perfil.name();
+        if (!pendientes.add(clavePendiente)) {
+            return;
+        }
+        trabajador.execute(() -> {
+            try {
+                esperarSiPausada();
+                precomprimir(contenido, perfil);
+            } catch (IOException e) {
+                // Solo es una optimización: si falla, el documento se comprimirá al empaquetar.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pendientes.remove(clavePendiente);
+            }
+        });
+    }
+
+    /**
+     * Busca el flujo DEFLATE ya generado de una entrada.
+     *
+     * @param entrada La entrada del paquete.
+     * @param nivel El nivel de compresión decidido para ella.
+     * @return El fichero con el flujo comprimido, o {@code null} si no está en
+     * caché o el documento de origen ha cambiado.
+     */
+    public Path buscar(EntradaPaquete entrada, int nivel) {
+        ContenidoArchivo contenido = entrada.getContenido();
+        if (contenido == null || carpeta == null) {
+            return null;
+        }
+        String huella = contenido.getHuellaSiConocida();
+        if (huella == null || contenido.getCrcSiConocido() == null || !contenido.estaDisponible()) {
+            return null;
+        }
+        Path ruta = carpeta.resolve(clave(huella, nivel));
+        return Files.isRegularFile(ruta) ? ruta : null;
+    }
+
+    /**
+     * Detiene temporalmente la precompresión (por ejemplo, mientras se
+     * empaqueta). El documento en curso se detiene en el siguiente bloque.
+     */
+    public void pausar() {
+        pausada = true;
+    }
+
+    /**
+     * Reanuda la precompresión tras {@link #pausar()}.
+     */
+    public void reanudar() {
+        synchronized (monitorPausa) {
+            pausada = false;
+            monitorPausa.notifyAll();
+        }
+    }
+
+    /**
+     * Número de documentos pendientes de precomprimir.
+     *
+     * @return Los documentos en cola o en curso.
+     */
+    public int getPendientes() {
+        return pendientes.size();
+    }
+
+    private void esperarSiPausada() throws InterruptedException {
+        synchronized (monitorPausa) {
+            while (pausada) {
+                monitorPausa.wait();
+            }
+        }
+    }
+
+    private long getMaximo() {
+        if (maximo < 0) {
+            long porDefecto = MAXIMO_POR_DEFECTO;
+            try {
+                porDefecto = Math.min(porDefecto, Files.getFileStore(GestorMemoria.getInstancia().getAreaTemporal()).getUsableSpace() / 4);
+            } catch (IOException e) {
+                // Se usa el máximo fijo.
+            }
+            maximo = Long.getLong(PROPIEDAD_MAXIMO_MB, porDefecto / (1024 * 1024)) * 1024 * 1024;
+        }
+        return maximo;
+    }
+
+    private synchronized Path getCarpeta() throws IOException {
+        if (carpeta == null || !Files.isDirectory(carpeta)) {
+            carpeta = Files.createDirectories(GestorMemoria.getInstancia().getAreaTemporal().resolve("precompresion"));
+        }
+        return carpeta;
+    }
+
+    private static String clave(String huella, int nivel) {
+        return huella + "-" + nivel + EXTENSION;
+    }
+
+    /**
+     * Genera el flujo comprimido de un contenido bloque a bloque, igual que
+     * {@link EmpaquetadorZip}, comprobando de paso que su CRC sigue siendo el
+     * de la importación.
+     */
+    private void precomprimir(ContenidoArchivo contenido, PoliticaCompresion.Perfil perfil) throws IOException, InterruptedException {
+        EntradaPaquete entrada = EntradaPaquete.desdeContenido("precompresion", contenido, null);
+        PoliticaCompresion.Decision decision = new PoliticaCompresion(perfil).decidir(entrada);
+        if (decision.esAlmacenada()) {
+            return;
+        }
+        String huella = contenido.getHuella();
+        long crcEsperado = contenido.getCrc();
+        Path directorio = getCarpeta();
+        Path destino = directorio.resolve(clave(huella, decision.getNivel()));
+        if (Files.exists(destino)) {
+            return;
+        }
+        hacerSitio(directorio, contenido.getTamano());
+
+        Path temporal = Files.createTempFile(directorio, "precompresion-", ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            ByteBuffer bloque = ByteBuffer.allocateDirect(EmpaquetadorZip.TAMANO_BLOQUE);
+            ByteBuffer salida = ByteBuffer.allocateDirect(EmpaquetadorZip.TAMANO_BLOQUE_COMPRIMIDO);
+            ByteBuffer diccionario = null;
+            long restante = contenido.getTamano();
+            try (ReadableByteChannel canal = entrada.abrirCanal();
+                    FileChannel escritura = FileChannel.open(temporal, StandardOpenOption.WRITE)) {
+                while (restante > 0) {
+                    esperarSiPausada();
+                    bloque.clear();
+                    bloque.limit((int) Math.min(EmpaquetadorZip.TAMANO_BLOQUE, restante));
+                    while (bloque.hasRemaining()) {
+                        if (canal.read(bloque) < 0) {
+                            throw new IOException("El documento es más corto de lo esperado.");
+                        }
+                    }
+                    bloque.flip();
+                    crc.update(bloque.duplicate());
+                    restante -= bloque.remaining();
+                    boolean ultimo = restante == 0;
+                    ByteBuffer ventana = diccionario;
+                    diccionario = ultimo ? null : EmpaquetadorZip.copiarVentana(bloque);
+                    salida.clear();
+                    EmpaquetadorZip.comprimir(bloque, ventana, salida, ultimo, decision.getNivel());
+                    while (salida.hasRemaining()) {
+                        escritura.write(salida);
+                    }
+                }
+            }
+            if (crc.getValue() != crcEsperado) {
+                throw new IOException("El documento ha cambiado desde su importación.");
+            }
+            Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    /**
+     * Descarta las entradas más antiguas hasta que quepa un documento más del
+     * tamaño indicado.
+     */
+    private void hacerSitio(Path directorio, long necesario) throws IOException {
+        List<Path> entradas = new ArrayList<>();
+        long ocupado = 0;
+        try (DirectoryStream<Path> rutas = Files.newDirectoryStream(directorio, "*" + EXTENSION)) {
+            for (Path ruta : rutas) {
+                entradas.add(ruta);
+                ocupado += Files.size(ruta);
+            }
+        }
+        entradas.sort(Comparator.comparingLong(CachePrecompresion::fechaModificacion));
+        for (Path ruta : entradas) {
+            if (ocupado + necesario <= getMaximo()) {
+                break;
+            }
+            long tamano = Files.size(ruta);
+            if (Files.deleteIfExists(ruta)) {
+                ocupado -= tamano;
+            }
+        }
+        if (ocupado + necesario > getMaximo()) {
+            throw new IOException("No hay espacio en la caché de precompresión.");
+        }
+    }
+
+    private static long fechaModificacion(Path ruta) {
+        try {
+            return Files.getLastModifiedTime(ruta).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Detiene el hilo de precompresión.
+     */
+    public void cerrar() {
+        reanudar();
+        trabajador.shutdownNow();
+    }
+}
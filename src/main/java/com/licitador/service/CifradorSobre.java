@@ -0,0 +1,514 @@
+package com.licitador.service;
+
+import com.licitador.model.ConfiguracionCifrado;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cifrado de los sobres de la oferta hasta el acto de apertura.
+ * <p>
+ * Un sobre cifrado ({@value #EXTENSION}) es el ZIP del sobre cifrado con
+ * AES-256-GCM en bloques de {@value #TAMANO_BLOQUE} bytes, de modo que se
+ * puede cifrar en la misma pasada que la compresión, con varios bloques a la
+ * vez (ver {@link SalidaCifrada}), y descifrar sin cargarlo en memoria. El
+ * fichero empieza con una cabecera en claro:
+ * </p>
+ * <pre>
+ * "LICSOBRE" | versión (1) | modo (1) | tamaño de bloque (4) | prefijo del nonce (4)
+ * modo 1 (contraseña):    sal (16) | iteraciones PBKDF2-HMAC-SHA256 (4)
+ * modo 2 (clave pública): longitud (2) | clave AES cifrada con RSA-OAEP-SHA256
+ * </pre>
+ * <p>
+ * Le siguen los bloques: todos con {@value #TAMANO_BLOQUE} bytes cifrados más
+ * la etiqueta GCM de {@value #LONGITUD_ETIQUETA} bytes, salvo el último, que
+ * es más corto (puede no llevar datos). El nonce de cada bloque es el prefijo
+ * seguido del número de bloque, y los datos autenticados son la huella
+ * SHA-256 de la cabecera, el número de bloque y si es el último, de modo que
+ * no se pueden alterar, reordenar, quitar ni truncar bloques sin que se note.
+ * Cada fichero usa una clave AES propia: aleatoria y cifrada con la clave
+ * pública del órgano, o derivada de la contraseña con una sal aleatoria.
+ * </p>
+ */
+public final class CifradorSobre {
+
+    /**
+     * Extensión que se añade al nombre de los sobres cifrados.
+     */
+    public static final String EXTENSION = ".cif";
+    /**
+     * Bytes de datos de cada bloque cifrado. Con bloques mucho mayores el
+     * AES-GCM de la JVM pierde sus instrucciones aceleradas y cifra decenas
+     * de veces más despacio.
+     */
+    static final int TAMANO_BLOQUE = 64 * 1024;
+    static final int LONGITUD_ETIQUETA = 16;
+    private static final byte[] MAGIA = "LICSOBRE".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int MODO_CONTRASENA = 1;
+    private static final int MODO_CLAVE_PUBLICA = 2;
+    private static final int ITERACIONES = 310_000;
+    /**
+     * Iteraciones PBKDF2 admitidas al leer una cabecera: fuera de este rango
+     * el fichero está dañado o manipulado (con demasiadas, la derivación
+     * bloquearía la aplicación).
+     */
+    private static final int MINIMO_ITERACIONES = 10_000;
+    private static final int MAXIMO_ITERACIONES = 10_000_000;
+    private static final int LONGITUD_SAL = 16;
+    private static final int LONGITUD_PREFIJO = 4;
+    private static final int BITS_AES = 256;
+    private static final int BITS_RSA = 3072;
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final SecureRandom ALEATORIO = new SecureRandom();
+
+    /**
+     * Clave y cabecera de un fichero cifrado.
+     */
+    static final class Fichero {
+
+        private final SecretKey clave;
+        private final byte[] cabecera;
+        private final byte[] prefijo;
+        private final byte[] huellaCabecera;
+        private final int tamanoBloque;
+
+        Fichero(SecretKey clave, byte[] cabecera, byte[] prefijo, int tamanoBloque) {
+            this.clave = clave;
+            this.cabecera = cabecera;
+            this.prefijo = prefijo;
+            this.tamanoBloque = tamanoBloque;
+            this.huellaCabecera = ContenidoArchivo.nuevoDigest().digest(cabecera);
+        }
+
+        byte[] getCabecera() {
+            return cabecera;
+        }
+
+        int getTamanoBloque() {
+            return tamanoBloque;
+        }
+
+        /**
+         * Cifra un bloque. Se puede llamar desde varios hilos a la vez.
+         *
+         * @param indice Número del bloque.
+         * @param ultimo Si es el último bloque del fichero.
+         * @param datos Los datos en claro.
+         * @param longitud Número de bytes de {@code datos}.
+         * @return El bloque cifrado con su etiqueta.
+         */
+        byte[] cifrar(long indice, boolean ultimo, byte[] datos, int longitud) throws GeneralSecurityException {
+            Cipher cifrador = Cipher.getInstance(AES_GCM);
+            cifrador.init(Cipher.ENCRYPT_MODE, clave, new GCMParameterSpec(LONGITUD_ETIQUETA * 8, nonce(indice)));
+            cifrador.updateAAD(datosAutenticados(indice, ultimo));
+            return cifrador.doFinal(datos, 0, longitud);
+        }
+
+        byte[] descifrar(long indice, boolean ultimo, byte[] bloque, int longitud) throws GeneralSecurityException {
+            Cipher cifrador = Cipher.getInstance(AES_GCM);
+            cifrador.init(Cipher.DECRYPT_MODE, clave, new GCMParameterSpec(LONGITUD_ETIQUETA * 8, nonce(indice)));
+            cifrador.updateAAD(datosAutenticados(indice, ultimo));
+            return cifrador.doFinal(bloque, 0, longitud);
+        }
+
+        private byte[] nonce(long indice) {
+            return ByteBuffer.allocate(LONGITUD_PREFIJO + 8).put(prefijo).putLong(indice).array();
+        }
+
+        private byte[] datosAutenticados(long indice, boolean ultimo) {
+            return ByteBuffer.allocate(huellaCabecera.length + 9).put(huellaCabecera).putLong(indice).put((byte) (ultimo ? 1 : 0)).array();
+        }
+    }
+
+    private final ConfiguracionCifrado.Modo modo;
+    private final PublicKey clavePublica;
+    // Copia de la contraseña: cada fichero deriva su clave con una sal propia.
+    private char[] contrasena;
+
+    private CifradorSobre(ConfiguracionCifrado.Modo modo, PublicKey clavePublica, char[] contrasena) {
+        this.modo = modo;
+        this.clavePublica = clavePublica;
+        this.contrasena = contrasena;
+    }
+
+    /**
+     * Prepara el cifrado que exige la licitación.
+     *
+     * @param configuracion El cifrado configurado.
+     * @param contrasena La contraseña (solo en el modo con contraseña).
+     * @return El cifrador.
+     * @throws IOException Si la clave pública no es válida o falta la
+     * contraseña.
+     */
+    public static CifradorSobre para(ConfiguracionCifrado configuracion, char[] contrasena) throws IOException {
+        if (configuracion.getModo() == ConfiguracionCifrado.Modo.CLAVE_PUBLICA) {
+            return new CifradorSobre(configuracion.getModo(), leerClavePublica(configuracion.getClavePublica()), null);
+        }
+        if (contrasena == null || contrasena.length == 0) {
+            throw new IOException("Debe indicarse la contraseña de cifrado de los sobres.");
+        }
+        return new CifradorSobre(configuracion.getModo(), null, contrasena.clone());
+    }
+
+    public ConfiguracionCifrado.Modo getModo() {
+        return modo;
+    }
+
+    /**
+     * Borra la copia de la contraseña cuando ya no se van a cifrar más
+     * ficheros (al terminar o cancelar el empaquetado). Después,
+     * {@link #nuevoFichero()} falla en el modo con contraseña.
+     */
+    synchronized void olvidarContrasena() {
+        if (contrasena != null) {
+            Arrays.fill(contrasena, '\0');
+            contrasena = null;
+        }
+    }
+
+    /**
+     * Genera la clave y la cabecera de un nuevo fichero cifrado.
+     *
+     * @return El fichero.
+     * @throws IOException Si la plataforma no dispone de los algoritmos.
+     */
+    Fichero nuevoFichero() throws IOException {
+        try {
+            byte[] prefijo = aleatorio(LONGITUD_PREFIJO);
+            ByteArrayOutputStream cabecera = new ByteArrayOutputStream();
+            DataOutputStream salida = new DataOutputStream(cabecera);
+            salida.write(MAGIA);
+            salida.writeByte(VERSION);
+            salida.writeByte(modo == ConfiguracionCifrado.Modo.CLAVE_PUBLICA ? MODO_CLAVE_PUBLICA : MODO_CONTRASENA);
+            salida.writeInt(TAMANO_BLOQUE);
+            salida.write(prefijo);
+            SecretKey clave;
+            if (modo == ConfiguracionCifrado.Modo.CLAVE_PUBLICA) {
+                KeyGenerator generador = KeyGenerator.getInstance("AES");
+                generador.init(BITS_AES, ALEATORIO);
+                clave = generador.generateKey();
+                Cipher rsa = Cipher.getInstance(RSA_OAEP);
+                rsa.init(Cipher.ENCRYPT_MODE, clavePublica, ALEATORIO);
+                byte[] envuelta = rsa.doFinal(clave.getEncoded());
+                salida.writeShort(envuelta.length);
+                salida.write(envuelta);
+            } else {
+                byte[] sal = aleatorio(LONGITUD_SAL);
+                synchronized (this) {
+                    if (contrasena == null) {
+                        throw new IOException("La contraseña de cifrado ya se ha descartado.");
+                    }
+                    clave = derivar(contrasena, sal, ITERACIONES);
+                }
+                salida.write(sal);
+                salida.writeInt(ITERACIONES);
+            }
+            salida.flush();
+            return new Fichero(clave, cabecera.toByteArray(), prefijo, TAMANO_BLOQUE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se puede preparar el cifrado del sobre: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Bytes sin cifrar que caben, como mucho, en un fichero cifrado del
+     * tamaño indicado (descontando la cabecera y las etiquetas de los
+     * bloques).
+     *
+     * @param tamanoCifrado El tamaño máximo del fichero cifrado.
+     * @return El tamaño máximo del ZIP sin cifrar.
+     */
+    static long capacidadEnClaro(long tamanoCifrado) {
+        return tamanoCifrado - 1024 - (tamanoCifrado / TAMANO_BLOQUE + 1) * LONGITUD_ETIQUETA;
+    }
+
+    // --- HERRAMIENTAS DEL ÓRGANO DE CONTRATACIÓN ---
+    /**
+     * Genera un par de claves RSA para una licitación.
+     *
+     * @return El par de claves.
+     * @throws GeneralSecurityException Si la plataforma no dispone de RSA.
+     */
+    public static KeyPair generarClaves() throws GeneralSecurityException {
+        KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+        generador.initialize(BITS_RSA, ALEATORIO);
+        return generador.generateKeyPair();
+    }
+
+    /**
+     * Lee una clave pública RSA en X.509, binaria (DER) o en texto (PEM).
+     *
+     * @param datos El contenido del fichero de la clave.
+     * @return La clave.
+     * @throws IOException Si no es una clave pública RSA válida.
+     */
+    public static PublicKey leerClavePublica(byte[] datos) throws IOException {
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(desdePem(datos)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("El fichero no contiene una clave pública RSA válida.", e);
+        }
+    }
+
+    /**
+     * Lee una clave privada RSA en PKCS#8, binaria (DER) o en texto (PEM).
+     *
+     * @param datos El contenido del fichero de la clave.
+     * @return La clave.
+     * @throws IOException Si no es una clave privada RSA válida.
+     */
+    public static PrivateKey leerClavePrivada(byte[] datos) throws IOException {
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(desdePem(datos)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("El fichero no contiene una clave privada RSA (PKCS#8) válida.", e);
+        }
+    }
+
+    /**
+     * Indica cómo se cifró un sobre, para saber qué pedir al abrirlo.
+     *
+     * @param cifrado El sobre cifrado.
+     * @return El modo de cifrado.
+     * @throws IOException Si no es un sobre cifrado.
+     */
+    public static ConfiguracionCifrado.Modo leerModo(File cifrado) throws IOException {
+        try (DataInputStream entrada = new DataInputStream(Files.newInputStream(cifrado.toPath()))) {
+            byte[] magia = new byte[MAGIA.length];
+            entrada.readFully(magia);
+            if (!Arrays.equals(magia, MAGIA) || entrada.readUnsignedByte() != VERSION) {
+                throw new IOException("El fichero no es un sobre cifrado de esta aplicación (o es de una versión posterior).");
+            }
+            int modo = entrada.readUnsignedByte();
+            if (modo == MODO_CLAVE_PUBLICA) {
+                return ConfiguracionCifrado.Modo.CLAVE_PUBLICA;
+            }
+            if (modo == MODO_CONTRASENA) {
+                return ConfiguracionCifrado.Modo.CONTRASENA;
+            }
+            throw new IOException("Modo de cifrado desconocido: " + modo);
+        } catch (EOFException e) {
+            throw new IOException("La cabecera del sobre cifrado está incompleta.", e);
+        }
+    }
+
+    /**
+     * Descifra un sobre en el acto de apertura y comprueba su integridad.
+     *
+     * @param cifrado El sobre cifrado.
+     * @param destino El ZIP descifrado. Solo aparece si el sobre es íntegro.
+     * @param clavePrivada La clave privada del órgano (modo con clave
+     * pública), o {@code null}.
+     * @param contrasena La contraseña (modo con contraseña), o {@code null}.
+     * @throws IOException Si la clave no es la correcta o el sobre está
+     * dañado o incompleto.
+     */
+    public static void descifrar(File cifrado, File destino, PrivateKey clavePrivada, char[] contrasena) throws IOException {
+        descifrar(cifrado, destino, clavePrivada, contrasena, null);
+    }
+
+    /**
+     * Igual que {@link #descifrar(File, File, PrivateKey, char[])},
+     * notificando el avance al receptor indicado.
+     *
+     * @param cifrado El sobre cifrado.
+     * @param destino El ZIP descifrado. Solo aparece si el sobre es íntegro.
+     * @param clavePrivada La clave privada del órgano (modo con clave
+     * pública), o {@code null}.
+     * @param contrasena La contraseña (modo con contraseña), o {@code null}.
+     * @param progreso Receptor de los bytes del sobre leídos, o
+     * {@code null}. Si lanza una excepción se interrumpe el descifrado y no se
+     * genera el ZIP.
+     * @throws IOException Si la clave no es la correcta o el sobre está
+     * dañado o incompleto.
+     */
+    public static void descifrar(File cifrado, File destino, PrivateKey clavePrivada, char[] contrasena, ContenidoArchivo.ProgresoLectura progreso) throws IOException {
+        long total = cifrado.length();
+        try (DataInputStream entrada = new DataInputStream(Files.newInputStream(cifrado.toPath()));
+                SalidaAtomica salida = SalidaAtomica.crear(destino)) {
+            Fichero fichero = leerCabecera(entrada, clavePrivada, contrasena);
+            try (OutputStream escritura = Files.newOutputStream(salida.getTemporal().toPath())) {
+                byte[] bloque = new byte[fichero.getTamanoBloque() + LONGITUD_ETIQUETA];
+                long procesados = fichero.getCabecera().length;
+                for (long indice = 0;; indice++) {
+                    int leidos = leerCompleto(entrada, bloque);
+                    procesados += leidos;
+                    if (progreso != null) {
+                        progreso.avanzar(procesados, total);
+                    }
+                    boolean ultimo = leidos < bloque.length;
+                    if (leidos < LONGITUD_ETIQUETA) {
+                        throw new IOException("El sobre está incompleto (termina en el bloque " + indice + ").");
+                    }
+                    try {
+                        escritura.write(fichero.descifrar(indice, ultimo, bloque, leidos));
+                    } catch (AEADBadTagException e) {
+                        throw new IOException(indice == 0 ? "La clave o la contraseña no son las de este sobre, o el sobre está dañado."
+                                : "El sobre está dañado o incompleto (bloque " + indice + ").", e);
+                    }
+                    if (ultimo) {
+                        break;
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("No se puede descifrar el sobre: " + e.getMessage(), e);
+            }
+            salida.confirmar();
+        }
+    }
+
+    /**
+     * Lee la cabecera y obtiene la clave del fichero.
+     */
+    private static Fichero leerCabecera(DataInputStream entrada, PrivateKey clavePrivada, char[] contrasena) throws IOException {
+        ByteArrayOutputStream leida = new ByteArrayOutputStream();
+        DataOutputStream copia = new DataOutputStream(leida);
+        byte[] magia = new byte[MAGIA.length];
+        try {
+            entrada.readFully(magia);
+            int version = entrada.readUnsignedByte();
+            if (!Arrays.equals(magia, MAGIA) || version != VERSION) {
+                throw new IOException("El fichero no es un sobre cifrado de esta aplicación (o es de una versión posterior).");
+            }
+            int modo = entrada.readUnsignedByte();
+            int tamanoBloque = entrada.readInt();
+            byte[] prefijo = new byte[LONGITUD_PREFIJO];
+            entrada.readFully(prefijo);
+            copia.write(magia);
+            copia.writeByte(version);
+            copia.writeByte(modo);
+            copia.writeInt(tamanoBloque);
+            copia.write(prefijo);
+            if (tamanoBloque <= 0 || tamanoBloque > 64 * 1024 * 1024) {
+                throw new IOException("La cabecera del sobre cifrado está dañada.");
+            }
+            if (modo == MODO_CLAVE_PUBLICA) {
+                byte[] envuelta = new byte[entrada.readUnsignedShort()];
+                entrada.readFully(envuelta);
+                copia.writeShort(envuelta.length);
+                copia.write(envuelta);
+                if (clavePrivada == null) {
+                    throw new IOException("El sobre está cifrado con la clave pública del órgano: se necesita su clave privada.");
+                }
+                Cipher rsa = Cipher.getInstance(RSA_OAEP);
+                rsa.init(Cipher.DECRYPT_MODE, clavePrivada);
+                byte[] clave;
+                try {
+                    clave = rsa.doFinal(envuelta);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("La clave privada no es la de este sobre.", e);
+                }
+                return new Fichero(new SecretKeySpec(clave, "AES"), leida.toByteArray(), prefijo, tamanoBloque);
+            }
+            if (modo == MODO_CONTRASENA) {
+                byte[] sal = new byte[LONGITUD_SAL];
+                entrada.readFully(sal);
+                int iteraciones = entrada.readInt();
+                copia.write(sal);
+                copia.writeInt(iteraciones);
+                if (iteraciones < MINIMO_ITERACIONES || iteraciones > MAXIMO_ITERACIONES) {
+                    throw new IOException("La cabecera del sobre cifrado está dañada (iteraciones no válidas: " + iteraciones + ").");
+                }
+                if (contrasena == null) {
+                    throw new IOException("El sobre está cifrado con contraseña: se necesita la contraseña.");
+                }
+                return new Fichero(derivar(contrasena, sal, iteraciones), leida.toByteArray(), prefijo, tamanoBloque);
+            }
+            throw new IOException("Modo de cifrado desconocido: " + modo);
+        } catch (EOFException e) {
+            throw new IOException("La cabecera del sobre cifrado está incompleta.", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se puede descifrar el sobre: " + e.getMessage(), e);
+        }
+    }
+
+    private static SecretKey derivar(char[] contrasena, byte[] sal, int iteraciones) throws GeneralSecurityException {
+        PBEKeySpec especificacion = new PBEKeySpec(contrasena, sal, iteraciones, BITS_AES);
+        try {
+            byte[] clave = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(especificacion).getEncoded();
+            try {
+                return new SecretKeySpec(clave, "AES");
+            } finally {
+                Arrays.fill(clave, (byte) 0);
+            }
+        } finally {
+            especificacion.clearPassword();
+        }
+    }
+
+    private static byte[] aleatorio(int longitud) {
+        byte[] bytes = new byte[longitud];
+        ALEATORIO.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Devuelve el contenido binario de una clave en PEM ("-----BEGIN ...") o
+     * la propia clave si ya es binaria.
+     */
+    private static byte[] desdePem(byte[] datos) {
+        String texto = new String(datos, StandardCharsets.US_ASCII);
+        if (!texto.contains("-----BEGIN")) {
+            return datos;
+        }
+        StringBuilder base64 = new StringBuilder();
+        for (String linea : texto.split("\\r?\\n")) {
+            if (!linea.startsWith("-----") && !linea.trim().isEmpty()) {
+                base64.append(linea.trim());
+            }
+        }
+        return Base64.getDecoder().decode(base64.toString());
+    }
+
+    /**
+     * Codifica una clave en PEM.
+     *
+     * @param tipo El tipo ("PUBLIC KEY" o "PRIVATE KEY").
+     * @param clave La clave codificada (X.509 o PKCS#8).
+     * @return El texto PEM.
+     */
+    public static String aPem(String tipo, byte[] clave) {
+        return "-----BEGIN " + tipo + "-----\n" + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(clave) + "\n-----END " + tipo + "-----\n";
+    }
+
+    private static int leerCompleto(InputStream entrada, byte[] destino) throws IOException {
+        int leidos = 0;
+        while (leidos < destino.length) {
+            int n = entrada.read(destino, leidos, destino.length - leidos);
+            if (n < 0) {
+                break;
+            }
+            leidos += n;
+        }
+        return leidos;
+    }
+}
@@ -0,0 +1,684 @@
+package com.licitador.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Compresor rápido de la familia LZ77 (del estilo de LZ4), sin dependencias,
+ * para los ficheros internos de la aplicación: documentos de los archivos de
+ * sesión, contenidos del guardado automático y volcados del
+ * {@link GestorMemoria}. No sirve para los paquetes ZIP, que deben usar
+ * Deflate.
+ * <p>
+ * Cada bloque se comprime por separado con una tabla de dispersión de
+ * secuencias de 4 bytes y una ventana de 64 KB; el resultado es una serie de
+ * secuencias "literales + copia" (ficha de 1 byte con las dos longitudes,
+ * los literales, y el desplazamiento de la copia en 2 bytes). Comprime algo
+ * menos que Deflate en su nivel más rápido pero es varias veces más rápido,
+ * sobre todo al descomprimir.
+ * </p>
+ * <p>
+ * {@link Salida} y {@link Entrada} usan el formato de flujo:
+ * </p>
+ * <pre>
+ * "LZL1" | bloques | 0 (4 bytes)
+ * bloque: longitud original (4) | longitud almacenada (4; bit alto = sin comprimir)
+ *         | CRC-32 de los bytes originales (4) | datos
+ * </pre>
+ * <p>
+ * Los bloques se comprimen y descomprimen en paralelo en un grupo de hilos
+ * compartido, mientras el hilo que llama escribe o lee los bloques en orden.
+ * </p>
+ */
+public final class CodecLZ {
+
+    /**
+     * Tamaño de los bloques del formato de flujo.
+     */
+    public static final int TAMANO_BLOQUE = 256 * 1024;
+    /**
+     * Extensión de los ficheros comprimidos con este formato.
+     */
+    public static final String EXTENSION = ".lz";
+
+    private static final byte[] MAGIA = "LZL1".getBytes(StandardCharsets.US_ASCII);
+    private static final int LONGITUD_MINIMA = 4;
+    private static final int LITERALES_FINALES = 5;
+    private static final int MARGEN_COPIA = 12;
+    private static final int DESPLAZAMIENTO_MAXIMO = 65535;
+    private static final int BITS_DISPERSION = 14;
+    private static final int BITS_ACELERACION = 6;
+    private static final int SIN_COMPRIMIR = 0x80000000;
+    /**
+     * Proporción máxima (comprimido / original) de una muestra para que
+     * merezca la pena comprimir un documento.
+     */
+    private static final double PROPORCION_RENTABLE = 0.9;
+
+    private static final ThreadLocal<int[]> TABLAS = ThreadLocal.withInitial(() -> new int[1 << BITS_DISPERSION]);
+    private static volatile ExecutorService grupo;
+
+    private CodecLZ() {
+    }
+
+    // --- BLOQUES ---
+    /**
+     * Tamaño máximo que puede ocupar un bloque comprimido.
+     *
+     * @param longitud Longitud original.
+     * @return La cota.
+     */
+    public static int cotaComprimido(int longitud) {
+        return longitud + longitud / 255 + 16;
+    }
+
+    /**
+     * Comprime un bloque.
+     *
+     * @param origen Bytes originales.
+     * @param desde Primer byte.
+     * @param longitud Número de bytes.
+     * @param destino Array de al menos {@link #cotaComprimido(int)} bytes
+     * desde {@code destinoDesde}.
+     * @param destinoDesde Posición de escritura.
+     * @return El número de bytes escritos.
+     */
+    public static int comprimir(byte[] origen, int desde, int longitud, byte[] destino, int destinoDesde) {
+        int fin = desde + longitud;
+        int limiteCopia = fin - LITERALES_FINALES;
+        int limiteBusqueda = fin - MARGEN_COPIA;
+        int ancla = desde;
+        int salida = destinoDesde;
+        if (longitud > MARGEN_COPIA) {
+            // Las lecturas de 4 y 8 bytes a través de un ByteBuffer las optimiza la JVM.
+            ByteBuffer vista = ByteBuffer.wrap(origen).order(ByteOrder.LITTLE_ENDIAN);
+            int[] tabla = TABLAS.get();
+            Arrays.fill(tabla, -1);
+            int pos = desde + 1;
+            tabla[dispersion(vista.getInt(desde))] = desde;
+            while (pos < limiteBusqueda) {
+                int secuencia = vista.getInt(pos);
+                int h = dispersion(secuencia);
+                int referencia = tabla[h];
+                tabla[h] = pos;
+                if (referencia < 0 || pos - referencia > DESPLAZAMIENTO_MAXIMO || vista.getInt(referencia) != secuencia) {
+                    pos += 1 + ((pos - ancla) >>> BITS_ACELERACION);
+                    continue;
+                }
+                while (pos > ancla && referencia > desde && origen[pos - 1] == origen[referencia - 1]) {
+                    pos--;
+                    referencia--;
+                }
+                int copia = LONGITUD_MINIMA;
+                while (pos + copia + 8 <= limiteCopia) {
+                    long diferencia = vista.getLong(pos + copia) ^ vista.getLong(referencia + copia);
+                    if (diferencia != 0) {
+                        copia += Long.numberOfTrailingZeros(diferencia) >>> 3;
+                        break;
+                    }
+                    copia += 8;
+                }
+                if (pos + copia + 8 > limiteCopia) {
+                    while (pos + copia < limiteCopia && origen[pos + copia] == origen[referencia + copia]) {
+                        copia++;
+                    }
+                }
+                salida = escribirSecuencia(origen, ancla, pos - ancla, pos - referencia, copia, destino, salida);
+                pos += copia;
+                ancla = pos;
+                if (pos - 2 > desde && pos < limiteBusqueda) {
+                    tabla[dispersion(vista.getInt(pos - 2))] = pos - 2;
+                }
+            }
+        }
+        return escribirSecuencia(origen, ancla, fin - ancla, 0, 0, destino, salida) - destinoDesde;
+    }
+
+    /**
+     * Descomprime un bloque, comprobando todos los límites.
+     *
+     * @param origen Bytes comprimidos.
+     * @param desde Primer byte.
+     * @param longitud Número de bytes comprimidos.
+     * @param destino Array para los bytes originales.
+     * @param destinoDesde Posición de escritura.
+     * @param longitudOriginal Número exacto de bytes originales.
+     * @throws IOException Si los datos están dañados.
+     */
+    public static void descomprimir(byte[] origen, int desde, int longitud, byte[] destino, int destinoDesde, int longitudOriginal) throws IOException {
+        int pos = desde;
+        int fin = desde + longitud;
+        int salida = destinoDesde;
+        int finSalida = destinoDesde + longitudOriginal;
+        while (true) {
+            if (pos >= fin) {
+                throw new IOException("Bloque comprimido dañado: termina antes de tiempo.");
+            }
+            int ficha = origen[pos++] & 0xFF;
+            int literales = ficha >>> 4;
+            if (literales == 15) {
+                int b;
+                do {
+                    if (pos >= fin) {
+                        throw new IOException("Bloque comprimido dañado: longitud incompleta.");
+                    }
+                    b = origen[pos++] & 0xFF;
+                    literales += b;
+                } while (b == 255);
+            }
+            if (literales > fin - pos || literales > finSalida - salida) {
+                throw new IOException("Bloque comprimido dañado: literales fuera de límites.");
+            }
+            System.arraycopy(origen, pos, destino, salida, literales);
+            pos += literales;
+            salida += literales;
+            if (pos == fin) {
+                break;
+            }
+            if (fin - pos < 2) {
+                throw new IOException("Bloque comprimido dañado: desplazamiento incompleto.");
+            }
+            int desplazamiento = (origen[pos] & 0xFF) | ((origen[pos + 1] & 0xFF) << 8);
+            pos += 2;
+            if (desplazamiento == 0 || desplazamiento > salida - destinoDesde) {
+                throw new IOException("Bloque comprimido dañado: desplazamiento no válido.");
+            }
+            int copia = ficha & 0x0F;
+            if (copia == 15) {
+                int b;
+                do {
+                    if (pos >= fin) {
+                        throw new IOException("Bloque comprimido dañado: longitud incompleta.");
+                    }
+                    b = origen[pos++] & 0xFF;
+                    copia += b;
+                } while (b == 255);
+            }
+            copia += LONGITUD_MINIMA;
+            if (copia > finSalida - salida) {
+                throw new IOException("Bloque comprimido dañado: copia fuera de límites.");
+            }
+            int referencia = salida - desplazamiento;
+            if (desplazamiento >= copia) {
+                System.arraycopy(destino, referencia, destino, salida, copia);
+            } else {
+                // La copia solapa lo que se está escribiendo (repeticiones cortas).
+                for (int i = 0; i < copia; i++) {
+                    destino[salida + i] = destino[referencia + i];
+                }
+            }
+            salida += copia;
+        }
+        if (salida != finSalida) {
+            throw new IOException("Bloque comprimido dañado: longitud original incorrecta.");
+        }
+    }
+
+    /**
+     * Indica si merece la pena comprimir un contenido a partir de una muestra
+     * (los documentos ya comprimidos, como la mayoría de PDF e imágenes, se
+     * guardan tal cual).
+     *
+     * @param muestra Los primeros bytes del contenido.
+     * @param longitud Número de bytes de la muestra.
+     * @return {@code true} si la muestra se reduce lo suficiente.
+     */
+    public static boolean mereceComprimir(byte[] muestra, int longitud) {
+        if (longitud <= MARGEN_COPIA) {
+            return false;
+        }
+        byte[] comprimido = new byte[cotaComprimido(longitud)];
+        return comprimir(muestra, 0, longitud, comprimido, 0) < longitud * PROPORCION_RENTABLE;
+    }
+
+    private static int escribirSecuencia(byte[] origen, int ancla, int literales, int desplazamiento, int copia, byte[] destino, int salida) {
+        int posFicha = salida++;
+        int ficha;
+        if (literales >= 15) {
+            ficha = 15 << 4;
+            salida = escribirLongitud(literales - 15, destino, salida);
+        } else {
+            ficha = literales << 4;
+        }
+        System.arraycopy(origen, ancla, destino, salida, literales);
+        salida += literales;
+        if (copia > 0) {
+            destino[salida++] = (byte) desplazamiento;
+            destino[salida++] = (byte) (desplazamiento >>> 8);
+            int resto = copia - LONGITUD_MINIMA;
+            if (resto >= 15) {
+                ficha |= 15;
+                salida = escribirLongitud(resto - 15, destino, salida);
+            } else {
+                ficha |= resto;
+            }
+        }
+        destino[posFicha] = (byte) ficha;
+        return salida;
+    }
+
+    private static int escribirLongitud(int resto, byte[] destino, int salida) {
+        while (resto >= 255) {
+            destino[salida++] = (byte) 255;
+            resto -= 255;
+        }
+        destino[salida++] = (byte) resto;
+        return salida;
+    }
+
+    private static int dispersion(int secuencia) {
+        return (secuencia * -1640531535) >>> (32 - BITS_DISPERSION);
+    }
+
+    // --- FLUJOS ---
+    private static ExecutorService getGrupo() {
+        ExecutorService actual = grupo;
+        if (actual == null) {
+            synchronized (CodecLZ.class) {
+                actual = grupo;
+                if (actual == null) {
+                    AtomicInteger contador = new AtomicInteger();
+                    actual = Executors.newFixedThreadPool(getHilos(), r -> {
+                        Thread t = new Thread(r, "codec-lz-" + contador.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    grupo = actual;
+                }
+            }
+        }
+        return actual;
+    }
+
+    private static int getHilos() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Comprime un bloque del formato de flujo con su cabecera.
+     *
+     * @return El bloque, desde el principio del array hasta el límite.
+     */
+    private static ByteBuffer comprimirBloqueFlujo(byte[] datos, int longitud) {
+        byte[] resultado = new byte[12 + cotaComprimido(longitud)];
+        int comprimido = comprimir(datos, 0, longitud, resultado, 12);
+        CRC32 crc = new CRC32();
+        crc.update(datos, 0, longitud);
+        int almacenado = comprimido;
+        if (comprimido >= longitud) {
+            System.arraycopy(datos, 0, resultado, 12, longitud);
+            almacenado = longitud | SIN_COMPRIMIR;
+            comprimido = longitud;
+        }
+        escribirEntero(resultado, 0, longitud);
+        escribirEntero(resultado, 4, almacenado);
+        escribirEntero(resultado, 8, (int) crc.getValue());
+        return ByteBuffer.wrap(resultado, 0, 12 + comprimido);
+    }
+
+    private static void escribirEntero(byte[] b, int i, int valor) {
+        b[i] = (byte) (valor >>> 24);
+        b[i + 1] = (byte) (valor >>> 16);
+        b[i + 2] = (byte) (valor >>> 8);
+        b[i + 3] = (byte) valor;
+    }
+
+    private static int leerEnteroFlujo(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
+    private static <T> T esperar(Future<T> futuro) throws IOException {
+        try {
+            return futuro.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compresión interrumpida.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Flujo de salida que comprime en el formato de flujo. Hay como mucho dos
+     * bloques por hilo en vuelo, para acotar la memoria.
+     */
+    public static final class Salida extends OutputStream {
+
+        private final OutputStream destino;
+        private final Deque<Future<ByteBuffer>> enVuelo = new ArrayDeque<>();
+        private final int maximoEnVuelo = getHilos() * 2;
+        private byte[] bloque = new byte[TAMANO_BLOQUE];
+        private int lleno;
+        private boolean terminada;
+
+        /**
+         * Escribe la cabecera del flujo.
+         *
+         * @param destino El flujo que recibe los bytes comprimidos.
+         * @throws IOException Si no se puede escribir.
+         */
+        public Salida(OutputStream destino) throws IOException {
+            this.destino = destino;
+            destino.write(MAGIA);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (terminada) {
+                throw new IOException("El flujo comprimido ya está terminado.");
+            }
+            bloque[lleno++] = (byte) b;
+            if (lleno == bloque.length) {
+                enviar();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int desde, int longitud) throws IOException {
+            if (terminada) {
+                throw new IOException("El flujo comprimido ya está terminado.");
+            }
+            while (longitud > 0) {
+                int n = Math.min(longitud, bloque.length - lleno);
+                System.arraycopy(b, desde, bloque, lleno, n);
+                lleno += n;
+                desde += n;
+                longitud -= n;
+                if (lleno == bloque.length) {
+                    enviar();
+                }
+            }
+        }
+
+        /**
+         * Comprime el bloque en curso (aunque no esté lleno) y escribe todo lo
+         * pendiente.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (lleno > 0) {
+                enviar();
+            }
+            while (!enVuelo.isEmpty()) {
+                escribirBloque(esperar(enVuelo.removeFirst()));
+            }
+            destino.flush();
+        }
+
+        /**
+         * Escribe todo lo pendiente y el final del flujo, sin cerrar el
+         * destino.
+         *
+         * @throws IOException Si no se puede escribir.
+         */
+        public void terminar() throws IOException {
+            if (terminada) {
+                return;
+            }
+            flush();
+            destino.write(new byte[4]);
+            destino.flush();
+            terminada = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                terminar();
+            } finally {
+                for (Future<ByteBuffer> pendiente : enVuelo) {
+                    pendiente.cancel(true);
+                }
+                destino.close();
+            }
+        }
+
+        private void escribirBloque(ByteBuffer comprimido) throws IOException {
+            destino.write(comprimido.array(), 0, comprimido.limit());
+        }
+
+        private void enviar() throws IOException {
+            while (enVuelo.size() >= maximoEnVuelo || (!enVuelo.isEmpty() && enVuelo.peekFirst().isDone())) {
+                escribirBloque(esperar(enVuelo.removeFirst()));
+            }
+            byte[] datos = bloque;
+            int longitud = lleno;
+            enVuelo.addLast(getGrupo().submit(() -> comprimirBloqueFlujo(datos, longitud)));
+            bloque = new byte[TAMANO_BLOQUE];
+            lleno = 0;
+        }
+    }
+
+    /**
+     * Flujo de entrada que descomprime el formato de flujo, leyendo por
+     * adelantado y descomprimiendo en paralelo los bloques siguientes.
+     * {@link #skip(long)} salta bloques completos sin descomprimirlos.
+     */
+    public static final class Entrada extends InputStream {
+
+        /**
+         * Un bloque leído y enviado a descomprimir.
+         */
+        private static final class Pendiente {
+
+            final int longitud;
+            final Future<byte[]> datos;
+
+            Pendiente(int longitud, Future<byte[]> datos) {
+                this.longitud = longitud;
+                this.datos = datos;
+            }
+        }
+
+        private final InputStream origen;
+        private final Deque<Pendiente> enVuelo = new ArrayDeque<>();
+        private final int maximoEnVuelo = getHilos() * 2;
+        private final byte[] cabecera = new byte[12];
+        private byte[] actual = new byte[0];
+        private int posicion;
+        private boolean finOrigen;
+
+        /**
+         * Lee y comprueba la cabecera del flujo.
+         *
+         * @param origen El flujo con los bytes comprimidos.
+         * @throws IOException Si no es un flujo de este formato.
+         */
+        public Entrada(InputStream origen) throws IOException {
+            this.origen = origen;
+            byte[] magia = new byte[MAGIA.length];
+            leerCompleto(magia, 0, magia.length);
+            if (!Arrays.equals(magia, MAGIA)) {
+                throw new IOException("Los datos no están en el formato comprimido esperado.");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (posicion == actual.length && !siguienteBloque()) {
+                return -1;
+            }
+            return actual[posicion++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return 0;
+            }
+            if (posicion == actual.length && !siguienteBloque()) {
+                return -1;
+            }
+            int n = Math.min(longitud, actual.length - posicion);
+            System.arraycopy(actual, posicion, b, desde, n);
+            posicion += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long saltados = Math.min(n, actual.length - posicion);
+            posicion += (int) saltados;
+            while (saltados < n) {
+                if (!enVuelo.isEmpty()) {
+                    if (enVuelo.peekFirst().longitud > n - saltados) {
+                        break;
+                    }
+                    Pendiente descartado = enVuelo.removeFirst();
+                    descartado.datos.cancel(true);
+                    saltados += descartado.longitud;
+                    continue;
+                }
+                int longitud = leerCabecera();
+                if (longitud < 0) {
+                    return saltados;
+                }
+                int almacenado = leerEnteroFlujo(cabecera, 4) & ~SIN_COMPRIMIR;
+                if (longitud > n - saltados) {
+                    enVuelo.addLast(enviar(longitud, leerDatos(almacenado)));
+                    break;
+                }
+                saltarCompleto(almacenado);
+                saltados += longitud;
+            }
+            if (saltados < n && siguienteBloque()) {
+                int resto = (int) (n - saltados);
+                posicion = resto;
+                saltados += resto;
+            }
+            return saltados;
+        }
+
+        @Override
+        public int available() {
+            return actual.length - posicion;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Pendiente pendiente : enVuelo) {
+                pendiente.datos.cancel(true);
+            }
+            enVuelo.clear();
+            origen.close();
+        }
+
+        private boolean siguienteBloque() throws IOException {
+            while (enVuelo.size() < maximoEnVuelo && !finOrigen) {
+                int longitud = leerCabecera();
+                if (longitud < 0) {
+                    break;
+                }
+                int almacenado = leerEnteroFlujo(cabecera, 4) & ~SIN_COMPRIMIR;
+                enVuelo.addLast(enviar(longitud, leerDatos(almacenado)));
+            }
+            if (enVuelo.isEmpty()) {
+                return false;
+            }
+            actual = esperar(enVuelo.removeFirst().datos);
+            posicion = 0;
+            return actual.length > 0 || siguienteBloque();
+        }
+
+        /**
+         * Lee la cabecera del siguiente bloque.
+         *
+         * @return La longitud original, o -1 al final del flujo.
+         */
+        private int leerCabecera() throws IOException {
+            if (finOrigen) {
+                return -1;
+            }
+            leerCompleto(cabecera, 0, 4);
+            int longitud = leerEnteroFlujo(cabecera, 0);
+            if (longitud == 0) {
+                finOrigen = true;
+                return -1;
+            }
+            leerCompleto(cabecera, 4, 12);
+            int almacenado = leerEnteroFlujo(cabecera, 4) & ~SIN_COMPRIMIR;
+            if (longitud < 0 || longitud > TAMANO_BLOQUE || almacenado > cotaComprimido(TAMANO_BLOQUE)) {
+                throw new IOException("Flujo comprimido dañado: cabecera de bloque no válida.");
+            }
+            return longitud;
+        }
+
+        private byte[] leerDatos(int almacenado) throws IOException {
+            byte[] datos = new byte[12 + almacenado];
+            System.arraycopy(cabecera, 0, datos, 0, 12);
+            int leidos = 0;
+            while (leidos < almacenado) {
+                int n = origen.read(datos, 12 + leidos, almacenado - leidos);
+                if (n < 0) {
+                    throw new EOFException("Flujo comprimido truncado.");
+                }
+                leidos += n;
+            }
+            return datos;
+        }
+
+        private Pendiente enviar(int longitud, byte[] datos) {
+            return new Pendiente(longitud, getGrupo().submit(() -> {
+                int almacenado = leerEnteroFlujo(datos, 4);
+                byte[] resultado = new byte[longitud];
+                if ((almacenado & SIN_COMPRIMIR) != 0) {
+                    if ((almacenado & ~SIN_COMPRIMIR) != longitud) {
+                        throw new IOException("Flujo comprimido dañado: bloque sin comprimir de longitud incorrecta.");
+                    }
+                    System.arraycopy(datos, 12, resultado, 0, longitud);
+                } else {
+                    descomprimir(datos, 12, almacenado, resultado, 0, longitud);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(resultado);
+                if ((int) crc.getValue() != leerEnteroFlujo(datos, 8)) {
+                    throw new IOException("Flujo comprimido dañado: el CRC-32 de un bloque no coincide.");
+                }
+                return resultado;
+            }));
+        }
+
+        private void leerCompleto(byte[] destino, int desde, int hasta) throws IOException {
+            int leidos = desde;
+            while (leidos < hasta) {
+                int n = origen.read(destino, leidos, hasta - leidos);
+                if (n < 0) {
+                    throw new EOFException("Flujo comprimido truncado.");
+                }
+                leidos += n;
+            }
+        }
+
+        private void saltarCompleto(long bytes) throws IOException {
+            long pendientes = bytes;
+            while (pendientes > 0) {
+                long n = origen.skip(pendientes);
+                if (n <= 0) {
+                    if (origen.read() < 0) {
+                        throw new EOFException("Flujo comprimido truncado.");
+                    }
+                    n = 1;
+                }
+                pendientes -= n;
+            }
+        }
+    }
+}
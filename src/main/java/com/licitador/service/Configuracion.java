@@ -1,6 +1,7 @@
 package com.licitador.service;
 
 import com.licitador.model.ArticuloAnexo;
+import com.licitador.model.ConfiguracionCifrado;
 import java.io.Serializable;
 import java.util.Objects;
 import java.util.Arrays;
@@ -63,6 +64,8 @@ public class Configuracion implements Serializable {
     private final ArticuloAnexo[] articulosAnexos;
     // -------------------
 
+    private final ConfiguracionCifrado cifrado;
+
     /**
      * Constructor para inicializar una nueva configuración de licitación.
      *
@@ -82,6 +85,31 @@ public class Configuracion implements Serializable {
             String[] nombresArchivosComunes, boolean[] archivosComunesObligatorios,
             boolean[] archivosComunesConfidenciales, // ¡Parámetro añadido!
             ArchivoOferta[] archivosOferta, String[] supuestosConfidencialidad, ArticuloAnexo[] articulosAnexos) {
+        this(objetoLicitacion, numeroExpediente, tieneLotes, numLotes, nombresArchivosComunes, archivosComunesObligatorios,
+                archivosComunesConfidenciales, archivosOferta, supuestosConfidencialidad, articulosAnexos, null);
+    }
+
+    /**
+     * Constructor que incluye el cifrado de los sobres de la oferta.
+     *
+     * @param objetoLicitacion Objeto de la licitación.
+     * @param numeroExpediente Número de expediente.
+     * @param tieneLotes {@code true} si tiene lotes.
+     * @param numLotes Número de lotes.
+     * @param nombresArchivosComunes Nombres de archivos comunes.
+     * @param archivosComunesObligatorios Obligatoriedad de los archivos
+     * comunes.
+     * @param archivosComunesConfidenciales Susceptibilidad de confidencialidad
+     * de archivos comunes.
+     * @param archivosOferta Array de configuración de archivos de oferta.
+     * @param supuestosConfidencialidad Lista de supuestos de confidencialidad.
+     * @param articulosAnexos Artículos de los anexos administrativos.
+     * @param cifrado Cifrado de los sobres de la oferta, o {@code null}.
+     */
+    public Configuracion(String objetoLicitacion, String numeroExpediente, boolean tieneLotes, int numLotes,
+            String[] nombresArchivosComunes, boolean[] archivosComunesObligatorios,
+            boolean[] archivosComunesConfidenciales, ArchivoOferta[] archivosOferta, String[] supuestosConfidencialidad,
+            ArticuloAnexo[] articulosAnexos, ConfiguracionCifrado cifrado) {
         this.objetoLicitacion = Objects.requireNonNull(objetoLicitacion);
         this.numeroExpediente = Objects.requireNonNull(numeroExpediente);
         this.tieneLotes = tieneLotes;
@@ -92,6 +120,7 @@ public class Configuracion implements Serializable {
         this.archivosOferta = Objects.requireNonNull(archivosOferta);
         this.supuestosConfidencialidad = Objects.requireNonNull(supuestosConfidencialidad);
         this.articulosAnexos = (articulosAnexos != null) ? articulosAnexos : new ArticuloAnexo[0];
+        this.cifrado = cifrado;
     }
 
     // --- NUEVO GETTER ---
@@ -99,6 +128,15 @@ public class Configuracion implements Serializable {
         return articulosAnexos;
     }
 
+    /**
+     * Obtiene el cifrado exigido para los sobres de la oferta.
+     *
+     * @return El cifrado, o {@code null} si los sobres no se cifran.
+     */
+    public ConfiguracionCifrado getCifrado() {
+        return cifrado;
+    }
+
     /**
      * Obtiene el objeto de la licitación.
      *
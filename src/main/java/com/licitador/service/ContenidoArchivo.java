@@ -0,0 +1,716 @@
+package com.licitador.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Contenido binario de un documento cargado en la sesión.
+ * <p>
+ * El contenido puede residir en memoria (documentos generados por la propia
+ * aplicación, como el Anexo Administrativo) o estar respaldado por el fichero
+ * de origen en disco. En este segundo caso solo se guardan la ruta, el tamaño,
+ * la fecha de modificación, la huella SHA-256 y el CRC-32 (calculados en una
+ * única lectura durante la carga); los bytes se leen a través de
+ * un {@link FileChannel} únicamente cuando se empaquetan o se guardan en la
+ * sesión, de modo que el consumo de memoria no depende del volumen de los
+ * documentos adjuntos.
+ * </p>
+ * <p>
+ * Los contenidos residentes en memoria se contabilizan en el
+ * {@link GestorMemoria}, que puede volcarlos comprimidos al área temporal
+ * cuando se supera el presupuesto; en ese caso se leen del volcado (o se
+ * recargan en memoria) de forma transparente.
+ * </p>
+ * <p>
+ * Al serializarse (guardado de sesión) el contenido se vuelca por bloques en
+ * el flujo, sin materializarlo completo en memoria.
+ * </p>
+ */
+public class ContenidoArchivo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Tamaño del buffer utilizado para copiar y calcular huellas.
+     */
+    static final int TAMANO_BUFFER = 64 * 1024;
+
+    /**
+     * Receptor del avance de lectura de un fichero durante su carga. Puede
+     * lanzar {@link java.io.InterruptedIOException} para cancelar la lectura.
+     */
+    public interface ProgresoLectura {
+
+        /**
+         * Notifica los bytes leídos hasta el momento.
+         *
+         * @param leidos Bytes leídos desde el inicio del fichero.
+         * @param total Tamaño total del fichero.
+         * @throws IOException Para interrumpir la lectura.
+         */
+        void avanzar(long leidos, long total) throws IOException;
+    }
+
+    /**
+     * Bytes del contenido, solo para contenidos residentes en memoria. Se
+     * serializa manualmente en {@link #writeObject(ObjectOutputStream)}.
+     */
+    private transient volatile byte[] datos;
+    /**
+     * Fichero del área temporal con una copia comprimida del contenido, o
+     * {@code null} si nunca se ha volcado. Como el contenido es inmutable, el
+     * volcado sigue siendo válido tras una recarga.
+     */
+    private transient volatile Path rutaVolcado;
+    /**
+     * Bytes del contenido dentro de un archivo de sesión indexado, o
+     * {@code null}. Se usa cuando el fichero de origen ya no está disponible
+     * al abrir la sesión: el contenido se lee del archivo de sesión cuando se
+     * necesita, sin cargarlo en memoria.
+     */
+    private transient volatile ArchivoSesion.Region regionSesion;
+    /**
+     * Ruta absoluta del fichero de origen, o {@code null} si el contenido
+     * reside en memoria.
+     */
+    private String rutaOrigen;
+    /**
+     * Tamaño del contenido en bytes.
+     */
+    private final long tamano;
+    /**
+     * Fecha de última modificación del fichero de origen en el momento de la
+     * carga (milisegundos). Se usa para detectar cambios posteriores.
+     */
+    private final long fechaModificacion;
+    /**
+     * Huella SHA-256 del contenido en hexadecimal. Se calcula en la carga para
+     * los ficheros en disco y de forma perezosa para los contenidos en memoria.
+     */
+    private String huella;
+    /**
+     * CRC-32 del contenido, calculado junto con la huella. Permite escribir el
+     * documento en el ZIP sin recalcularlo. Es {@code null} en sesiones
+     * guardadas por versiones anteriores hasta que se calcula.
+     */
+    private Long crc;
+
+    /**
+     * Crea un contenido residente en memoria.
+     *
+     * @param datos Los bytes del contenido.
+     * @throws NullPointerException Si {@code datos} es {@code null}.
+     */
+    public ContenidoArchivo(byte[] datos) {
+        this.datos = Objects.requireNonNull(datos, "Contenido no puede ser null");
+        this.rutaOrigen = null;
+        this.tamano = datos.length;
+        this.fechaModificacion = 0L;
+        GestorMemoria.getInstancia().registrarResidente(this);
+    }
+
+    private ContenidoArchivo(Path ruta, long tamano, long fechaModificacion, String huella, long crc) {
+        this.datos = null;
+        this.rutaOrigen = ruta.toAbsolutePath().toString();
+        this.tamano = tamano;
+        this.fechaModificacion = fechaModificacion;
+        this.huella = huella;
+        this.crc = crc;
+    }
+
+    private ContenidoArchivo(long tamano, String huella, long crc, ArchivoSesion.Region regionSesion) {
+        this.datos = null;
+        this.rutaOrigen = null;
+        this.tamano = tamano;
+        this.fechaModificacion = 0L;
+        this.huella = huella;
+        this.crc = crc;
+        this.regionSesion = regionSesion;
+    }
+
+    /**
+     * Restaura un contenido de un archivo de sesión indexado. Igual que al
+     * leer una sesión serializada, si el fichero de origen sigue disponible y
+     * sin cambios el contenido continúa respaldado por él; si no, se lee de su
+     * región del archivo de sesión.
+     *
+     * @param rutaOrigen Ruta del fichero de origen al guardar, o {@code null}.
+     * @param tamano Tamaño del contenido.
+     * @param fechaModificacion Fecha de modificación del origen al cargarlo.
+     * @param huella Huella SHA-256 en hexadecimal.
+     * @param crc CRC-32 del contenido.
+     * @param region Bytes del contenido en el archivo de sesión.
+     * @return El contenido.
+     */
+    static ContenidoArchivo desdeSesion(String rutaOrigen, long tamano, long fechaModificacion, String huella, long crc, ArchivoSesion.Region region) {
+        if (rutaOrigen != null) {
+            ContenidoArchivo enOrigen = new ContenidoArchivo(Paths.get(rutaOrigen), tamano, fechaModificacion, huella, crc);
+            if (enOrigen.origenDisponibleSinCambios()) {
+                return enOrigen;
+            }
+        }
+        return new ContenidoArchivo(tamano, huella, crc, region);
+    }
+
+    /**
+     * Crea un contenido respaldado por un fichero en disco. Solo se recorre el
+     * fichero una vez para calcular su huella SHA-256 y su CRC-32; los bytes
+     * no se conservan en memoria.
+     *
+     * @param archivo El fichero de origen.
+     * @return El contenido respaldado por el fichero.
+     * @throws IOException Si el fichero no existe o no se puede leer.
+     */
+    public static ContenidoArchivo desdeArchivo(File archivo) throws IOException {
+        return desdeArchivo(archivo, null);
+    }
+
+    /**
+     * Igual que {@link #desdeArchivo(File)}, notificando el avance de la
+     * lectura al receptor indicado.
+     *
+     * @param archivo El fichero de origen.
+     * @param progreso Receptor del avance, o {@code null}.
+     * @return El contenido respaldado por el fichero.
+     * @throws IOException Si el fichero no se puede leer o el receptor
+     * cancela la lectura.
+     */
+    public static ContenidoArchivo desdeArchivo(File archivo, ProgresoLectura progreso) throws IOException {
+        Path ruta = archivo.toPath();
+        if (!Files.isRegularFile(ruta) || !Files.isReadable(ruta)) {
+            throw new IOException("El archivo no existe o no es legible: " + archivo.getAbsolutePath());
+        }
+        long tamano = Files.size(ruta);
+        long fechaModificacion = Files.getLastModifiedTime(ruta).toMillis();
+        CRC32 crc = new CRC32();
+        String huella = calcularHuella(ruta, tamano, crc, progreso);
+        if (Files.size(ruta) != tamano || Files.getLastModifiedTime(ruta).toMillis() != fechaModificacion) {
+            throw new IOException("El archivo se ha modificado mientras se cargaba: " + archivo.getAbsolutePath());
+        }
+        return new ContenidoArchivo(ruta, tamano, fechaModificacion, huella, crc.getValue());
+    }
+
+    /**
+     * Abre un flujo de lectura sobre el contenido. Para los contenidos en disco
+     * se comprueba antes que el fichero de origen no haya cambiado desde la
+     * carga.
+     *
+     * @return Un {@link InputStream} que el llamante debe cerrar.
+     * @throws IOException Si el fichero de origen ha desaparecido o ha sido
+     * modificado.
+     */
+    public InputStream abrirStream() throws IOException {
+        byte[] residentes = datos;
+        if (residentes != null) {
+            GestorMemoria.getInstancia().tocar(this);
+            return new ByteArrayInputStream(residentes);
+        }
+        Path volcado = rutaVolcado;
+        if (volcado != null) {
+            // Se lee directamente del volcado, sin volver a ocupar memoria.
+            return GestorMemoria.getInstancia().abrirVolcado(volcado);
+        }
+        ArchivoSesion.Region region = regionSesion;
+        if (region != null) {
+            return Channels.newInputStream(region.abrir());
+        }
+        return Channels.newInputStream(abrirCanal());
+    }
+
+    /**
+     * Abre un {@link FileChannel} de solo lectura sobre el fichero de origen.
+     *
+     * @return El canal abierto, que el llamante debe cerrar.
+     * @throws IOException Si el contenido no está en disco, o el fichero ha
+     * desaparecido o ha sido modificado.
+     */
+    public FileChannel abrirCanal() throws IOException {
+        if (rutaOrigen == null) {
+            throw new IOException("El contenido no está respaldado por un fichero en disco.");
+        }
+        Path ruta = Paths.get(rutaOrigen);
+        comprobarOrigenSinCambios(ruta);
+        return FileChannel.open(ruta, StandardOpenOption.READ);
+    }
+
+    /**
+     * Abre un canal de lectura sobre el contenido: el propio
+     * {@link FileChannel} del origen si está en disco, o un canal sobre la
+     * memoria o el volcado en caso contrario.
+     *
+     * @return El canal abierto, que el llamante debe cerrar.
+     * @throws IOException Si el fichero de origen ha desaparecido o ha sido
+     * modificado.
+     */
+    public ReadableByteChannel abrirCanalLectura() throws IOException {
+        if (datos == null && rutaVolcado == null && rutaOrigen != null) {
+            return abrirCanal();
+        }
+        ArchivoSesion.Region region = regionSesion;
+        if (datos == null && rutaVolcado == null && region != null) {
+            return region.abrir();
+        }
+        return Channels.newChannel(abrirStream());
+    }
+
+    /**
+     * Lee un fragmento del contenido a partir de la posición indicada, sin
+     * recorrer lo anterior cuando el contenido está en memoria o en disco. Se
+     * usa para tomar muestras (por ejemplo, para decidir cómo comprimirlo).
+     *
+     * @param desde Posición inicial.
+     * @param destino Array en el que se copian los bytes.
+     * @return El número de bytes leídos (menor que {@code destino.length} si
+     * se alcanza el final).
+     * @throws IOException Si falla la lectura.
+     */
+    public int leerFragmento(long desde, byte[] destino) throws IOException {
+        int longitud = (int) Math.max(0, Math.min(destino.length, tamano - desde));
+        byte[] residentes = datos;
+        if (residentes != null) {
+            int copiados = (int) Math.min(longitud, Math.max(0, residentes.length - desde));
+            if (copiados == 0) {
+                return 0;
+            }
+            System.arraycopy(residentes, (int) desde, destino, 0, copiados);
+            return copiados;
+        }
+        ArchivoSesion.Region region = regionSesion;
+        if (rutaVolcado == null && region != null) {
+            return region.leer(desde, destino, longitud);
+        }
+        if (rutaVolcado == null) {
+            try (FileChannel canal = abrirCanal()) {
+                ByteBuffer buffer = ByteBuffer.wrap(destino, 0, longitud);
+                while (buffer.hasRemaining()) {
+                    if (canal.read(buffer, desde + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                return buffer.position();
+            }
+        }
+        try (InputStream entrada = abrirStream()) {
+            long saltar = desde;
+            while (saltar > 0) {
+                long saltados = entrada.skip(saltar);
+                if (saltados <= 0) {
+                    return 0;
+                }
+                saltar -= saltados;
+            }
+            int leidos = 0;
+            while (leidos < longitud) {
+                int n = entrada.read(destino, leidos, longitud - leidos);
+                if (n < 0) {
+                    break;
+                }
+                leidos += n;
+            }
+            return leidos;
+        }
+    }
+
+    /**
+     * Copia el contenido completo en el flujo de salida indicado usando un
+     * buffer de tamaño fijo.
+     *
+     * @param salida El flujo de destino (no se cierra).
+     * @return El número de bytes copiados.
+     * @throws IOException Si falla la lectura o la escritura.
+     */
+    public long transferirA(OutputStream salida) throws IOException {
+        try (InputStream entrada = abrirStream()) {
+            byte[] buffer = new byte[TAMANO_BUFFER];
+            long total = 0;
+            int leidos;
+            while ((leidos = entrada.read(buffer)) != -1) {
+                salida.write(buffer, 0, leidos);
+                total += leidos;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Materializa el contenido completo en un array de bytes. Debe evitarse
+     * para documentos grandes; use {@link #abrirStream()} siempre que sea
+     * posible.
+     *
+     * @return Los bytes del contenido.
+     * @throws IOException Si falla la lectura del fichero de origen.
+     */
+    public byte[] leerBytes() throws IOException {
+        byte[] residentes = datos;
+        if (residentes != null) {
+            GestorMemoria.getInstancia().tocar(this);
+            return residentes;
+        }
+        if (rutaVolcado != null) {
+            return recargarVolcado();
+        }
+        if (tamano > Integer.MAX_VALUE - 8) {
+            throw new IOException("El archivo es demasiado grande para cargarlo en memoria: " + rutaOrigen);
+        }
+        byte[] resultado = new byte[(int) tamano];
+        try (ReadableByteChannel canal = abrirCanalLectura()) {
+            ByteBuffer buffer = ByteBuffer.wrap(resultado);
+            while (buffer.hasRemaining()) {
+                if (canal.read(buffer) < 0) {
+                    throw new IOException("Fin de fichero inesperado al leer: " + (rutaOrigen != null ? rutaOrigen : regionSesion.getFichero()));
+                }
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Recarga en memoria un contenido volcado al área temporal y lo vuelve a
+     * registrar en el {@link GestorMemoria}.
+     */
+    private byte[] recargarVolcado() throws IOException {
+        byte[] recargados;
+        synchronized (this) {
+            recargados = datos;
+            if (recargados == null) {
+                recargados = new byte[(int) tamano];
+                try (InputStream entrada = GestorMemoria.getInstancia().abrirVolcado(rutaVolcado)) {
+                    int offset = 0;
+                    while (offset < recargados.length) {
+                        int leidos = entrada.read(recargados, offset, recargados.length - offset);
+                        if (leidos < 0) {
+                            throw new IOException("El volcado del contenido está truncado: " + rutaVolcado);
+                        }
+                        offset += leidos;
+                    }
+                }
+                datos = recargados;
+                GestorMemoria.getInstancia().notificarRecarga(tamano);
+            }
+        }
+        GestorMemoria.getInstancia().registrarResidente(this);
+        return recargados;
+    }
+
+    /**
+     * Vuelca el contenido al área temporal (si no se había volcado antes) y
+     * libera los bytes residentes. Lo invoca el {@link GestorMemoria} al
+     * superarse el presupuesto.
+     *
+     * @param gestor El gestor que solicita el volcado.
+     * @return Los bytes liberados de la memoria.
+     * @throws IOException Si no se puede escribir el volcado.
+     */
+    synchronized long volcar(GestorMemoria gestor) throws IOException {
+        byte[] residentes = datos;
+        if (residentes == null) {
+            return 0;
+        }
+        if (huella == null || crc == null) {
+            calcularHuellas(new ByteArrayInputStream(residentes));
+        }
+        if (rutaVolcado == null || !Files.exists(rutaVolcado)) {
+            rutaVolcado = gestor.escribirVolcado(residentes);
+        }
+        datos = null;
+        return residentes.length;
+    }
+
+    /**
+     * Deja de contabilizar este contenido en el {@link GestorMemoria}. Se
+     * llama cuando ningún hueco de la sesión lo referencia ya.
+     */
+    void descartar() {
+        GestorMemoria.getInstancia().olvidar(this, datos == null && rutaVolcado != null);
+    }
+
+    /**
+     * Obtiene el tamaño del contenido en bytes sin leerlo.
+     *
+     * @return El tamaño en bytes.
+     */
+    public long getTamano() {
+        return tamano;
+    }
+
+    /**
+     * Obtiene la huella SHA-256 del contenido en hexadecimal.
+     *
+     * @return La huella del contenido.
+     * @throws IllegalStateException Si no se puede leer el contenido para
+     * calcularla.
+     */
+    public synchronized String getHuella() {
+        if (huella == null) {
+            calcularHuellasPendientes();
+        }
+        return huella;
+    }
+
+    /**
+     * Obtiene el CRC-32 del contenido, calculándolo (junto con la huella) si
+     * aún no se conoce.
+     *
+     * @return El CRC-32 de los bytes del contenido.
+     * @throws IllegalStateException Si no se puede leer el contenido para
+     * calcularlo.
+     */
+    public synchronized long getCrc() {
+        if (crc == null) {
+            calcularHuellasPendientes();
+        }
+        return crc;
+    }
+
+    /**
+     * Obtiene la huella solo si ya se calculó, sin leer el contenido.
+     *
+     * @return La huella SHA-256, o {@code null} si no se conoce todavía.
+     */
+    public synchronized String getHuellaSiConocida() {
+        return huella;
+    }
+
+    /**
+     * Obtiene el CRC-32 solo si ya se calculó (en la carga o antes), sin leer
+     * el contenido.
+     *
+     * @return El CRC-32, o {@code null} si no se conoce todavía.
+     */
+    public synchronized Long getCrcSiConocido() {
+        return crc;
+    }
+
+    private void calcularHuellasPendientes() {
+        try (InputStream entrada = abrirStream()) {
+            calcularHuellas(entrada);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo calcular la huella del contenido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calcula en una sola pasada la huella SHA-256 y el CRC-32 de los bytes
+     * leídos. Debe llamarse con el monitor adquirido.
+     */
+    private void calcularHuellas(InputStream entrada) throws IOException {
+        CRC32 calculado = new CRC32();
+        huella = calcularHuella(entrada, calculado);
+        crc = calculado.getValue();
+    }
+
+    /**
+     * Indica si el contenido está respaldado por un fichero en disco en lugar
+     * de residir en memoria.
+     *
+     * @return {@code true} si el contenido se lee del fichero de origen.
+     */
+    public boolean estaEnDisco() {
+        return datos == null && rutaVolcado == null && rutaOrigen != null;
+    }
+
+    /**
+     * Indica si el contenido se puede leer: reside en memoria, o su fichero de
+     * origen o el archivo de sesión del que se lee siguen existiendo sin
+     * cambios.
+     *
+     * @return {@code true} si el contenido está disponible.
+     */
+    public boolean estaDisponible() {
+        ArchivoSesion.Region region = regionSesion;
+        return datos != null || rutaVolcado != null || (region != null ? region.estaDisponible() : origenDisponibleSinCambios());
+    }
+
+    /**
+     * Región del archivo de sesión de la que se lee el contenido.
+     *
+     * @return La región, o {@code null} si el contenido no se lee de un
+     * archivo de sesión.
+     */
+    ArchivoSesion.Region getRegionSesion() {
+        return regionSesion;
+    }
+
+    /**
+     * Pasa a leer el contenido de otra región (la del archivo de sesión que
+     * se acaba de guardar, que puede haber sustituido al anterior).
+     *
+     * @param region La nueva región.
+     */
+    void reubicarEnSesion(ArchivoSesion.Region region) {
+        regionSesion = region;
+    }
+
+    /**
+     * Fecha de modificación del fichero de origen al cargarlo.
+     *
+     * @return La fecha en milisegundos, o 0 si el contenido no procede de un
+     * fichero.
+     */
+    long getFechaModificacion() {
+        return fechaModificacion;
+    }
+
+    /**
+     * Obtiene la ruta del fichero de origen.
+     *
+     * @return La ruta absoluta, o {@code null} si el contenido reside en
+     * memoria.
+     */
+    public String getRutaOrigen() {
+        return rutaOrigen;
+    }
+
+    private void comprobarOrigenSinCambios(Path ruta) throws IOException {
+        if (!Files.isRegularFile(ruta)) {
+            throw new IOException("El archivo de origen ya no existe: " + rutaOrigen);
+        }
+        if (Files.size(ruta) != tamano || Files.getLastModifiedTime(ruta).toMillis() != fechaModificacion) {
+            throw new IOException("El archivo de origen ha sido modificado desde que se cargó: " + rutaOrigen
+                    + ". Vuelva a cargarlo.");
+        }
+    }
+
+    private boolean origenDisponibleSinCambios() {
+        if (rutaOrigen == null) {
+            return false;
+        }
+        try {
+            comprobarOrigenSinCambios(Paths.get(rutaOrigen));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // --- CÁLCULO DE HUELLAS ---
+    /**
+     * Calcula la huella SHA-256 de un fichero leyéndolo por bloques a través de
+     * un {@link FileChannel}, actualizando a la vez el CRC-32 indicado.
+     *
+     * @param ruta El fichero a procesar.
+     * @param tamano El tamaño esperado, solo para informar del avance.
+     * @param crc CRC-32 a actualizar con los mismos bytes, o {@code null}.
+     * @param progreso Receptor del avance, o {@code null}.
+     * @return La huella en hexadecimal.
+     * @throws IOException Si falla la lectura.
+     */
+    static String calcularHuella(Path ruta, long tamano, CRC32 crc, ProgresoLectura progreso) throws IOException {
+        MessageDigest digest = nuevoDigest();
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TAMANO_BUFFER);
+            long leidos = 0;
+            int n;
+            while ((n = canal.read(buffer)) != -1) {
+                buffer.flip();
+                if (crc != null) {
+                    crc.update(buffer.array(), 0, buffer.limit());
+                }
+                digest.update(buffer);
+                buffer.clear();
+                leidos += n;
+                if (progreso != null) {
+                    progreso.avanzar(leidos, tamano);
+                }
+            }
+        }
+        return aHexadecimal(digest.digest());
+    }
+
+    static String calcularHuella(InputStream entrada) throws IOException {
+        return calcularHuella(entrada, null);
+    }
+
+    static String calcularHuella(InputStream entrada, CRC32 crc) throws IOException {
+        MessageDigest digest = nuevoDigest();
+        byte[] buffer = new byte[TAMANO_BUFFER];
+        int leidos;
+        while ((leidos = entrada.read(buffer)) != -1) {
+            digest.update(buffer, 0, leidos);
+            if (crc != null) {
+                crc.update(buffer, 0, leidos);
+            }
+        }
+        return aHexadecimal(digest.digest());
+    }
+
+    static MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 es obligatorio en toda implementación de Java.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String aHexadecimal(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // --- SERIALIZACIÓN ---
+    /**
+     * Escribe los metadatos y, a continuación, el contenido por bloques, sin
+     * cargarlo completo en memoria.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getHuella();
+        getCrc();
+        out.defaultWriteObject();
+        long escritos = transferirA(out);
+        if (escritos != tamano) {
+            throw new IOException("El tamaño del contenido ha cambiado durante el guardado: " + rutaOrigen);
+        }
+    }
+
+    /**
+     * Lee los metadatos y el contenido. Si el fichero de origen sigue
+     * disponible y sin cambios, los bytes del flujo se descartan y el contenido
+     * continúa respaldado por el disco; en caso contrario pasa a residir en
+     * memoria.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (origenDisponibleSinCambios()) {
+            byte[] descarte = new byte[(int) Math.min(TAMANO_BUFFER, Math.max(tamano, 1))];
+            long pendientes = tamano;
+            while (pendientes > 0) {
+                int bloque = (int) Math.min(descarte.length, pendientes);
+                in.readFully(descarte, 0, bloque);
+                pendientes -= bloque;
+            }
+            this.datos = null;
+        } else {
+            if (tamano > Integer.MAX_VALUE - 8) {
+                throw new IOException("El contenido guardado es demasiado grande para restaurarlo en memoria.");
+            }
+            byte[] leidos = new byte[(int) tamano];
+            in.readFully(leidos);
+            this.datos = leidos;
+            this.rutaOrigen = null;
+            // Las sesiones grandes se vuelcan al área temporal a medida que se leen si superan el presupuesto.
+            GestorMemoria.getInstancia().registrarResidente(this);
+        }
+    }
+}
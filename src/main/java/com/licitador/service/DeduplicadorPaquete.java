@@ -0,0 +1,246 @@
+package com.licitador.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reorganiza las entradas del paquete para guardar una sola vez los
+ * documentos idénticos que ocupan varias ubicaciones (por ejemplo, el mismo
+ * documento exigido en todos los lotes).
+ * <p>
+ * Los documentos se agrupan por la huella SHA-256 de su contenido. Cada
+ * contenido que aparece en más de una ubicación se guarda una única vez en
+ * {@value #CARPETA_COMPARTIDOS} y se retira de sus ubicaciones originales;
+ * las declaraciones de confidencialidad y las carpetas de cada lote se
+ * mantienen donde estaban. El paquete incluye además un manifiesto
+ * ({@value #NOMBRE_MANIFIESTO}) que relaciona cada ubicación con la entrada
+ * que la contiene, para su tratamiento automático, y un índice en texto
+ * ({@value #NOMBRE_INDICE}) para los evaluadores. Así el tamaño del paquete y
+ * el tiempo de compresión dependen del contenido distinto, no del número de
+ * lotes.
+ * </p>
+ */
+public final class DeduplicadorPaquete {
+
+    /**
+     * Carpeta del paquete con los documentos compartidos.
+     */
+    public static final String CARPETA_COMPARTIDOS = "Documentos Compartidos/";
+    /**
+     * Manifiesto JSON con la ubicación de cada documento.
+     */
+    public static final String NOMBRE_MANIFIESTO = "MANIFIESTO_DOCUMENTOS.json";
+    /**
+     * Índice legible de los documentos compartidos.
+     */
+    public static final String NOMBRE_INDICE = "INDICE_DOCUMENTOS.txt";
+
+    /**
+     * Resultado de la deduplicación.
+     */
+    public static final class Resultado {
+
+        private final List<EntradaPaquete> entradas;
+        private final int documentosCompartidos;
+        private final int copiasEvitadas;
+        private final long bytesEvitados;
+
+        Resultado(List<EntradaPaquete> entradas, int documentosCompartidos, int copiasEvitadas, long bytesEvitados) {
+            this.entradas = entradas;
+            this.documentosCompartidos = documentosCompartidos;
+            this.copiasEvitadas = copiasEvitadas;
+            this.bytesEvitados = bytesEvitados;
+        }
+
+        /**
+         * Entradas del paquete ya reorganizadas.
+         *
+         * @return Las entradas, o las originales si no había duplicados.
+         */
+        public List<EntradaPaquete> getEntradas() {
+            return entradas;
+        }
+
+        /**
+         * Documentos distintos guardados en la carpeta compartida.
+         *
+         * @return El número de documentos compartidos.
+         */
+        public int getDocumentosCompartidos() {
+            return documentosCompartidos;
+        }
+
+        /**
+         * Copias que ya no se incluyen en el paquete.
+         *
+         * @return El número de copias evitadas.
+         */
+        public int getCopiasEvitadas() {
+            return copiasEvitadas;
+        }
+
+        /**
+         * Bytes sin comprimir que ya no se incluyen en el paquete.
+         *
+         * @return Los bytes evitados.
+         */
+        public long getBytesEvitados() {
+            return bytesEvitados;
+        }
+    }
+
+    private DeduplicadorPaquete() {
+    }
+
+    /**
+     * Guarda una sola vez los documentos repetidos.
+     *
+     * @param entradas Las entradas del paquete, en orden.
+     * @return Las entradas reorganizadas, con la carpeta compartida, el
+     * manifiesto y el índice al final; si ningún contenido se repite, la
+     * misma lista sin cambios.
+     */
+    public static Resultado deduplicar(List<EntradaPaquete> entradas) {
+        Map<String, List<EntradaPaquete>> porHuella = new LinkedHashMap<>();
+        for (EntradaPaquete entrada : entradas) {
+            if (entrada.getContenido() != null) {
+                porHuella.computeIfAbsent(IdentidadPaquete.huella(entrada), k -> new ArrayList<>()).add(entrada);
+            }
+        }
+
+        Map<EntradaPaquete, String> compartidas = new LinkedHashMap<>();
+        Map<String, EntradaPaquete> almacenadas = new LinkedHashMap<>();
+        Map<String, List<EntradaPaquete>> ubicaciones = new LinkedHashMap<>();
+        Set<String> nombresUsados = new HashSet<>();
+        int copiasEvitadas = 0;
+        long bytesEvitados = 0;
+        for (List<EntradaPaquete> grupo : porHuella.values()) {
+            if (grupo.size() < 2) {
+                continue;
+            }
+            EntradaPaquete primera = grupo.get(0);
+            String ruta = CARPETA_COMPARTIDOS + nombreLibre(nombreFichero(primera.getRuta()), nombresUsados);
+            List<String> rutasGrupo = new ArrayList<>();
+            for (EntradaPaquete entrada : grupo) {
+                rutasGrupo.add(entrada.getRuta());
+            }
+            almacenadas.put(ruta, EntradaPaquete.compartida(ruta, primera.getContenido(),
+                    "Documento compartido '" + nombreFichero(ruta) + "' añadido (" + grupo.size() + " ubicaciones)", rutasGrupo));
+            ubicaciones.put(ruta, grupo);
+            for (EntradaPaquete entrada : grupo) {
+                compartidas.put(entrada, ruta);
+            }
+            copiasEvitadas += grupo.size() - 1;
+            bytesEvitados += (grupo.size() - 1) * primera.getTamano();
+        }
+        if (almacenadas.isEmpty()) {
+            return new Resultado(entradas, 0, 0, 0);
+        }
+
+        List<EntradaPaquete> resultado = new ArrayList<>();
+        for (EntradaPaquete entrada : entradas) {
+            if (!compartidas.containsKey(entrada)) {
+                resultado.add(entrada);
+            }
+        }
+        resultado.add(EntradaPaquete.directorio(CARPETA_COMPARTIDOS));
+        resultado.addAll(almacenadas.values());
+        resultado.add(EntradaPaquete.desdeBytes(NOMBRE_INDICE, generarIndice(ubicaciones).getBytes(StandardCharsets.UTF_8),
+                "Índice de documentos compartidos añadido"));
+        resultado.add(EntradaPaquete.desdeBytes(NOMBRE_MANIFIESTO, generarManifiesto(entradas, compartidas).getBytes(StandardCharsets.UTF_8), null));
+        return new Resultado(resultado, almacenadas.size(), copiasEvitadas, bytesEvitados);
+    }
+
+    private static String generarIndice(Map<String, List<EntradaPaquete>> ubicaciones) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--- Índice de documentos compartidos ---\n\n");
+        sb.append("Los siguientes documentos son idénticos en varias ubicaciones de la oferta y se incluyen\n");
+        sb.append("una sola vez en la carpeta '").append(CARPETA_COMPARTIDOS).append("'.\n\n");
+        for (Map.Entry<String, List<EntradaPaquete>> compartida : ubicaciones.entrySet()) {
+            sb.append(compartida.getKey()).append(" (").append(GestorMemoria.formatearTamano(compartida.getValue().get(0).getTamano())).append(")\n");
+            for (EntradaPaquete entrada : compartida.getValue()) {
+                sb.append("  - ").append(entrada.getRuta()).append("\n");
+            }
+        }
+        sb.append("---------------------------------------\n");
+        return sb.toString();
+    }
+
+    /**
+     * Manifiesto JSON: una fila por ubicación de documento con la entrada que
+     * lo contiene, su huella SHA-256 y su tamaño.
+     */
+    private static String generarManifiesto(List<EntradaPaquete> entradas, Map<EntradaPaquete, String> compartidas) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"version\": 1,\n  \"carpetaCompartida\": ").append(json(CARPETA_COMPARTIDOS)).append(",\n  \"documentos\": [");
+        boolean primero = true;
+        for (EntradaPaquete entrada : entradas) {
+            if (entrada.getContenido() == null) {
+                continue;
+            }
+            String almacenada = compartidas.getOrDefault(entrada, entrada.getRuta());
+            sb.append(primero ? "\n" : ",\n");
+            sb.append("    {\"ubicacion\": ").append(json(entrada.getRuta()))
+                    .append(", \"entrada\": ").append(json(almacenada))
+                    .append(", \"sha256\": ").append(json(IdentidadPaquete.huella(entrada)))
+                    .append(", \"tamano\": ").append(entrada.getTamano()).append("}");
+            primero = false;
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private static String nombreFichero(String ruta) {
+        return ruta.substring(ruta.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Devuelve el nombre indicado o, si ya está ocupado por otro documento
+     * compartido, el mismo con un sufijo " (2)", " (3)"...
+     */
+    private static String nombreLibre(String nombre, Set<String> usados) {
+        int punto = nombre.lastIndexOf('.');
+        String base = punto > 0 ? nombre.substring(0, punto) : nombre;
+        String extension = punto > 0 ? nombre.substring(punto) : "";
+        String candidato = nombre;
+        for (int i = 2; !usados.add(candidato); i++) {
+            candidato = base + " (" + i + ")" + extension;
+        }
+        return candidato;
+    }
+
+    static String json(String valor) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : valor.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,721 @@
+package com.licitador.service;
+
+import com.licitador.model.LicitadorData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de recuperación de la sesión: guarda cada cambio en cuanto se
+ * produce, para poder recuperar el trabajo si la aplicación termina de forma
+ * anómala sin que se haya guardado la sesión.
+ * <p>
+ * El diario es un fichero al que solo se añaden registros pequeños (documento
+ * cargado en un hueco, hueco vaciado, datos del licitador, participación por
+ * lote), cada uno con su longitud y su CRC-32, de modo que un registro a
+ * medio escribir se descarta al recuperar. Los documentos que ya se leen de
+ * un archivo de sesión o de un paquete ZIP, que no cambian mientras se usan,
+ * se anotan como referencia a su región (ruta, posición, longitud, tamaño y
+ * fecha del fichero). Solo se copian, una sola vez, los que están en memoria
+ * o se leen del archivo original, que el usuario puede modificar: van a la
+ * carpeta de contenidos, con su huella como nombre (comprimidos con
+ * {@link CodecLZ} si merece la pena), antes de anotar el registro que los
+ * usa. Así, el coste de cada guardado automático depende del cambio y no del
+ * tamaño de la sesión.
+ * </p>
+ * <p>
+ * Cuando el diario crece se compacta: se escribe un punto de control con el
+ * estado completo en un diario nuevo, que sustituye al anterior de forma
+ * atómica, y se borran los contenidos que ya no se usan. Al salir de la
+ * aplicación con normalidad se borra todo; si al arrancar sigue existiendo, la
+ * sesión anterior no se cerró bien y se ofrece recuperarla.
+ * </p>
+ * <p>
+ * Toda la escritura se hace en un único hilo en segundo plano, en el orden en
+ * que se anotan los cambios.
+ * </p>
+ */
+final class DiarioSesion {
+
+    /**
+     * Propiedad del sistema con la carpeta del diario de recuperación.
+     */
+    public static final String PROPIEDAD_CARPETA = "licitador.recuperacion.dir";
+    /**
+     * Sección de los archivos comunes.
+     */
+    static final int COMUNES = 0;
+    /**
+     * Sección de los documentos de oferta.
+     */
+    static final int OFERTA = 1;
+
+    private static final byte[] MAGIA = "LICDIA02".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Diario anterior, sin referencias a regiones; se sigue pudiendo
+     * recuperar.
+     */
+    private static final byte[] MAGIA_SIN_REFERENCIAS = "LICDIA01".getBytes(StandardCharsets.US_ASCII);
+    private static final String FICHERO_DIARIO = "diario.log";
+    private static final String FICHERO_BLOQUEO = "diario.lock";
+    private static final String CARPETA_CONTENIDOS = "contenidos";
+    private static final byte REGISTRO_HUECO = 1;
+    private static final byte REGISTRO_QUITAR = 2;
+    private static final byte REGISTRO_LICITADOR = 3;
+    private static final byte REGISTRO_PARTICIPACION = 4;
+    /**
+     * El diario se compacta al superar este tamaño o este número de
+     * registros desde el último punto de control.
+     */
+    private static final long MAXIMO_BYTES_SIN_COMPACTAR = 4L * 1024 * 1024;
+    private static final int MAXIMO_REGISTROS_SIN_COMPACTAR = 2000;
+
+    private final Path carpeta;
+    private final Logger logger;
+    private final FileChannel canalBloqueo;
+    private final FileLock bloqueo;
+    private final ExecutorService escritor;
+    // Estado que refleja el diario; solo se usa en el hilo escritor.
+    private final Map<String, byte[]> huecos = new LinkedHashMap<>();
+    private final Map<String, String> huellaPorHueco = new LinkedHashMap<>();
+    private byte[] licitador;
+    private byte[] participacion;
+    private FileChannel diario;
+    private long bytesSinCompactar;
+    private int registrosSinCompactar;
+
+    private DiarioSesion(Path carpeta, Logger logger, FileChannel canalBloqueo, FileLock bloqueo) {
+        this.carpeta = carpeta;
+        this.logger = logger;
+        this.canalBloqueo = canalBloqueo;
+        this.bloqueo = bloqueo;
+        this.escritor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "diario-sesion");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Abre el diario de esta ejecución. El diario anterior, si lo hay, se
+     * sustituye en el primer punto de control, por lo que antes hay que
+     * haberlo recuperado o descartado.
+     *
+     * @param logger Destino de los errores de escritura en segundo plano.
+     * @return El diario.
+     * @throws IOException Si no se puede crear la carpeta o la usa otra
+     * ventana de la aplicación.
+     */
+    static DiarioSesion abrir(Logger logger) throws IOException {
+        Path carpeta = getCarpeta();
+        Files.createDirectories(carpeta.resolve(CARPETA_CONTENIDOS));
+        FileChannel canal = FileChannel.open(carpeta.resolve(FICHERO_BLOQUEO), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock bloqueo = bloquear(canal);
+        if (bloqueo == null) {
+            canal.close();
+            throw new IOException("Otra ventana de la aplicación está usando el diario de recuperación.");
+        }
+        return new DiarioSesion(carpeta, logger, canal, bloqueo);
+    }
+
+    /**
+     * Indica si hay una sesión sin cerrar que se puede recuperar: existe un
+     * diario con cambios y ninguna otra ventana lo está usando.
+     *
+     * @return {@code true} si se puede recuperar una sesión.
+     */
+    static boolean hayRecuperacion() {
+        Path ruta = getCarpeta().resolve(FICHERO_DIARIO);
+        try {
+            return Files.isRegularFile(ruta) && Files.size(ruta) > MAGIA.length && estaLibre();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fecha de la última anotación del diario pendiente de recuperar.
+     *
+     * @return La fecha en milisegundos.
+     * @throws IOException Si no hay diario.
+     */
+    static long getFechaRecuperacion() throws IOException {
+        return Files.getLastModifiedTime(getCarpeta().resolve(FICHERO_DIARIO)).toMillis();
+    }
+
+    /**
+     * Reconstruye la sesión reproduciendo el diario. Un registro incompleto o
+     * dañado al final (la escritura que se interrumpió) se descarta junto con
+     * lo que le sigue.
+     *
+     * @return La sesión recuperada.
+     * @throws IOException Si no hay diario o no es válido.
+     */
+    static ArchivoSesion.Datos recuperar() throws IOException {
+        Path carpeta = getCarpeta();
+        ByteBuffer entrada = ByteBuffer.wrap(Files.readAllBytes(carpeta.resolve(FICHERO_DIARIO)));
+        byte[] magia = new byte[MAGIA.length];
+        if (entrada.remaining() < magia.length) {
+            throw new IOException("El diario de recuperación está vacío.");
+        }
+        entrada.get(magia);
+        boolean conReferencias = Arrays.equals(magia, MAGIA);
+        if (!conReferencias && !Arrays.equals(magia, MAGIA_SIN_REFERENCIAS)) {
+            throw new IOException("El fichero no es un diario de recuperación válido.");
+        }
+
+        Map<String, FileData> archivosComunes = new LinkedHashMap<>();
+        Map<String, FileData> archivosOferta = new LinkedHashMap<>();
+        LicitadorData licitadorData = null;
+        Map<Integer, Boolean> participacion = new LinkedHashMap<>();
+        Map<String, ContenidoArchivo> contenidos = new LinkedHashMap<>();
+        while (entrada.remaining() >= 9) {
+            int longitud = entrada.getInt();
+            if (longitud < 1 || longitud + 4 > entrada.remaining()) {
+                break;
+            }
+            byte[] registro = new byte[longitud];
+            entrada.get(registro);
+            CRC32 crc = new CRC32();
+            crc.update(registro);
+            if ((int) crc.getValue() != entrada.getInt()) {
+                break;
+            }
+            ByteBuffer datos = ByteBuffer.wrap(registro, 1, longitud - 1);
+            try {
+                switch (registro[0]) {
+                    case REGISTRO_HUECO: {
+                        int seccion = datos.get();
+                        String clave = ArchivoSesion.leerTexto(datos);
+                        String nombre = ArchivoSesion.leerTexto(datos);
+                        boolean confidencial = datos.get() != 0;
+                        String[] supuestos = ArchivoSesion.leerTextos(datos);
+                        String[] motivos = ArchivoSesion.leerTextos(datos);
+                        String huella = ArchivoSesion.leerTexto(datos);
+                        long crcContenido = datos.getLong();
+                        long tamano = datos.getLong();
+                        String rutaOrigen = ArchivoSesion.leerTexto(datos);
+                        long fechaModificacion = datos.getLong();
+                        ArchivoSesion.Region referencia = conReferencias && datos.get() != 0
+                                ? new ArchivoSesion.Region(Paths.get(ArchivoSesion.leerTexto(datos)), datos.getLong(), datos.getLong(), datos.get(), datos.getLong(), datos.getLong())
+                                : null;
+                        ContenidoArchivo contenido = contenidos.get(huella);
+                        if (contenido == null) {
+                            contenido = ContenidoArchivo.desdeSesion(rutaOrigen, tamano, fechaModificacion, huella, crcContenido,
+                                    referencia != null ? referencia : regionContenido(carpeta.resolve(CARPETA_CONTENIDOS), huella, tamano));
+                            contenidos.put(huella, contenido);
+                        }
+                        (seccion == COMUNES ? archivosComunes : archivosOferta).put(clave, new FileData(nombre, contenido, confidencial, supuestos, motivos));
+                        break;
+                    }
+                    case REGISTRO_QUITAR: {
+                        int seccion = datos.get();
+                        (seccion == COMUNES ? archivosComunes : archivosOferta).remove(ArchivoSesion.leerTexto(datos));
+                        break;
+                    }
+                    case REGISTRO_LICITADOR:
+                        licitadorData = deserializarLicitador(ArchivoSesion.leerBytes(datos));
+                        break;
+                    case REGISTRO_PARTICIPACION:
+                        participacion.clear();
+                        for (int i = datos.getInt(); i > 0; i--) {
+                            participacion.put(datos.getInt(), datos.get() != 0);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Tipo de registro desconocido en el diario de recuperación: " + registro[0]);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("El diario de recuperación está dañado.", e);
+            }
+        }
+        return new ArchivoSesion.Datos(archivosComunes, archivosOferta, licitadorData, participacion);
+    }
+
+    /**
+     * Borra el diario pendiente y sus contenidos, si ninguna otra ventana lo
+     * está usando.
+     */
+    static void descartarRecuperacion() {
+        if (estaLibre()) {
+            borrarDiario(getCarpeta());
+        }
+    }
+
+    // --- ANOTACIONES (se llaman en el Event Dispatch Thread) ---
+    /**
+     * Escribe un punto de control con el estado completo de la sesión (al
+     * empezar, tras cargar una sesión o tras restablecerla).
+     *
+     * @param estado La sesión completa.
+     */
+    void reiniciar(ArchivoSesion.Datos estado) {
+        List<BooleanSupplier> huecosNuevos = new ArrayList<>();
+        for (int seccion : new int[]{COMUNES, OFERTA}) {
+            for (Map.Entry<String, FileData> hueco : (seccion == COMUNES ? estado.archivosComunes : estado.archivosOferta).entrySet()) {
+                huecosNuevos.add(prepararHueco(seccion, hueco.getKey(), hueco.getValue()));
+            }
+        }
+        byte[] licitadorNuevo = serializarLicitador(estado.licitadorData);
+        byte[] participacionNueva = codificarParticipacion(estado.participacionPorLote);
+        enviar(() -> {
+            huecos.clear();
+            huellaPorHueco.clear();
+            for (BooleanSupplier hueco : huecosNuevos) {
+                hueco.getAsBoolean();
+            }
+            licitador = licitadorNuevo;
+            participacion = participacionNueva;
+            compactar();
+        });
+    }
+
+    /**
+     * Anota un documento cargado (o sustituido) en un hueco.
+     *
+     * @param seccion {@link #COMUNES} u {@link #OFERTA}.
+     * @param clave La clave del hueco.
+     * @param fileData El documento.
+     */
+    void registrarHueco(int seccion, String clave, FileData fileData) {
+        BooleanSupplier hueco = prepararHueco(seccion, clave, fileData);
+        enviar(() -> {
+            // Si no se ha podido copiar, el hueco conserva su anotación anterior y no se vuelve a escribir.
+            if (hueco.getAsBoolean()) {
+                anotar(REGISTRO_HUECO, huecos.get(claveHueco(seccion, clave)));
+            }
+        });
+    }
+
+    /**
+     * Anota que se ha vaciado un hueco.
+     *
+     * @param seccion {@link #COMUNES} u {@link #OFERTA}.
+     * @param clave La clave del hueco.
+     */
+    void quitarHueco(int seccion, String clave) {
+        enviar(() -> {
+            huecos.remove(claveHueco(seccion, clave));
+            huellaPorHueco.remove(claveHueco(seccion, clave));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream salida = new DataOutputStream(bytes);
+            salida.writeByte(seccion);
+            ArchivoSesion.escribirTexto(salida, clave);
+            anotar(REGISTRO_QUITAR, bytes.toByteArray());
+        });
+    }
+
+    /**
+     * Anota los datos del licitador.
+     *
+     * @param licitadorData Los datos actuales (se copian en el momento).
+     */
+    void registrarLicitador(LicitadorData licitadorData) {
+        byte[] nuevo = serializarLicitador(licitadorData);
+        enviar(() -> {
+            licitador = nuevo;
+            anotar(REGISTRO_LICITADOR, nuevo);
+        });
+    }
+
+    /**
+     * Anota la participación por lote.
+     *
+     * @param participacionPorLote La participación actual (se copia en el
+     * momento).
+     */
+    void registrarParticipacion(Map<Integer, Boolean> participacionPorLote) {
+        byte[] nueva = codificarParticipacion(participacionPorLote);
+        enviar(() -> {
+            participacion = nueva;
+            anotar(REGISTRO_PARTICIPACION, nueva);
+        });
+    }
+
+    /**
+     * Cierre normal de la aplicación: se abandonan las escrituras pendientes y
+     * se borran el diario y sus contenidos.
+     */
+    void terminar() {
+        escritor.shutdownNow();
+        try {
+            escritor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (diario != null) {
+                diario.close();
+            }
+        } catch (IOException e) {
+            // Se borra a continuación.
+        }
+        borrarDiario(carpeta);
+        try {
+            bloqueo.release();
+            canalBloqueo.close();
+        } catch (IOException e) {
+            // El sistema libera el bloqueo al salir.
+        }
+    }
+
+    // --- ESCRITURA (hilo escritor) ---
+    private interface Tarea {
+
+        void ejecutar() throws IOException;
+    }
+
+    private void enviar(Tarea tarea) {
+        try {
+            escritor.execute(() -> {
+                try {
+                    tarea.ejecutar();
+                } catch (IOException e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        logger.logError("No se pudo actualizar el guardado automático: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // El diario ya se ha cerrado.
+        }
+    }
+
+    /**
+     * Toma los metadatos del hueco en el momento del cambio y devuelve la
+     * tarea que copia el contenido (si no estaba ya y no se puede anotar como
+     * referencia) y actualiza el estado reflejado. La tarea devuelve
+     * {@code false} si no se ha podido copiar el contenido; el estado
+     * reflejado queda entonces como estaba.
+     */
+    private BooleanSupplier prepararHueco(int seccion, String clave, FileData fileData) {
+        String nombre = fileData.getNombre();
+        boolean confidencial = fileData.esConfidencial();
+        String[] supuestos = fileData.getSupuestosSeleccionados();
+        String[] motivos = fileData.getMotivosSupuestos();
+        ContenidoArchivo contenido = fileData.getFuente();
+        ArchivoSesion.Region region = contenido.getRegionSesion();
+        return () -> {
+            try {
+                ArchivoSesion.Region referencia = esDuradera(region) ? region : null;
+                if (referencia == null) {
+                    guardarContenido(contenido);
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream salida = new DataOutputStream(bytes);
+                salida.writeByte(seccion);
+                ArchivoSesion.escribirTexto(salida, clave);
+                ArchivoSesion.escribirTexto(salida, nombre);
+                salida.writeBoolean(confidencial);
+                ArchivoSesion.escribirTextos(salida, supuestos);
+                ArchivoSesion.escribirTextos(salida, motivos);
+                ArchivoSesion.escribirTexto(salida, contenido.getHuella());
+                salida.writeLong(contenido.getCrc());
+                salida.writeLong(contenido.getTamano());
+                ArchivoSesion.escribirTexto(salida, contenido.getRutaOrigen());
+                salida.writeLong(contenido.getFechaModificacion());
+                salida.writeBoolean(referencia != null);
+                if (referencia != null) {
+                    ArchivoSesion.escribirTexto(salida, referencia.getFichero().toAbsolutePath().toString());
+                    salida.writeLong(referencia.getDesplazamiento());
+                    salida.writeLong(referencia.getLongitud());
+                    salida.writeByte(referencia.getCompresion());
+                    salida.writeLong(referencia.getTamanoFichero());
+                    salida.writeLong(referencia.getFechaFichero());
+                }
+                huecos.put(claveHueco(seccion, clave), bytes.toByteArray());
+                if (referencia == null) {
+                    huellaPorHueco.put(claveHueco(seccion, clave), contenido.getHuella());
+                } else {
+                    huellaPorHueco.remove(claveHueco(seccion, clave));
+                }
+                return true;
+            } catch (IOException e) {
+                logger.logError("No se pudo copiar '" + nombre + "' al guardado automático: " + e.getMessage());
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Indica si la región se puede anotar como referencia: es de un archivo
+     * de sesión o de un paquete ZIP (no de la propia carpeta de contenidos,
+     * que se limpia al compactar) y el fichero sigue sin cambios.
+     */
+    private boolean esDuradera(ArchivoSesion.Region region) {
+        return region != null && !region.getFichero().toAbsolutePath().startsWith(carpeta.toAbsolutePath()) && region.estaDisponible();
+    }
+
+    /**
+     * Copia el contenido a la carpeta de contenidos, salvo que ya esté.
+     */
+    private void guardarContenido(ContenidoArchivo contenido) throws IOException {
+        Path carpetaContenidos = carpeta.resolve(CARPETA_CONTENIDOS);
+        Path destino = carpetaContenidos.resolve(contenido.getHuella());
+        Path comprimido = carpetaContenidos.resolve(contenido.getHuella() + CodecLZ.EXTENSION);
+        if (Files.isRegularFile(comprimido) || (Files.isRegularFile(destino) && Files.size(destino) == contenido.getTamano())) {
+            return;
+        }
+        boolean comprimir = ArchivoSesion.mereceComprimir(contenido);
+        if (comprimir) {
+            destino = comprimido;
+        }
+        Path temporal = carpetaContenidos.resolve(contenido.getHuella() + ".tmp");
+        try (ReadableByteChannel origen = contenido.abrirCanalLectura();
+                FileChannel salida = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copiados = 0;
+            if (comprimir) {
+                CodecLZ.Salida lz = new CodecLZ.Salida(Channels.newOutputStream(salida));
+                ByteBuffer buffer = ByteBuffer.allocate(CodecLZ.TAMANO_BLOQUE);
+                int n;
+                while ((n = origen.read(buffer)) != -1) {
+                    lz.write(buffer.array(), 0, n);
+                    copiados += n;
+                    buffer.clear();
+                }
+                lz.terminar();
+            } else {
+                long n;
+                while ((n = salida.transferFrom(origen, copiados, ContenidoArchivo.TAMANO_BUFFER)) > 0) {
+                    copiados += n;
+                }
+            }
+            if (copiados != contenido.getTamano()) {
+                throw new IOException("El tamaño del documento ha cambiado durante la copia.");
+            }
+            salida.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+        Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void anotar(byte tipo, byte[] datos) throws IOException {
+        if (datos == null) {
+            // No se pudo copiar el contenido del hueco; ya se ha informado.
+            return;
+        }
+        if (diario == null) {
+            compactar();
+            return;
+        }
+        ByteBuffer registro = construirRegistro(tipo, datos);
+        while (registro.hasRemaining()) {
+            diario.write(registro);
+        }
+        diario.force(false);
+        bytesSinCompactar += registro.limit();
+        if (++registrosSinCompactar >= MAXIMO_REGISTROS_SIN_COMPACTAR || bytesSinCompactar >= MAXIMO_BYTES_SIN_COMPACTAR) {
+            compactar();
+        }
+    }
+
+    /**
+     * Escribe un punto de control con el estado reflejado en un diario nuevo,
+     * lo pone en lugar del actual y borra los contenidos que ya no se usan.
+     */
+    private void compactar() throws IOException {
+        Path ruta = carpeta.resolve(FICHERO_DIARIO);
+        Path nuevo = carpeta.resolve(FICHERO_DIARIO + ".nuevo");
+        try (FileChannel salida = FileChannel.open(nuevo, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(MAGIA);
+            if (licitador != null) {
+                escribirRegistro(bytes, REGISTRO_LICITADOR, licitador);
+            }
+            if (participacion != null) {
+                escribirRegistro(bytes, REGISTRO_PARTICIPACION, participacion);
+            }
+            for (byte[] hueco : huecos.values()) {
+                escribirRegistro(bytes, REGISTRO_HUECO, hueco);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                salida.write(buffer);
+            }
+            salida.force(true);
+        }
+        if (diario != null) {
+            diario.close();
+        }
+        Files.move(nuevo, ruta, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        diario = FileChannel.open(ruta, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        bytesSinCompactar = 0;
+        registrosSinCompactar = 0;
+
+        Set<String> enUso = new HashSet<>(huellaPorHueco.values());
+        try (Stream<Path> ficheros = Files.list(carpeta.resolve(CARPETA_CONTENIDOS))) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                String nombre = fichero.getFileName().toString();
+                if (nombre.endsWith(CodecLZ.EXTENSION)) {
+                    nombre = nombre.substring(0, nombre.length() - CodecLZ.EXTENSION.length());
+                }
+                if (!enUso.contains(nombre)) {
+                    Files.deleteIfExists(fichero);
+                }
+            }
+        }
+    }
+
+    private static void escribirRegistro(ByteArrayOutputStream salida, byte tipo, byte[] datos) {
+        ByteBuffer registro = construirRegistro(tipo, datos);
+        salida.write(registro.array(), 0, registro.limit());
+    }
+
+    /**
+     * Registro del diario: longitud (4) | tipo (1) | datos | CRC-32 del tipo
+     * y los datos (4).
+     */
+    private static ByteBuffer construirRegistro(byte tipo, byte[] datos) {
+        CRC32 crc = new CRC32();
+        crc.update(tipo);
+        crc.update(datos);
+        ByteBuffer registro = ByteBuffer.allocate(4 + 1 + datos.length + 4);
+        registro.putInt(1 + datos.length).put(tipo).put(datos).putInt((int) crc.getValue());
+        registro.flip();
+        return registro;
+    }
+
+    // --- UTILIDADES ---
+    private static Path getCarpeta() {
+        return Paths.get(System.getProperty(PROPIEDAD_CARPETA, "recuperacion"));
+    }
+
+    private static String claveHueco(int seccion, String clave) {
+        return seccion + ":" + clave;
+    }
+
+    /**
+     * Bloquea el diario para esta ejecución.
+     *
+     * @return El bloqueo, o {@code null} si lo tiene otra ventana.
+     */
+    private static FileLock bloquear(FileChannel canal) throws IOException {
+        try {
+            return canal.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private static boolean estaLibre() {
+        Path ruta = getCarpeta().resolve(FICHERO_BLOQUEO);
+        if (!Files.exists(ruta)) {
+            return true;
+        }
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.WRITE)) {
+            FileLock bloqueo = bloquear(canal);
+            if (bloqueo == null) {
+                return false;
+            }
+            bloqueo.release();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void borrarDiario(Path carpeta) {
+        try {
+            Files.deleteIfExists(carpeta.resolve(FICHERO_DIARIO));
+            Files.deleteIfExists(carpeta.resolve(FICHERO_DIARIO + ".nuevo"));
+            Path contenidos = carpeta.resolve(CARPETA_CONTENIDOS);
+            if (Files.isDirectory(contenidos)) {
+                try (Stream<Path> ficheros = Files.list(contenidos)) {
+                    for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                        Files.deleteIfExists(fichero);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Se sustituye en el siguiente punto de control.
+        }
+    }
+
+    private static ArchivoSesion.Region regionContenido(Path carpetaContenidos, String huella, long tamano) throws IOException {
+        Path comprimido = carpetaContenidos.resolve(huella + CodecLZ.EXTENSION);
+        if (Files.isRegularFile(comprimido)) {
+            long longitud = Files.size(comprimido);
+            return new ArchivoSesion.Region(comprimido, 0, longitud, ArchivoSesion.COMPRIMIDO_LZ, longitud, Files.getLastModifiedTime(comprimido).toMillis());
+        }
+        Path fichero = carpetaContenidos.resolve(huella);
+        if (!Files.isRegularFile(fichero)) {
+            // Solo se podrá usar si el fichero de origen sigue disponible.
+            return new ArchivoSesion.Region(fichero, 0, tamano, ArchivoSesion.SIN_COMPRIMIR, -1, -1);
+        }
+        return new ArchivoSesion.Region(fichero, 0, tamano, ArchivoSesion.SIN_COMPRIMIR, Files.size(fichero), Files.getLastModifiedTime(fichero).toMillis());
+    }
+
+    private static byte[] serializarLicitador(LicitadorData licitadorData) {
+        if (licitadorData == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(licitadorData);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteArrayOutputStream registro = new ByteArrayOutputStream();
+        try {
+            ArchivoSesion.escribirBytes(new DataOutputStream(registro), bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return registro.toByteArray();
+    }
+
+    private static LicitadorData deserializarLicitador(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (LicitadorData) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Los datos del licitador del diario no son válidos.", e);
+        }
+    }
+
+    private static byte[] codificarParticipacion(Map<Integer, Boolean> participacionPorLote) {
+        if (participacionPorLote == null) {
+            return null;
+        }
+        ByteBuffer datos = ByteBuffer.allocate(4 + participacionPorLote.size() * 5);
+        datos.putInt(participacionPorLote.size());
+        for (Map.Entry<Integer, Boolean> lote : participacionPorLote.entrySet()) {
+            datos.putInt(lote.getKey()).put((byte) (Boolean.TRUE.equals(lote.getValue()) ? 1 : 0));
+        }
+        return datos.array();
+    }
+}
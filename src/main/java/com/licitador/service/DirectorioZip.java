@@ -0,0 +1,352 @@
+package com.licitador.service;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lector del directorio central de un ZIP existente, sin descomprimir nada.
+ * <p>
+ * Da acceso a los datos de cada entrada tal y como están en el fichero
+ * (método, CRC, tamaños, desplazamiento de su cabecera local y, si el paquete
+ * lo generó {@link EscritorZip}, la huella SHA-256 de su contenido), lo que
+ * permite copiar entradas de un paquete a otro byte a byte. Admite las
+ * extensiones ZIP64.
+ * </p>
+ */
+public class DirectorioZip implements Closeable {
+
+    private static final int FIRMA_CABECERA_LOCAL = 0x04034b50;
+    private static final int FIRMA_CABECERA_CENTRAL = 0x02014b50;
+    private static final int FIRMA_FIN_DIRECTORIO = 0x06054b50;
+    private static final int FIRMA_FIN_DIRECTORIO_ZIP64 = 0x06064b50;
+    private static final int FIRMA_LOCALIZADOR_ZIP64 = 0x07064b50;
+    private static final int LONGITUD_FIN_DIRECTORIO = 22;
+    private static final int MAXIMO_COMENTARIO = 0xFFFF;
+    private static final long MARCA_ZIP64 = 0xFFFFFFFFL;
+    private static final int INDICADOR_CIFRADO = 0x0001;
+    /**
+     * Indicadores que impiden copiar la entrada tal cual: cifrado (bit 0) y
+     * descriptor de datos tras la entrada (bit 3).
+     */
+    private static final int INDICADORES_NO_COPIABLES = INDICADOR_CIFRADO | 0x0008;
+
+    /**
+     * Una entrada del directorio central.
+     */
+    public static final class Entrada {
+
+        private final byte[] nombre;
+        private final int indicadores;
+        private final int metodo;
+        private final int fechaDos;
+        private final long crc;
+        private final long tamanoComprimido;
+        private final long tamano;
+        private final long desplazamiento;
+        private final String huella;
+
+        Entrada(byte[] nombre, int indicadores, int metodo, int fechaDos, long crc, long tamanoComprimido, long tamano, long desplazamiento, String huella) {
+            this.nombre = nombre;
+            this.indicadores = indicadores;
+            this.metodo = metodo;
+            this.fechaDos = fechaDos;
+            this.crc = crc;
+            this.tamanoComprimido = tamanoComprimido;
+            this.tamano = tamano;
+            this.desplazamiento = desplazamiento;
+            this.huella = huella;
+        }
+
+        public String getNombre() {
+            return new String(nombre, StandardCharsets.UTF_8);
+        }
+
+        byte[] getNombreBytes() {
+            return nombre;
+        }
+
+        public int getMetodo() {
+            return metodo;
+        }
+
+        public int getFechaDos() {
+            return fechaDos;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getTamanoComprimido() {
+            return tamanoComprimido;
+        }
+
+        public long getTamano() {
+            return tamano;
+        }
+
+        /**
+         * Desplazamiento de la cabecera local de la entrada en el fichero.
+         *
+         * @return La posición en bytes.
+         */
+        public long getDesplazamiento() {
+            return desplazamiento;
+        }
+
+        /**
+         * Huella SHA-256 de los datos sin comprimir registrada por
+         * {@link EscritorZip}.
+         *
+         * @return La huella en hexadecimal, o {@code null} si el paquete no la
+         * incluye.
+         */
+        public String getHuella() {
+            return huella;
+        }
+
+        public boolean esDirectorio() {
+            return nombre.length > 0 && nombre[nombre.length - 1] == '/';
+        }
+
+        /**
+         * Indica si la entrada se puede copiar a otro paquete tal cual: sin
+         * cifrar, sin descriptor de datos y almacenada o en DEFLATE.
+         *
+         * @return {@code true} si es copiable.
+         */
+        public boolean esCopiable() {
+            return (indicadores & INDICADORES_NO_COPIABLES) == 0 && (metodo == EscritorZip.STORED || metodo == EscritorZip.DEFLATED);
+        }
+
+        /**
+         * Indica si los datos de la entrada se pueden leer directamente del
+         * fichero: sin cifrar y almacenada o en DEFLATE.
+         *
+         * @return {@code true} si es legible.
+         */
+        public boolean esLegible() {
+            return (indicadores & INDICADOR_CIFRADO) == 0 && (metodo == EscritorZip.STORED || metodo == EscritorZip.DEFLATED);
+        }
+    }
+
+    private final FileChannel canal;
+    private final Map<String, Entrada> entradas = new LinkedHashMap<>();
+    private String comentario = "";
+
+    private DirectorioZip(FileChannel canal) {
+        this.canal = canal;
+    }
+
+    /**
+     * Abre un ZIP y lee su directorio central.
+     *
+     * @param ruta El fichero ZIP.
+     * @return El directorio, que mantiene el fichero abierto hasta
+     * {@link #close()}.
+     * @throws IOException Si no se puede leer o no es un ZIP válido.
+     */
+    public static DirectorioZip abrir(Path ruta) throws IOException {
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ);
+        try {
+            DirectorioZip directorio = new DirectorioZip(canal);
+            directorio.leerDirectorio();
+            return directorio;
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        } catch (RuntimeException e) {
+            // Longitudes o desplazamientos incoherentes hacen que las lecturas del directorio se salgan de sus límites.
+            canal.close();
+            throw new IOException("Directorio central dañado", e);
+        }
+    }
+
+    /**
+     * Entradas en el orden del directorio central.
+     *
+     * @return Lista no modificable de entradas.
+     */
+    public List<Entrada> getEntradas() {
+        return Collections.unmodifiableList(new ArrayList<>(entradas.values()));
+    }
+
+    /**
+     * Comentario del ZIP (el que escribe {@link EscritorZip#setComentario(String)}).
+     *
+     * @return El comentario, vacío si no tiene.
+     */
+    public String getComentario() {
+        return comentario;
+    }
+
+    /**
+     * Busca una entrada por su ruta.
+     *
+     * @param nombre La ruta dentro del ZIP.
+     * @return La entrada, o {@code null} si no existe.
+     */
+    public Entrada buscar(String nombre) {
+        return entradas.get(nombre);
+    }
+
+    /**
+     * Calcula dónde empiezan los datos de una entrada leyendo su cabecera
+     * local (cuyo campo extra puede diferir del central).
+     *
+     * @param entrada La entrada.
+     * @return La posición del primer byte de datos.
+     * @throws IOException Si la cabecera local no es válida.
+     */
+    public long getInicioDatos(Entrada entrada) throws IOException {
+        ByteBuffer cabecera = leer(canal, entrada.getDesplazamiento(), 30);
+        if (cabecera.getInt(0) != FIRMA_CABECERA_LOCAL) {
+            throw new IOException("Cabecera local no válida para '" + entrada.getNombre() + "'.");
+        }
+        int longitudNombre = Short.toUnsignedInt(cabecera.getShort(26));
+        int longitudExtra = Short.toUnsignedInt(cabecera.getShort(28));
+        return entrada.getDesplazamiento() + 30 + longitudNombre + longitudExtra;
+    }
+
+    /**
+     * Copia en el canal indicado la cabecera local y los datos comprimidos de
+     * una entrada, sin descomprimirlos.
+     *
+     * @param entrada La entrada a copiar.
+     * @param destino Canal de destino, en su posición actual.
+     * @return El número de bytes copiados.
+     * @throws IOException Si falla la lectura o la escritura.
+     */
+    public long copiarEntrada(Entrada entrada, WritableByteChannel destino) throws IOException {
+        long desde = entrada.getDesplazamiento();
+        long longitud = getInicioDatos(entrada) + entrada.getTamanoComprimido() - desde;
+        long copiados = 0;
+        while (copiados < longitud) {
+            long n = canal.transferTo(desde + copiados, longitud - copiados, destino);
+            if (n <= 0) {
+                throw new EOFException("El paquete termina antes del final de '" + entrada.getNombre() + "'.");
+            }
+            copiados += n;
+        }
+        return longitud;
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    // --- LECTURA DEL DIRECTORIO CENTRAL ---
+    private void leerDirectorio() throws IOException {
+        long tamanoFichero = canal.size();
+        int cola = (int) Math.min(tamanoFichero, LONGITUD_FIN_DIRECTORIO + MAXIMO_COMENTARIO);
+        ByteBuffer fin = leer(canal, tamanoFichero - cola, cola);
+        int posicionFin = -1;
+        for (int i = cola - LONGITUD_FIN_DIRECTORIO; i >= 0; i--) {
+            if (fin.getInt(i) == FIRMA_FIN_DIRECTORIO) {
+                posicionFin = i;
+                break;
+            }
+        }
+        if (posicionFin < 0) {
+            throw new IOException("El fichero no es un ZIP válido (no se encuentra el fin del directorio central).");
+        }
+        int longitudComentarioZip = Math.min(Short.toUnsignedInt(fin.getShort(posicionFin + 20)), cola - posicionFin - LONGITUD_FIN_DIRECTORIO);
+        byte[] bytesComentario = new byte[longitudComentarioZip];
+        fin.position(posicionFin + LONGITUD_FIN_DIRECTORIO);
+        fin.get(bytesComentario);
+        comentario = new String(bytesComentario, StandardCharsets.UTF_8);
+        long numeroEntradas = Short.toUnsignedInt(fin.getShort(posicionFin + 10));
+        long tamanoDirectorio = Integer.toUnsignedLong(fin.getInt(posicionFin + 12));
+        long inicioDirectorio = Integer.toUnsignedLong(fin.getInt(posicionFin + 16));
+
+        long finAbsoluto = tamanoFichero - cola + posicionFin;
+        if (finAbsoluto >= 20) {
+            ByteBuffer localizador = leer(canal, finAbsoluto - 20, 20);
+            if (localizador.getInt(0) == FIRMA_LOCALIZADOR_ZIP64) {
+                ByteBuffer zip64 = leer(canal, localizador.getLong(8), 56);
+                if (zip64.getInt(0) != FIRMA_FIN_DIRECTORIO_ZIP64) {
+                    throw new IOException("Registro ZIP64 de fin de directorio no válido.");
+                }
+                numeroEntradas = zip64.getLong(32);
+                tamanoDirectorio = zip64.getLong(40);
+                inicioDirectorio = zip64.getLong(48);
+            }
+        }
+        if (tamanoDirectorio > Integer.MAX_VALUE) {
+            throw new IOException("Directorio central demasiado grande.");
+        }
+
+        ByteBuffer directorio = leer(canal, inicioDirectorio, (int) tamanoDirectorio);
+        for (long i = 0; i < numeroEntradas; i++) {
+            if (directorio.remaining() < 46 || directorio.getInt(directorio.position()) != FIRMA_CABECERA_CENTRAL) {
+                throw new IOException("Directorio central dañado.");
+            }
+            int base = directorio.position();
+            int indicadores = Short.toUnsignedInt(directorio.getShort(base + 8));
+            int metodo = Short.toUnsignedInt(directorio.getShort(base + 10));
+            int fechaDos = directorio.getInt(base + 12);
+            long crc = Integer.toUnsignedLong(directorio.getInt(base + 16));
+            long tamanoComprimido = Integer.toUnsignedLong(directorio.getInt(base + 20));
+            long tamano = Integer.toUnsignedLong(directorio.getInt(base + 24));
+            int longitudNombre = Short.toUnsignedInt(directorio.getShort(base + 28));
+            int longitudExtra = Short.toUnsignedInt(directorio.getShort(base + 30));
+            int longitudComentario = Short.toUnsignedInt(directorio.getShort(base + 32));
+            long desplazamiento = Integer.toUnsignedLong(directorio.getInt(base + 42));
+
+            byte[] nombre = new byte[longitudNombre];
+            directorio.position(base + 46);
+            directorio.get(nombre);
+            String huella = null;
+            int finExtra = directorio.position() + longitudExtra;
+            while (directorio.position() + 4 <= finExtra) {
+                int id = Short.toUnsignedInt(directorio.getShort());
+                int longitud = Short.toUnsignedInt(directorio.getShort());
+                int siguiente = directorio.position() + longitud;
+                if (id == EscritorZip.ID_EXTRA_ZIP64) {
+                    if (tamano == MARCA_ZIP64) {
+                        tamano = directorio.getLong();
+                    }
+                    if (tamanoComprimido == MARCA_ZIP64) {
+                        tamanoComprimido = directorio.getLong();
+                    }
+                    if (desplazamiento == MARCA_ZIP64) {
+                        desplazamiento = directorio.getLong();
+                    }
+                } else if (id == EscritorZip.ID_EXTRA_HUELLA && longitud == EscritorZip.LONGITUD_HUELLA) {
+                    byte[] bytes = new byte[longitud];
+                    directorio.get(bytes);
+                    huella = ContenidoArchivo.aHexadecimal(bytes);
+                }
+                directorio.position(siguiente);
+            }
+            directorio.position(finExtra + longitudComentario);
+            Entrada entrada = new Entrada(nombre, indicadores, metodo, fechaDos, crc, tamanoComprimido, tamano, desplazamiento, huella);
+            entradas.put(entrada.getNombre(), entrada);
+        }
+    }
+
+    private static ByteBuffer leer(FileChannel canal, long desde, int longitud) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(longitud).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, desde + buffer.position()) < 0) {
+                throw new EOFException("El ZIP está truncado.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,622 @@
+package com.licitador.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Genera varios archivos de oferta a la vez (un sobre administrativo y uno
+ * por lote, por ejemplo) en un grupo acotado de hilos.
+ * <p>
+ * Cada {@link Sobre} se escribe con su propio {@link EmpaquetadorZip}, en
+ * uno o varios volúmenes, sobre temporales de la carpeta de destino
+ * ({@link SalidaAtomica}) y, salvo que se desactive con
+ * {@link #setVerificar(boolean)}, se verifica con {@link VerificadorPaquete}. Los
+ * sobres se lanzan de mayor a menor, de modo que el tiempo total se acerca al
+ * del sobre más grande y no a la suma de todos; los núcleos se reparten entre
+ * los sobres que se escriben a la vez. Solo cuando todos los sobres están
+ * escritos y verificados se publican con su nombre definitivo: si uno falla o
+ * se cancela, se detienen los demás y no queda ningún archivo. Si falla la
+ * publicación de uno, se retiran los ya publicados
+ * ({@link SalidaAtomica#confirmarTodas(List)}).
+ * </p>
+ * <p>
+ * Con {@link #setCarpetasCopia(List)} cada archivo se escribe además, en la
+ * misma pasada, en otras carpetas (una memoria USB, una carpeta compartida).
+ * Cada copia se comprueba contra la huella SHA-256 del archivo principal ya
+ * verificado y se publica o se descarta por separado: el fallo de una copia
+ * no afecta al resto ni al archivo principal, y se informa en
+ * {@link #getCopiasFallidas()}.
+ * </p>
+ * <p>
+ * Los sobres marcados como cifrados se cifran en la misma pasada con el
+ * {@link CifradorSobre} indicado, y se verifican releyendo sus bloques
+ * cifrados en lugar de abrirlos como ZIP.
+ * </p>
+ */
+public class EmpaquetadorSobres {
+
+    /**
+     * Un archivo de la oferta, con sus entradas repartidas en volúmenes.
+     */
+    public static final class Sobre {
+
+        private final String nombre;
+        private final List<List<EntradaPaquete>> volumenes;
+        private final List<File> destinos;
+        private final boolean cifrado;
+
+        /**
+         * Crea un sobre.
+         *
+         * @param nombre Nombre para mostrar (ej: "Lote 3").
+         * @param volumenes Las entradas de cada volumen.
+         * @param destinos El fichero definitivo de cada volumen.
+         */
+        public Sobre(String nombre, List<List<EntradaPaquete>> volumenes, List<File> destinos) {
+            this(nombre, volumenes, destinos, false);
+        }
+
+        /**
+         * Crea un sobre que se puede cifrar.
+         *
+         * @param nombre Nombre para mostrar (ej: "Lote 3").
+         * @param volumenes Las entradas de cada volumen.
+         * @param destinos El fichero definitivo de cada volumen.
+         * @param cifrado Si sus volúmenes se cifran con el cifrador indicado en
+         * {@link EmpaquetadorSobres#setCifrador(CifradorSobre)}.
+         */
+        public Sobre(String nombre, List<List<EntradaPaquete>> volumenes, List<File> destinos, boolean cifrado) {
+            if (volumenes.size() != destinos.size()) {
+                throw new IllegalArgumentException("Debe indicarse un destino por volumen.");
+            }
+            this.nombre = nombre;
+            this.volumenes = volumenes;
+            this.destinos = destinos;
+            this.cifrado = cifrado;
+        }
+
+        /**
+         * Crea un sobre de un único volumen.
+         *
+         * @param nombre Nombre para mostrar.
+         * @param entradas Las entradas del sobre.
+         * @param destino El fichero definitivo.
+         */
+        public Sobre(String nombre, List<EntradaPaquete> entradas, File destino) {
+            this(nombre, Collections.singletonList(entradas), Collections.singletonList(destino));
+        }
+
+        public String getNombre() {
+            return nombre;
+        }
+
+        public List<List<EntradaPaquete>> getVolumenes() {
+            return volumenes;
+        }
+
+        public List<File> getDestinos() {
+            return destinos;
+        }
+
+        public boolean isCifrado() {
+            return cifrado;
+        }
+
+        /**
+         * Bytes sin comprimir de todas las entradas del sobre.
+         *
+         * @return El tamaño total.
+         */
+        public long getTamano() {
+            long tamano = 0;
+            for (List<EntradaPaquete> volumen : volumenes) {
+                for (EntradaPaquete entrada : volumen) {
+                    tamano += entrada.getTamano();
+                }
+            }
+            return tamano;
+        }
+    }
+
+    private final int paralelos;
+    private final PoliticaCompresion.Perfil perfil;
+    private final List<EmpaquetadorZip> activos = new ArrayList<>();
+    private volatile boolean cancelado;
+    private volatile int entradasAlmacenadas;
+    private volatile int entradasPrecomprimidas;
+    private volatile int entradasReutilizadas;
+    private int hilosPorSobre;
+    private CachePrecompresion cache;
+    private DirectorioZip paqueteAnterior;
+    private Long fechaEntradas;
+    private boolean verificar = true;
+    private String comentario;
+    private List<File> carpetasCopia = Collections.emptyList();
+    private CifradorSobre cifrador;
+    private final Map<File, String> copiasFallidas = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<File> copiasPublicadas = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Crea el generador.
+     *
+     * @param paralelos Número máximo de sobres que se escriben a la vez.
+     * @param perfil El perfil de compresión.
+     */
+    public EmpaquetadorSobres(int paralelos, PoliticaCompresion.Perfil perfil) {
+        this.paralelos = Math.max(1, paralelos);
+        this.perfil = perfil;
+    }
+
+    /**
+     * Crea un generador que escribe a la vez tantos sobres como procesadores.
+     *
+     * @param perfil El perfil de compresión.
+     */
+    public EmpaquetadorSobres(PoliticaCompresion.Perfil perfil) {
+        this(Runtime.getRuntime().availableProcessors(), perfil);
+    }
+
+    /**
+     * Detiene la generación en curso. Se puede llamar desde cualquier hilo.
+     */
+    public void cancelar() {
+        cancelado = true;
+        synchronized (activos) {
+            for (EmpaquetadorZip empaquetador : activos) {
+                empaquetador.cancelar();
+            }
+        }
+    }
+
+    public boolean isCancelado() {
+        return cancelado;
+    }
+
+    /**
+     * Entradas guardadas sin comprimir en la última generación, sumando todos
+     * los sobres.
+     *
+     * @return Las entradas almacenadas (STORED).
+     */
+    public int getEntradasAlmacenadas() {
+        return entradasAlmacenadas;
+    }
+
+    /**
+     * Entradas copiadas ya comprimidas de la caché en la última generación.
+     *
+     * @return Las entradas tomadas de la caché.
+     */
+    public int getEntradasPrecomprimidas() {
+        return entradasPrecomprimidas;
+    }
+
+    /**
+     * Indica la caché de documentos ya comprimidos en segundo plano.
+     *
+     * @param cache La caché, o {@code null}.
+     */
+    public void setCache(CachePrecompresion cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Entradas copiadas sin cambios del paquete anterior en la última
+     * generación.
+     *
+     * @return Las entradas reutilizadas.
+     */
+    public int getEntradasReutilizadas() {
+        return entradasReutilizadas;
+    }
+
+    /**
+     * Indica un paquete generado anteriormente del que copiar las entradas
+     * que no han cambiado (ver {@link EmpaquetadorZip#setPaqueteAnterior(DirectorioZip)}).
+     *
+     * @param paqueteAnterior El directorio del paquete anterior, o
+     * {@code null}.
+     */
+    public void setPaqueteAnterior(DirectorioZip paqueteAnterior) {
+        this.paqueteAnterior = paqueteAnterior;
+    }
+
+    /**
+     * Fija la fecha de todas las entradas de todos los sobres (ver
+     * {@link EmpaquetadorZip#setFechaEntradas(long)}).
+     *
+     * @param fechaMillis La fecha, o {@code null} para usar la actual.
+     */
+    public void setFechaEntradas(Long fechaMillis) {
+        this.fechaEntradas = fechaMillis;
+    }
+
+    /**
+     * Indica si cada archivo se vuelve a leer y comprobar antes de
+     * publicarlo (por defecto, sí).
+     *
+     * @param verificar {@code false} para publicar sin verificar.
+     */
+    public void setVerificar(boolean verificar) {
+        this.verificar = verificar;
+    }
+
+    /**
+     * Indica el cifrador de los sobres marcados como cifrados.
+     *
+     * @param cifrador El cifrador, o {@code null} para no cifrar ninguno.
+     */
+    public void setCifrador(CifradorSobre cifrador) {
+        this.cifrador = cifrador;
+    }
+
+    /**
+     * Indica las carpetas que reciben una copia de cada archivo generado, con
+     * el mismo nombre.
+     *
+     * @param carpetasCopia Las carpetas adicionales de destino.
+     */
+    public void setCarpetasCopia(List<File> carpetasCopia) {
+        this.carpetasCopia = carpetasCopia != null ? carpetasCopia : Collections.emptyList();
+    }
+
+    /**
+     * Copias que no se han podido generar en la última generación, con el
+     * motivo.
+     *
+     * @return El motivo del fallo de cada copia, por su fichero definitivo.
+     */
+    public Map<File, String> getCopiasFallidas() {
+        synchronized (copiasFallidas) {
+            return new LinkedHashMap<>(copiasFallidas);
+        }
+    }
+
+    /**
+     * Copias publicadas en la última generación.
+     *
+     * @return Los ficheros de las copias publicadas.
+     */
+    public List<File> getCopiasPublicadas() {
+        synchronized (copiasPublicadas) {
+            return new ArrayList<>(copiasPublicadas);
+        }
+    }
+
+    /**
+     * Indica el comentario que se escribe en cada archivo generado.
+     *
+     * @param comentario El comentario, o {@code null}.
+     */
+    public void setComentario(String comentario) {
+        this.comentario = comentario;
+    }
+
+    /**
+     * Hilos de compresión que usa cada sobre en la última generación.
+     *
+     * @return Los hilos por sobre.
+     */
+    public int getHilosPorSobre() {
+        return hilosPorSobre;
+    }
+
+    /**
+     * Escribe, verifica y publica todos los sobres.
+     *
+     * @param sobres Los sobres a generar.
+     * @param oyente Receptor del avance global, o {@code null}. Sus métodos
+     * se invocan desde varios hilos, pero nunca a la vez.
+     * @param verificando Acción que se ejecuta cuando empieza la verificación
+     * de un sobre, o {@code null}.
+     * @throws IOException Si falla algún sobre, o
+     * {@link InterruptedIOException} si se cancela.
+     */
+    public void empaquetar(List<Sobre> sobres, EmpaquetadorZip.Oyente oyente, Runnable verificando) throws IOException {
+        int simultaneos = Math.min(paralelos, Math.max(1, sobres.size()));
+        hilosPorSobre = Math.max(1, Runtime.getRuntime().availableProcessors() / simultaneos);
+        entradasAlmacenadas = 0;
+        entradasPrecomprimidas = 0;
+        entradasReutilizadas = 0;
+        copiasFallidas.clear();
+        copiasPublicadas.clear();
+        long total = 0;
+        for (Sobre sobre : sobres) {
+            total += sobre.getTamano();
+        }
+        Progreso progreso = new Progreso(oyente, total);
+
+        List<Sobre> porTamano = new ArrayList<>(sobres);
+        porTamano.sort(Comparator.comparingLong(Sobre::getTamano).reversed());
+        AtomicInteger contador = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(simultaneos, r -> {
+            Thread hilo = new Thread(r, "sobre-" + contador.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        List<SalidaAtomica> salidas = Collections.synchronizedList(new ArrayList<>());
+        Map<SalidaAtomica, File> copias = Collections.synchronizedMap(new LinkedHashMap<>());
+        try {
+            List<Future<?>> tareas = new ArrayList<>();
+            for (Sobre sobre : porTamano) {
+                tareas.add(pool.submit(() -> {
+                    escribirSobre(sobre, salidas, copias, progreso, verificando);
+                    return null;
+                }));
+            }
+            IOException error = null;
+            for (Future<?> tarea : tareas) {
+                try {
+                    tarea.get();
+                } catch (ExecutionException e) {
+                    // Se informa del fallo original, no de la cancelación que provoca en el resto de sobres.
+                    IOException causa = comoIOException(e.getCause());
+                    if (error == null || (error instanceof InterruptedIOException && !(causa instanceof InterruptedIOException))) {
+                        error = causa;
+                    }
+                } catch (InterruptedException e) {
+                    cancelar();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (cancelado) {
+                throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+            }
+            synchronized (salidas) {
+                // Todos los sobres o ninguno: si uno no se puede publicar, se retiran los ya publicados.
+                SalidaAtomica.confirmarTodas(salidas);
+            }
+            // Las copias se publican una a una: una que falle no deshace el resto.
+            synchronized (copias) {
+                for (Map.Entry<SalidaAtomica, File> copia : copias.entrySet()) {
+                    try {
+                        copia.getKey().confirmar();
+                        copiasPublicadas.add(copia.getValue());
+                    } catch (IOException e) {
+                        copiasFallidas.put(copia.getValue(), e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                // Los temporales solo se pueden borrar cuando nadie escribe en ellos.
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    cancelar();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (salidas) {
+                for (SalidaAtomica salida : salidas) {
+                    salida.close();
+                }
+            }
+            synchronized (copias) {
+                for (SalidaAtomica copia : copias.keySet()) {
+                    copia.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Escribe los volúmenes de un sobre (y sus copias) en temporales y los
+     * verifica. Los temporales quedan en {@code salidas} y {@code copias}
+     * para publicarlos (o descartarlos) al final.
+     */
+    private void escribirSobre(Sobre sobre, List<SalidaAtomica> salidas, Map<SalidaAtomica, File> copias, Progreso progreso, Runnable verificando) throws IOException {
+        if (cancelado) {
+            throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+        }
+        EmpaquetadorZip empaquetador = new EmpaquetadorZip(hilosPorSobre, new PoliticaCompresion(perfil));
+        empaquetador.setCache(cache);
+        empaquetador.setPaqueteAnterior(paqueteAnterior);
+        empaquetador.setComentario(comentario);
+        if (sobre.isCifrado()) {
+            empaquetador.setCifrador(cifrador);
+        }
+        if (fechaEntradas != null) {
+            empaquetador.setFechaEntradas(fechaEntradas);
+        }
+        synchronized (activos) {
+            if (cancelado) {
+                throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+            }
+            activos.add(empaquetador);
+        }
+        try {
+            List<File> temporales = new ArrayList<>();
+            Map<File, List<File>> temporalesCopia = new LinkedHashMap<>();
+            Map<File, SalidaAtomica> salidasCopia = new LinkedHashMap<>();
+            for (File destino : sobre.getDestinos()) {
+                SalidaAtomica salida = SalidaAtomica.crear(destino);
+                salidas.add(salida);
+                temporales.add(salida.getTemporal());
+                List<File> temporalesDestino = new ArrayList<>();
+                for (File carpeta : carpetasCopia) {
+                    File copia = new File(carpeta, destino.getName());
+                    try {
+                        SalidaAtomica salidaCopia = SalidaAtomica.crear(copia);
+                        copias.put(salidaCopia, copia);
+                        salidasCopia.put(salidaCopia.getTemporal(), salidaCopia);
+                        temporalesDestino.add(salidaCopia.getTemporal());
+                    } catch (IOException e) {
+                        copiasFallidas.put(copia, e.getMessage());
+                    }
+                }
+                temporalesCopia.put(salida.getTemporal(), temporalesDestino);
+            }
+            empaquetador.setCopias(temporalesCopia);
+            empaquetador.empaquetarVolumenes(sobre.getVolumenes(), temporales, progreso.para());
+            for (Map.Entry<File, IOException> fallida : empaquetador.getCopiasFallidas().entrySet()) {
+                descartarCopia(salidasCopia.remove(fallida.getKey()), copias, fallida.getValue().getMessage());
+            }
+
+            if (verificar) {
+                if (verificando != null) {
+                    verificando.run();
+                }
+                List<EmpaquetadorZip.EntradaEscrita> escritas = empaquetador.getEntradasEscritas();
+                Map<File, SalidaCifrada.Huellas> huellasCifrado = empaquetador.getHuellasCifrado();
+                for (int i = 0; i < temporales.size(); i++) {
+                    final int volumen = i;
+                    if (huellasCifrado.containsKey(temporales.get(i))) {
+                        VerificadorPaquete.verificarCifrado(temporales.get(i), huellasCifrado.get(temporales.get(i)), empaquetador::isCancelado, hilosPorSobre);
+                        continue;
+                    }
+                    VerificadorPaquete.verificar(temporales.get(i), escritas.stream().filter(e -> e.getVolumen() == volumen).collect(Collectors.toList()),
+                            empaquetador::isCancelado, hilosPorSobre);
+                }
+            }
+            if (!salidasCopia.isEmpty()) {
+                comprobarCopias(temporales, temporalesCopia, salidasCopia, copias);
+            }
+            synchronized (this) {
+                entradasAlmacenadas += empaquetador.getEntradasAlmacenadas();
+                entradasPrecomprimidas += empaquetador.getEntradasPrecomprimidas();
+                entradasReutilizadas += empaquetador.getEntradasReutilizadas();
+            }
+        } catch (IOException | RuntimeException e) {
+            // El primer fallo detiene el resto de sobres: la oferta no se publica a medias.
+            if (!(e instanceof InterruptedIOException)) {
+                cancelar();
+            }
+            throw e;
+        } finally {
+            synchronized (activos) {
+                activos.remove(empaquetador);
+            }
+        }
+    }
+
+    /**
+     * Compara la huella SHA-256 de cada copia con la del archivo principal
+     * (ya verificado), leyendo todos los ficheros a la vez, y descarta las
+     * que no coinciden.
+     */
+    private void comprobarCopias(List<File> temporales, Map<File, List<File>> temporalesCopia, Map<File, SalidaAtomica> salidasCopia,
+            Map<SalidaAtomica, File> copias) throws IOException {
+        ExecutorService lectores = Executors.newFixedThreadPool(salidasCopia.size() + 1, r -> {
+            Thread hilo = new Thread(r, "huella-copia");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        try {
+            for (File temporal : temporales) {
+                Future<String> principal = lectores.submit(() -> IdentidadPaquete.huellaFichero(temporal));
+                Map<File, Future<String>> huellas = new LinkedHashMap<>();
+                for (File copia : temporalesCopia.get(temporal)) {
+                    if (salidasCopia.containsKey(copia)) {
+                        huellas.put(copia, lectores.submit(() -> IdentidadPaquete.huellaFichero(copia)));
+                    }
+                }
+                String esperada = obtener(principal);
+                for (Map.Entry<File, Future<String>> huella : huellas.entrySet()) {
+                    String motivo;
+                    try {
+                        motivo = esperada.equals(obtener(huella.getValue())) ? null : "la copia no es idéntica al archivo principal (SHA-256 distinta)";
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        motivo = e.getMessage();
+                    }
+                    if (motivo != null) {
+                        descartarCopia(salidasCopia.remove(huella.getKey()), copias, motivo);
+                    }
+                }
+            }
+        } finally {
+            lectores.shutdownNow();
+        }
+    }
+
+    private void descartarCopia(SalidaAtomica salida, Map<SalidaAtomica, File> copias, String motivo) {
+        if (salida != null) {
+            File copia = copias.remove(salida);
+            salida.close();
+            copiasFallidas.put(copia, motivo);
+        }
+    }
+
+    private static String obtener(Future<String> tarea) throws IOException {
+        try {
+            return tarea.get();
+        } catch (ExecutionException e) {
+            throw comoIOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+        }
+    }
+
+    private static IOException comoIOException(Throwable error) {
+        if (error instanceof IOException) {
+            return (IOException) error;
+        }
+        return new IOException("Error durante la compresión: " + error.getMessage(), error);
+    }
+
+    /**
+     * Suma el avance de todos los sobres y lo pasa al oyente de uno en uno.
+     */
+    private static final class Progreso {
+
+        private final EmpaquetadorZip.Oyente oyente;
+        private final long total;
+        private long procesados;
+
+        Progreso(EmpaquetadorZip.Oyente oyente, long total) {
+            this.oyente = oyente;
+            this.total = total;
+        }
+
+        /**
+         * Oyente para un sobre: convierte su avance acumulado en incrementos
+         * del total.
+         */
+        EmpaquetadorZip.Oyente para() {
+            return new EmpaquetadorZip.Oyente() {
+                private long anterior;
+
+                @Override
+                public void entradaEscrita(int indice, EntradaPaquete entrada) {
+                    if (oyente != null) {
+                        synchronized (Progreso.this) {
+                            oyente.entradaEscrita(indice, entrada);
+                        }
+                    }
+                }
+
+                @Override
+                public void avance(long procesadosSobre, long totalSobre) {
+                    synchronized (Progreso.this) {
+                        procesados += procesadosSobre - anterior;
+                        anterior = procesadosSobre;
+                        if (oyente != null) {
+                            oyente.avance(procesados, total);
+                        }
+                    }
+                }
+            };
+        }
+    }
+}
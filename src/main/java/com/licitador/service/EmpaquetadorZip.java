@@ -0,0 +1,904 @@
+package com.licitador.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Motor de empaquetado ZIP que comprime en paralelo usando todos los núcleos.
+ * <p>
+ * Cada entrada se divide en bloques de {@value #TAMANO_BLOQUE} bytes que se
+ * comprimen de forma independiente en un grupo de hilos. Cada bloque es un
+ * fragmento DEFLATE "crudo" terminado con un vaciado síncrono (salvo el
+ * último, que cierra el flujo), y se inicializa con los últimos 32 KB del
+ * bloque anterior como diccionario; así, la concatenación de los bloques en
+ * orden es un único flujo DEFLATE válido con prácticamente la misma tasa de
+ * compresión que el secuencial (la misma técnica que emplea pigz).
+ * </p>
+ * <p>
+ * Un hilo lector recorre las entradas en orden leyendo cada origen por su
+ * canal NIO sobre buffers directos de un {@link PoolBuffers}; en esa única
+ * lectura calcula la huella SHA-256 y el CRC-32 y encarga la compresión de
+ * cada bloque. El hilo que llama a {@link #empaquetar(List, File, Oyente)}
+ * recoge los bloques en el mismo orden y los escribe con {@link EscritorZip}
+ * sin pasar por arrays del heap. El lector reserva en orden los buffers de
+ * entrada y de salida de cada bloque, de modo que la memoria queda acotada a
+ * unos pocos MB (proporcional al número de hilos, no al tamaño de los
+ * documentos) y no hay riesgo de bloqueo entre hilos. El resultado es un ZIP
+ * estándar legible por cualquier herramienta.
+ * </p>
+ * <p>
+ * La {@link PoliticaCompresion} decide para cada entrada si se comprime y a
+ * qué nivel. Las entradas almacenadas (STORED) no pasan por los hilos de
+ * compresión: el mismo buffer leído se escribe en el ZIP. Si el documento ya
+ * tenía huella o CRC de la importación, se comprueba que coinciden con los
+ * leídos, de modo que un cambio en el origen se detecta antes de publicar un
+ * paquete incoherente.
+ * </p>
+ * <p>
+ * El empaquetado se puede detener desde otro hilo con {@link #cancelar()}:
+ * lector y escritor lo comprueban en cada bloque y
+ * {@link #empaquetar(List, File, Oyente)} termina con una
+ * {@link InterruptedIOException}, dejando el fichero incompleto para que el
+ * llamador lo descarte (ver {@link SalidaAtomica}).
+ * </p>
+ * <p>
+ * Cada entrada registra en el directorio central la huella SHA-256 de su
+ * contenido. Si se indica un paquete anterior con
+ * {@link #setPaqueteAnterior(DirectorioZip)}, las entradas cuya ruta, tamaño
+ * y huella coinciden con las del paquete anterior se copian de él tal cual,
+ * con su cabecera y sus datos comprimidos, sin leer el origen ni
+ * recomprimirlas.
+ * </p>
+ */
+public class EmpaquetadorZip {
+
+    /**
+     * Tamaño de los bloques que se comprimen de forma independiente.
+     */
+    public static final int TAMANO_BLOQUE = 256 * 1024;
+    /**
+     * Tamaño de la ventana DEFLATE que se hereda del bloque anterior.
+     */
+    private static final int TAMANO_DICCIONARIO = 32 * 1024;
+    /**
+     * Capacidad de los buffers de salida: holgadamente por encima de la
+     * expansión máxima de DEFLATE sobre un bloque incompresible.
+     */
+    static final int TAMANO_BLOQUE_COMPRIMIDO = TAMANO_BLOQUE + (TAMANO_BLOQUE >> 10) + 1024;
+    /**
+     * Arrays de trabajo de cada hilo compresor (entrada y salida). En Java 8
+     * {@link Deflater} solo trabaja con {@code byte[]} y los bloques están en
+     * buffers directos, sin array accesible.
+     */
+    private static final ThreadLocal<byte[][]> ARRAYS_COMPRESION = ThreadLocal.withInitial(()
+            -> new byte[][]{new byte[TAMANO_BLOQUE], new byte[TAMANO_BLOQUE_COMPRIMIDO]});
+    /**
+     * Mensaje de la excepción con la que termina un empaquetado cancelado.
+     */
+    public static final String MENSAJE_CANCELACION = "Compresión cancelada por el usuario";
+
+    /**
+     * Receptor del avance del empaquetado. Se invoca en el hilo que llama a
+     * {@link #empaquetar(List, File, Oyente)}.
+     */
+    public interface Oyente {
+
+        /**
+         * Una entrada (que no es un directorio) ha quedado escrita en el ZIP.
+         *
+         * @param indice Posición de la entrada en la lista.
+         * @param entrada La entrada escrita.
+         */
+        void entradaEscrita(int indice, EntradaPaquete entrada);
+
+        /**
+         * Se ha escrito un bloque. Se invoca una vez por bloque, por lo que
+         * el receptor debe limitar la frecuencia con la que refresca la
+         * interfaz (ver {@link ProgresoEmpaquetado}).
+         *
+         * @param procesados Bytes sin comprimir ya escritos en el ZIP.
+         * @param total Bytes sin comprimir de todas las entradas.
+         */
+        default void avance(long procesados, long total) {
+        }
+    }
+
+    /**
+     * Datos de una entrada tal como ha quedado en el ZIP.
+     */
+    public static final class EntradaEscrita {
+
+        private final String ruta;
+        private final int metodo;
+        private final long tamano;
+        private final long tamanoComprimido;
+        private final long crc;
+        private final String huella;
+        private final int volumen;
+
+        EntradaEscrita(String ruta, int metodo, long tamano, long tamanoComprimido, long crc, String huella, int volumen) {
+            this.ruta = ruta;
+            this.metodo = metodo;
+            this.tamano = tamano;
+            this.tamanoComprimido = tamanoComprimido;
+            this.crc = crc;
+            this.huella = huella;
+            this.volumen = volumen;
+        }
+
+        public String getRuta() {
+            return ruta;
+        }
+
+        public int getMetodo() {
+            return metodo;
+        }
+
+        public long getTamano() {
+            return tamano;
+        }
+
+        public long getTamanoComprimido() {
+            return tamanoComprimido;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * Huella SHA-256 de los datos sin comprimir, calculada durante la
+         * lectura.
+         *
+         * @return La huella en hexadecimal.
+         */
+        public String getHuella() {
+            return huella;
+        }
+
+        /**
+         * Volumen en el que se ha escrito la entrada.
+         *
+         * @return El índice del volumen (0 si el paquete no se divide).
+         */
+        public int getVolumen() {
+            return volumen;
+        }
+    }
+
+    /**
+     * Elemento de la cola entre el hilo lector y el escritor.
+     */
+    private static class Pieza {
+
+        static final int INICIO = 0;
+        static final int BLOQUE = 1;
+        static final int FIN = 2;
+        static final int ERROR = 3;
+        static final int TERMINADO = 4;
+        static final int COPIA = 5;
+
+        final int tipo;
+        int indice;
+        int volumen;
+        EntradaPaquete entrada;
+        Future<ByteBuffer> bloque;
+        PoolBuffers origenBloque;
+        int bytesOrigen;
+        PoliticaCompresion.Decision decision;
+        long crc;
+        String huella;
+        DirectorioZip.Entrada anterior;
+        Exception error;
+
+        Pieza(int tipo) {
+            this.tipo = tipo;
+        }
+    }
+
+    private final int hilos;
+    private final PoliticaCompresion politica;
+    private long fecha;
+    private String comentario;
+    private volatile int entradasAlmacenadas;
+    private volatile boolean cancelado;
+    private volatile int entradasPrecomprimidas;
+    private volatile int entradasReutilizadas;
+    private CachePrecompresion cache;
+    private DirectorioZip paqueteAnterior;
+    private Map<File, List<File>> copias = Collections.emptyMap();
+    private final Map<File, IOException> copiasFallidas = Collections.synchronizedMap(new LinkedHashMap<>());
+    private CifradorSobre cifrador;
+    private File volumenEnCurso;
+    private final Map<File, SalidaCifrada.Huellas> huellasCifrado = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<EntradaEscrita> entradasEscritas = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Crea un empaquetador con un hilo por procesador y el perfil de
+     * compresión indicado.
+     *
+     * @param perfil El perfil de compresión.
+     */
+    public EmpaquetadorZip(PoliticaCompresion.Perfil perfil) {
+        this(Runtime.getRuntime().availableProcessors(), new PoliticaCompresion(perfil));
+    }
+
+    /**
+     * Crea un empaquetador.
+     *
+     * @param hilos Número de hilos de compresión.
+     * @param politica La política que decide el método de cada entrada.
+     */
+    public EmpaquetadorZip(int hilos, PoliticaCompresion politica) {
+        this.hilos = Math.max(1, hilos);
+        this.politica = politica;
+        this.fecha = System.currentTimeMillis();
+    }
+
+    public int getHilos() {
+        return hilos;
+    }
+
+    public PoliticaCompresion getPolitica() {
+        return politica;
+    }
+
+    /**
+     * Número de entradas que el último empaquetado guardó sin comprimir.
+     *
+     * @return Las entradas almacenadas (STORED).
+     */
+    public int getEntradasAlmacenadas() {
+        return entradasAlmacenadas;
+    }
+
+    /**
+     * Número de entradas que el último empaquetado copió ya comprimidas de la
+     * caché de precompresión.
+     *
+     * @return Las entradas tomadas de la caché.
+     */
+    public int getEntradasPrecomprimidas() {
+        return entradasPrecomprimidas;
+    }
+
+    /**
+     * Indica la caché de la que tomar los documentos ya comprimidos en segundo
+     * plano.
+     *
+     * @param cache La caché, o {@code null} para comprimirlo todo.
+     */
+    public void setCache(CachePrecompresion cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Fija la fecha de modificación que se registra en todas las entradas
+     * (por defecto, el momento en que se crea el empaquetador). Con una fecha
+     * fija, las mismas entradas producen siempre el mismo ZIP byte a byte.
+     *
+     * @param fechaMillis La fecha en milisegundos desde 1970; las anteriores a
+     * 1980 se registran como el 1 de enero de 1980.
+     */
+    public void setFechaEntradas(long fechaMillis) {
+        this.fecha = fechaMillis;
+    }
+
+    /**
+     * Indica el comentario que se escribe en cada volumen generado.
+     *
+     * @param comentario El comentario, o {@code null}.
+     */
+    public void setComentario(String comentario) {
+        this.comentario = comentario;
+    }
+
+    /**
+     * Indica, para cada fichero de destino, los ficheros que reciben una
+     * copia idéntica escrita en la misma pasada (ver {@link SalidaReplicada}).
+     *
+     * @param copias Las copias de cada destino.
+     */
+    public void setCopias(Map<File, List<File>> copias) {
+        this.copias = copias != null ? copias : Collections.emptyMap();
+    }
+
+    /**
+     * Indica que los volúmenes se cifren en la misma pasada en que se
+     * comprimen (ver {@link CifradorSobre}), usando los hilos de compresión.
+     *
+     * @param cifrador El cifrador, o {@code null} para no cifrar.
+     */
+    public void setCifrador(CifradorSobre cifrador) {
+        this.cifrador = cifrador;
+    }
+
+    /**
+     * Huellas de los bloques de cada volumen cifrado en el último
+     * empaquetado.
+     *
+     * @return Las huellas por volumen.
+     */
+    Map<File, SalidaCifrada.Huellas> getHuellasCifrado() {
+        synchronized (huellasCifrado) {
+            return new LinkedHashMap<>(huellasCifrado);
+        }
+    }
+
+    /**
+     * Copias que fallaron en el último empaquetado. El fallo de una copia no
+     * interrumpe el empaquetado.
+     *
+     * @return El error de cada copia fallida.
+     */
+    public Map<File, IOException> getCopiasFallidas() {
+        synchronized (copiasFallidas) {
+            return new LinkedHashMap<>(copiasFallidas);
+        }
+    }
+
+    /**
+     * Entradas copiadas sin cambios del paquete anterior en el último
+     * empaquetado.
+     *
+     * @return Las entradas reutilizadas.
+     */
+    public int getEntradasReutilizadas() {
+        return entradasReutilizadas;
+    }
+
+    /**
+     * Indica un paquete generado anteriormente del que copiar las entradas
+     * que no han cambiado.
+     *
+     * @param paqueteAnterior El directorio del paquete anterior, o
+     * {@code null}.
+     */
+    public void setPaqueteAnterior(DirectorioZip paqueteAnterior) {
+        this.paqueteAnterior = paqueteAnterior;
+    }
+
+    /**
+     * Entradas (sin directorios) escritas por el último empaquetado, en orden.
+     *
+     * @return Copia de la lista de entradas escritas.
+     */
+    public List<EntradaEscrita> getEntradasEscritas() {
+        synchronized (entradasEscritas) {
+            return new ArrayList<>(entradasEscritas);
+        }
+    }
+
+    /**
+     * Solicita detener el empaquetado en curso (o el siguiente, si aún no ha
+     * empezado). Se puede llamar desde cualquier hilo; el empaquetado se
+     * detiene como mucho tras el bloque que se esté escribiendo.
+     */
+    public void cancelar() {
+        cancelado = true;
+    }
+
+    public boolean isCancelado() {
+        return cancelado;
+    }
+
+    private void comprobarCancelacion() throws InterruptedIOException {
+        if (cancelado) {
+            throw new InterruptedIOException(MENSAJE_CANCELACION);
+        }
+    }
+
+    /**
+     * Memoria fuera del heap que puede llegar a usar un empaquetado.
+     *
+     * @return Bytes reservados como máximo por los buffers.
+     */
+    public long getMemoriaMaxima() {
+        return (long) numeroBuffers() * (TAMANO_BLOQUE + TAMANO_BLOQUE_COMPRIMIDO) + EscritorZip.TAMANO_BUFFER;
+    }
+
+    private int numeroBuffers() {
+        return hilos + 2;
+    }
+
+    /**
+     * Escribe todas las entradas, en orden, en un nuevo fichero ZIP.
+     *
+     * @param entradas Las entradas del paquete.
+     * @param destino El fichero ZIP a crear.
+     * @param oyente Receptor del avance, o {@code null}.
+     * @throws IOException Si falla la lectura de algún origen o la escritura,
+     * o {@link InterruptedIOException} si se cancela.
+     */
+    public void empaquetar(List<EntradaPaquete> entradas, File destino, Oyente oyente) throws IOException {
+        empaquetarVolumenes(Collections.singletonList(entradas), Collections.singletonList(destino), oyente);
+    }
+
+    /**
+     * Escribe el paquete repartido en varios ZIP independientes (volúmenes)
+     * en una sola pasada: cada documento se lee una vez y el escritor pasa al
+     * siguiente fichero al empezar las entradas del siguiente volumen. El
+     * índice que recibe {@link Oyente#entradaEscrita(int, EntradaPaquete)} es
+     * la posición de la entrada contando todos los volúmenes en orden.
+     *
+     * @param volumenes Las entradas de cada volumen.
+     * @param destinos Los ficheros ZIP a crear, uno por volumen.
+     * @param oyente Receptor del avance, o {@code null}.
+     * @throws IOException Si falla la lectura de algún origen o la escritura,
+     * o {@link InterruptedIOException} si se cancela.
+     */
+    public void empaquetarVolumenes(List<List<EntradaPaquete>> volumenes, List<File> destinos, Oyente oyente) throws IOException {
+        if (volumenes.size() != destinos.size()) {
+            throw new IllegalArgumentException("Debe indicarse un destino por volumen.");
+        }
+        AtomicInteger contador = new AtomicInteger();
+        ExecutorService compresores = Executors.newFixedThreadPool(hilos, r -> {
+            Thread hilo = new Thread(r, "compresion-" + contador.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        PoolBuffers buffersLectura = new PoolBuffers(TAMANO_BLOQUE, numeroBuffers());
+        PoolBuffers buffersComprimidos = new PoolBuffers(TAMANO_BLOQUE_COMPRIMIDO, numeroBuffers());
+        // Los buffers limitan los bloques en vuelo; la cola solo transporta referencias.
+        BlockingQueue<Pieza> cola = new LinkedBlockingQueue<>();
+        entradasAlmacenadas = 0;
+        entradasPrecomprimidas = 0;
+        entradasReutilizadas = 0;
+        entradasEscritas.clear();
+        copiasFallidas.clear();
+        huellasCifrado.clear();
+        Thread lector = new Thread(() -> leer(volumenes, compresores, buffersLectura, buffersComprimidos, cola), "empaquetado-lector");
+        lector.setDaemon(true);
+        lector.start();
+
+        long totalBytes = 0;
+        for (List<EntradaPaquete> entradas : volumenes) {
+            for (EntradaPaquete entrada : entradas) {
+                totalBytes += entrada.getTamano();
+            }
+        }
+        try {
+            escribir(destinos, cola, oyente, totalBytes);
+        } finally {
+            lector.interrupt();
+            compresores.shutdownNow();
+        }
+    }
+
+    // --- HILO LECTOR ---
+    private void leer(List<List<EntradaPaquete>> volumenes, ExecutorService compresores, PoolBuffers buffersLectura,
+            PoolBuffers buffersComprimidos, BlockingQueue<Pieza> cola) {
+        try {
+            int indice = 0;
+            for (int volumen = 0; volumen < volumenes.size(); volumen++) {
+                for (EntradaPaquete entrada : volumenes.get(volumen)) {
+                    DirectorioZip.Entrada anterior = buscarEnPaqueteAnterior(entrada);
+                    if (anterior != null) {
+                        Pieza copia = new Pieza(Pieza.COPIA);
+                        copia.indice = indice++;
+                        copia.volumen = volumen;
+                        copia.entrada = entrada;
+                        copia.anterior = anterior;
+                        cola.put(copia);
+                        continue;
+                    }
+                    Pieza inicio = new Pieza(Pieza.INICIO);
+                    inicio.indice = indice;
+                    inicio.volumen = volumen;
+                    inicio.entrada = entrada;
+                    inicio.decision = politica.decidir(entrada);
+                    cola.put(inicio);
+                    if (!entrada.esDirectorio()) {
+                        Pieza fin = new Pieza(Pieza.FIN);
+                        fin.indice = indice;
+                        fin.volumen = volumen;
+                        fin.entrada = entrada;
+                        fin.decision = inicio.decision;
+                        if (!leerPrecomprimida(fin, buffersLectura, cola)) {
+                            leerEntrada(fin, compresores, buffersLectura, buffersComprimidos, cola);
+                        }
+                        cola.put(fin);
+                    }
+                    indice++;
+                }
+            }
+            cola.put(new Pieza(Pieza.TERMINADO));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Pieza error = new Pieza(Pieza.ERROR);
+            error.error = e;
+            cola.offer(error);
+        }
+    }
+
+    /**
+     * Busca en el paquete anterior una entrada idéntica a la indicada: misma
+     * ruta, mismo tamaño y misma huella registrada, y copiable sin
+     * descomprimirla.
+     *
+     * @return La entrada del paquete anterior, o {@code null} si hay que
+     * escribirla de nuevo.
+     */
+    private DirectorioZip.Entrada buscarEnPaqueteAnterior(EntradaPaquete entrada) {
+        if (paqueteAnterior == null || entrada.esDirectorio()) {
+            return null;
+        }
+        DirectorioZip.Entrada anterior = paqueteAnterior.buscar(entrada.getRuta());
+        if (anterior == null || !anterior.esCopiable() || anterior.getHuella() == null || anterior.getTamano() != entrada.getTamano()) {
+            return null;
+        }
+        ContenidoArchivo contenido = entrada.getContenido();
+        if (contenido != null && !contenido.estaDisponible()) {
+            return null;
+        }
+        return anterior.getHuella().equals(entrada.getHuellaSiConocida()) ? anterior : null;
+    }
+
+    /**
+     * Lee la entrada por bloques desde su canal, calcula su SHA-256 y su
+     * CRC-32 y encarga la compresión de cada bloque (o lo pasa tal cual si se
+     * almacena). Deja el CRC y la huella en la pieza de fin.
+     */
+    private void leerEntrada(Pieza fin, ExecutorService compresores, PoolBuffers buffersLectura,
+            PoolBuffers buffersComprimidos, BlockingQueue<Pieza> cola) throws IOException, InterruptedException {
+        EntradaPaquete entrada = fin.entrada;
+        PoliticaCompresion.Decision decision = fin.decision;
+        MessageDigest digest = ContenidoArchivo.nuevoDigest();
+        CRC32 crc = new CRC32();
+        long restante = entrada.getTamano();
+        ByteBuffer diccionario = null;
+        try (ReadableByteChannel canal = entrada.abrirCanal()) {
+            do {
+                comprobarCancelacion();
+                ByteBuffer bloque = buffersLectura.tomar();
+                bloque.limit((int) Math.min(TAMANO_BLOQUE, restante));
+                leerCompleto(canal, bloque, entrada);
+                bloque.flip();
+                crc.update(bloque.duplicate());
+                digest.update(bloque.duplicate());
+                restante -= bloque.remaining();
+                boolean ultimo = restante == 0;
+
+                Pieza pieza = new Pieza(Pieza.BLOQUE);
+                pieza.bytesOrigen = bloque.remaining();
+                if (decision.esAlmacenada()) {
+                    pieza.bloque = CompletableFuture.completedFuture(bloque);
+                    pieza.origenBloque = buffersLectura;
+                } else {
+                    ByteBuffer salida = buffersComprimidos.tomar();
+                    ByteBuffer ventana = diccionario;
+                    // La ventana se copia antes de encargar la compresión, que avanza la posición del bloque.
+                    diccionario = ultimo ? null : copiarVentana(bloque);
+                    pieza.bloque = compresores.submit(() -> {
+                        try {
+                            return comprimir(bloque, ventana, salida, ultimo, decision.getNivel());
+                        } finally {
+                            buffersLectura.devolver(bloque);
+                        }
+                    });
+                    pieza.origenBloque = buffersComprimidos;
+                }
+                cola.put(pieza);
+            } while (restante > 0);
+            if (canal.read(ByteBuffer.allocate(1)) > 0) {
+                throw new IOException("El documento '" + entrada.getRuta() + "' ha cambiado durante la compresión.");
+            }
+        }
+
+        fin.crc = crc.getValue();
+        fin.huella = ContenidoArchivo.aHexadecimal(digest.digest());
+        comprobarIntegridad(entrada, fin);
+    }
+
+    /**
+     * Si la caché tiene el flujo comprimido de la entrada al nivel decidido,
+     * lo pasa al escritor tal cual, sin leer ni comprimir el origen. El avance
+     * se reparte en proporción a los bytes comprimidos copiados.
+     *
+     * @return {@code false} si la entrada no está en caché.
+     */
+    private boolean leerPrecomprimida(Pieza fin, PoolBuffers buffersLectura, BlockingQueue<Pieza> cola) throws IOException, InterruptedException {
+        if (cache == null || fin.decision.esAlmacenada()) {
+            return false;
+        }
+        Path blob = cache.buscar(fin.entrada, fin.decision.getNivel());
+        if (blob == null) {
+            return false;
+        }
+        FileChannel canal;
+        try {
+            canal = FileChannel.open(blob, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Descartada por la caché entre la búsqueda y la apertura.
+            return false;
+        }
+        try (FileChannel lectura = canal) {
+            long comprimido = lectura.size();
+            long tamano = fin.entrada.getTamano();
+            long copiados = 0;
+            long avance = 0;
+            while (copiados < comprimido) {
+                comprobarCancelacion();
+                ByteBuffer bloque = buffersLectura.tomar();
+                bloque.limit((int) Math.min(TAMANO_BLOQUE, comprimido - copiados));
+                while (bloque.hasRemaining()) {
+                    if (lectura.read(bloque) < 0) {
+                        throw new EOFException("La copia precomprimida de '" + fin.entrada.getRuta() + "' está incompleta.");
+                    }
+                }
+                bloque.flip();
+                copiados += bloque.remaining();
+                long avanceHastaAqui = copiados == comprimido ? tamano : tamano * copiados / comprimido;
+                Pieza pieza = new Pieza(Pieza.BLOQUE);
+                pieza.bytesOrigen = (int) (avanceHastaAqui - avance);
+                avance = avanceHastaAqui;
+                pieza.bloque = CompletableFuture.completedFuture(bloque);
+                pieza.origenBloque = buffersLectura;
+                cola.put(pieza);
+            }
+        }
+        ContenidoArchivo contenido = fin.entrada.getContenido();
+        fin.crc = contenido.getCrcSiConocido();
+        fin.huella = contenido.getHuellaSiConocida();
+        entradasPrecomprimidas++;
+        return true;
+    }
+
+    /**
+     * Compara el CRC y la huella leídos con los registrados al importar el
+     * documento, si se conocen.
+     */
+    private static void comprobarIntegridad(EntradaPaquete entrada, Pieza fin) throws IOException {
+        ContenidoArchivo contenido = entrada.getContenido();
+        if (contenido == null) {
+            return;
+        }
+        Long crcConocido = contenido.getCrcSiConocido();
+        String huellaConocida = contenido.getHuellaSiConocida();
+        if ((crcConocido != null && crcConocido != fin.crc) || (huellaConocida != null && !huellaConocida.equals(fin.huella))) {
+            throw new IOException("El documento '" + entrada.getRuta() + "' no coincide con el cargado en la sesión; vuelva a cargarlo.");
+        }
+    }
+
+    /**
+     * Copia los últimos 32 KB del bloque para usarlos como diccionario del
+     * siguiente. Se copian porque el buffer del bloque vuelve al pool en
+     * cuanto termina su compresión.
+     */
+    static ByteBuffer copiarVentana(ByteBuffer bloque) {
+        ByteBuffer origen = bloque.duplicate();
+        int longitud = Math.min(TAMANO_DICCIONARIO, origen.remaining());
+        origen.position(origen.limit() - longitud);
+        ByteBuffer ventana = ByteBuffer.allocate(longitud);
+        ventana.put(origen);
+        ventana.flip();
+        return ventana;
+    }
+
+    private static void leerCompleto(ReadableByteChannel canal, ByteBuffer bloque, EntradaPaquete entrada) throws IOException {
+        while (bloque.hasRemaining()) {
+            if (canal.read(bloque) < 0) {
+                throw new EOFException("El documento '" + entrada.getRuta() + "' es más corto de lo esperado; puede haber cambiado durante la compresión.");
+            }
+        }
+    }
+
+    /**
+     * Comprime un bloque como fragmento DEFLATE crudo. Los bloques
+     * intermedios terminan con un vaciado síncrono (alineado a byte y sin
+     * marca de final) para poder concatenarse con el siguiente.
+     */
+    static ByteBuffer comprimir(ByteBuffer bloque, ByteBuffer diccionario, ByteBuffer salida, boolean ultimo, int nivel) throws IOException {
+        byte[][] trabajo = ARRAYS_COMPRESION.get();
+        int longitud = bloque.remaining();
+        byte[] entrada;
+        int desde;
+        if (bloque.hasArray()) {
+            entrada = bloque.array();
+            desde = bloque.arrayOffset() + bloque.position();
+        } else {
+            if (trabajo[0].length < longitud) {
+                trabajo[0] = new byte[longitud];
+            }
+            entrada = trabajo[0];
+            desde = 0;
+            bloque.duplicate().get(entrada, 0, longitud);
+        }
+        int capacidad = salida.remaining();
+        byte[] destino;
+        int destinoDesde;
+        if (salida.hasArray()) {
+            destino = salida.array();
+            destinoDesde = salida.arrayOffset() + salida.position();
+        } else {
+            if (trabajo[1].length < capacidad) {
+                trabajo[1] = new byte[capacidad];
+            }
+            destino = trabajo[1];
+            destinoDesde = 0;
+        }
+
+        Deflater deflater = new Deflater(nivel, true);
+        try {
+            if (diccionario != null) {
+                ByteBuffer ventana = diccionario.duplicate();
+                byte[] bytesVentana = new byte[ventana.remaining()];
+                ventana.get(bytesVentana);
+                deflater.setDictionary(bytesVentana);
+            }
+            deflater.setInput(entrada, desde, longitud);
+            int escritos = 0;
+            if (ultimo) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (escritos == capacidad) {
+                        throw new IOException("Desbordamiento del buffer de compresión.");
+                    }
+                    escritos += deflater.deflate(destino, destinoDesde + escritos, capacidad - escritos);
+                }
+            } else {
+                escritos = deflater.deflate(destino, destinoDesde, capacidad, Deflater.SYNC_FLUSH);
+                if (!deflater.needsInput() || escritos == capacidad) {
+                    throw new IOException("Desbordamiento del buffer de compresión.");
+                }
+            }
+            bloque.position(bloque.limit());
+            if (salida.hasArray()) {
+                salida.position(salida.position() + escritos);
+            } else {
+                salida.put(destino, 0, escritos);
+            }
+            salida.flip();
+            return salida;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // --- HILO ESCRITOR ---
+    private void escribir(List<File> destinos, BlockingQueue<Pieza> cola, Oyente oyente, long totalBytes) throws IOException {
+        long inicioEntrada = 0;
+        long procesados = 0;
+        EscritorZip escritor = null;
+        int volumenActual = -1;
+        try {
+            while (true) {
+                Pieza pieza = cola.take();
+                comprobarCancelacion();
+                switch (pieza.tipo) {
+                    case Pieza.INICIO:
+                        // Al cambiar de volumen se cierra el ZIP anterior (y los intermedios vacíos, si los hubiera).
+                        while (volumenActual < pieza.volumen) {
+                            escritor = siguienteVolumen(escritor, destinos.get(++volumenActual));
+                        }
+                        if (pieza.entrada.esDirectorio()) {
+                            escritor.agregarDirectorio(pieza.entrada.getRuta(), fecha);
+                        } else {
+                            escritor.iniciarEntrada(pieza.entrada.getRuta(), pieza.decision.getMetodo(), pieza.entrada.getTamano(), fecha);
+                            inicioEntrada = escritor.getPosicion();
+                        }
+                        break;
+                    case Pieza.BLOQUE:
+                        ByteBuffer datos = pieza.bloque.get();
+                        try {
+                            escritor.escribir(datos);
+                        } finally {
+                            pieza.origenBloque.devolver(datos);
+                        }
+                        procesados += pieza.bytesOrigen;
+                        if (oyente != null) {
+                            oyente.avance(procesados, totalBytes);
+                        }
+                        break;
+                    case Pieza.FIN:
+                        long tamanoComprimido = escritor.getPosicion() - inicioEntrada;
+                        escritor.finalizarEntrada(pieza.crc, pieza.entrada.getTamano(), pieza.huella);
+                        if (pieza.decision.esAlmacenada()) {
+                            entradasAlmacenadas++;
+                        }
+                        entradasEscritas.add(new EntradaEscrita(pieza.entrada.getRuta(), pieza.decision.getMetodo(),
+                                pieza.entrada.getTamano(), tamanoComprimido, pieza.crc, pieza.huella, pieza.volumen));
+                        if (oyente != null) {
+                            oyente.entradaEscrita(pieza.indice, pieza.entrada);
+                        }
+                        break;
+                    case Pieza.COPIA:
+                        while (volumenActual < pieza.volumen) {
+                            escritor = siguienteVolumen(escritor, destinos.get(++volumenActual));
+                        }
+                        DirectorioZip.Entrada anterior = pieza.anterior;
+                        escritor.copiarEntrada(paqueteAnterior, anterior);
+                        entradasReutilizadas++;
+                        entradasEscritas.add(new EntradaEscrita(pieza.entrada.getRuta(), anterior.getMetodo(), anterior.getTamano(),
+                                anterior.getTamanoComprimido(), anterior.getCrc(), anterior.getHuella(), pieza.volumen));
+                        procesados += pieza.entrada.getTamano();
+                        if (oyente != null) {
+                            oyente.avance(procesados, totalBytes);
+                            oyente.entradaEscrita(pieza.indice, pieza.entrada);
+                        }
+                        break;
+                    case Pieza.ERROR:
+                        throw comoIOException(pieza.error);
+                    default:
+                        while (volumenActual < destinos.size() - 1) {
+                            escritor = siguienteVolumen(escritor, destinos.get(++volumenActual));
+                        }
+                        escritor = siguienteVolumen(escritor, null);
+                        return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compresión interrumpida");
+        } catch (ExecutionException e) {
+            throw comoIOException(e.getCause());
+        } finally {
+            if (escritor != null) {
+                escritor.close();
+            }
+        }
+    }
+
+    /**
+     * Termina y cierra el volumen actual, si lo hay, y abre el siguiente.
+     *
+     * @param actual El escritor del volumen actual, o {@code null}.
+     * @param destino El fichero del siguiente volumen, o {@code null} si no
+     * hay más.
+     * @return El escritor del siguiente volumen, o {@code null}.
+     */
+    private EscritorZip siguienteVolumen(EscritorZip actual, File destino) throws IOException {
+        if (actual != null) {
+            actual.terminar();
+            actual.close();
+            for (Map.Entry<Path, IOException> fallida : actual.getCopiasFallidas().entrySet()) {
+                copiasFallidas.put(fallida.getKey().toFile(), fallida.getValue());
+            }
+            if (actual.getHuellasCifrado() != null) {
+                huellasCifrado.put(volumenEnCurso, actual.getHuellasCifrado());
+            }
+        }
+        volumenEnCurso = destino;
+        if (destino == null) {
+            return null;
+        }
+        List<Path> rutasCopias = new ArrayList<>();
+        for (File copia : copias.getOrDefault(destino, Collections.emptyList())) {
+            rutasCopias.add(copia.toPath());
+        }
+        EscritorZip escritor = new EscritorZip(destino.toPath(), rutasCopias, cifrador, hilos);
+        escritor.setComentario(comentario);
+        return escritor;
+    }
+
+    private static IOException comoIOException(Throwable error) {
+        if (error instanceof IOException) {
+            return (IOException) error;
+        }
+        return new IOException("Error durante la compresión: " + error.getMessage(), error);
+    }
+}
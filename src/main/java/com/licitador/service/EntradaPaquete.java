@@ -0,0 +1,187 @@
+package com.licitador.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Entrada del paquete ZIP de la oferta: un directorio, un texto generado en
+ * memoria (log, declaraciones de confidencialidad) o un documento de la
+ * sesión respaldado por su {@link ContenidoArchivo}.
+ * <p>
+ * El {@link FileManager} construye la lista completa de entradas antes de
+ * empezar a escribir, de modo que el {@link EmpaquetadorZip} conoce de
+ * antemano el orden y el tamaño de todo lo que tiene que comprimir.
+ * </p>
+ */
+public final class EntradaPaquete {
+
+    private final String ruta;
+    private final ContenidoArchivo contenido;
+    private final byte[] datos;
+    private final String descripcion;
+    private final List<String> ubicaciones;
+
+    private EntradaPaquete(String ruta, ContenidoArchivo contenido, byte[] datos, String descripcion, List<String> ubicaciones) {
+        this.ruta = ruta;
+        this.contenido = contenido;
+        this.datos = datos;
+        this.descripcion = descripcion;
+        this.ubicaciones = ubicaciones;
+    }
+
+    /**
+     * Crea una entrada de directorio.
+     *
+     * @param ruta La ruta del directorio, terminada en '/'.
+     * @return La entrada.
+     */
+    public static EntradaPaquete directorio(String ruta) {
+        return new EntradaPaquete(ruta, null, null, null, null);
+    }
+
+    /**
+     * Crea una entrada con bytes generados en memoria.
+     *
+     * @param ruta La ruta dentro del ZIP.
+     * @param datos Los bytes de la entrada.
+     * @param descripcion Texto para el log cuando la entrada queda escrita, o
+     * {@code null}.
+     * @return La entrada.
+     */
+    public static EntradaPaquete desdeBytes(String ruta, byte[] datos, String descripcion) {
+        return new EntradaPaquete(ruta, null, datos, descripcion, null);
+    }
+
+    /**
+     * Crea una entrada a partir del contenido de un documento de la sesión.
+     *
+     * @param ruta La ruta dentro del ZIP.
+     * @param contenido El contenido del documento.
+     * @param descripcion Texto para el log cuando la entrada queda escrita, o
+     * {@code null}.
+     * @return La entrada.
+     */
+    public static EntradaPaquete desdeContenido(String ruta, ContenidoArchivo contenido, String descripcion) {
+        return new EntradaPaquete(ruta, contenido, null, descripcion, null);
+    }
+
+    /**
+     * Crea la entrada de un documento que se guarda una sola vez para varias
+     * ubicaciones de la oferta (ver {@link DeduplicadorPaquete}).
+     *
+     * @param ruta La ruta en la que se guarda dentro del ZIP.
+     * @param contenido El contenido del documento.
+     * @param descripcion Texto para el log, o {@code null}.
+     * @param ubicaciones Las rutas a las que corresponde el documento.
+     * @return La entrada.
+     */
+    public static EntradaPaquete compartida(String ruta, ContenidoArchivo contenido, String descripcion, List<String> ubicaciones) {
+        return new EntradaPaquete(ruta, contenido, null, descripcion, Collections.unmodifiableList(ubicaciones));
+    }
+
+    public String getRuta() {
+        return ruta;
+    }
+
+    public String getDescripcion() {
+        return descripcion;
+    }
+
+    /**
+     * Obtiene el contenido del documento asociado.
+     *
+     * @return El contenido, o {@code null} si la entrada no es un documento de
+     * la sesión.
+     */
+    public ContenidoArchivo getContenido() {
+        return contenido;
+    }
+
+    /**
+     * Rutas de la oferta a las que corresponde la entrada: la suya propia o,
+     * si es un documento compartido, las de todas sus ubicaciones.
+     *
+     * @return Las ubicaciones.
+     */
+    public List<String> getUbicaciones() {
+        return ubicaciones != null ? ubicaciones : Collections.singletonList(ruta);
+    }
+
+    public boolean esDirectorio() {
+        return contenido == null && datos == null;
+    }
+
+    /**
+     * Tamaño sin comprimir de la entrada.
+     *
+     * @return El tamaño en bytes (0 para directorios).
+     */
+    public long getTamano() {
+        if (contenido != null) {
+            return contenido.getTamano();
+        }
+        return datos != null ? datos.length : 0;
+    }
+
+    /**
+     * CRC-32 de la entrada si ya se conoce sin leerla (los documentos lo
+     * calculan al importarse).
+     *
+     * @return El CRC-32, o {@code null} si hay que calcularlo al escribir.
+     */
+    public Long getCrcSiConocido() {
+        return contenido != null ? contenido.getCrcSiConocido() : null;
+    }
+
+    /**
+     * Huella SHA-256 de la entrada si se conoce sin leer su origen: la de la
+     * importación en los documentos, o la de los bytes en memoria.
+     *
+     * @return La huella en hexadecimal, o {@code null} si no se conoce.
+     */
+    public String getHuellaSiConocida() {
+        if (contenido != null) {
+            return contenido.getHuellaSiConocida();
+        }
+        if (datos == null) {
+            return null;
+        }
+        try {
+            return ContenidoArchivo.calcularHuella(new ByteArrayInputStream(datos));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Abre un canal de lectura sobre los bytes de la entrada. Los documentos
+     * respaldados por disco se leen directamente de su {@link java.nio.channels.FileChannel}.
+     *
+     * @return El canal (el llamante debe cerrarlo).
+     * @throws IOException Si el origen no se puede leer.
+     */
+    public ReadableByteChannel abrirCanal() throws IOException {
+        if (contenido != null) {
+            return contenido.abrirCanalLectura();
+        }
+        return Channels.newChannel(abrir());
+    }
+
+    /**
+     * Abre un flujo de lectura sobre los bytes de la entrada.
+     *
+     * @return El flujo (el llamante debe cerrarlo).
+     * @throws IOException Si el origen no se puede leer.
+     */
+    public InputStream abrir() throws IOException {
+        if (contenido != null) {
+            return contenido.abrirStream();
+        }
+        return new ByteArrayInputStream(datos != null ? datos : new byte[0]);
+    }
+}
@@ -0,0 +1,593 @@
+package com.licitador.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escritor de ficheros ZIP de bajo nivel que recibe los datos de cada entrada
+ * ya comprimidos.
+ * <p>
+ * A diferencia de {@link java.util.zip.ZipOutputStream}, no comprime: el
+ * llamante entrega los bytes tal y como deben quedar en el fichero (por
+ * ejemplo, bloques DEFLATE generados en paralelo por
+ * {@link EmpaquetadorZip}). Al terminar cada entrada se reescriben en la
+ * cabecera local el CRC y los tamaños, por lo que el resultado no usa
+ * descriptores de datos y lo puede leer cualquier herramienta estándar.
+ * </p>
+ * <p>
+ * Los nombres se codifican en UTF-8 (con el indicador correspondiente) y se
+ * emplean las extensiones ZIP64 cuando una entrada, el directorio central o el
+ * número de entradas superan los límites del formato clásico.
+ * </p>
+ * <p>
+ * El ZIP se puede escribir a la vez en varias copias (ver
+ * {@link SalidaReplicada}); el fallo de una copia no interrumpe la escritura
+ * y se consulta con {@link #getCopiasFallidas()}.
+ * </p>
+ */
+public class EscritorZip implements Closeable {
+
+    /**
+     * Método de compresión "almacenado" (sin comprimir).
+     */
+    public static final int STORED = 0;
+    /**
+     * Método de compresión DEFLATE.
+     */
+    public static final int DEFLATED = 8;
+
+    /**
+     * Tamaño del buffer directo de escritura.
+     */
+    static final int TAMANO_BUFFER = 256 * 1024;
+
+    private static final int FIRMA_CABECERA_LOCAL = 0x04034b50;
+    private static final int FIRMA_CABECERA_CENTRAL = 0x02014b50;
+    private static final int FIRMA_FIN_DIRECTORIO = 0x06054b50;
+    private static final int FIRMA_FIN_DIRECTORIO_ZIP64 = 0x06064b50;
+    private static final int FIRMA_LOCALIZADOR_ZIP64 = 0x07064b50;
+    private static final int INDICADOR_UTF8 = 0x0800;
+    static final int ID_EXTRA_ZIP64 = 0x0001;
+    /**
+     * Campo extra propio del directorio central con la huella SHA-256 de los
+     * datos sin comprimir de la entrada. Las herramientas estándar ignoran los
+     * campos extra que no conocen; {@link DirectorioZip} lo lee para saber qué
+     * entradas de un paquete anterior se pueden reutilizar.
+     */
+    static final int ID_EXTRA_HUELLA = 0x4c48;
+    static final int LONGITUD_HUELLA = 32;
+    private static final int VERSION_CLASICA = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long LIMITE_ZIP32 = 0xFFFFFFFFL;
+    private static final int LIMITE_ENTRADAS_ZIP32 = 0xFFFF;
+    /**
+     * Tamaño a partir del cual se reserva el campo extra ZIP64 en la cabecera
+     * local. Deja margen para la expansión de DEFLATE sobre datos
+     * incompresibles, ya que el tamaño comprimido no se conoce de antemano.
+     */
+    private static final long UMBRAL_ZIP64 = 0xFF000000L;
+
+    /**
+     * Datos de una entrada necesarios para el directorio central.
+     */
+    private static class Registro {
+
+        byte[] nombre;
+        int metodo;
+        int fechaDos;
+        long crc;
+        long tamanoComprimido;
+        long tamano;
+        long desplazamiento;
+        long inicioDatos;
+        boolean zip64Local;
+        boolean directorio;
+        byte[] huella;
+    }
+
+    private final SalidaReplicada replicada;
+    private final SalidaPaquete canal;
+    private final ByteBuffer buffer;
+    private final List<Registro> registros = new ArrayList<>();
+    private long posicion;
+    private Registro actual;
+    private boolean terminado;
+    private byte[] comentario = new byte[0];
+
+    /**
+     * Crea (o trunca) el fichero de destino.
+     *
+     * @param destino Ruta del ZIP a generar.
+     * @throws IOException Si no se puede abrir el fichero.
+     */
+    public EscritorZip(Path destino) throws IOException {
+        this(destino, Collections.emptyList());
+    }
+
+    /**
+     * Crea (o trunca) el fichero de destino y sus copias.
+     *
+     * @param destino Ruta del ZIP a generar.
+     * @param copias Rutas que reciben una copia idéntica del ZIP.
+     * @throws IOException Si no se puede abrir el fichero de destino.
+     */
+    public EscritorZip(Path destino, List<Path> copias) throws IOException {
+        this(destino, copias, null, 1);
+    }
+
+    /**
+     * Crea (o trunca) el fichero de destino y sus copias, cifrando el ZIP si
+     * se indica un cifrador (ver {@link CifradorSobre}).
+     *
+     * @param destino Ruta del fichero a generar.
+     * @param copias Rutas que reciben una copia idéntica del fichero.
+     * @param cifrador El cifrador, o {@code null} para un ZIP sin cifrar.
+     * @param hilosCifrado Número de bloques que se cifran a la vez.
+     * @throws IOException Si no se puede abrir el fichero de destino.
+     */
+    public EscritorZip(Path destino, List<Path> copias, CifradorSobre cifrador, int hilosCifrado) throws IOException {
+        this.replicada = new SalidaReplicada(destino, copias);
+        try {
+            this.canal = cifrador != null ? new SalidaCifrada(replicada, cifrador.nuevoFichero(), hilosCifrado) : replicada;
+        } catch (IOException e) {
+            replicada.close();
+            throw e;
+        }
+        this.buffer = ByteBuffer.allocateDirect(TAMANO_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Escribe la cabecera local de una nueva entrada. Los datos se entregan a
+     * continuación con {@link #escribir(byte[], int, int)} y la entrada se
+     * cierra con {@link #finalizarEntrada(long, long)}.
+     *
+     * @param nombre Ruta de la entrada dentro del ZIP.
+     * @param metodo {@link #STORED} o {@link #DEFLATED}.
+     * @param tamanoPrevisto Tamaño sin comprimir esperado (decide si se
+     * reserva espacio para ZIP64).
+     * @param fechaMillis Fecha de modificación de la entrada.
+     * @throws IOException Si no se puede escribir.
+     */
+    public void iniciarEntrada(String nombre, int metodo, long tamanoPrevisto, long fechaMillis) throws IOException {
+        if (actual != null) {
+            throw new IllegalStateException("La entrada '" + new String(actual.nombre, StandardCharsets.UTF_8) + "' no se ha finalizado.");
+        }
+        Registro registro = new Registro();
+        registro.nombre = nombre.getBytes(StandardCharsets.UTF_8);
+        registro.metodo = metodo;
+        registro.fechaDos = aFechaDos(fechaMillis);
+        registro.desplazamiento = posicion;
+        registro.zip64Local = tamanoPrevisto >= UMBRAL_ZIP64;
+        escribirCabeceraLocal(registro);
+        registro.inicioDatos = posicion;
+        canal.reservar(registro.desplazamiento, registro.inicioDatos);
+        actual = registro;
+    }
+
+    /**
+     * Añade una entrada de directorio (sin datos).
+     *
+     * @param nombre Ruta del directorio, terminada en '/'.
+     * @param fechaMillis Fecha de modificación de la entrada.
+     * @throws IOException Si no se puede escribir.
+     */
+    public void agregarDirectorio(String nombre, long fechaMillis) throws IOException {
+        iniciarEntrada(nombre.endsWith("/") ? nombre : nombre + "/", STORED, 0, fechaMillis);
+        actual.directorio = true;
+        finalizarEntrada(0, 0);
+    }
+
+    /**
+     * Escribe datos (ya comprimidos según el método de la entrada) de la
+     * entrada en curso.
+     *
+     * @param datos Los bytes a escribir.
+     * @param desde Posición inicial.
+     * @param longitud Número de bytes.
+     * @throws IOException Si no se puede escribir.
+     */
+    public void escribir(byte[] datos, int desde, int longitud) throws IOException {
+        if (longitud <= buffer.remaining()) {
+            buffer.put(datos, desde, longitud);
+        } else {
+            vaciarBuffer();
+            if (longitud < buffer.capacity()) {
+                buffer.put(datos, desde, longitud);
+            } else {
+                escribirCompleto(ByteBuffer.wrap(datos, desde, longitud));
+            }
+        }
+        posicion += longitud;
+    }
+
+    /**
+     * Escribe los bytes restantes del buffer indicado (ya comprimidos según el
+     * método de la entrada). Los bloques grandes se pasan directamente al
+     * canal, sin copiarlos al buffer interno.
+     *
+     * @param datos Los bytes a escribir; su posición avanza hasta el límite.
+     * @throws IOException Si no se puede escribir.
+     */
+    public void escribir(ByteBuffer datos) throws IOException {
+        int longitud = datos.remaining();
+        if (longitud <= buffer.remaining()) {
+            buffer.put(datos);
+        } else {
+            vaciarBuffer();
+            if (longitud < buffer.capacity()) {
+                buffer.put(datos);
+            } else {
+                escribirCompleto(datos);
+            }
+        }
+        posicion += longitud;
+    }
+
+    /**
+     * Cierra la entrada en curso y reescribe su cabecera local con el CRC y
+     * los tamaños definitivos.
+     *
+     * @param crc CRC-32 de los datos sin comprimir.
+     * @param tamano Tamaño sin comprimir.
+     * @throws IOException Si no se puede escribir o la entrada supera 4 GB sin
+     * haber reservado ZIP64.
+     */
+    public void finalizarEntrada(long crc, long tamano) throws IOException {
+        finalizarEntrada(crc, tamano, null);
+    }
+
+    /**
+     * Cierra la entrada en curso como {@link #finalizarEntrada(long, long)} y
+     * registra en el directorio central la huella de su contenido.
+     *
+     * @param crc CRC-32 de los datos sin comprimir.
+     * @param tamano Tamaño sin comprimir.
+     * @param huella Huella SHA-256 en hexadecimal, o {@code null}.
+     * @throws IOException Si no se puede escribir.
+     */
+    public void finalizarEntrada(long crc, long tamano, String huella) throws IOException {
+        Registro registro = actual;
+        registro.huella = deHexadecimal(huella);
+        registro.crc = crc;
+        registro.tamano = tamano;
+        registro.tamanoComprimido = posicion - registro.inicioDatos;
+        if (!registro.zip64Local && (registro.tamano >= LIMITE_ZIP32 || registro.tamanoComprimido >= LIMITE_ZIP32)) {
+            throw new IOException("La entrada '" + new String(registro.nombre, StandardCharsets.UTF_8)
+                    + "' supera el límite de 4 GB sin extensión ZIP64 reservada.");
+        }
+        vaciarBuffer();
+
+        ByteBuffer parche = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        parche.putInt((int) registro.crc);
+        if (registro.zip64Local) {
+            parche.flip();
+            escribirEn(parche, registro.desplazamiento + 14);
+            ByteBuffer extra = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            extra.putLong(registro.tamano);
+            extra.putLong(registro.tamanoComprimido);
+            extra.flip();
+            escribirEn(extra, registro.desplazamiento + 30 + registro.nombre.length + 4);
+        } else {
+            parche.putInt((int) registro.tamanoComprimido);
+            parche.putInt((int) registro.tamano);
+            parche.flip();
+            escribirEn(parche, registro.desplazamiento + 14);
+        }
+        canal.liberar();
+        registros.add(registro);
+        actual = null;
+    }
+
+    /**
+     * Copia una entrada de otro ZIP tal cual, cabecera local y datos
+     * comprimidos incluidos, sin descomprimirla. Los bytes pasan de un fichero
+     * a otro sin atravesar la memoria de la aplicación.
+     *
+     * @param origen El ZIP del que se copia.
+     * @param entrada La entrada a copiar; debe ser
+     * {@linkplain DirectorioZip.Entrada#esCopiable() copiable}.
+     * @throws IOException Si no se puede leer o escribir.
+     */
+    public void copiarEntrada(DirectorioZip origen, DirectorioZip.Entrada entrada) throws IOException {
+        if (actual != null) {
+            throw new IllegalStateException("La entrada '" + new String(actual.nombre, StandardCharsets.UTF_8) + "' no se ha finalizado.");
+        }
+        if (!entrada.esCopiable()) {
+            throw new IllegalArgumentException("La entrada '" + entrada.getNombre() + "' no se puede copiar sin descomprimirla.");
+        }
+        vaciarBuffer();
+        Registro registro = new Registro();
+        registro.nombre = entrada.getNombreBytes();
+        registro.metodo = entrada.getMetodo();
+        registro.fechaDos = entrada.getFechaDos();
+        registro.crc = entrada.getCrc();
+        registro.tamano = entrada.getTamano();
+        registro.tamanoComprimido = entrada.getTamanoComprimido();
+        registro.desplazamiento = posicion;
+        registro.directorio = entrada.esDirectorio();
+        registro.huella = deHexadecimal(entrada.getHuella());
+        posicion += origen.copiarEntrada(entrada, canal.canalTransferencia());
+        registro.inicioDatos = posicion - registro.tamanoComprimido;
+        registros.add(registro);
+    }
+
+    /**
+     * Indica el comentario del ZIP, que se escribe al final del fichero con
+     * {@link #terminar()}.
+     *
+     * @param comentario El comentario, o {@code null} para no incluirlo.
+     */
+    public void setComentario(String comentario) {
+        byte[] bytes = comentario == null ? new byte[0] : comentario.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > LIMITE_ENTRADAS_ZIP32) {
+            throw new IllegalArgumentException("El comentario del ZIP no puede superar 65535 bytes.");
+        }
+        this.comentario = bytes;
+    }
+
+    /**
+     * Posición actual (bytes escritos) en el fichero.
+     *
+     * @return El desplazamiento del siguiente byte.
+     */
+    public long getPosicion() {
+        return posicion;
+    }
+
+    /**
+     * Número de entradas (incluidos directorios) ya finalizadas.
+     *
+     * @return El número de entradas.
+     */
+    public int getNumeroEntradas() {
+        return registros.size();
+    }
+
+    /**
+     * Escribe el directorio central y el registro de fin de fichero y
+     * sincroniza el fichero en disco. Después de llamarlo solo queda cerrar el
+     * escritor.
+     *
+     * @throws IOException Si no se puede escribir.
+     */
+    public void terminar() throws IOException {
+        if (actual != null) {
+            throw new IllegalStateException("La entrada '" + new String(actual.nombre, StandardCharsets.UTF_8) + "' no se ha finalizado.");
+        }
+        long inicioDirectorio = posicion;
+        for (Registro registro : registros) {
+            escribirCabeceraCentral(registro);
+        }
+        long tamanoDirectorio = posicion - inicioDirectorio;
+        boolean zip64 = registros.size() >= LIMITE_ENTRADAS_ZIP32 || inicioDirectorio >= LIMITE_ZIP32 || tamanoDirectorio >= LIMITE_ZIP32;
+
+        if (zip64) {
+            long inicioFinZip64 = posicion;
+            ponerInt(FIRMA_FIN_DIRECTORIO_ZIP64);
+            ponerLong(44);
+            ponerShort(VERSION_ZIP64);
+            ponerShort(VERSION_ZIP64);
+            ponerInt(0);
+            ponerInt(0);
+            ponerLong(registros.size());
+            ponerLong(registros.size());
+            ponerLong(tamanoDirectorio);
+            ponerLong(inicioDirectorio);
+
+            ponerInt(FIRMA_LOCALIZADOR_ZIP64);
+            ponerInt(0);
+            ponerLong(inicioFinZip64);
+            ponerInt(1);
+        }
+
+        int entradas = Math.min(registros.size(), LIMITE_ENTRADAS_ZIP32);
+        ponerInt(FIRMA_FIN_DIRECTORIO);
+        ponerShort(0);
+        ponerShort(0);
+        ponerShort(entradas);
+        ponerShort(entradas);
+        ponerInt((int) Math.min(tamanoDirectorio, LIMITE_ZIP32));
+        ponerInt((int) Math.min(inicioDirectorio, LIMITE_ZIP32));
+        ponerShort(comentario.length);
+        ponerBytes(comentario);
+        vaciarBuffer();
+        canal.terminar();
+        terminado = true;
+    }
+
+    /**
+     * Copias que han fallado y se han dejado de escribir.
+     *
+     * @return El error de cada copia fallida.
+     */
+    public Map<Path, IOException> getCopiasFallidas() {
+        return replicada.getCopiasFallidas();
+    }
+
+    /**
+     * Huellas de los bloques cifrados, para verificar el fichero sin
+     * descifrarlo.
+     *
+     * @return Las huellas, o {@code null} si el ZIP no se cifra o no está
+     * terminado.
+     */
+    SalidaCifrada.Huellas getHuellasCifrado() {
+        return terminado && canal instanceof SalidaCifrada ? ((SalidaCifrada) canal).getHuellas() : null;
+    }
+
+    /**
+     * Indica si ya se ha escrito el directorio central.
+     *
+     * @return {@code true} si el ZIP está completo.
+     */
+    public boolean isTerminado() {
+        return terminado;
+    }
+
+    /**
+     * Cierra el fichero. Si no se ha llamado antes a {@link #terminar()}, el
+     * fichero queda incompleto.
+     *
+     * @throws IOException Si no se puede cerrar.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (terminado) {
+                vaciarBuffer();
+            }
+        } finally {
+            canal.close();
+        }
+    }
+
+    // --- ESTRUCTURAS DEL FORMATO ---
+    private void escribirCabeceraLocal(Registro registro) throws IOException {
+        ponerInt(FIRMA_CABECERA_LOCAL);
+        ponerShort(registro.zip64Local ? VERSION_ZIP64 : VERSION_CLASICA);
+        ponerShort(INDICADOR_UTF8);
+        ponerShort(registro.metodo);
+        ponerInt(registro.fechaDos);
+        ponerInt(0);
+        ponerInt(registro.zip64Local ? (int) LIMITE_ZIP32 : 0);
+        ponerInt(registro.zip64Local ? (int) LIMITE_ZIP32 : 0);
+        ponerShort(registro.nombre.length);
+        ponerShort(registro.zip64Local ? 20 : 0);
+        ponerBytes(registro.nombre);
+        if (registro.zip64Local) {
+            ponerShort(ID_EXTRA_ZIP64);
+            ponerShort(16);
+            ponerLong(0);
+            ponerLong(0);
+        }
+    }
+
+    private void escribirCabeceraCentral(Registro registro) throws IOException {
+        boolean tamanoGrande = registro.tamano >= LIMITE_ZIP32;
+        boolean comprimidoGrande = registro.tamanoComprimido >= LIMITE_ZIP32;
+        boolean desplazamientoGrande = registro.desplazamiento >= LIMITE_ZIP32;
+        int longitudExtra = (tamanoGrande ? 8 : 0) + (comprimidoGrande ? 8 : 0) + (desplazamientoGrande ? 8 : 0);
+        boolean zip64 = longitudExtra > 0;
+        int longitudHuella = registro.huella != null ? 4 + LONGITUD_HUELLA : 0;
+
+        ponerInt(FIRMA_CABECERA_CENTRAL);
+        ponerShort(zip64 || registro.zip64Local ? VERSION_ZIP64 : VERSION_CLASICA);
+        ponerShort(zip64 || registro.zip64Local ? VERSION_ZIP64 : VERSION_CLASICA);
+        ponerShort(INDICADOR_UTF8);
+        ponerShort(registro.metodo);
+        ponerInt(registro.fechaDos);
+        ponerInt((int) registro.crc);
+        ponerInt((int) (comprimidoGrande ? LIMITE_ZIP32 : registro.tamanoComprimido));
+        ponerInt((int) (tamanoGrande ? LIMITE_ZIP32 : registro.tamano));
+        ponerShort(registro.nombre.length);
+        ponerShort((zip64 ? longitudExtra + 4 : 0) + longitudHuella);
+        ponerShort(0);
+        ponerShort(0);
+        ponerShort(0);
+        ponerInt(registro.directorio ? 0x10 : 0);
+        ponerInt((int) (desplazamientoGrande ? LIMITE_ZIP32 : registro.desplazamiento));
+        ponerBytes(registro.nombre);
+        if (zip64) {
+            ponerShort(ID_EXTRA_ZIP64);
+            ponerShort(longitudExtra);
+            if (tamanoGrande) {
+                ponerLong(registro.tamano);
+            }
+            if (comprimidoGrande) {
+                ponerLong(registro.tamanoComprimido);
+            }
+            if (desplazamientoGrande) {
+                ponerLong(registro.desplazamiento);
+            }
+        }
+        if (registro.huella != null) {
+            ponerShort(ID_EXTRA_HUELLA);
+            ponerShort(LONGITUD_HUELLA);
+            ponerBytes(registro.huella);
+        }
+    }
+
+    private static byte[] deHexadecimal(String hexadecimal) {
+        if (hexadecimal == null || hexadecimal.length() != LONGITUD_HUELLA * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[LONGITUD_HUELLA];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hexadecimal.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Convierte una fecha a formato MS-DOS (fecha en los 16 bits altos, hora
+     * en los bajos), con el mínimo del formato en 1980.
+     */
+    static int aFechaDos(long fechaMillis) {
+        LocalDateTime fecha = LocalDateTime.ofInstant(Instant.ofEpochMilli(fechaMillis), ZoneId.systemDefault());
+        if (fecha.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (fecha.getYear() - 1980) << 25
+                | fecha.getMonthValue() << 21
+                | fecha.getDayOfMonth() << 16
+                | fecha.getHour() << 11
+                | fecha.getMinute() << 5
+                | fecha.getSecond() >> 1;
+    }
+
+    // --- ESCRITURA CON BUFFER ---
+    private void asegurarEspacio(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            vaciarBuffer();
+        }
+    }
+
+    private void ponerShort(int valor) throws IOException {
+        asegurarEspacio(2);
+        buffer.putShort((short) valor);
+        posicion += 2;
+    }
+
+    private void ponerInt(int valor) throws IOException {
+        asegurarEspacio(4);
+        buffer.putInt(valor);
+        posicion += 4;
+    }
+
+    private void ponerLong(long valor) throws IOException {
+        asegurarEspacio(8);
+        buffer.putLong(valor);
+        posicion += 8;
+    }
+
+    private void ponerBytes(byte[] datos) throws IOException {
+        escribir(datos, 0, datos.length);
+    }
+
+    private void vaciarBuffer() throws IOException {
+        buffer.flip();
+        escribirCompleto(buffer);
+        buffer.clear();
+    }
+
+    private void escribirCompleto(ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+    }
+
+    private void escribirEn(ByteBuffer datos, long desplazamiento) throws IOException {
+        canal.write(datos, desplazamiento);
+    }
+}
@@ -0,0 +1,250 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Estimación rápida del tamaño del paquete antes de comprimirlo.
+ * <p>
+ * Para cada documento se aplica la misma {@link PoliticaCompresion} que al
+ * empaquetar: los que se almacenan cuentan con su tamaño, y de los que se
+ * comprimen se usa el flujo ya generado por la {@link CachePrecompresion} si
+ * existe o, si no, la proporción que logra DEFLATE sobre las mismas muestras
+ * que analiza la política (como mucho tres de 32 KB). Los resultados se
+ * recuerdan por huella y nivel, de modo que volver a abrir la confirmación
+ * es inmediato. Si la estimación supera {@value #TIEMPO_MAXIMO_MS} ms, los
+ * documentos que quedan cuentan con su tamaño sin comprimir (una cota
+ * superior) y la estimación se marca como aproximada.
+ * </p>
+ * <p>
+ * Lo que cabe en cada volumen no depende de esta estimación: el reparto en
+ * volúmenes usa la cota sin comprimir de {@link PlanVolumenes}, y los avisos
+ * de volúmenes y de documentos demasiado grandes se calculan con ella.
+ * </p>
+ */
+public class EstimadorTamano {
+
+    /**
+     * Tiempo máximo que se dedica a analizar documentos.
+     */
+    private static final long TIEMPO_MAXIMO_MS = 700;
+    /**
+     * Cabeceras local y central, descriptor de datos y extra con la huella de
+     * cada entrada, sin contar el nombre (que aparece dos veces).
+     */
+    private static final long CABECERAS_ENTRADA = 30 + 46 + 24 + 36;
+
+    /**
+     * Resultado de una estimación.
+     */
+    public static final class Estimacion {
+
+        private final Map<String, Long> porGrupo = new LinkedHashMap<>();
+        private final Map<String, Long> cotaPorGrupo = new LinkedHashMap<>();
+        private final Map<String, FileData> documentos = new LinkedHashMap<>();
+        private final List<String> rutas = new ArrayList<>();
+        private boolean aproximada;
+
+        /**
+         * Tamaño estimado de cada grupo (sobre, lote...), en el orden en que
+         * se indicaron.
+         *
+         * @return Los bytes estimados por grupo.
+         */
+        public Map<String, Long> getPorGrupo() {
+            return Collections.unmodifiableMap(porGrupo);
+        }
+
+        /**
+         * Tamaño estimado del paquete completo.
+         *
+         * @return Los bytes estimados.
+         */
+        public long getTotal() {
+            long total = 0;
+            for (long tamano : porGrupo.values()) {
+                total += tamano;
+            }
+            return total;
+        }
+
+        /**
+         * Indica si algún documento no se llegó a analizar por falta de
+         * tiempo y cuenta con su tamaño sin comprimir.
+         *
+         * @return {@code true} si la estimación es una cota superior.
+         */
+        public boolean isAproximada() {
+            return aproximada;
+        }
+
+        /**
+         * Volúmenes en los que se dividirá cada archivo del paquete, contados
+         * como los cuenta {@link PlanVolumenes#planificar}.
+         *
+         * @param limite El tamaño máximo de cada archivo, o 0 si no hay.
+         * @param porGrupos Si cada grupo va en su propio archivo; si no, todo
+         * el paquete va en uno ("El paquete").
+         * @return El número mínimo de volúmenes de cada archivo.
+         */
+        public Map<String, Integer> getVolumenes(long limite, boolean porGrupos) {
+            Map<String, Integer> volumenes = new LinkedHashMap<>();
+            if (limite > 0) {
+                long capacidad = PlanVolumenes.capacidad(limite, rutas);
+                if (porGrupos) {
+                    for (Map.Entry<String, Long> grupo : cotaPorGrupo.entrySet()) {
+                        volumenes.put(grupo.getKey(), PlanVolumenes.volumenesMinimos(grupo.getValue(), capacidad));
+                    }
+                } else {
+                    long total = 0;
+                    for (long cota : cotaPorGrupo.values()) {
+                        total += cota;
+                    }
+                    volumenes.put("El paquete", PlanVolumenes.volumenesMinimos(total, capacidad));
+                }
+            }
+            return volumenes;
+        }
+
+        /**
+         * Documentos que no caben en un archivo del tamaño indicado (no se
+         * pueden repartir entre volúmenes). Se cuentan sin comprimir, como en
+         * {@link PlanVolumenes#planificar}, que los rechaza aunque comprimidos
+         * fuesen menores que el límite.
+         *
+         * @param limite El tamaño máximo de cada archivo, o 0 si no hay.
+         * @return Los documentos ("grupo: nombre") que lo superan.
+         */
+        public List<String> getDocumentosQueNoCaben(long limite) {
+            List<String> excesos = new ArrayList<>();
+            if (limite > 0) {
+                long capacidad = PlanVolumenes.capacidad(limite, rutas);
+                for (Map.Entry<String, FileData> documento : documentos.entrySet()) {
+                    FileData fileData = documento.getValue();
+                    if (PlanVolumenes.cotaDocumento(fileData.getNombre(), fileData.getTamano()) > capacidad) {
+                        excesos.add(documento.getKey() + " (" + GestorMemoria.formatearTamano(fileData.getTamano()) + ")");
+                    }
+                }
+            }
+            return excesos;
+        }
+    }
+
+    private final PoliticaCompresion politica;
+    private final CachePrecompresion cache;
+    private final Map<String, Long> estimados = new ConcurrentHashMap<>();
+
+    /**
+     * Crea un estimador.
+     *
+     * @param perfil El perfil con el que se comprimirá el paquete.
+     * @param cache La caché de precompresión, o {@code null}.
+     */
+    public EstimadorTamano(PoliticaCompresion.Perfil perfil, CachePrecompresion cache) {
+        this.politica = new PoliticaCompresion(perfil);
+        this.cache = cache;
+    }
+
+    public PoliticaCompresion.Perfil getPerfil() {
+        return politica.getPerfil();
+    }
+
+    /**
+     * Estima el tamaño comprimido de los documentos de cada grupo.
+     *
+     * @param documentosPorGrupo Los documentos de cada grupo (ej: "Lote 2"),
+     * por el nombre con el que se muestran.
+     * @return La estimación.
+     */
+    public Estimacion estimar(Map<String, List<FileData>> documentosPorGrupo) {
+        Estimacion estimacion = new Estimacion();
+        long limiteTiempo = System.nanoTime() + TIEMPO_MAXIMO_MS * 1_000_000L;
+        for (Map.Entry<String, List<FileData>> grupo : documentosPorGrupo.entrySet()) {
+            long tamanoGrupo = 0;
+            long cotaGrupo = 0;
+            for (FileData fileData : grupo.getValue()) {
+                long comprimido;
+                if (System.nanoTime() < limiteTiempo) {
+                    comprimido = estimarDocumento(fileData);
+                } else {
+                    comprimido = fileData.getTamano();
+                    estimacion.aproximada = true;
+                }
+                estimacion.documentos.put(grupo.getKey() + ": " + fileData.getNombre(), fileData);
+                estimacion.rutas.add(fileData.getNombre());
+                tamanoGrupo += comprimido + CABECERAS_ENTRADA + 2L * fileData.getNombre().length();
+                cotaGrupo += PlanVolumenes.cotaDocumento(fileData.getNombre(), fileData.getTamano());
+            }
+            estimacion.porGrupo.put(grupo.getKey(), tamanoGrupo);
+            estimacion.cotaPorGrupo.put(grupo.getKey(), cotaGrupo);
+        }
+        return estimacion;
+    }
+
+    /**
+     * Tamaño comprimido estimado de un documento.
+     */
+    private long estimarDocumento(FileData fileData) {
+        ContenidoArchivo contenido = fileData.getFuente();
+        if (contenido == null) {
+            return fileData.getTamano();
+        }
+        String huella = contenido.getHuellaSiConocida();
+        String clave = huella != null ? huella + "-" + politica.getPerfil().name() : null;
+        Long conocido = clave != null ? estimados.get(clave) : null;
+        if (conocido != null) {
+            return conocido;
+        }
+
+        long estimado = contenido.getTamano();
+        try {
+            EntradaPaquete entrada = EntradaPaquete.desdeContenido(fileData.getNombre(), contenido, null);
+            byte[][] muestras = politica.tomarMuestras(entrada);
+            PoliticaCompresion.Decision decision = politica.decidir(entrada, muestras);
+            if (!decision.esAlmacenada()) {
+                Path precomprimido = cache != null ? cache.buscar(entrada, decision.getNivel()) : null;
+                estimado = precomprimido != null ? Files.size(precomprimido)
+                        : (long) Math.ceil(contenido.getTamano() * proporcion(muestras, decision.getNivel()));
+            }
+        } catch (IOException e) {
+            // Sin muestras, se cuenta el tamaño sin comprimir.
+            return contenido.getTamano();
+        }
+        if (clave != null) {
+            estimados.put(clave, estimado);
+        }
+        return estimado;
+    }
+
+    /**
+     * Proporción entre el tamaño comprimido y el original de las muestras.
+     */
+    private static double proporcion(byte[][] muestras, int nivel) {
+        Deflater deflater = new Deflater(nivel, true);
+        try {
+            long original = 0;
+            long comprimido = 0;
+            byte[] salida = new byte[ContenidoArchivo.TAMANO_BUFFER];
+            for (byte[] muestra : muestras) {
+                deflater.reset();
+                deflater.setInput(muestra);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    comprimido += deflater.deflate(salida);
+                }
+                original += muestra.length;
+            }
+            return original == 0 ? 1 : Math.min(1, (double) comprimido / original);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.licitador.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.Objects;
 import java.util.Arrays; // Incluido para coherencia, aunque no se usa directamente en esta clase
 
@@ -8,9 +12,11 @@ import java.util.Arrays; // Incluido para coherencia, aunque no se usa directame
  * Clase de modelo (Data Transfer Object - DTO) que encapsula la información y
  * el contenido binario de un archivo adjunto a la licitación.
  * <p>
- * Implementa {@code Serializable} para su persistencia. Almacena el contenido
- * del archivo como un array de bytes y maneja propiedades de confidencialidad,
- * incluyendo los supuestos legales seleccionados y los motivos asociados.
+ * Implementa {@code Serializable} para su persistencia. El contenido del
+ * archivo se delega en un {@link ContenidoArchivo}, que puede residir en
+ * memoria o estar respaldado por el fichero de origen en disco. Maneja además
+ * las propiedades de confidencialidad, incluyendo los supuestos legales
+ * seleccionados y los motivos asociados.
  * </p>
  */
 public class FileData implements Serializable {
@@ -21,9 +27,15 @@ public class FileData implements Serializable {
      */
     private final String nombre;
     /**
-     * Contenido binario del archivo.
+     * Contenido binario del archivo tal y como se guardaba en las sesiones
+     * anteriores. Solo se rellena al leer sesiones antiguas y se traslada a
+     * {@link #fuente} durante la deserialización.
      */
-    private final byte[] contenido;
+    private byte[] contenido;
+    /**
+     * Origen del contenido binario del archivo (en memoria o en disco).
+     */
+    private ContenidoArchivo fuente;
     /**
      * Indicador de si el archivo ha sido marcado como confidencial por el
      * licitador.
@@ -69,8 +81,30 @@ public class FileData implements Serializable {
      * {@code null}.
      */
     public FileData(String nombre, byte[] contenido, boolean esConfidencial, String[] supuestosSeleccionados, String[] motivosSupuestos) {
+        this(nombre, new ContenidoArchivo(Objects.requireNonNull(contenido, "Contenido no puede ser null")),
+                esConfidencial, supuestosSeleccionados, motivosSupuestos);
+    }
+
+    /**
+     * Constructor que asocia el archivo a un {@link ContenidoArchivo} ya
+     * existente, normalmente respaldado por el fichero de origen en disco (ver
+     * {@link ContenidoArchivo#desdeArchivo(java.io.File)}).
+     *
+     * @param nombre El nombre del archivo.
+     * @param fuente El origen del contenido binario.
+     * @param esConfidencial Indica si el archivo debe marcarse como
+     * confidencial.
+     * @param supuestosSeleccionados Array de supuestos seleccionados. Debe ser
+     * {@code null} si {@code esConfidencial} es {@code false}.
+     * @param motivosSupuestos Array de motivos asociados. Debe ser {@code null}
+     * si {@code esConfidencial} es {@code false}.
+     * @throws NullPointerException Si el nombre o el contenido son
+     * {@code null}.
+     */
+    public FileData(String nombre, ContenidoArchivo fuente, boolean esConfidencial, String[] supuestosSeleccionados, String[] motivosSupuestos) {
         this.nombre = Objects.requireNonNull(nombre, "Nombre no puede ser null");
-        this.contenido = Objects.requireNonNull(contenido, "Contenido no puede ser null");
+        this.fuente = Objects.requireNonNull(fuente, "Contenido no puede ser null");
+        this.contenido = null;
         this.esConfidencial = esConfidencial;
 
         // SOLO si es confidencial, guarda los supuestos y motivos.
@@ -116,12 +150,69 @@ public class FileData implements Serializable {
     }
 
     /**
-     * Obtiene el contenido binario del archivo.
+     * Obtiene el contenido binario del archivo. Si el contenido está en disco,
+     * se lee completo en memoria; para empaquetar o copiar documentos use
+     * {@link #abrirContenido()}.
      *
      * @return Array de bytes con el contenido.
+     * @throws UncheckedIOException Si no se puede leer el fichero de origen.
      */
     public byte[] getContenido() {
-        return contenido;
+        try {
+            return fuente.leerBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Abre un flujo de lectura sobre el contenido del archivo sin cargarlo
+     * completo en memoria.
+     *
+     * @return Un {@link InputStream} que el llamante debe cerrar.
+     * @throws IOException Si el fichero de origen no está disponible o ha sido
+     * modificado desde la carga.
+     */
+    public InputStream abrirContenido() throws IOException {
+        return fuente.abrirStream();
+    }
+
+    /**
+     * Obtiene el origen del contenido binario del archivo.
+     *
+     * @return El {@link ContenidoArchivo} asociado.
+     */
+    public ContenidoArchivo getFuente() {
+        return fuente;
+    }
+
+    /**
+     * Sustituye el origen del contenido por otro equivalente (misma huella).
+     * Lo utiliza {@link FileManager} para que todos los huecos con el mismo
+     * contenido compartan la instancia canónica de {@link AlmacenContenidos}.
+     *
+     * @param fuente El contenido canónico.
+     */
+    void reemplazarFuente(ContenidoArchivo fuente) {
+        this.fuente = Objects.requireNonNull(fuente, "Contenido no puede ser null");
+    }
+
+    /**
+     * Obtiene el tamaño del contenido en bytes sin leerlo.
+     *
+     * @return El tamaño en bytes.
+     */
+    public long getTamano() {
+        return fuente.getTamano();
+    }
+
+    /**
+     * Obtiene la huella SHA-256 del contenido en hexadecimal.
+     *
+     * @return La huella del contenido.
+     */
+    public String getHuella() {
+        return fuente.getHuella();
     }
 
     /**
@@ -161,4 +252,16 @@ public class FileData implements Serializable {
         }
         return nombre;
     }
+
+    /**
+     * Deserialización personalizada para mantener la compatibilidad con las
+     * sesiones antiguas, que guardaban el contenido como {@code byte[]}.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (fuente == null && contenido != null) {
+            fuente = new ContenidoArchivo(contenido);
+        }
+        contenido = null;
+    }
 }
@@ -9,12 +9,13 @@ import com.lowagie.text.DocumentException;
 import com.licitador.jar.AnexoGenerator;
 import com.licitador.jar.model.RequerimientoLicitador;
 import com.licitador.model.ArticuloAnexo;
+import com.licitador.model.ConfiguracionCifrado;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.zip.*;
+import java.util.concurrent.ExecutionException;
 import java.text.SimpleDateFormat;
 import java.util.stream.Collectors;
 
@@ -33,6 +34,29 @@ public class FileManager implements Serializable {
     private final Map<String, FileData> archivosAnexoInteractivo;
     private final Map<Integer, Boolean> participacionPorLote;
     private LicitadorData licitadorData; // Se asume inicializado por el constructor
+    // Contenidos únicos por huella SHA-256; los FileData de los huecos solo guardan referencias.
+    private final AlmacenContenidos almacenContenidos;
+    private transient ImportadorArchivos importador;
+    private transient CachePrecompresion cachePrecompresion;
+    private transient EstimadorTamano estimadorTamano;
+    private PoliticaCompresion.Perfil perfilCompresion;
+    private transient volatile EmpaquetadorSobres empaquetadoEnCurso;
+    private long tamanoMaximoVolumen;
+    private boolean paquetePorSobres;
+    private boolean paqueteReproducible;
+    private boolean documentosCompartidos;
+    private boolean sinVerificacion;
+    // Huella SHA-256 de los paquetes reproducibles generados en esta ejecución, por ruta.
+    private transient Map<String, String> huellasPaquetes;
+    // Guardado automático de cada cambio para recuperar la sesión tras un cierre anómalo.
+    private transient DiarioSesion diario;
+    private transient boolean diarioNoDisponible;
+    // Guardado de la sesión en segundo plano; solo se accede en el Event Dispatch Thread.
+    private transient boolean guardadoEnCurso;
+    private transient Runnable guardadoPendiente;
+    // Empaquetado lanzado (se marca antes de arrancar su SwingWorker); solo en el Event Dispatch Thread.
+    private transient boolean empaquetadoLanzado;
+    private transient File ultimoArchivoSesion;
 
     public FileManager(Configuracion configuracion, Logger logger) {
         if (logger == null) {
@@ -45,6 +69,8 @@ public class FileManager implements Serializable {
         this.archivosAnexoInteractivo = new HashMap<>();
         this.participacionPorLote = new HashMap<>();
         this.licitadorData = new LicitadorData();
+        this.almacenContenidos = new AlmacenContenidos();
+        this.perfilCompresion = PoliticaCompresion.Perfil.porDefecto();
     }
 
     // Custom deserialization to re-initialize transient logger
@@ -134,7 +160,8 @@ public class FileManager implements Serializable {
             );
 
             String nombreFinalArchivo = ANEXO_ADMINISTRATIVO_NOMBRE_CLAVE + ".pdf";
-            FileData anexoData = new FileData(nombreFinalArchivo, pdfContent, false, null, null);
+            ContenidoArchivo contenidoAnexo = almacenContenidos.registrar(new ContenidoArchivo(pdfContent));
+            FileData anexoData = new FileData(nombreFinalArchivo, contenidoAnexo, false, null, null);
             this.anexoAdministrativoData = anexoData;
             logger.log("Anexo Administrativo (PDF) generado y listo para compresión.");
 
@@ -148,8 +175,8 @@ public class FileManager implements Serializable {
                     if (rutaFichero != null && !rutaFichero.isEmpty()) {
                         File fichero = new File(rutaFichero);
                         if (fichero.exists()) {
-                            byte[] fileContent = Files.readAllBytes(fichero.toPath());
-                            FileData fileData = new FileData(fichero.getName(), fileContent, false, null, null);
+                            ContenidoArchivo contenidoFichero = almacenContenidos.registrarArchivo(fichero);
+                            FileData fileData = new FileData(fichero.getName(), contenidoFichero, false, null, null);
                             this.archivosAnexoInteractivo.put(fichero.getName(), fileData);
                             logger.logInfo("Fichero interactivo adjuntado: " + fichero.getName());
                         } else {
@@ -159,6 +186,7 @@ public class FileManager implements Serializable {
                 }
             }
             // --- FIN Lógica de Ficheros Interactivos ---
+            purgarContenidosNoReferenciados();
 
             return true;
 
@@ -178,7 +206,7 @@ public class FileManager implements Serializable {
     public boolean validarOfertaCompleta() {
 
         // 1. Validar Anexo Administrativo (debe haber sido generado previamente)
-        if (this.anexoAdministrativoData == null || this.anexoAdministrativoData.getContenido() == null || this.anexoAdministrativoData.getContenido().length == 0) {
+        if (this.anexoAdministrativoData == null || this.anexoAdministrativoData.getTamano() == 0) {
             logError("Validación de Compresión fallida: Faltan el Anexo Administrativo. Por favor, generelo primero.");
             return false;
         }
@@ -194,45 +222,209 @@ public class FileManager implements Serializable {
     }
 
     // --- MÉTODOS DE ARCHIVOS Y COMPRESIÓN ---
-    public boolean guardarSesion() {
+    /**
+     * Guarda la sesión en segundo plano. En el Event Dispatch Thread solo se
+     * elige el archivo y se toma una instantánea del estado (copias de los
+     * mapas de huecos y de los datos del licitador; los documentos son
+     * inmutables y se comparten), de modo que el usuario puede seguir
+     * trabajando mientras se escribe. Si ya hay un guardado en curso, el
+     * nuevo espera a que termine y sustituye a cualquier otro que estuviera
+     * esperando: solo se escribe el estado más reciente.
+     *
+     * @param estadoLabel Etiqueta en la que se muestra el avance y la hora del
+     * último guardado, o {@code null}.
+     * @return {@code true} si el guardado se ha iniciado o ha quedado en
+     * espera; {@code false} si el usuario lo ha cancelado.
+     */
+    public boolean guardarSesion(JLabel estadoLabel) {
+        if (empaquetadoLanzado) {
+            log("No se puede guardar la sesión mientras se genera el paquete.");
+            JOptionPane.showMessageDialog(null, "Espere a que termine la compresión para guardar la sesión.", "Guardar Sesión", JOptionPane.INFORMATION_MESSAGE);
+            return false;
+        }
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Guardar progreso de la sesión");
-        fileChooser.setFileFilter(new FileNameExtensionFilter("Archivo de Sesión (*.dat)", "dat"));
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Archivo de Sesión (*" + ArchivoSesion.EXTENSION + ")", ArchivoSesion.EXTENSION.substring(1)));
+        if (ultimoArchivoSesion != null) {
+            fileChooser.setSelectedFile(ultimoArchivoSesion);
+        }
 
         int userSelection = fileChooser.showSaveDialog(null);
 
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
             String filePath = fileToSave.getAbsolutePath();
-            if (!filePath.toLowerCase().endsWith(".dat")) {
-                fileToSave = new File(filePath + ".dat");
+            if (!filePath.toLowerCase().endsWith(ArchivoSesion.EXTENSION)) {
+                // Una sesión antigua (.dat) elegida para sobrescribir se guarda en el formato nuevo junto a ella.
+                fileToSave = new File(filePath.toLowerCase().endsWith(".dat") ? filePath.substring(0, filePath.length() - 4) + ArchivoSesion.EXTENSION : filePath + ArchivoSesion.EXTENSION);
             }
+            ultimoArchivoSesion = fileToSave;
 
-            try (FileOutputStream fos = new FileOutputStream(fileToSave); ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-
-                DatosSesionCargada datosSesion = new DatosSesionCargada(
-                        archivosComunes,
-                        archivosOferta,
-                        this.licitadorData,
-                        this.participacionPorLote
-                );
-                oos.writeObject(datosSesion);
-
-                log("Sesión guardada en: " + fileToSave.getPath());
-                JOptionPane.showMessageDialog(null, "El progreso se ha guardado correctamente.", "Guardar Sesión", JOptionPane.INFORMATION_MESSAGE);
+            File destino = fileToSave;
+            ArchivoSesion.Datos instantanea = tomarInstantanea();
+            if (guardadoEnCurso) {
+                if (guardadoPendiente != null) {
+                    log("Se descarta el guardado en espera; se guardará el estado más reciente.");
+                }
+                guardadoPendiente = () -> iniciarGuardado(destino, instantanea, estadoLabel);
+                log("Hay un guardado de la sesión en curso; este se hará al terminar.");
                 return true;
-
-            } catch (IOException e) {
-                logError("Error al guardar la sesión: " + e.getMessage());
-                JOptionPane.showMessageDialog(null, "Error al guardar el progreso.", "Guardar Sesión", JOptionPane.ERROR_MESSAGE);
-                return false;
             }
+            iniciarGuardado(destino, instantanea, estadoLabel);
+            return true;
         } else {
             log("Operación de guardado de sesión cancelada.");
             return false;
         }
     }
 
+    /**
+     * Indica si se está guardando la sesión en segundo plano.
+     *
+     * @return {@code true} si hay un guardado en curso.
+     */
+    public boolean isGuardadoEnCurso() {
+        return guardadoEnCurso;
+    }
+
+    /**
+     * Comprueba que no se está guardando la sesión antes de una operación que
+     * lee los documentos de la sesión durante un rato o la sustituye. Al
+     * terminar el guardado, los documentos pasan a leerse del archivo nuevo,
+     * que puede sustituir al que se estaba leyendo.
+     *
+     * @param operacion Lo que se quiere hacer, para el mensaje.
+     * @return {@code true} si no hay ningún guardado en curso.
+     */
+    private boolean comprobarSinGuardadoEnCurso(String operacion) {
+        if (!guardadoEnCurso) {
+            return true;
+        }
+        log("No se puede " + operacion + " mientras se guarda la sesión.");
+        JOptionPane.showMessageDialog(null, "Espere a que termine de guardarse la sesión para " + operacion + ".", "Guardado en curso", JOptionPane.INFORMATION_MESSAGE);
+        return false;
+    }
+
+    /**
+     * Copia del estado de la sesión para guardarla en segundo plano. Los
+     * {@link FileData} no se modifican tras registrarlos (los cambios
+     * sustituyen la entrada del mapa), por lo que basta con copiar los mapas;
+     * los datos del licitador se editan en su sitio y se copian completos.
+     */
+    private ArchivoSesion.Datos tomarInstantanea() {
+        LicitadorData copiaLicitador = null;
+        if (licitadorData != null) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(licitadorData);
+                }
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    copiaLicitador = (LicitadorData) ois.readObject();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException("No se pueden copiar los datos del licitador.", e);
+            }
+        }
+        return new ArchivoSesion.Datos(new LinkedHashMap<>(archivosComunes), new LinkedHashMap<>(archivosOferta), copiaLicitador,
+                participacionPorLote != null ? new LinkedHashMap<>(participacionPorLote) : null);
+    }
+
+    /**
+     * Copia del estado que se empaqueta. Se toma en el hilo de la interfaz
+     * antes de lanzar el empaquetado, para que los documentos que se
+     * importen mientras tanto no alteren los mapas que se están recorriendo.
+     */
+    private static final class EstadoPaquete {
+
+        final ArchivoSesion.Datos sesion;
+        final FileData anexoAdministrativo;
+        final Map<String, FileData> archivosAnexoInteractivo;
+
+        EstadoPaquete(ArchivoSesion.Datos sesion, FileData anexoAdministrativo, Map<String, FileData> archivosAnexoInteractivo) {
+            this.sesion = sesion;
+            this.anexoAdministrativo = anexoAdministrativo;
+            this.archivosAnexoInteractivo = archivosAnexoInteractivo;
+        }
+
+        /**
+         * Como {@link FileManager#getParticipacionLote(int)} en una
+         * licitación con lotes, pero sobre la copia.
+         */
+        boolean participaEnLote(int loteNum) {
+            return sesion.participacionPorLote != null && sesion.participacionPorLote.getOrDefault(loteNum, false);
+        }
+    }
+
+    private EstadoPaquete tomarEstadoPaquete() {
+        return new EstadoPaquete(tomarInstantanea(), anexoAdministrativoData, new LinkedHashMap<>(archivosAnexoInteractivo));
+    }
+
+    private void iniciarGuardado(File destino, ArchivoSesion.Datos instantanea, JLabel estadoLabel) {
+        guardadoEnCurso = true;
+        // Al terminar, los documentos pasan a leerse del archivo nuevo; la precompresión no debe leer mientras tanto.
+        getCachePrecompresion().pausar();
+        if (estadoLabel != null) {
+            estadoLabel.setText("Guardando sesión...");
+        }
+
+        SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
+            private long milisegundos;
+
+            @Override
+            protected Void doInBackground() throws Exception {
+                long inicio = System.nanoTime();
+                ArchivoSesion.guardar(destino, instantanea, (escritos, total) -> publish(total > 0 ? (int) (escritos * 100 / total) : 100));
+                milisegundos = (System.nanoTime() - inicio) / 1_000_000;
+                return null;
+            }
+
+            @Override
+            protected void process(List<Integer> chunks) {
+                if (estadoLabel != null && !chunks.isEmpty()) {
+                    estadoLabel.setText("Guardando sesión... " + chunks.get(chunks.size() - 1) + " %");
+                }
+            }
+
+            @Override
+            protected void done() {
+                guardadoEnCurso = false;
+                getCachePrecompresion().reanudar();
+                try {
+                    get();
+                    log("Sesión guardada en: " + destino.getPath() + " (" + milisegundos + " ms)");
+                    if (diario != null) {
+                        // El diario anota como referencias las regiones del archivo sustituido.
+                        reiniciarDiario();
+                    }
+                    if (estadoLabel != null) {
+                        estadoLabel.setText("Guardado a las " + new SimpleDateFormat("HH:mm").format(new Date()));
+                        estadoLabel.setToolTipText(destino.getAbsolutePath());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause() != null ? e.getCause() : e;
+                    logError("Error al guardar la sesión: " + causa.getMessage());
+                    if (estadoLabel != null) {
+                        estadoLabel.setText("Error al guardar la sesión");
+                    }
+                    JOptionPane.showMessageDialog(null, "Error al guardar el progreso.", "Guardar Sesión", JOptionPane.ERROR_MESSAGE);
+                }
+                Runnable siguiente = guardadoPendiente;
+                guardadoPendiente = null;
+                if (siguiente != null) {
+                    siguiente.run();
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * Sesión serializada de la versión 2 (un único objeto con todos los
+     * documentos). Solo se conserva para importar sesiones antiguas.
+     */
     private static class DatosSesionCargada implements Serializable {
 
         private static final long serialVersionUID = 2L;
@@ -249,51 +441,65 @@ public class FileManager implements Serializable {
         }
     }
 
+    /**
+     * Carga una sesión guardada o, si se seleccionan los archivos ZIP de una
+     * oferta ya generada, la abre como sesión (ver {@link #importarPaquete}).
+     *
+     * @return {@code true} si se ha cargado.
+     */
     public boolean cargarSesion() {
+        if (!comprobarSinGuardadoEnCurso("cargar una sesión")) {
+            return false;
+        }
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Cargar progreso de la sesión");
-        fileChooser.setFileFilter(new FileNameExtensionFilter("Archivo de Sesión (*.dat)", "dat"));
+        fileChooser.setMultiSelectionEnabled(true);
+        FileNameExtensionFilter filtroSesion = new FileNameExtensionFilter("Archivo de Sesión (*" + ArchivoSesion.EXTENSION + ", *.dat)", ArchivoSesion.EXTENSION.substring(1), "dat");
+        fileChooser.addChoosableFileFilter(filtroSesion);
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("Paquete de oferta generado (*.zip; todos sus sobres o volúmenes)", "zip", CifradorSobre.EXTENSION.substring(1)));
+        fileChooser.setFileFilter(filtroSesion);
 
         int userSelection = fileChooser.showOpenDialog(null);
 
         if (userSelection == JFileChooser.APPROVE_OPTION) {
-            File fileToLoad = fileChooser.getSelectedFile();
+            File[] seleccionados = fileChooser.getSelectedFiles();
+            if (seleccionados.length == 0) {
+                seleccionados = new File[]{fileChooser.getSelectedFile()};
+            }
+            for (File seleccionado : seleccionados) {
+                String nombre = seleccionado.getName().toLowerCase();
+                if (nombre.endsWith(".zip") || nombre.endsWith(CifradorSobre.EXTENSION)) {
+                    return importarPaquete(Arrays.asList(seleccionados));
+                }
+            }
+            if (seleccionados.length > 1) {
+                JOptionPane.showMessageDialog(null, "Seleccione un solo archivo de sesión.", "Error al Cargar", JOptionPane.ERROR_MESSAGE);
+                logError("No se pudo cargar la sesión: se han seleccionado varios archivos de sesión.");
+                return false;
+            }
+            File fileToLoad = seleccionados[0];
             if (!fileToLoad.exists() || !fileToLoad.canRead()) {
                 JOptionPane.showMessageDialog(null, "No se puede leer el archivo seleccionado.", "Error al Cargar", JOptionPane.ERROR_MESSAGE);
                 logError("No se pudo cargar la sesión: El archivo no existe o no es legible.");
                 return false;
             }
 
-            try (FileInputStream fis = new FileInputStream(fileToLoad); ObjectInputStream ois = new ObjectInputStream(fis)) {
-
-                Object objDatosSesion = ois.readObject();
-                if (objDatosSesion instanceof DatosSesionCargada) {
-                    DatosSesionCargada datosSesion = (DatosSesionCargada) objDatosSesion;
-
-                    this.archivosComunes.clear();
-                    this.archivosComunes.putAll(datosSesion.archivosComunes);
-
-                    this.archivosOferta.clear();
-                    this.archivosOferta.putAll(datosSesion.ofertasPorLote);
-
-                    this.licitadorData = datosSesion.licitadorData;
-
-                    this.participacionPorLote.clear();
-                    if (datosSesion.participacionPorLote != null) {
-                        this.participacionPorLote.putAll(datosSesion.participacionPorLote);
-                    } else {
-                        log("Advertencia: Sesión cargada de versión antigua sin datos de participación por lote.");
-                    }
-
-                    this.anexoAdministrativoData = null; // Siempre se regenera tras la carga
-
-                    log("Sesión cargada desde: " + fileToLoad.getPath());
-                    JOptionPane.showMessageDialog(null, "Progreso cargado con éxito.", "Cargar Sesión", JOptionPane.INFORMATION_MESSAGE);
-                    return true;
+            try {
+                long inicio = System.nanoTime();
+                if (ArchivoSesion.esIndexado(fileToLoad)) {
+                    // Solo se lee el índice; los documentos se leen del archivo de sesión cuando se necesitan.
+                    aplicarSesion(ArchivoSesion.abrir(fileToLoad));
+                    ultimoArchivoSesion = fileToLoad;
                 } else {
-                    throw new IOException("Formato de archivo de sesión inválido o incompatible. Asegúrese de que el archivo sea de la versión 2 o superior.");
+                    aplicarSesion(importarSesionSerializada(fileToLoad));
+                    log("Sesión importada del formato anterior (.dat). Guárdela de nuevo para abrirla más rápido en adelante.");
                 }
 
+                log("Sesión cargada desde: " + fileToLoad.getPath() + " (" + (System.nanoTime() - inicio) / 1_000_000 + " ms)");
+                log(GestorMemoria.getInstancia().getResumen());
+                JOptionPane.showMessageDialog(null, "Progreso cargado con éxito.", "Cargar Sesión", JOptionPane.INFORMATION_MESSAGE);
+                return true;
+
             } catch (IOException | ClassNotFoundException e) {
                 logError("Error al cargar la sesión: " + e.getMessage());
                 JOptionPane.showMessageDialog(null, "Error al cargar el progreso guardado. El archivo puede estar corrupto o no ser de esta versión.", "Error", JOptionPane.ERROR_MESSAGE);
@@ -305,73 +511,284 @@ public class FileManager implements Serializable {
         }
     }
 
+    /**
+     * Abre como sesión los archivos ZIP de una oferta ya generada, sin
+     * extraerlos: los documentos se siguen leyendo del paquete hasta que se
+     * guarda la sesión (ver {@link ImportadorPaquete}).
+     *
+     * @param paquetes El ZIP del paquete o todos sus sobres o volúmenes.
+     * @return {@code true} si se ha abierto.
+     */
+    private boolean importarPaquete(List<File> paquetes) {
+        try {
+            long inicio = System.nanoTime();
+            ImportadorPaquete.Resultado resultado = ImportadorPaquete.importar(paquetes, configuracion);
+            String expediente = resultado.getExpediente();
+            if (expediente != null && !expediente.equals(configuracion.getNumeroExpediente())) {
+                int respuesta = JOptionPane.showConfirmDialog(null, "El paquete corresponde al expediente " + expediente + " y la licitación actual es la del expediente "
+                        + configuracion.getNumeroExpediente() + ".\n¿Desea abrirlo de todos modos?", "Expediente Distinto", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                if (respuesta != JOptionPane.YES_OPTION) {
+                    log("Apertura del paquete cancelada por el usuario: expediente distinto (" + expediente + ").");
+                    return false;
+                }
+            }
+            aplicarSesion(resultado.getDatos());
+            // Al guardar se pide un archivo de sesión nuevo.
+            ultimoArchivoSesion = null;
+
+            StringBuilder nombres = new StringBuilder();
+            for (File paquete : paquetes) {
+                nombres.append(nombres.length() == 0 ? "" : ", ").append(paquete.getPath());
+            }
+            log("Paquete abierto como sesión desde: " + nombres + " (" + resultado.getNumeroDocumentos() + " documentos, "
+                    + (System.nanoTime() - inicio) / 1_000_000 + " ms)");
+            for (String aviso : resultado.getAvisos()) {
+                log("Aviso: " + aviso);
+            }
+            log(GestorMemoria.getInstancia().getResumen());
+            JOptionPane.showMessageDialog(null, "Paquete abierto con " + resultado.getNumeroDocumentos() + " documentos.\n"
+                    + "Los documentos se leen del ZIP: no lo mueva ni lo sustituya hasta guardar la sesión."
+                    + (resultado.getAvisos().isEmpty() ? "" : "\n\nRevise los avisos del registro."), "Cargar Sesión", JOptionPane.INFORMATION_MESSAGE);
+            return true;
+        } catch (IOException e) {
+            logError("Error al abrir el paquete como sesión: " + e.getMessage());
+            JOptionPane.showMessageDialog(null, "No se pudo abrir el paquete: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+
+    /**
+     * Lee una sesión serializada de la versión 2.
+     */
+    private static ArchivoSesion.Datos importarSesionSerializada(File fichero) throws IOException, ClassNotFoundException {
+        try (FileInputStream fis = new FileInputStream(fichero); ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis))) {
+            Object objDatosSesion = ois.readObject();
+            if (!(objDatosSesion instanceof DatosSesionCargada)) {
+                throw new IOException("Formato de archivo de sesión inválido o incompatible. Asegúrese de que el archivo sea de la versión 2 o superior.");
+            }
+            DatosSesionCargada datosSesion = (DatosSesionCargada) objDatosSesion;
+            return new ArchivoSesion.Datos(datosSesion.archivosComunes, datosSesion.ofertasPorLote, datosSesion.licitadorData, datosSesion.participacionPorLote);
+        }
+    }
+
+    /**
+     * Sustituye el estado actual por el de la sesión cargada.
+     */
+    private void aplicarSesion(ArchivoSesion.Datos datosSesion) {
+        this.archivosComunes.clear();
+        this.archivosComunes.putAll(datosSesion.archivosComunes);
+
+        this.archivosOferta.clear();
+        this.archivosOferta.putAll(datosSesion.archivosOferta);
+
+        this.licitadorData = datosSesion.licitadorData;
+
+        this.participacionPorLote.clear();
+        if (datosSesion.participacionPorLote != null) {
+            this.participacionPorLote.putAll(datosSesion.participacionPorLote);
+        } else {
+            log("Advertencia: Sesión cargada de versión antigua sin datos de participación por lote.");
+        }
+
+        this.anexoAdministrativoData = null; // Siempre se regenera tras la carga
+        reindexarContenidos();
+        reiniciarDiario();
+    }
+
+    // --- GUARDADO AUTOMÁTICO Y RECUPERACIÓN ---
+    /**
+     * Indica si la última ejecución terminó sin cerrarse con normalidad y dejó
+     * cambios que se pueden recuperar. Debe consultarse antes de modificar la
+     * sesión, ya que el primer cambio sustituye el diario anterior.
+     *
+     * @return {@code true} si hay una sesión que recuperar.
+     */
+    public boolean hayRecuperacionPendiente() {
+        return diario == null && DiarioSesion.hayRecuperacion();
+    }
+
+    /**
+     * Fecha de la última modificación de la sesión pendiente de recuperar.
+     *
+     * @return La fecha en milisegundos, o 0 si no se conoce.
+     */
+    public long getFechaRecuperacion() {
+        try {
+            return DiarioSesion.getFechaRecuperacion();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Recupera la sesión que no se cerró con normalidad a partir de su
+     * diario.
+     *
+     * @return {@code true} si se ha recuperado.
+     */
+    public boolean recuperarSesion() {
+        try {
+            long inicio = System.nanoTime();
+            aplicarSesion(DiarioSesion.recuperar());
+            log("Sesión recuperada del guardado automático (" + (System.nanoTime() - inicio) / 1_000_000 + " ms). "
+                    + "Guárdela para conservarla en un archivo de sesión.");
+            log(GestorMemoria.getInstancia().getResumen());
+            return true;
+        } catch (IOException e) {
+            logError("No se pudo recuperar la sesión: " + e.getMessage());
+            JOptionPane.showMessageDialog(null, "No se pudo recuperar la sesión anterior.", "Recuperar Sesión", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+
+    /**
+     * Descarta la sesión pendiente de recuperar.
+     */
+    public void descartarRecuperacion() {
+        DiarioSesion.descartarRecuperacion();
+        log("Se ha descartado la sesión pendiente de recuperar.");
+    }
+
+    /**
+     * Cierre normal de la aplicación: borra el guardado automático.
+     */
+    public void cerrarDiario() {
+        if (diario != null) {
+            diario.terminar();
+            diario = null;
+        }
+    }
+
+    /**
+     * Diario de la sesión; se abre con el primer cambio, escribiendo el
+     * estado completo como punto de partida.
+     *
+     * @return El diario, o {@code null} si no está disponible.
+     */
+    private DiarioSesion getDiario() {
+        if (diario == null && !diarioNoDisponible) {
+            try {
+                diario = DiarioSesion.abrir(logger);
+                diario.reiniciar(new ArchivoSesion.Datos(archivosComunes, archivosOferta, licitadorData, participacionPorLote));
+            } catch (IOException e) {
+                diarioNoDisponible = true;
+                logError("El guardado automático no está disponible: " + e.getMessage());
+            }
+        }
+        return diario;
+    }
+
+    /**
+     * Escribe el estado completo como nuevo punto de partida del diario (tras
+     * cargar, recuperar o restablecer la sesión).
+     */
+    private void reiniciarDiario() {
+        if (diario != null) {
+            diario.reiniciar(new ArchivoSesion.Datos(archivosComunes, archivosOferta, licitadorData, participacionPorLote));
+        } else {
+            getDiario();
+        }
+    }
+
     public void resetData() {
         archivosComunes.clear();
         archivosOferta.clear();
         participacionPorLote.clear();
+        archivosAnexoInteractivo.clear();
+        almacenContenidos.limpiar();
         this.licitadorData = new LicitadorData();
         this.anexoAdministrativoData = null;
+        reiniciarDiario();
         log("Todos los datos de la sesión han sido eliminados.");
     }
 
     // --- MÉTODOS DE CARGA DE ARCHIVOS ---
-    public boolean cargarArchivoComun(String nombreConfigurado, File archivoSeleccionado, boolean esConfidencial, String[] supuestosSeleccionados, String[] motivosSupuestos) {
-        if (archivosComunes.containsKey(nombreConfigurado)) {
-            int respuesta = JOptionPane.showConfirmDialog(null, "Ya existe un archivo cargado para '" + nombreConfigurado + "'. ¿Desea sobrescribirlo?", "Advertencia", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
-            if (respuesta != JOptionPane.YES_OPTION) {
-                log("Operación de carga de '" + nombreConfigurado + "' cancelada por el usuario.");
-                return false;
-            }
+    /**
+     * Registra en la sesión un archivo común ya leído, sin pedir confirmación.
+     * Lo usa el {@link ImportadorArchivos} al terminar de leerlo; debe
+     * invocarse en el Event Dispatch Thread.
+     *
+     * @param nombreConfigurado El nombre configurado del archivo común.
+     * @param nuevoArchivo El documento a registrar.
+     * @param rutaOrigen La ruta de origen, para el log.
+     */
+    public void registrarArchivoComun(String nombreConfigurado, FileData nuevoArchivo, String rutaOrigen) {
+        canonizarContenido(nuevoArchivo);
+        archivosComunes.put(nombreConfigurado, nuevoArchivo);
+        purgarContenidosNoReferenciados();
+        DiarioSesion d = getDiario();
+        if (d != null) {
+            d.registrarHueco(DiarioSesion.COMUNES, nombreConfigurado, nuevoArchivo);
         }
 
-        try {
-            byte[] fileContent = Files.readAllBytes(archivoSeleccionado.toPath());
-            FileData nuevoArchivo = new FileData(archivoSeleccionado.getName(), fileContent, esConfidencial, supuestosSeleccionados, motivosSupuestos);
-            archivosComunes.put(nombreConfigurado, nuevoArchivo);
-
-            String logMessage = "Archivo común '" + nombreConfigurado + "' cargado desde: " + archivoSeleccionado.getAbsolutePath();
-            if (esConfidencial) {
-                logMessage += " (CONFIDENCIAL)";
-            }
-            log(logMessage);
-
-            return true;
-        } catch (IOException ex) {
-            logError("Error al cargar el archivo '" + nombreConfigurado + "': " + ex.getMessage());
-            JOptionPane.showMessageDialog(null, "Error al leer el archivo seleccionado.", "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+        String logMessage = "Archivo común '" + nombreConfigurado + "' cargado desde: " + rutaOrigen;
+        if (nuevoArchivo.esConfidencial()) {
+            logMessage += " (CONFIDENCIAL)";
         }
+        log(logMessage);
     }
 
-    public boolean cargarArchivoOferta(String nombreOferta, File archivoSeleccionado, String loteKeyPrefix, boolean esConfidencial, String[] supuestosSeleccionados, String[] motivosSupuestos) {
-        String clave = loteKeyPrefix + nombreOferta;
+    /**
+     * Registra en la sesión un documento de oferta ya leído, sin pedir
+     * confirmación. Debe invocarse en el Event Dispatch Thread.
+     *
+     * @param nombreOferta El nombre configurado del documento de oferta.
+     * @param loteKeyPrefix El prefijo del lote ("LoteN_" o "").
+     * @param nuevoArchivo El documento a registrar.
+     * @param rutaOrigen La ruta de origen, para el log.
+     */
+    public void registrarArchivoOferta(String nombreOferta, String loteKeyPrefix, FileData nuevoArchivo, String rutaOrigen) {
+        canonizarContenido(nuevoArchivo);
+        archivosOferta.put(loteKeyPrefix + nombreOferta, nuevoArchivo);
+        purgarContenidosNoReferenciados();
+        DiarioSesion d = getDiario();
+        if (d != null) {
+            d.registrarHueco(DiarioSesion.OFERTA, loteKeyPrefix + nombreOferta, nuevoArchivo);
+        }
 
-        if (archivosOferta.containsKey(clave)) {
-            int respuesta = JOptionPane.showConfirmDialog(null, "Ya existe un archivo cargado para '" + nombreOferta + "'. ¿Desea sobrescribirlo?", "Advertencia", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
-            if (respuesta != JOptionPane.YES_OPTION) {
-                log("Operación de carga de '" + nombreOferta + "' cancelada por el usuario.");
-                return false;
-            }
+        String logMessage = "Archivo de oferta '" + nombreOferta + "' cargado desde: " + rutaOrigen;
+        if (!loteKeyPrefix.isEmpty()) {
+            String numLoteStr = loteKeyPrefix.replace("Lote", "").replace("_", "");
+            logMessage += " para el Lote " + numLoteStr;
         }
+        log(logMessage);
+    }
 
-        try {
-            byte[] fileContent = Files.readAllBytes(archivoSeleccionado.toPath());
-            FileData nuevoArchivo = new FileData(archivoSeleccionado.getName(), fileContent, esConfidencial, supuestosSeleccionados, motivosSupuestos);
-            archivosOferta.put(clave, nuevoArchivo);
+    /**
+     * Sustituye el contenido del documento por la instancia canónica del
+     * almacén si ya existía otro con la misma huella.
+     */
+    private void canonizarContenido(FileData fileData) {
+        ContenidoArchivo canonico = almacenContenidos.registrar(fileData.getFuente());
+        if (canonico != fileData.getFuente()) {
+            fileData.reemplazarFuente(canonico);
+        }
+        // Se adelanta en segundo plano la compresión que hará falta al empaquetar.
+        getCachePrecompresion().encolar(canonico, getPerfilCompresion());
+    }
 
-            String logMessage = "Archivo de oferta '" + nombreOferta + "' cargado desde: " + archivoSeleccionado.getAbsolutePath();
-            if (!loteKeyPrefix.isEmpty()) {
-                String numLoteStr = loteKeyPrefix.replace("Lote", "").replace("_", "");
-                logMessage += " para el Lote " + numLoteStr;
-            }
-            log(logMessage);
+    /**
+     * Obtiene el canal de importación en segundo plano asociado a esta sesión.
+     *
+     * @return El importador (se crea la primera vez).
+     */
+    public synchronized ImportadorArchivos getImportador() {
+        if (importador == null) {
+            importador = new ImportadorArchivos(this);
+        }
+        return importador;
+    }
 
-            return true;
-        } catch (IOException ex) {
-            logError("Error al cargar el archivo de oferta: " + ex.getMessage());
-            JOptionPane.showMessageDialog(null, "Error al leer el archivo seleccionado.", "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+    /**
+     * Obtiene la caché de documentos comprimidos en segundo plano.
+     *
+     * @return La caché (se crea la primera vez).
+     */
+    public synchronized CachePrecompresion getCachePrecompresion() {
+        if (cachePrecompresion == null) {
+            cachePrecompresion = new CachePrecompresion();
         }
+        return cachePrecompresion;
     }
 
     public boolean estanArchivosObligatoriosCompletos() {
@@ -411,26 +828,482 @@ public class FileManager implements Serializable {
                 }
             }
         }
-        return true;
-    }
-
-    public void comprimirArchivosConProgreso(File carpetaDestino, String zipFileName, String logContent, JProgressBar progressBar, Runnable onFinish) {
-
-        // 1. USAMOS LA VALIDACIÓN UNIFICADA DE TODO EL PROCESO
+        return true;
+    }
+
+    /**
+     * Indica si hay una compresión en curso.
+     *
+     * @return {@code true} mientras se genera un paquete.
+     */
+    public boolean isCompresionEnCurso() {
+        return empaquetadoEnCurso != null;
+    }
+
+    /**
+     * Cancela la compresión en curso, si la hay. El archivo parcial se
+     * elimina y no se genera ningún ZIP.
+     *
+     * @return {@code true} si había una compresión que cancelar.
+     */
+    public boolean cancelarCompresion() {
+        EmpaquetadorSobres empaquetador = empaquetadoEnCurso;
+        if (empaquetador == null) {
+            return false;
+        }
+        empaquetador.cancelar();
+        log("Cancelando la compresión...");
+        return true;
+    }
+
+    public void comprimirArchivosConProgreso(File carpetaDestino, String zipFileName, String logContent, JProgressBar progressBar, Runnable onFinish) {
+        comprimirArchivosConProgreso(carpetaDestino, zipFileName, logContent, progressBar, null, onFinish);
+    }
+
+    /**
+     * Comprime la oferta en segundo plano mostrando el avance por bytes en la
+     * barra y, si se indica, la velocidad y el tiempo restante en la etiqueta.
+     * <p>
+     * El ZIP se escribe en un temporal de la carpeta de destino, se verifica y
+     * solo entonces se renombra a su nombre definitivo; si la compresión falla
+     * o se cancela con {@link #cancelarCompresion()}, el temporal se elimina.
+     * Según la configuración, la oferta se genera como un único ZIP o como un
+     * archivo por sobre, y cada archivo se puede dividir en volúmenes.
+     * </p>
+     *
+     * @param carpetaDestino Carpeta en la que se crea el ZIP.
+     * @param zipFileName Prefijo del nombre del ZIP.
+     * @param logContent Contenido del log de la aplicación.
+     * @param progressBar Barra de progreso.
+     * @param progresoLabel Etiqueta para la velocidad y el tiempo restante, o
+     * {@code null}.
+     * @param onFinish Acción a ejecutar al terminar, o {@code null}.
+     */
+    public void comprimirArchivosConProgreso(File carpetaDestino, String zipFileName, String logContent, JProgressBar progressBar, JLabel progresoLabel, Runnable onFinish) {
+        comprimirArchivosConProgreso(Collections.singletonList(carpetaDestino), zipFileName, logContent, progressBar, progresoLabel, onFinish);
+    }
+
+    /**
+     * Comprime la oferta en la primera carpeta indicada y, en la misma pasada
+     * de compresión, escribe una copia idéntica en cada una de las demás (por
+     * ejemplo, una memoria USB o una carpeta compartida).
+     * <p>
+     * Cada copia se comprueba al final contra la huella SHA-256 del archivo
+     * principal y se publica o se descarta por separado: si una copia falla,
+     * se informa de ello pero el archivo principal y el resto de copias se
+     * conservan.
+     * </p>
+     *
+     * @param carpetasDestino La carpeta principal seguida de las carpetas que
+     * reciben una copia.
+     * @param zipFileName Prefijo del nombre del ZIP.
+     * @param logContent Contenido del log de la aplicación.
+     * @param progressBar Barra de progreso.
+     * @param progresoLabel Etiqueta para la velocidad y el tiempo restante, o
+     * {@code null}.
+     * @param onFinish Acción a ejecutar al terminar, o {@code null}.
+     */
+    public void comprimirArchivosConProgreso(List<File> carpetasDestino, String zipFileName, String logContent, JProgressBar progressBar, JLabel progresoLabel, Runnable onFinish) {
+        File carpetaDestino = carpetasDestino.get(0);
+        List<File> carpetasCopia = new ArrayList<>(carpetasDestino.subList(1, carpetasDestino.size()));
+
+        if (!comprobarSinGuardadoEnCurso("comprimir la oferta")) {
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+
+        // 1. USAMOS LA VALIDACIÓN UNIFICADA DE TODO EL PROCESO
+        if (!validarOfertaCompleta()) {
+            JOptionPane.showMessageDialog(null, "No se pueden comprimir los archivos. Faltan documentos obligatorios o el Anexo Administrativo.", "Advertencia", JOptionPane.WARNING_MESSAGE);
+            logError("Operación de compresión cancelada: Falló la validación completa.");
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+
+        final CifradorSobre cifrador;
+        try {
+            cifrador = prepararCifrador();
+        } catch (IOException e) {
+            logError("No se puede preparar el cifrado de los sobres: " + e.getMessage());
+            JOptionPane.showMessageDialog(null, "No se puede preparar el cifrado de los sobres: " + e.getMessage(), "Error de Cifrado", JOptionPane.ERROR_MESSAGE);
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+        if (configuracion.getCifrado() != null && cifrador == null) {
+            log("Compresión cancelada por el usuario.");
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+
+        EstimadorTamano.Estimacion estimacion = estimarTamanoPaquete();
+        boolean noCabe = !estimacion.getDocumentosQueNoCaben(getLimiteVolumenEnClaro()).isEmpty();
+        String mensajeConfirmacion = crearMensajeConfirmacion(estimacion);
+        int confirmacion = JOptionPane.showConfirmDialog(null, mensajeConfirmacion, "Confirmar Compresión", JOptionPane.YES_NO_OPTION,
+                noCabe ? JOptionPane.WARNING_MESSAGE : JOptionPane.QUESTION_MESSAGE);
+
+        if (confirmacion != JOptionPane.YES_OPTION) {
+            log("Compresión cancelada por el usuario.");
+            if (cifrador != null) {
+                cifrador.olvidarContrasena();
+            }
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+
+        progressBar.setVisible(true);
+        if (progresoLabel != null) {
+            progresoLabel.setText("Preparando...");
+            progresoLabel.setVisible(true);
+        }
+
+        EstadoPaquete estado = tomarEstadoPaquete();
+        SwingWorker<Void, ProgresoEmpaquetado.Instantanea> worker = new SwingWorker<Void, ProgresoEmpaquetado.Instantanea>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+
+                String identificadorParaZip = estado.sesion.licitadorData.getNif();
+
+                if (identificadorParaZip == null || identificadorParaZip.isEmpty()) {
+                    identificadorParaZip = estado.sesion.licitadorData.getRazonSocial();
+                }
+
+                if (identificadorParaZip == null || identificadorParaZip.isEmpty()) {
+                    identificadorParaZip = "LicitadorDesconocido";
+                }
+
+                String sanitizedIdentifier = identificadorParaZip.replaceAll("[^a-zA-Z0-9_.-]", "_");
+                // En el modo reproducible el nombre no lleva fecha: la misma oferta da siempre el mismo archivo.
+                boolean reproducible = isPaqueteReproducible();
+                String prefijoArchivo = zipFileName + "_" + sanitizedIdentifier + (reproducible ? "" : "_");
+                String baseFileName = prefijoArchivo + (reproducible ? "" : timeStamp) + ".zip";
+                File outputFile = new File(carpetaDestino, baseFileName);
+
+                int huerfanos = SalidaAtomica.limpiarTemporales(carpetaDestino, prefijoArchivo);
+                for (File carpetaCopia : carpetasCopia) {
+                    huerfanos += SalidaAtomica.limpiarTemporales(carpetaCopia, prefijoArchivo);
+                }
+                if (huerfanos > 0) {
+                    log("Eliminados " + huerfanos + " archivos temporales de compresiones anteriores interrumpidas.");
+                }
+
+                EmpaquetadorSobres empaquetador = new EmpaquetadorSobres(getPerfilCompresion());
+                empaquetador.setCache(getCachePrecompresion());
+                empaquetador.setVerificar(isVerificarPaquete());
+                empaquetador.setCarpetasCopia(carpetasCopia);
+                empaquetador.setCifrador(cifrador);
+                empaquetadoEnCurso = empaquetador;
+                // La precompresión de lo que aún no esté en caché no debe competir con el empaquetado.
+                getCachePrecompresion().pausar();
+                try {
+                    String logFileName = "log_" + configuracion.getNumeroExpediente() + (reproducible ? "" : "_" + timeStamp) + ".txt";
+                    List<EntradaPaquete> entradas = construirEntradasPaquete(estado, logFileName, logContent);
+                    Map<String, ManifiestoPaquete> manifiestos = new LinkedHashMap<>();
+                    List<EmpaquetadorSobres.Sobre> sobres = construirSobres(entradas, outputFile, manifiestos);
+                    List<File> destinos = new ArrayList<>();
+                    int totalFiles = 0;
+                    long totalBytes = 0;
+                    for (EmpaquetadorSobres.Sobre sobre : sobres) {
+                        destinos.addAll(sobre.getDestinos());
+                        for (List<EntradaPaquete> volumen : sobre.getVolumenes()) {
+                            totalFiles += (int) volumen.stream().filter(entrada -> !entrada.esDirectorio()).count();
+                        }
+                        totalBytes += sobre.getTamano();
+                    }
+                    ProgresoEmpaquetado progreso = new ProgresoEmpaquetado(totalBytes);
+
+                    String identidad = null;
+                    if (reproducible) {
+                        identidad = IdentidadPaquete.calcular(sobres, getPerfilCompresion());
+                        // Con copias se vuelve a generar todo: las carpetas de copia pueden no tenerlo.
+                        // Los sobres cifrados no se pueden abrir para comprobarlo, y cada cifrado usa una clave nueva.
+                        if (carpetasCopia.isEmpty() && cifrador == null && IdentidadPaquete.estaGenerado(sobres, identidad) && registrarHuellasPaquete(destinos)) {
+                            StringBuilder lista = new StringBuilder();
+                            for (File destino : destinos) {
+                                lista.append("\n").append(destino.getName());
+                            }
+                            log("La oferta no ha cambiado desde el último empaquetado (identidad " + identidad + "): se conserva el paquete existente.");
+                            JOptionPane.showMessageDialog(null, "La oferta no ha cambiado desde el último empaquetado. Los archivos ya generados en "
+                                    + carpetaDestino.getAbsolutePath() + " siguen siendo válidos:" + lista);
+                            return null;
+                        }
+                        empaquetador.setFechaEntradas(IdentidadPaquete.FECHA_REPRODUCIBLE);
+                        empaquetador.setComentario(IdentidadPaquete.comentario(identidad));
+                    }
+
+                    log("Iniciando compresión de " + GestorMemoria.formatearTamano(totalBytes) + " (perfil " + getPerfilCompresion() + ", "
+                            + (sobres.size() > 1 ? sobres.size() + " sobres en paralelo" : Runtime.getRuntime().availableProcessors() + " hilos") + ")"
+                            + (carpetasCopia.isEmpty() ? "" : " con copia en " + carpetasCopia.size() + " carpetas más") + "...");
+                    Runnable verificando = progresoLabel == null ? null
+                            : () -> SwingUtilities.invokeLater(() -> progresoLabel.setText("Verificando la integridad del paquete..."));
+                    empaquetador.empaquetar(sobres, new EmpaquetadorZip.Oyente() {
+                        @Override
+                        public void entradaEscrita(int indice, EntradaPaquete entrada) {
+                            if (entrada.getDescripcion() != null) {
+                                log(" - " + entrada.getDescripcion());
+                            }
+                        }
+
+                        @Override
+                        public void avance(long procesados, long total) {
+                            // Se publica como mucho cada pocos cientos de ms, no por cada bloque escrito.
+                            if (progreso.actualizar(procesados)) {
+                                publish(progreso.getInstantanea());
+                            }
+                        }
+                    }, verificando);
+
+                    long segundos = Math.max(1, progreso.getMilisegundosTranscurridos() / 1000);
+                    long tamanoZip = 0;
+                    for (File destino : destinos) {
+                        tamanoZip += destino.length();
+                    }
+                    log(" - " + empaquetador.getEntradasAlmacenadas() + " de " + totalFiles + " archivos almacenados sin recomprimir (ya comprimidos o sin ganancia).");
+                    if (empaquetador.getEntradasPrecomprimidas() > 0) {
+                        log(" - " + empaquetador.getEntradasPrecomprimidas() + " archivos copiados ya comprimidos en segundo plano durante la carga.");
+                    }
+                    log(" - " + GestorMemoria.formatearTamano(totalBytes) + " procesados en " + ProgresoEmpaquetado.formatearDuracion(segundos)
+                            + " (" + String.format("%.1f MB/s", totalBytes / (1024.0 * 1024) / segundos) + "); tamaño del ZIP: " + GestorMemoria.formatearTamano(tamanoZip) + ".");
+                    if (identidad != null) {
+                        log(" - Paquete reproducible con identidad " + identidad + ".");
+                        registrarHuellasPaquete(destinos);
+                    }
+                    if (!isVerificarPaquete()) {
+                        log(" - El paquete no se ha verificado tras escribirlo (verificación desactivada).");
+                    }
+                    String cifrados = registrarCifrado(sobres, cifrador);
+                    String raices = registrarRaicesManifiesto(manifiestos);
+                    String copias = registrarCopias(empaquetador, carpetasCopia);
+                    int tipoMensaje = empaquetador.getCopiasFallidas().isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE;
+                    if (destinos.size() > 1) {
+                        StringBuilder lista = new StringBuilder();
+                        for (EmpaquetadorSobres.Sobre sobre : sobres) {
+                            for (File destino : sobre.getDestinos()) {
+                                log(" - " + sobre.getNombre() + ": " + destino.getName() + " (" + GestorMemoria.formatearTamano(destino.length()) + ")");
+                                lista.append("\n").append(destino.getName());
+                            }
+                        }
+                        log("Compresión completada correctamente en " + destinos.size() + " archivos en: " + carpetaDestino.getAbsolutePath());
+                        JOptionPane.showMessageDialog(null, "Archivos comprimidos correctamente en " + destinos.size() + " archivos en "
+                                + carpetaDestino.getAbsolutePath() + ":" + lista + "\n\nDebe presentar todos los archivos." + cifrados + copias + raices,
+                                "Compresión completada", tipoMensaje);
+                    } else {
+                        log("Compresión completada correctamente en: " + destinos.get(0).getAbsolutePath());
+                        JOptionPane.showMessageDialog(null, "Archivos comprimidos correctamente en " + destinos.get(0).getAbsolutePath() + cifrados + copias + raices,
+                                "Compresión completada", tipoMensaje);
+                    }
+                } catch (InterruptedIOException e) {
+                    log("Compresión cancelada por el usuario. No se ha generado ningún archivo.");
+                    JOptionPane.showMessageDialog(null, "Compresión cancelada. No se ha generado ningún archivo.", "Compresión cancelada", JOptionPane.INFORMATION_MESSAGE);
+                } catch (IOException e) {
+                    logError("Error crítico durante la compresión: " + e.getMessage() + "\nSe ha descartado el archivo incompleto.");
+                    JOptionPane.showMessageDialog(null, "Error al comprimir los archivos. No se ha generado ningún archivo. Detalles: " + e.getMessage(), "Error de Compresión", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    empaquetadoEnCurso = null;
+                    if (cifrador != null) {
+                        cifrador.olvidarContrasena();
+                    }
+                    getCachePrecompresion().reanudar();
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(List<ProgresoEmpaquetado.Instantanea> chunks) {
+                if (!chunks.isEmpty()) {
+                    ProgresoEmpaquetado.Instantanea ultima = chunks.get(chunks.size() - 1);
+                    progressBar.setValue(ultima.getPorcentaje());
+                    if (progresoLabel != null) {
+                        progresoLabel.setText(ultima.getTexto());
+                    }
+                }
+            }
+
+            @Override
+            protected void done() {
+                empaquetadoLanzado = false;
+                progressBar.setVisible(false);
+                progressBar.setValue(0);
+                if (progresoLabel != null) {
+                    progresoLabel.setVisible(false);
+                    progresoLabel.setText(" ");
+                }
+                // Los errores de E/S ya se han comunicado; aquí solo llegan los inesperados.
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause() != null ? e.getCause() : e;
+                    logError("Error inesperado durante la compresión: " + causa);
+                    JOptionPane.showMessageDialog(null, "Error al comprimir los archivos. Detalles: " + causa.getMessage(), "Error de Compresión", JOptionPane.ERROR_MESSAGE);
+                }
+                if (onFinish != null) {
+                    onFinish.run();
+                }
+            }
+        };
+        empaquetadoLanzado = true;
+        worker.execute();
+    }
+
+    /**
+     * Prepara el cifrado que exige la licitación. En el modo con contraseña,
+     * la pide dos veces al licitador; la contraseña no se guarda.
+     *
+     * @return El cifrador, o {@code null} si la licitación no exige cifrado o
+     * el usuario cancela.
+     * @throws IOException Si la clave pública de la licitación no es válida.
+     */
+    private CifradorSobre prepararCifrador() throws IOException {
+        ConfiguracionCifrado cifrado = configuracion.getCifrado();
+        if (cifrado == null) {
+            return null;
+        }
+        if (cifrado.getModo() == ConfiguracionCifrado.Modo.CLAVE_PUBLICA) {
+            return CifradorSobre.para(cifrado, null);
+        }
+        while (true) {
+            JPasswordField contrasena = new JPasswordField(20);
+            JPasswordField repeticion = new JPasswordField(20);
+            Object[] campos = {"La licitación exige cifrar los sobres de la oferta con la contraseña comunicada por el órgano de contratación.",
+                "Contraseña:", contrasena, "Repita la contraseña:", repeticion};
+            int opcion = JOptionPane.showConfirmDialog(null, campos, "Cifrado de los sobres", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            char[] primera = contrasena.getPassword();
+            char[] segunda = repeticion.getPassword();
+            try {
+                if (opcion != JOptionPane.OK_OPTION) {
+                    return null;
+                }
+                if (primera.length == 0 || !Arrays.equals(primera, segunda)) {
+                    JOptionPane.showMessageDialog(null, "Las contraseñas están vacías o no coinciden.", "Cifrado de los sobres", JOptionPane.WARNING_MESSAGE);
+                    continue;
+                }
+                return CifradorSobre.para(cifrado, primera);
+            } finally {
+                Arrays.fill(primera, '\0');
+                Arrays.fill(segunda, '\0');
+            }
+        }
+    }
+
+    /**
+     * Registra en el log los sobres cifrados.
+     *
+     * @return El aviso para el mensaje final, o una cadena vacía si no se ha
+     * cifrado ningún sobre.
+     */
+    private String registrarCifrado(List<EmpaquetadorSobres.Sobre> sobres, CifradorSobre cifrador) {
+        if (cifrador == null) {
+            return "";
+        }
+        int cifrados = 0;
+        for (EmpaquetadorSobres.Sobre sobre : sobres) {
+            if (sobre.isCifrado()) {
+                cifrados += sobre.getDestinos().size();
+            }
+        }
+        log(" - " + cifrados + " archivos cifrados (" + cifrador.getModo() + "); solo el órgano de contratación puede abrirlos.");
+        return "\n\nLos archivos " + CifradorSobre.EXTENSION + " están cifrados: solo el órgano de contratación podrá abrirlos en el acto de apertura.";
+    }
+
+    /**
+     * Registra en el log el resultado de cada carpeta de copia.
+     *
+     * @return El resumen para el mensaje final, o una cadena vacía si no hay
+     * copias.
+     */
+    private String registrarCopias(EmpaquetadorSobres empaquetador, List<File> carpetasCopia) {
+        if (carpetasCopia.isEmpty()) {
+            return "";
+        }
+        Map<File, String> fallidas = empaquetador.getCopiasFallidas();
+        StringBuilder resumen = new StringBuilder("\n\nCopias:");
+        for (File carpeta : carpetasCopia) {
+            int publicadas = 0;
+            for (File copia : empaquetador.getCopiasPublicadas()) {
+                if (carpeta.equals(copia.getParentFile())) {
+                    publicadas++;
+                }
+            }
+            List<String> errores = new ArrayList<>();
+            for (Map.Entry<File, String> fallida : fallidas.entrySet()) {
+                if (carpeta.equals(fallida.getKey().getParentFile())) {
+                    errores.add(fallida.getKey().getName() + ": " + fallida.getValue());
+                    logError("No se ha podido generar la copia " + fallida.getKey().getAbsolutePath() + ": " + fallida.getValue());
+                }
+            }
+            if (errores.isEmpty()) {
+                log(" - Copia idéntica (SHA-256 comprobada) en " + carpeta.getAbsolutePath() + ".");
+                resumen.append("\n - ").append(carpeta.getAbsolutePath()).append(": correcta");
+            } else {
+                resumen.append("\n - ").append(carpeta.getAbsolutePath()).append(": ERROR (").append(publicadas).append(" archivos copiados, ")
+                        .append(errores.size()).append(" fallidos: ").append(String.join("; ", errores)).append(")");
+            }
+        }
+        return resumen.toString();
+    }
+
+    /**
+     * Actualiza en segundo plano un paquete generado antes con la oferta
+     * actual.
+     * <p>
+     * Se abre el directorio central del paquete anterior y los documentos
+     * cuya ruta, tamaño y huella SHA-256 (registrada al generarlo) no han
+     * cambiado se copian de él tal cual, con sus datos ya comprimidos; solo se
+     * comprimen los documentos nuevos o sustituidos. El resultado se escribe
+     * en un temporal, se verifica y sustituye al paquete anterior de forma
+     * atómica, así que una cancelación o un fallo lo dejan intacto. La
+     * actualización genera siempre un único ZIP, sin sobres ni volúmenes.
+     * </p>
+     *
+     * @param paqueteAnterior El ZIP a actualizar.
+     * @param logContent Contenido del log de la aplicación.
+     * @param progressBar Barra de progreso.
+     * @param progresoLabel Etiqueta para la velocidad y el tiempo restante, o
+     * {@code null}.
+     * @param onFinish Acción a ejecutar al terminar, o {@code null}.
+     */
+    public void actualizarPaqueteConProgreso(File paqueteAnterior, String logContent, JProgressBar progressBar, JLabel progresoLabel, Runnable onFinish) {
+        if (!comprobarSinGuardadoEnCurso("actualizar el paquete")) {
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
+        if (configuracion.getCifrado() != null) {
+            JOptionPane.showMessageDialog(null, "Esta licitación exige cifrar los sobres de la oferta, que no se pueden actualizar.\n"
+                    + "Genere el paquete de nuevo con \"Comprimir\".", "Advertencia", JOptionPane.WARNING_MESSAGE);
+            logError("Actualización del paquete cancelada: los sobres cifrados no se pueden actualizar.");
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            return;
+        }
         if (!validarOfertaCompleta()) {
-            JOptionPane.showMessageDialog(null, "No se pueden comprimir los archivos. Faltan documentos obligatorios o el Anexo Administrativo.", "Advertencia", JOptionPane.WARNING_MESSAGE);
-            logError("Operación de compresión cancelada: Falló la validación completa.");
+            JOptionPane.showMessageDialog(null, "No se puede actualizar el paquete. Faltan documentos obligatorios o el Anexo Administrativo.", "Advertencia", JOptionPane.WARNING_MESSAGE);
+            logError("Actualización del paquete cancelada: Falló la validación completa.");
             if (onFinish != null) {
                 onFinish.run();
             }
             return;
         }
 
-        String mensajeConfirmacion = crearMensajeConfirmacion();
-        int confirmacion = JOptionPane.showConfirmDialog(null, mensajeConfirmacion, "Confirmar Compresión", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
-
+        int confirmacion = JOptionPane.showConfirmDialog(null, "Se actualizará el paquete " + paqueteAnterior.getName() + " con la oferta actual.\n"
+                + "Los documentos sin cambios se copiarán tal cual y solo se comprimirán los nuevos o sustituidos.\n\n¿Desea continuar?",
+                "Confirmar Actualización", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
         if (confirmacion != JOptionPane.YES_OPTION) {
-            log("Compresión cancelada por el usuario.");
+            log("Actualización del paquete cancelada por el usuario.");
             if (onFinish != null) {
                 onFinish.run();
             }
@@ -438,197 +1311,427 @@ public class FileManager implements Serializable {
         }
 
         progressBar.setVisible(true);
+        if (progresoLabel != null) {
+            progresoLabel.setText("Preparando...");
+            progresoLabel.setVisible(true);
+        }
 
-        SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
+        EstadoPaquete estado = tomarEstadoPaquete();
+        SwingWorker<Void, ProgresoEmpaquetado.Instantanea> worker = new SwingWorker<Void, ProgresoEmpaquetado.Instantanea>() {
             @Override
             protected Void doInBackground() throws Exception {
                 String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-
-                String identificadorParaZip = licitadorData.getNif();
-
-                if (identificadorParaZip == null || identificadorParaZip.isEmpty()) {
-                    identificadorParaZip = licitadorData.getRazonSocial();
-                }
-
-                if (identificadorParaZip == null || identificadorParaZip.isEmpty()) {
-                    identificadorParaZip = "LicitadorDesconocido";
-                }
-
-                String sanitizedIdentifier = identificadorParaZip.replaceAll("[^a-zA-Z0-9_.-]", "_");
-                String baseFileName = zipFileName + "_" + sanitizedIdentifier + "_" + timeStamp + ".zip";
-                File outputFile = new File(carpetaDestino, baseFileName);
-                String finalFilePath = outputFile.getAbsolutePath();
-
-                try (FileOutputStream fos = new FileOutputStream(outputFile); ZipOutputStream zipOut = new ZipOutputStream(fos)) {
-
-                    log("Iniciando compresión de archivos...");
-                    // Se añade +1 por el Log, +1 por el Anexo Administrativo, y los archivos comunes/oferta.
-                    int totalFiles = archivosComunes.size() + archivosOferta.size() + 2;
-                    int compressedCount = 0;
-                    Set<String> addedEntries = new HashSet<>();
-                    Set<String> addedDirs = new HashSet<>();
-
-                    // AÑADIR EL LOG
+                EmpaquetadorSobres empaquetador = new EmpaquetadorSobres(getPerfilCompresion());
+                empaquetador.setCache(getCachePrecompresion());
+                empaquetador.setVerificar(isVerificarPaquete());
+                empaquetadoEnCurso = empaquetador;
+                getCachePrecompresion().pausar();
+                try (DirectorioZip anterior = DirectorioZip.abrir(paqueteAnterior.toPath())) {
+                    empaquetador.setPaqueteAnterior(anterior);
                     String logFileName = "log_" + configuracion.getNumeroExpediente() + "_" + timeStamp + ".txt";
-                    byte[] logBytes = generarContenidoLog(licitadorData, logContent).getBytes();
-                    addFileToZip(zipOut, logFileName, logBytes, addedEntries);
-                    compressedCount++;
-
-                    // AÑADIR EL ANEXO ADMINISTRATIVO
-                    if (anexoAdministrativoData != null) {
-                        String anexoNombre = ANEXO_ADMINISTRATIVO_NOMBRE_CLAVE + ".pdf";
-                        addFileToZip(zipOut, anexoNombre, anexoAdministrativoData.getContenido(), addedEntries);
-                        log(" - Anexo Administrativo añadido en la raíz del ZIP.");
-                        compressedCount++;
-                        publish((int) ((double) compressedCount / totalFiles * 100));
-                    }
-
-                    // --- 🔥 AÑADIR ESTE BLOQUE NUEVO ---
-                    // AÑADIR LOS FICHEROS INTERACTIVOS (A LA RAÍZ)
-                    for (Map.Entry<String, FileData> entry : archivosAnexoInteractivo.entrySet()) {
-                        String nombreFichero = entry.getKey();
-                        FileData fileData = entry.getValue();
-
-                        // Añadir a la RAÍZ del ZIP
-                        addFileToZip(zipOut, nombreFichero, fileData.getContenido(), addedEntries);
-                        log(" - Fichero Interactivo '" + nombreFichero + "' añadido en la raíz del ZIP.");
-                        compressedCount++;
-                        publish((int) ((double) compressedCount / totalFiles * 100));
-                    }
-                    // --- FIN DEL BLOQUE NUEVO ---
-
-                    // Añadir archivos comunes
-                    String comunesDirName = "Archivos Comunes/";
-                    if (addedDirs.add(comunesDirName)) {
-                        zipOut.putNextEntry(new ZipEntry(comunesDirName));
-                        zipOut.closeEntry();
-                    }
-                    for (Map.Entry<String, FileData> entry : archivosComunes.entrySet()) {
-                        String nombreConfigurado = entry.getKey();
-                        FileData fileData = entry.getValue();
-                        String extension = fileData.getExtension();
-                        String zipEntryPath = comunesDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
-                        addFileToZip(zipOut, zipEntryPath, fileData.getContenido(), addedEntries);
-                        log(" - Archivo común '" + nombreConfigurado + "' añadido");
-                        compressedCount++;
-                        publish((int) ((double) compressedCount / totalFiles * 100));
-
-                        // LÓGICA PARA CONFIDENCIALIDAD
-                        if (fileData.esConfidencial()) {
-                            String justificacionFileName = nombreConfigurado + "_Confidencial.txt";
-                            String zipEntryPathConf = comunesDirName + justificacionFileName;
-                            String contenidoConfidencial = generarContenidoConfidencialDetallado(fileData);
-                            byte[] contenidoConfidencialBytes = contenidoConfidencial.getBytes();
-                            addFileToZip(zipOut, zipEntryPathConf, contenidoConfidencialBytes, addedEntries);
-                            log(" - Archivo de confidencialidad para '" + nombreConfigurado + "' añadido");
+                    List<EntradaPaquete> entradas = construirEntradasPaquete(estado, logFileName, logContent);
+                    ManifiestoPaquete manifiesto = ManifiestoPaquete.generar(entradas);
+                    entradas.add(manifiesto.comoEntrada());
+                    int totalFiles = (int) entradas.stream().filter(entrada -> !entrada.esDirectorio()).count();
+                    long totalBytes = entradas.stream().mapToLong(EntradaPaquete::getTamano).sum();
+                    ProgresoEmpaquetado progreso = new ProgresoEmpaquetado(totalBytes);
+
+                    Set<String> rutasNuevas = entradas.stream().map(EntradaPaquete::getRuta).collect(Collectors.toSet());
+                    int eliminadas = 0;
+                    boolean conHuellas = false;
+                    for (DirectorioZip.Entrada entrada : anterior.getEntradas()) {
+                        if (!entrada.esDirectorio()) {
+                            conHuellas |= entrada.getHuella() != null;
+                            if (!rutasNuevas.contains(entrada.getNombre())) {
+                                eliminadas++;
+                            }
                         }
                     }
-
-                    // Añadir documentos de oferta
-                    String ofertaDirName = "Documentos Oferta/";
-                    if (addedDirs.add(ofertaDirName)) {
-                        zipOut.putNextEntry(new ZipEntry(ofertaDirName));
-                        zipOut.closeEntry();
+                    log("Iniciando actualización de " + paqueteAnterior.getAbsolutePath() + "...");
+                    if (!conHuellas) {
+                        log(" - El paquete anterior no registra las huellas de sus documentos: se comprimirá todo de nuevo.");
                     }
 
-                    for (Map.Entry<String, FileData> entry : archivosOferta.entrySet()) {
-                        String claveOriginal = entry.getKey();
-                        FileData fileData = entry.getValue();
-                        String extension = fileData.getExtension();
-                        String nombreConfigurado = claveOriginal;
-                        String carpetaLote = "";
-                        String baseEntryName = "";
-
-                        if (configuracion.isTieneLotes()) {
-                            int underscoreIndex = claveOriginal.indexOf('_');
-                            if (underscoreIndex != -1) {
-                                String loteStr = claveOriginal.substring(0, underscoreIndex);
-
-                                try {
-                                    int numLote = Integer.parseInt(loteStr.replace("Lote", ""));
-                                    if (!getParticipacionLote(numLote)) {
-                                        log(" - Archivo de oferta '" + nombreConfigurado + "' IGNORADO (Lote " + numLote + " NO marcado como Participa).");
-                                        continue;
-                                    }
-                                } catch (NumberFormatException e) {
-                                    logError("Advertencia: Clave de lote mal formateada: " + loteStr);
-                                }
-
-                                nombreConfigurado = claveOriginal.substring(underscoreIndex + 1);
-                                carpetaLote = loteStr.replace("Lote", "Lote ") + "/";
-                                String dirPath = ofertaDirName + carpetaLote;
-                                if (addedDirs.add(dirPath)) {
-                                    zipOut.putNextEntry(new ZipEntry(dirPath));
-                                    zipOut.closeEntry();
-                                }
-                                baseEntryName = dirPath + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
-                            } else {
-                                logError("Advertencia: Clave de oferta '" + claveOriginal + "' sin formato LoteX_ para una licitación con lotes. Se tratará como oferta general.");
-                                baseEntryName = ofertaDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
+                    Runnable verificando = progresoLabel == null ? null
+                            : () -> SwingUtilities.invokeLater(() -> progresoLabel.setText("Verificando la integridad del paquete..."));
+                    empaquetador.empaquetar(Collections.singletonList(new EmpaquetadorSobres.Sobre("Oferta", entradas, paqueteAnterior)),
+                            new EmpaquetadorZip.Oyente() {
+                        @Override
+                        public void entradaEscrita(int indice, EntradaPaquete entrada) {
+                            if (entrada.getDescripcion() != null) {
+                                log(" - " + entrada.getDescripcion());
                             }
-                        } else {
-                            baseEntryName = ofertaDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
                         }
 
-                        // Si hemos llegado hasta aquí, el archivo debe ser añadido
-                        addFileToZip(zipOut, baseEntryName, fileData.getContenido(), addedEntries);
-                        log(" - Archivo de oferta '" + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension) + "'" + (configuracion.isTieneLotes() ? " (" + carpetaLote.replace("/", "") + ")" : "") + " añadido");
-                        compressedCount++;
-                        publish((int) ((double) compressedCount / totalFiles * 100));
-
-                        if (fileData.esConfidencial()) {
-                            String nombreArchivoConfidencial = nombreConfigurado + "_Confidencial.txt";
-                            byte[] contenidoConfidencial = generarContenidoConfidencialDetallado(fileData).getBytes();
-                            String zipEntryPathConf = ofertaDirName + carpetaLote + nombreArchivoConfidencial;
-                            addFileToZip(zipOut, zipEntryPathConf, contenidoConfidencial, addedEntries);
-                            log(" - Archivo de confidencialidad para '" + nombreConfigurado + "' añadido");
+                        @Override
+                        public void avance(long procesados, long total) {
+                            if (progreso.actualizar(procesados)) {
+                                publish(progreso.getInstantanea());
+                            }
                         }
-                    }
-
-                    log("Compresión completada correctamente en: " + finalFilePath);
-                    JOptionPane.showMessageDialog(null, "Archivos comprimidos correctamente en " + finalFilePath);
+                    }, verificando);
+
+                    long segundos = Math.max(1, progreso.getMilisegundosTranscurridos() / 1000);
+                    int reutilizadas = empaquetador.getEntradasReutilizadas();
+                    log(" - " + reutilizadas + " archivos copiados sin cambios del paquete anterior, " + (totalFiles - reutilizadas)
+                            + " nuevos o sustituidos comprimidos" + (eliminadas > 0 ? " y " + eliminadas + " retirados" : "") + ".");
+                    log(" - Actualización completada en " + ProgresoEmpaquetado.formatearDuracion(segundos) + "; tamaño del ZIP: "
+                            + GestorMemoria.formatearTamano(paqueteAnterior.length()) + ".");
+                    String raices = registrarRaicesManifiesto(Collections.singletonMap("Oferta", manifiesto));
+                    log("Paquete actualizado correctamente en: " + paqueteAnterior.getAbsolutePath());
+                    JOptionPane.showMessageDialog(null, "Paquete actualizado correctamente en " + paqueteAnterior.getAbsolutePath()
+                            + "\n(" + reutilizadas + " archivos sin cambios, " + (totalFiles - reutilizadas) + " comprimidos de nuevo)." + raices);
+                } catch (InterruptedIOException e) {
+                    log("Actualización cancelada por el usuario. El paquete anterior no se ha modificado.");
+                    JOptionPane.showMessageDialog(null, "Actualización cancelada. El paquete anterior no se ha modificado.", "Actualización cancelada", JOptionPane.INFORMATION_MESSAGE);
                 } catch (IOException e) {
-                    logError("Error crítico durante la compresión: " + e.getMessage());
-                    JOptionPane.showMessageDialog(null, "Error al comprimir los archivos. Detalles: " + e.getMessage(), "Error de Compresión", JOptionPane.ERROR_MESSAGE);
+                    logError("Error durante la actualización del paquete: " + e.getMessage() + ". El paquete anterior no se ha modificado.");
+                    JOptionPane.showMessageDialog(null, "Error al actualizar el paquete. El paquete anterior no se ha modificado. Detalles: " + e.getMessage(), "Error de Compresión", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    empaquetadoEnCurso = null;
+                    getCachePrecompresion().reanudar();
                 }
                 return null;
             }
 
             @Override
-            protected void process(List<Integer> chunks) {
+            protected void process(List<ProgresoEmpaquetado.Instantanea> chunks) {
                 if (!chunks.isEmpty()) {
-                    progressBar.setValue(chunks.get(chunks.size() - 1));
+                    ProgresoEmpaquetado.Instantanea ultima = chunks.get(chunks.size() - 1);
+                    progressBar.setValue(ultima.getPorcentaje());
+                    if (progresoLabel != null) {
+                        progresoLabel.setText(ultima.getTexto());
+                    }
                 }
             }
 
             @Override
             protected void done() {
+                empaquetadoLanzado = false;
                 progressBar.setVisible(false);
                 progressBar.setValue(0);
+                if (progresoLabel != null) {
+                    progresoLabel.setVisible(false);
+                    progresoLabel.setText(" ");
+                }
+                // Los errores de E/S ya se han comunicado; aquí solo llegan los inesperados.
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause() != null ? e.getCause() : e;
+                    logError("Error inesperado durante la actualización del paquete: " + causa);
+                    JOptionPane.showMessageDialog(null, "Error al actualizar el paquete. Detalles: " + causa.getMessage(), "Error de Compresión", JOptionPane.ERROR_MESSAGE);
+                }
                 if (onFinish != null) {
                     onFinish.run();
                 }
             }
         };
+        empaquetadoLanzado = true;
         worker.execute();
     }
 
+    /**
+     * Anota en el log la raíz del manifiesto de integridad de cada sobre y la
+     * de cada uno de sus huecos.
+     *
+     * @param manifiestos Los manifiestos por nombre de sobre.
+     * @return El texto con las raíces para mostrar al licitador.
+     */
+    private String registrarRaicesManifiesto(Map<String, ManifiestoPaquete> manifiestos) {
+        StringBuilder texto = new StringBuilder("\n\nHuella raíz del manifiesto de integridad (consérvela como justificante):");
+        for (Map.Entry<String, ManifiestoPaquete> manifiesto : manifiestos.entrySet()) {
+            String raiz = manifiesto.getValue().getRaiz();
+            log(" - Raíz del manifiesto de integridad" + (manifiestos.size() > 1 ? " (" + manifiesto.getKey() + ")" : "") + ": " + raiz);
+            for (Map.Entry<String, String> hueco : manifiesto.getValue().getRaicesHuecos().entrySet()) {
+                log("     " + hueco.getKey() + ": " + hueco.getValue());
+            }
+            texto.append("\n").append(manifiestos.size() > 1 ? manifiesto.getKey() + ": " : "").append(raiz);
+        }
+        return texto.toString();
+    }
+
+    /**
+     * Calcula la huella SHA-256 de los archivos de un paquete reproducible, la
+     * anota en el log y la guarda para esta ejecución.
+     *
+     * @param destinos Los archivos generados.
+     * @return {@code false} si algún archivo ya tenía una huella registrada
+     * distinta (se ha modificado desde que se generó).
+     */
+    private boolean registrarHuellasPaquete(List<File> destinos) {
+        if (huellasPaquetes == null) {
+            huellasPaquetes = new HashMap<>();
+        }
+        try {
+            for (File destino : destinos) {
+                String huella = IdentidadPaquete.huellaFichero(destino);
+                String anterior = huellasPaquetes.put(destino.getAbsolutePath(), huella);
+                if (anterior != null && !anterior.equals(huella)) {
+                    logError("El archivo " + destino.getName() + " se ha modificado desde que se generó. Se generará de nuevo.");
+                    return false;
+                }
+                log(" - Huella SHA-256 de " + destino.getName() + ": " + huella);
+            }
+            return true;
+        } catch (IOException e) {
+            logError("No se pudo calcular la huella del paquete: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reparte las entradas del paquete en los archivos que se van a generar.
+     * <p>
+     * En el modo de paquete único hay un solo sobre. En el modo por sobres,
+     * la documentación administrativa (log, Anexo Administrativo, ficheros
+     * interactivos y archivos comunes) forma el sobre administrativo y cada
+     * lote en el que se participa (las carpetas "Documentos Oferta/Lote N/"
+     * generadas a partir de las claves {@code LoteN_} de los documentos de
+     * oferta) su propio sobre; sin lotes, la oferta va en un único sobre.
+     * Cada sobre lleva su propio manifiesto de integridad
+     * ({@link ManifiestoPaquete}). Si hay límite de tamaño, cada sobre se
+     * divide además en volúmenes.
+     * </p>
+     *
+     * @param entradas Las entradas del paquete, en orden.
+     * @param destino El nombre del paquete único.
+     * @param manifiestos Recibe el manifiesto de cada sobre, por nombre.
+     * @return Los sobres, en el orden en que se presentan.
+     * @throws IOException Si algún documento no cabe en un volumen.
+     */
+    private List<EmpaquetadorSobres.Sobre> construirSobres(List<EntradaPaquete> entradas, File destino, Map<String, ManifiestoPaquete> manifiestos) throws IOException {
+        Map<String, List<EntradaPaquete>> porSobre = new LinkedHashMap<>();
+        if (!isPaquetePorSobres()) {
+            porSobre.put("Oferta", entradas);
+        } else {
+            String ofertaDirName = "Documentos Oferta/";
+            porSobre.put("Administrativo", new ArrayList<>());
+            Map<Integer, List<EntradaPaquete>> porLote = new TreeMap<>();
+            List<EntradaPaquete> ofertaSinLotes = new ArrayList<>();
+            for (EntradaPaquete entrada : entradas) {
+                String ruta = entrada.getRuta();
+                if (!ruta.startsWith(ofertaDirName)) {
+                    porSobre.get("Administrativo").add(entrada);
+                } else if (ruta.startsWith(ofertaDirName + "Lote ") && ruta.indexOf('/', ofertaDirName.length()) != -1) {
+                    String carpeta = ruta.substring(ofertaDirName.length() + "Lote ".length(), ruta.indexOf('/', ofertaDirName.length()));
+                    try {
+                        int numLote = Integer.parseInt(carpeta);
+                        porLote.computeIfAbsent(numLote, k -> new ArrayList<>(Collections.singletonList(EntradaPaquete.directorio(ofertaDirName)))).add(entrada);
+                    } catch (NumberFormatException e) {
+                        ofertaSinLotes.add(entrada);
+                    }
+                } else if (!ruta.equals(ofertaDirName)) {
+                    ofertaSinLotes.add(entrada);
+                }
+            }
+            if (!ofertaSinLotes.isEmpty()) {
+                ofertaSinLotes.add(0, EntradaPaquete.directorio(ofertaDirName));
+                porSobre.put("Oferta", ofertaSinLotes);
+            }
+            for (Map.Entry<Integer, List<EntradaPaquete>> lote : porLote.entrySet()) {
+                porSobre.put("Lote " + lote.getKey(), lote.getValue());
+            }
+        }
+
+        String nombreBase = destino.getName().substring(0, destino.getName().length() - ".zip".length());
+        long limite = getTamanoMaximoVolumen();
+        List<EmpaquetadorSobres.Sobre> sobres = new ArrayList<>();
+        for (Map.Entry<String, List<EntradaPaquete>> sobre : porSobre.entrySet()) {
+            ManifiestoPaquete manifiesto = ManifiestoPaquete.generar(sobre.getValue());
+            sobre.getValue().add(manifiesto.comoEntrada());
+            manifiestos.put(sobre.getKey(), manifiesto);
+            // La documentación administrativa se revisa antes de la apertura: solo se cifra la oferta.
+            boolean cifrado = configuracion.getCifrado() != null && !sobre.getKey().equals("Administrativo");
+            File fichero = porSobre.size() == 1 ? destino
+                    : new File(destino.getParentFile(), nombreBase + "_" + sobre.getKey().replace(" ", "") + ".zip");
+            long limiteSobre = cifrado && limite > 0 ? CifradorSobre.capacidadEnClaro(limite) : limite;
+            PlanVolumenes plan = limite > 0 ? PlanVolumenes.planificar(sobre.getValue(), limiteSobre) : null;
+            List<File> volumenes = new ArrayList<>();
+            if (plan != null && plan.getNumeroVolumenes() > 1) {
+                for (int i = 0; i < plan.getNumeroVolumenes(); i++) {
+                    volumenes.add(PlanVolumenes.ficheroVolumen(fichero, i, plan.getNumeroVolumenes()));
+                }
+                log("El sobre '" + sobre.getKey() + "' se divide en " + plan.getNumeroVolumenes() + " volúmenes de como máximo " + GestorMemoria.formatearTamano(limite) + ".");
+            } else {
+                volumenes.add(fichero);
+            }
+            if (cifrado) {
+                volumenes.replaceAll(volumen -> new File(volumen.getParentFile(), volumen.getName() + CifradorSobre.EXTENSION));
+            }
+            sobres.add(new EmpaquetadorSobres.Sobre(sobre.getKey(), plan != null && plan.getNumeroVolumenes() > 1 ? plan.getVolumenes()
+                    : Collections.singletonList(sobre.getValue()), volumenes, cifrado));
+        }
+        return sobres;
+    }
+
     // --- MÉTODOS AUXILIARES Y DE LOTES ---
-    private void addFileToZip(ZipOutputStream zipOut, String entryPath, byte[] content, Set<String> addedEntries) throws IOException {
-        if (content == null || content.length == 0) {
+    /**
+     * Construye, en el orden en que se escribirán, las entradas del paquete
+     * ZIP de la oferta: log, Anexo Administrativo y ficheros interactivos en
+     * la raíz, archivos comunes y documentos de oferta (por lote, solo de los
+     * lotes en los que se participa), con sus declaraciones de
+     * confidencialidad.
+     * <p>
+     * En el modo reproducible los documentos se recorren en orden alfabético
+     * de su clave (y no en el de los mapas de la sesión) y el log es canónico:
+     * sin fecha ni log de la aplicación, con la relación de entradas del
+     * paquete y sus huellas.
+     * </p>
+     * <p>
+     * Si se comparten los documentos repetidos, los contenidos idénticos se
+     * guardan una sola vez (ver {@link DeduplicadorPaquete}).
+     * </p>
+     *
+     * @param estado Copia del estado de la sesión que se empaqueta.
+     * @param logFileName Nombre de la entrada del log.
+     * @param logContent Contenido del log de la aplicación.
+     * @return La lista de entradas.
+     */
+    private List<EntradaPaquete> construirEntradasPaquete(EstadoPaquete estado, String logFileName, String logContent) {
+        List<EntradaPaquete> entradas = new ArrayList<>();
+        Set<String> addedEntries = new HashSet<>();
+
+        // AÑADIR EL LOG (el canónico se genera al final, a partir del resto de entradas)
+        if (!isPaqueteReproducible()) {
+            agregarEntrada(entradas, EntradaPaquete.desdeBytes(logFileName, generarContenidoLog(estado.sesion.licitadorData, logContent).getBytes(), null), addedEntries);
+        }
+
+        // AÑADIR EL ANEXO ADMINISTRATIVO
+        if (estado.anexoAdministrativo != null) {
+            String anexoNombre = ANEXO_ADMINISTRATIVO_NOMBRE_CLAVE + ".pdf";
+            agregarEntrada(entradas, estado.anexoAdministrativo, anexoNombre, "Anexo Administrativo añadido en la raíz del ZIP.", addedEntries);
+        }
+
+        // AÑADIR LOS FICHEROS INTERACTIVOS (A LA RAÍZ)
+        for (Map.Entry<String, FileData> entry : enOrden(estado.archivosAnexoInteractivo).entrySet()) {
+            String nombreFichero = entry.getKey();
+            agregarEntrada(entradas, entry.getValue(), nombreFichero, "Fichero Interactivo '" + nombreFichero + "' añadido en la raíz del ZIP.", addedEntries);
+        }
+
+        // Añadir archivos comunes
+        String comunesDirName = "Archivos Comunes/";
+        agregarEntrada(entradas, EntradaPaquete.directorio(comunesDirName), addedEntries);
+        for (Map.Entry<String, FileData> entry : enOrden(estado.sesion.archivosComunes).entrySet()) {
+            String nombreConfigurado = entry.getKey();
+            FileData fileData = entry.getValue();
+            String extension = fileData.getExtension();
+            String zipEntryPath = comunesDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
+            agregarEntrada(entradas, fileData, zipEntryPath, "Archivo común '" + nombreConfigurado + "' añadido", addedEntries);
+
+            // LÓGICA PARA CONFIDENCIALIDAD
+            if (fileData.esConfidencial()) {
+                String zipEntryPathConf = comunesDirName + nombreConfigurado + "_Confidencial.txt";
+                byte[] contenidoConfidencial = generarContenidoConfidencialDetallado(fileData).getBytes();
+                agregarEntrada(entradas, EntradaPaquete.desdeBytes(zipEntryPathConf, contenidoConfidencial,
+                        "Archivo de confidencialidad para '" + nombreConfigurado + "' añadido"), addedEntries);
+            }
+        }
+
+        // Añadir documentos de oferta
+        String ofertaDirName = "Documentos Oferta/";
+        agregarEntrada(entradas, EntradaPaquete.directorio(ofertaDirName), addedEntries);
+        for (Map.Entry<String, FileData> entry : enOrden(estado.sesion.archivosOferta).entrySet()) {
+            String claveOriginal = entry.getKey();
+            FileData fileData = entry.getValue();
+            String extension = fileData.getExtension();
+            String nombreConfigurado = claveOriginal;
+            String carpetaLote = "";
+            String baseEntryName;
+
+            if (configuracion.isTieneLotes()) {
+                int underscoreIndex = claveOriginal.indexOf('_');
+                if (underscoreIndex != -1) {
+                    String loteStr = claveOriginal.substring(0, underscoreIndex);
+
+                    try {
+                        int numLote = Integer.parseInt(loteStr.replace("Lote", ""));
+                        if (!estado.participaEnLote(numLote)) {
+                            log(" - Archivo de oferta '" + nombreConfigurado + "' IGNORADO (Lote " + numLote + " NO marcado como Participa).");
+                            continue;
+                        }
+                    } catch (NumberFormatException e) {
+                        logError("Advertencia: Clave de lote mal formateada: " + loteStr);
+                    }
+
+                    nombreConfigurado = claveOriginal.substring(underscoreIndex + 1);
+                    carpetaLote = loteStr.replace("Lote", "Lote ") + "/";
+                    String dirPath = ofertaDirName + carpetaLote;
+                    agregarEntrada(entradas, EntradaPaquete.directorio(dirPath), addedEntries);
+                    baseEntryName = dirPath + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
+                } else {
+                    logError("Advertencia: Clave de oferta '" + claveOriginal + "' sin formato LoteX_ para una licitación con lotes. Se tratará como oferta general.");
+                    baseEntryName = ofertaDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
+                }
+            } else {
+                baseEntryName = ofertaDirName + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension);
+            }
+
+            // Si hemos llegado hasta aquí, el archivo debe ser añadido
+            agregarEntrada(entradas, fileData, baseEntryName, "Archivo de oferta '" + nombreConfigurado + (extension.isEmpty() ? "" : "." + extension) + "'"
+                    + (configuracion.isTieneLotes() ? " (" + carpetaLote.replace("/", "") + ")" : "") + " añadido", addedEntries);
+
+            if (fileData.esConfidencial()) {
+                String zipEntryPathConf = ofertaDirName + carpetaLote + nombreConfigurado + "_Confidencial.txt";
+                byte[] contenidoConfidencial = generarContenidoConfidencialDetallado(fileData).getBytes();
+                agregarEntrada(entradas, EntradaPaquete.desdeBytes(zipEntryPathConf, contenidoConfidencial,
+                        "Archivo de confidencialidad para '" + nombreConfigurado + "' añadido"), addedEntries);
+            }
+        }
+
+        if (isDocumentosCompartidos()) {
+            if (isPaquetePorSobres()) {
+                log(" - Los documentos repetidos no se comparten al generar un ZIP por sobre: cada sobre debe estar completo.");
+            } else {
+                DeduplicadorPaquete.Resultado deduplicado = DeduplicadorPaquete.deduplicar(entradas);
+                if (deduplicado.getDocumentosCompartidos() > 0) {
+                    entradas = deduplicado.getEntradas();
+                    log(" - " + deduplicado.getDocumentosCompartidos() + " documentos repetidos se incluyen una sola vez en '" + DeduplicadorPaquete.CARPETA_COMPARTIDOS
+                            + "' (" + deduplicado.getCopiasEvitadas() + " copias y " + GestorMemoria.formatearTamano(deduplicado.getBytesEvitados()) + " menos).");
+                }
+            }
+        }
+
+        if (isPaqueteReproducible()) {
+            entradas.add(0, EntradaPaquete.desdeBytes(logFileName, generarContenidoLogCanonico(estado.sesion.licitadorData, entradas).getBytes(StandardCharsets.UTF_8), null));
+        }
+        return entradas;
+    }
+
+    /**
+     * Devuelve los documentos en el orden en que se empaquetan: el de la
+     * sesión o, en el modo reproducible, el alfabético de sus claves.
+     */
+    private Map<String, FileData> enOrden(Map<String, FileData> archivos) {
+        return isPaqueteReproducible() ? new TreeMap<>(archivos) : archivos;
+    }
+
+    private void agregarEntrada(List<EntradaPaquete> entradas, FileData fileData, String entryPath, String descripcion, Set<String> addedEntries) {
+        if (fileData == null || fileData.getTamano() == 0) {
             logError("Advertencia: No se pudo comprimir la entrada '" + entryPath + "'. Datos nulos o vacíos.");
             return;
         }
-        if (addedEntries.contains(entryPath)) {
-            logError("Advertencia: La entrada '" + entryPath + "' ya fue añadida. Se ignorará la duplicada.");
+        agregarEntrada(entradas, EntradaPaquete.desdeContenido(entryPath, fileData.getFuente(), descripcion), addedEntries);
+    }
+
+    private void agregarEntrada(List<EntradaPaquete> entradas, EntradaPaquete entrada, Set<String> addedEntries) {
+        if (entrada.esDirectorio()) {
+            if (addedEntries.add(entrada.getRuta())) {
+                entradas.add(entrada);
+            }
             return;
         }
-
-        ZipEntry zipEntry = new ZipEntry(entryPath);
-        zipOut.putNextEntry(zipEntry);
-        zipOut.write(content);
-        zipOut.closeEntry();
-        addedEntries.add(entryPath);
+        if (entrada.getTamano() == 0) {
+            logError("Advertencia: No se pudo comprimir la entrada '" + entrada.getRuta() + "'. Datos nulos o vacíos.");
+            return;
+        }
+        if (!addedEntries.add(entrada.getRuta())) {
+            logError("Advertencia: La entrada '" + entrada.getRuta() + "' ya fue añadida. Se ignorará la duplicada.");
+            return;
+        }
+        entradas.add(entrada);
     }
 
     private String generarContenidoConfidencialDetallado(FileData fileData) {
@@ -666,7 +1769,119 @@ public class FileManager implements Serializable {
         return sb.toString();
     }
 
-    private String crearMensajeConfirmacion() {
+    /**
+     * Log del modo reproducible: depende solo del contenido del paquete, de
+     * modo que la misma oferta produce siempre los mismos bytes.
+     */
+    private String generarContenidoLogCanonico(LicitadorData licitadorData, List<EntradaPaquete> entradas) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--- Log del paquete reproducible ---\n");
+        sb.append("DATOS DEL LICITADOR:\n");
+        sb.append(licitadorData.toString()).append("\n");
+        sb.append("Expediente: ").append(configuracion.getNumeroExpediente()).append("\n");
+        sb.append("Perfil de compresión: ").append(getPerfilCompresion()).append("\n");
+        sb.append("----------------------------------------\n\n");
+        sb.append("Contenido del paquete (ruta, tamaño en bytes, SHA-256):\n");
+        for (EntradaPaquete entrada : entradas) {
+            if (!entrada.esDirectorio()) {
+                sb.append(entrada.getRuta()).append("\t").append(entrada.getTamano()).append("\t").append(IdentidadPaquete.huella(entrada)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Estima, sin comprimir nada, el tamaño del paquete: la documentación
+     * administrativa (Anexo, ficheros interactivos y archivos comunes) y la
+     * oferta de cada lote en el que se participa.
+     *
+     * @return La estimación por grupo y total.
+     */
+    public EstimadorTamano.Estimacion estimarTamanoPaquete() {
+        if (estimadorTamano == null || estimadorTamano.getPerfil() != getPerfilCompresion()) {
+            estimadorTamano = new EstimadorTamano(getPerfilCompresion(), getCachePrecompresion());
+        }
+        Map<String, List<FileData>> grupos = new LinkedHashMap<>();
+        List<FileData> administrativos = new ArrayList<>();
+        if (anexoAdministrativoData != null) {
+            administrativos.add(anexoAdministrativoData);
+        }
+        administrativos.addAll(archivosAnexoInteractivo.values());
+        administrativos.addAll(archivosComunes.values());
+        grupos.put("Documentación administrativa", administrativos);
+
+        Map<Integer, List<FileData>> porLote = new TreeMap<>();
+        for (Map.Entry<String, FileData> entry : archivosOferta.entrySet()) {
+            String clave = entry.getKey();
+            if (configuracion.isTieneLotes() && clave.startsWith("Lote") && clave.contains("_")) {
+                try {
+                    int numLote = Integer.parseInt(clave.substring("Lote".length(), clave.indexOf('_')));
+                    if (getParticipacionLote(numLote)) {
+                        porLote.computeIfAbsent(numLote, k -> new ArrayList<>()).add(entry.getValue());
+                    }
+                    continue;
+                } catch (NumberFormatException e) {
+                    // Se cuenta como oferta general, igual que al empaquetar.
+                }
+            }
+            grupos.computeIfAbsent("Oferta", k -> new ArrayList<>()).add(entry.getValue());
+        }
+        for (Map.Entry<Integer, List<FileData>> lote : porLote.entrySet()) {
+            grupos.put("Lote " + lote.getKey(), lote.getValue());
+        }
+        return estimadorTamano.estimar(grupos);
+    }
+
+    /**
+     * Describe la estimación de tamaño para el diálogo de confirmación y
+     * advierte de lo que superará el tamaño máximo por archivo.
+     */
+    private void anadirEstimacionTamano(StringBuilder sb, EstimadorTamano.Estimacion estimacion) {
+        long limite = getTamanoMaximoVolumen();
+        sb.append("\nTamaño estimado del paquete (perfil ").append(getPerfilCompresion()).append("):\n");
+        for (Map.Entry<String, Long> grupo : estimacion.getPorGrupo().entrySet()) {
+            sb.append("- ").append(grupo.getKey()).append(": ").append(GestorMemoria.formatearTamano(grupo.getValue())).append("\n");
+        }
+        sb.append("Total: ").append(GestorMemoria.formatearTamano(estimacion.getTotal()));
+        if (estimacion.isAproximada()) {
+            sb.append(" como máximo (algunos documentos se han contado sin comprimir)");
+        }
+        sb.append("\n");
+        log("Tamaño estimado del paquete: " + GestorMemoria.formatearTamano(estimacion.getTotal()) + (estimacion.isAproximada() ? " (cota superior)" : "") + ".");
+        if (limite <= 0) {
+            return;
+        }
+
+        for (Map.Entry<String, Integer> archivo : estimacion.getVolumenes(getLimiteVolumenEnClaro(), isPaquetePorSobres()).entrySet()) {
+            if (archivo.getValue() > 1) {
+                String aviso = archivo.getKey() + " puede superar el máximo de " + GestorMemoria.formatearTamano(limite)
+                        + " por archivo y se dividirá en al menos " + archivo.getValue() + " volúmenes.";
+                sb.append("AVISO: ").append(aviso).append("\n");
+                log("Aviso: " + aviso);
+            }
+        }
+        List<String> noCaben = estimacion.getDocumentosQueNoCaben(getLimiteVolumenEnClaro());
+        if (!noCaben.isEmpty()) {
+            sb.append("\nATENCIÓN: estos documentos superan por sí solos el máximo de ").append(GestorMemoria.formatearTamano(limite))
+                    .append(" por archivo y la compresión fallará. Redúzcalos o aumente el máximo antes de continuar:\n");
+            for (String documento : noCaben) {
+                sb.append("- ").append(documento).append("\n");
+                logError("El documento " + documento + " supera el tamaño máximo por archivo (" + GestorMemoria.formatearTamano(limite) + ").");
+            }
+        }
+    }
+
+    /**
+     * Tamaño máximo de cada volumen antes de cifrarlo: con cifrado se
+     * descuenta lo que añade, como hace {@link #construirSobres} con la
+     * oferta.
+     */
+    private long getLimiteVolumenEnClaro() {
+        long limite = getTamanoMaximoVolumen();
+        return configuracion.getCifrado() != null && limite > 0 ? CifradorSobre.capacidadEnClaro(limite) : limite;
+    }
+
+    private String crearMensajeConfirmacion(EstimadorTamano.Estimacion estimacion) {
         StringBuilder sb = new StringBuilder("Por favor, revise la documentación cargada antes de comprimir:\n\n");
 
         sb.append("Archivos comunes cargados:\n");
@@ -733,6 +1948,8 @@ public class FileManager implements Serializable {
             }
         }
 
+        anadirEstimacionTamano(sb, estimacion);
+
         sb.append("\n¿Desea continuar con la compresión?");
         return sb.toString();
     }
@@ -773,6 +1990,10 @@ public class FileManager implements Serializable {
             }
         }
 
+        DiarioSesion d = getDiario();
+        if (d != null) {
+            d.registrarParticipacion(participacionPorLote);
+        }
         log("Estado de participación de lotes actualizado desde la interfaz. Lotes seleccionados: " + lotesSeleccionadosIds.toString());
     }
 
@@ -794,13 +2015,98 @@ public class FileManager implements Serializable {
             return false;
         }
 
+        DiarioSesion d = getDiario();
         for (String key : keysToRemove) {
             archivosOferta.remove(key);
+            if (d != null) {
+                d.quitarHueco(DiarioSesion.OFERTA, key);
+            }
         }
+        purgarContenidosNoReferenciados();
 
         return true;
     }
 
+    /**
+     * Asigna el documento ya cargado en un hueco de oferta a ese mismo
+     * documento en un rango de lotes. El contenido no se copia: todos los
+     * lotes referencian la misma entrada de {@link AlmacenContenidos}, por lo
+     * que cada lote adicional solo cuesta un objeto de metadatos.
+     *
+     * @param nombreOferta El nombre configurado del documento de oferta.
+     * @param loteOrigen El lote en el que ya está cargado el documento.
+     * @param loteDesde Primer lote del rango (incluido).
+     * @param loteHasta Último lote del rango (incluido).
+     * @param soloParticipantes Si es {@code true}, se omiten los lotes no
+     * marcados como "Participa".
+     * @return El número de lotes a los que se ha asignado el documento.
+     */
+    public int asignarArchivoOfertaALotes(String nombreOferta, int loteOrigen, int loteDesde, int loteHasta, boolean soloParticipantes) {
+        if (!configuracion.isTieneLotes()) {
+            return 0;
+        }
+        FileData origen = archivosOferta.get("Lote" + loteOrigen + "_" + nombreOferta);
+        if (origen == null) {
+            logError("No hay ningún archivo cargado para '" + nombreOferta + "' en el Lote " + loteOrigen + ".");
+            return 0;
+        }
+
+        int desde = Math.max(1, Math.min(loteDesde, loteHasta));
+        int hasta = Math.min(configuracion.getNumLotes(), Math.max(loteDesde, loteHasta));
+        int asignados = 0;
+        for (int loteNum = desde; loteNum <= hasta; loteNum++) {
+            if (loteNum == loteOrigen || (soloParticipantes && !getParticipacionLote(loteNum))) {
+                continue;
+            }
+            FileData copia = new FileData(origen.getNombre(), origen.getFuente(), origen.esConfidencial(),
+                    origen.getSupuestosSeleccionados(), origen.getMotivosSupuestos());
+            archivosOferta.put("Lote" + loteNum + "_" + nombreOferta, copia);
+            DiarioSesion d = getDiario();
+            if (d != null) {
+                d.registrarHueco(DiarioSesion.OFERTA, "Lote" + loteNum + "_" + nombreOferta, copia);
+            }
+            asignados++;
+        }
+        purgarContenidosNoReferenciados();
+
+        log("Archivo de oferta '" + nombreOferta + "' del Lote " + loteOrigen + " asignado a " + asignados
+                + " lote(s) del rango " + desde + "-" + hasta + ".");
+        return asignados;
+    }
+
+    /**
+     * Registra en el almacén los contenidos de todos los huecos tras cargar una
+     * sesión, de modo que los contenidos repetidos (sesiones antiguas que
+     * guardaban una copia por lote) pasen a compartir una única instancia.
+     */
+    private void reindexarContenidos() {
+        almacenContenidos.limpiar();
+        for (FileData fileData : getTodosLosArchivos()) {
+            canonizarContenido(fileData);
+        }
+    }
+
+    /**
+     * Elimina del almacén los contenidos que ya no referencia ningún hueco.
+     */
+    private void purgarContenidosNoReferenciados() {
+        Set<String> huellasEnUso = new HashSet<>();
+        for (FileData fileData : getTodosLosArchivos()) {
+            huellasEnUso.add(fileData.getHuella());
+        }
+        almacenContenidos.purgar(huellasEnUso);
+    }
+
+    private List<FileData> getTodosLosArchivos() {
+        List<FileData> todos = new ArrayList<>(archivosComunes.values());
+        todos.addAll(archivosOferta.values());
+        todos.addAll(archivosAnexoInteractivo.values());
+        if (anexoAdministrativoData != null) {
+            todos.add(anexoAdministrativoData);
+        }
+        return todos;
+    }
+
     // --- Getters and Setters ---
     public Map<String, FileData> getArchivosComunes() {
         return Collections.unmodifiableMap(archivosComunes);
@@ -810,6 +2116,100 @@ public class FileManager implements Serializable {
         return Collections.unmodifiableMap(archivosOferta);
     }
 
+    /**
+     * Obtiene el perfil con el que se comprime el paquete de la oferta.
+     *
+     * @return El perfil de compresión.
+     */
+    public PoliticaCompresion.Perfil getPerfilCompresion() {
+        return perfilCompresion != null ? perfilCompresion : PoliticaCompresion.Perfil.EQUILIBRADO;
+    }
+
+    public void setPerfilCompresion(PoliticaCompresion.Perfil perfilCompresion) {
+        this.perfilCompresion = perfilCompresion;
+        // Los documentos ya cargados se precomprimen también con el nuevo perfil.
+        for (FileData fileData : getTodosLosArchivos()) {
+            getCachePrecompresion().encolar(fileData.getFuente(), getPerfilCompresion());
+        }
+    }
+
+    /**
+     * Tamaño máximo de cada archivo del paquete. Si el paquete lo supera, se
+     * divide en varios volúmenes (ver {@link PlanVolumenes}).
+     *
+     * @return El límite en bytes, o 0 si no se divide.
+     */
+    public long getTamanoMaximoVolumen() {
+        return tamanoMaximoVolumen;
+    }
+
+    public void setTamanoMaximoVolumen(long tamanoMaximoVolumen) {
+        this.tamanoMaximoVolumen = Math.max(0, tamanoMaximoVolumen);
+    }
+
+    /**
+     * Indica si la oferta se genera como un archivo por sobre (administrativo
+     * y uno por lote) en lugar de un único ZIP.
+     *
+     * @return {@code true} para generar un archivo por sobre.
+     */
+    public boolean isPaquetePorSobres() {
+        return paquetePorSobres;
+    }
+
+    public void setPaquetePorSobres(boolean paquetePorSobres) {
+        this.paquetePorSobres = paquetePorSobres;
+    }
+
+    /**
+     * Indica si la oferta se empaqueta en modo reproducible: orden fijo,
+     * fechas normalizadas y log canónico, de modo que la misma oferta produce
+     * siempre el mismo archivo y no se vuelve a generar si no ha cambiado.
+     *
+     * @return {@code true} en el modo reproducible.
+     */
+    public boolean isPaqueteReproducible() {
+        return paqueteReproducible;
+    }
+
+    public void setPaqueteReproducible(boolean paqueteReproducible) {
+        this.paqueteReproducible = paqueteReproducible;
+    }
+
+    /**
+     * Indica si los documentos idénticos que ocupan varias ubicaciones (por
+     * ejemplo, en todos los lotes) se guardan una sola vez en una carpeta
+     * compartida, con un manifiesto y un índice de sus ubicaciones.
+     *
+     * @return {@code true} si se comparten los documentos repetidos.
+     */
+    public boolean isDocumentosCompartidos() {
+        return documentosCompartidos;
+    }
+
+    public void setDocumentosCompartidos(boolean documentosCompartidos) {
+        this.documentosCompartidos = documentosCompartidos;
+    }
+
+    /**
+     * Indica si cada archivo generado se vuelve a leer y se comprueba entrada
+     * a entrada (CRC-32 y SHA-256) antes de darlo por bueno. Está activada por
+     * defecto.
+     *
+     * @return {@code true} si se verifican los paquetes.
+     */
+    public boolean isVerificarPaquete() {
+        return !sinVerificacion;
+    }
+
+    public void setVerificarPaquete(boolean verificarPaquete) {
+        this.sinVerificacion = !verificarPaquete;
+    }
+
+    public AlmacenContenidos getAlmacenContenidos() {
+        return almacenContenidos;
+    }
+
     public FileData getAnexoAdministrativoData() {
         return anexoAdministrativoData;
     }
@@ -820,6 +2220,18 @@ public class FileManager implements Serializable {
 
     public void setLicitadorData(LicitadorData licitadorData) {
         this.licitadorData = Objects.requireNonNull(licitadorData, "LicitadorData no puede ser null");
+        registrarCambiosLicitador();
+    }
+
+    /**
+     * Anota en el guardado automático los datos del licitador tras
+     * modificarlos directamente sobre {@link #getLicitadorData()}.
+     */
+    public void registrarCambiosLicitador() {
+        DiarioSesion d = getDiario();
+        if (d != null) {
+            d.registrarLicitador(licitadorData);
+        }
     }
 
     public Configuracion getConfiguracion() {
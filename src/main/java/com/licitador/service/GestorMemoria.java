@@ -0,0 +1,331 @@
+package com.licitador.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Gobernador del presupuesto de memoria dedicado a contenidos de documentos.
+ * <p>
+ * Lleva la cuenta de los bytes residentes en memoria de todos los
+ * {@link ContenidoArchivo} (anexo generado, sesiones antiguas, copias
+ * editadas...). Cuando se supera el presupuesto, los contenidos usados hace
+ * más tiempo (LRU) se vuelcan comprimidos a un área temporal gestionada y se
+ * liberan de la memoria; se recargan de forma transparente la próxima vez que
+ * se necesitan sus bytes.
+ * </p>
+ * <p>
+ * El área temporal es una subcarpeta exclusiva de este proceso dentro de la
+ * carpeta {@code temp} (configurable con la propiedad de sistema
+ * {@value #PROPIEDAD_CARPETA_TEMP}) y se elimina al cerrar la aplicación. El
+ * presupuesto se puede fijar con la propiedad {@value #PROPIEDAD_PRESUPUESTO_MB}
+ * o con {@link #setPresupuesto(long)}.
+ * </p>
+ */
+public final class GestorMemoria {
+
+    /**
+     * Propiedad de sistema con el presupuesto de memoria en megabytes.
+     */
+    public static final String PROPIEDAD_PRESUPUESTO_MB = "licitador.memoria.presupuestoMB";
+    /**
+     * Propiedad de sistema con la carpeta base del área temporal.
+     */
+    public static final String PROPIEDAD_CARPETA_TEMP = "licitador.temp.dir";
+
+    private static final GestorMemoria INSTANCIA = new GestorMemoria();
+
+    /**
+     * Contenidos residentes ordenados por último acceso (el primero es el menos
+     * usado recientemente). Protegido por {@code this}.
+     */
+    private final LinkedHashMap<ContenidoArchivo, Long> residentes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Path carpetaBase;
+    private volatile long presupuesto;
+    private long bytesResidentes;
+    private final AtomicLong bytesVolcados = new AtomicLong();
+    private final AtomicLong bytesEnDisco = new AtomicLong();
+    private Path areaTemporal;
+
+    private GestorMemoria() {
+        this.carpetaBase = Paths.get(System.getProperty(PROPIEDAD_CARPETA_TEMP, "temp"));
+        long maximoJvm = Runtime.getRuntime().maxMemory();
+        long porDefecto = Math.min(256L * 1024 * 1024, maximoJvm / 4);
+        this.presupuesto = Long.getLong(PROPIEDAD_PRESUPUESTO_MB, porDefecto / (1024 * 1024)) * 1024 * 1024;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::eliminarAreaTemporal, "limpieza-area-temporal"));
+    }
+
+    /**
+     * Obtiene la instancia única del gestor.
+     *
+     * @return El gestor de memoria de la aplicación.
+     */
+    public static GestorMemoria getInstancia() {
+        return INSTANCIA;
+    }
+
+    // --- CONTABILIDAD DE CONTENIDOS RESIDENTES ---
+    /**
+     * Registra un contenido que acaba de cargarse en memoria y, si se supera el
+     * presupuesto, vuelca al área temporal los menos usados recientemente.
+     *
+     * @param contenido El contenido residente.
+     */
+    void registrarResidente(ContenidoArchivo contenido) {
+        List<ContenidoArchivo> victimas;
+        synchronized (this) {
+            Long anterior = residentes.put(contenido, contenido.getTamano());
+            if (anterior == null) {
+                bytesResidentes += contenido.getTamano();
+            }
+            victimas = seleccionarVictimas(contenido);
+        }
+        volcar(victimas);
+    }
+
+    /**
+     * Marca un contenido residente como usado recientemente.
+     *
+     * @param contenido El contenido accedido.
+     */
+    synchronized void tocar(ContenidoArchivo contenido) {
+        residentes.get(contenido);
+    }
+
+    /**
+     * Deja de contabilizar un contenido (por ejemplo, cuando ya no lo
+     * referencia ningún hueco de la sesión).
+     *
+     * @param contenido El contenido liberado.
+     * @param estabaVolcado Si el contenido estaba volcado y no residente.
+     */
+    synchronized void olvidar(ContenidoArchivo contenido, boolean estabaVolcado) {
+        Long tamano = residentes.remove(contenido);
+        if (tamano != null) {
+            bytesResidentes -= tamano;
+        }
+        if (estabaVolcado) {
+            bytesVolcados.addAndGet(-contenido.getTamano());
+        }
+    }
+
+    /**
+     * Elige, en orden LRU, los contenidos que hay que volcar para volver a
+     * quedar dentro del presupuesto. El contenido recién accedido se deja para
+     * el final. Debe llamarse con el monitor adquirido; el volcado real se hace
+     * fuera de él para no bloquear a otros hilos durante la escritura.
+     */
+    private List<ContenidoArchivo> seleccionarVictimas(ContenidoArchivo protegido) {
+        List<ContenidoArchivo> victimas = new ArrayList<>();
+        Iterator<Map.Entry<ContenidoArchivo, Long>> it = residentes.entrySet().iterator();
+        while (bytesResidentes > presupuesto && it.hasNext()) {
+            Map.Entry<ContenidoArchivo, Long> entrada = it.next();
+            if (entrada.getKey() == protegido && residentes.size() > 1) {
+                continue;
+            }
+            victimas.add(entrada.getKey());
+            bytesResidentes -= entrada.getValue();
+            it.remove();
+        }
+        return victimas;
+    }
+
+    private void volcar(List<ContenidoArchivo> victimas) {
+        for (ContenidoArchivo victima : victimas) {
+            try {
+                bytesVolcados.addAndGet(victima.volcar(this));
+            } catch (IOException e) {
+                // Si no se puede volcar, el contenido sigue en memoria y se vuelve a contabilizar.
+                synchronized (this) {
+                    if (residentes.put(victima, victima.getTamano()) == null) {
+                        bytesResidentes += victima.getTamano();
+                    }
+                }
+                System.err.println("No se pudo volcar un contenido al área temporal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Notifica que un contenido volcado se ha vuelto a cargar en memoria.
+     *
+     * @param tamano Los bytes recargados.
+     */
+    void notificarRecarga(long tamano) {
+        bytesVolcados.addAndGet(-tamano);
+    }
+
+    // --- ÁREA TEMPORAL ---
+    /**
+     * Escribe comprimidos con {@link CodecLZ} los bytes indicados en un nuevo
+     * fichero del área temporal.
+     *
+     * @param datos Los bytes a volcar.
+     * @return La ruta del fichero de volcado.
+     * @throws IOException Si no se puede escribir.
+     */
+    Path escribirVolcado(byte[] datos) throws IOException {
+        Path destino = Files.createTempFile(getAreaTemporal(), "contenido-", ".vol");
+        try (OutputStream salida = new CodecLZ.Salida(new BufferedOutputStream(Files.newOutputStream(destino), ContenidoArchivo.TAMANO_BUFFER))) {
+            salida.write(datos);
+        }
+        bytesEnDisco.addAndGet(Files.size(destino));
+        return destino;
+    }
+
+    /**
+     * Abre un flujo de lectura descomprimido sobre un fichero de volcado.
+     *
+     * @param volcado La ruta devuelta por {@link #escribirVolcado(byte[])}.
+     * @return El flujo con los bytes originales.
+     * @throws IOException Si el fichero no existe o no se puede leer.
+     */
+    InputStream abrirVolcado(Path volcado) throws IOException {
+        InputStream entrada = new BufferedInputStream(Files.newInputStream(volcado), ContenidoArchivo.TAMANO_BUFFER);
+        try {
+            return new CodecLZ.Entrada(entrada);
+        } catch (IOException e) {
+            entrada.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Obtiene (creándola si es necesario) la carpeta temporal exclusiva de este
+     * proceso.
+     *
+     * @return La ruta del área temporal.
+     * @throws IOException Si no se puede crear.
+     */
+    public synchronized Path getAreaTemporal() throws IOException {
+        if (areaTemporal == null || !Files.isDirectory(areaTemporal)) {
+            areaTemporal = carpetaBase.resolve("sesion-" + UUID.randomUUID());
+            Files.createDirectories(areaTemporal);
+        }
+        return areaTemporal;
+    }
+
+    /**
+     * Elimina el área temporal de este proceso y, si queda vacía, la carpeta
+     * base. Los contenidos volcados dejan de estar disponibles, por lo que solo
+     * debe llamarse al cerrar la aplicación.
+     *
+     * @return {@code true} si se ha eliminado algo.
+     */
+    public synchronized boolean eliminarAreaTemporal() {
+        boolean eliminado = false;
+        if (areaTemporal != null && Files.exists(areaTemporal)) {
+            try (Stream<Path> rutas = Files.walk(areaTemporal)) {
+                rutas.sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+                eliminado = true;
+            } catch (IOException e) {
+                System.err.println("Error al eliminar el área temporal: " + e.getMessage());
+            }
+            areaTemporal = null;
+            bytesEnDisco.set(0);
+        }
+        try {
+            eliminado |= Files.deleteIfExists(carpetaBase);
+        } catch (IOException e) {
+            // La carpeta base no está vacía (otra instancia la está usando): se conserva.
+        }
+        return eliminado;
+    }
+
+    // --- CONFIGURACIÓN Y ESTADÍSTICAS ---
+    /**
+     * Fija el presupuesto de memoria y vuelca inmediatamente lo que lo exceda.
+     *
+     * @param bytes El nuevo presupuesto en bytes.
+     */
+    public void setPresupuesto(long bytes) {
+        List<ContenidoArchivo> victimas;
+        synchronized (this) {
+            this.presupuesto = Math.max(0, bytes);
+            victimas = seleccionarVictimas(null);
+        }
+        volcar(victimas);
+    }
+
+    public long getPresupuesto() {
+        return presupuesto;
+    }
+
+    /**
+     * Obtiene los bytes de contenidos residentes en memoria.
+     *
+     * @return Total de bytes residentes.
+     */
+    public synchronized long getBytesResidentes() {
+        return bytesResidentes;
+    }
+
+    /**
+     * Obtiene los bytes (sin comprimir) de los contenidos volcados al área
+     * temporal que no están residentes.
+     *
+     * @return Total de bytes volcados.
+     */
+    public long getBytesVolcados() {
+        return bytesVolcados.get();
+    }
+
+    /**
+     * Obtiene los bytes que ocupan en disco los ficheros de volcado.
+     *
+     * @return Total de bytes comprimidos en el área temporal.
+     */
+    public long getBytesEnDisco() {
+        return bytesEnDisco.get();
+    }
+
+    /**
+     * Genera un resumen legible del uso de memoria, útil para dimensionar la
+     * memoria de la JVM.
+     *
+     * @return El resumen en una línea.
+     */
+    public String getResumen() {
+        return String.format("Memoria de documentos: %s residentes de %s de presupuesto; %s volcados al área temporal (%s en disco). Máximo JVM: %s.",
+                formatearTamano(getBytesResidentes()), formatearTamano(presupuesto),
+                formatearTamano(getBytesVolcados()), formatearTamano(getBytesEnDisco()),
+                formatearTamano(Runtime.getRuntime().maxMemory()));
+    }
+
+    /**
+     * Formatea una cantidad de bytes en la unidad más legible.
+     *
+     * @param bytes La cantidad de bytes.
+     * @return El texto formateado (ej: "12,5 MB").
+     */
+    public static String formatearTamano(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] unidades = {"KB", "MB", "GB", "TB"};
+        double valor = bytes;
+        int unidad = -1;
+        while (valor >= 1024 && unidad < unidades.length - 1) {
+            valor /= 1024;
+            unidad++;
+        }
+        return String.format("%.1f %s", valor, unidades[unidad]);
+    }
+}
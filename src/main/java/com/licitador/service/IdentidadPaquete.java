@@ -0,0 +1,134 @@
+package com.licitador.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Identidad de un paquete reproducible: la huella SHA-256 de todo lo que
+ * determina sus bytes.
+ * <p>
+ * En el modo reproducible las entradas van en un orden fijo, todas llevan la
+ * misma fecha ({@link #FECHA_REPRODUCIBLE}) y el log es canónico, de modo que
+ * los mismos documentos con la misma configuración generan siempre el mismo
+ * ZIP byte a byte. La identidad resume esas entradas (ruta, tamaño y huella
+ * de cada una), el reparto en sobres y volúmenes y el perfil de compresión, y
+ * se escribe como comentario de cada archivo generado. Si al volver a
+ * empaquetar todos los archivos de destino existen y llevan la misma
+ * identidad, no hace falta generarlos de nuevo.
+ * </p>
+ */
+public final class IdentidadPaquete {
+
+    /**
+     * Fecha que se registra en todas las entradas de un paquete reproducible
+     * (se guarda como el 1 de enero de 1980, el mínimo del formato ZIP).
+     */
+    public static final long FECHA_REPRODUCIBLE = 0L;
+    /**
+     * Versión del procedimiento de empaquetado. Debe cambiarse si cambia
+     * algo que altere los bytes generados (tamaño de bloque, formato de las
+     * cabeceras, log canónico...), para no reutilizar paquetes antiguos.
+     */
+    private static final String VERSION = "licitador-paquete-1";
+    private static final String PREFIJO_COMENTARIO = "Paquete reproducible ";
+
+    private IdentidadPaquete() {
+    }
+
+    /**
+     * Calcula la identidad de un conjunto de sobres.
+     *
+     * @param sobres Los sobres, con sus volúmenes y destinos.
+     * @param perfil El perfil de compresión.
+     * @return La identidad en hexadecimal.
+     */
+    public static String calcular(List<EmpaquetadorSobres.Sobre> sobres, PoliticaCompresion.Perfil perfil) {
+        MessageDigest digest = ContenidoArchivo.nuevoDigest();
+        actualizar(digest, VERSION);
+        actualizar(digest, perfil.name());
+        for (EmpaquetadorSobres.Sobre sobre : sobres) {
+            actualizar(digest, "sobre");
+            actualizar(digest, sobre.getNombre());
+            for (int i = 0; i < sobre.getVolumenes().size(); i++) {
+                actualizar(digest, "volumen");
+                actualizar(digest, sobre.getDestinos().get(i).getName());
+                for (EntradaPaquete entrada : sobre.getVolumenes().get(i)) {
+                    actualizar(digest, entrada.getRuta());
+                    if (!entrada.esDirectorio()) {
+                        actualizar(digest, Long.toString(entrada.getTamano()));
+                        actualizar(digest, huella(entrada));
+                    }
+                }
+            }
+        }
+        return ContenidoArchivo.aHexadecimal(digest.digest());
+    }
+
+    /**
+     * Comentario del ZIP que registra una identidad.
+     *
+     * @param identidad La identidad.
+     * @return El comentario.
+     */
+    public static String comentario(String identidad) {
+        return PREFIJO_COMENTARIO + identidad;
+    }
+
+    /**
+     * Comprueba si los archivos de los sobres ya existen y se generaron con
+     * la identidad indicada.
+     *
+     * @param sobres Los sobres.
+     * @param identidad La identidad esperada.
+     * @return {@code true} si todos los destinos existen y la registran.
+     */
+    public static boolean estaGenerado(List<EmpaquetadorSobres.Sobre> sobres, String identidad) {
+        String esperado = comentario(identidad);
+        for (EmpaquetadorSobres.Sobre sobre : sobres) {
+            for (File destino : sobre.getDestinos()) {
+                if (!destino.isFile()) {
+                    return false;
+                }
+                try (DirectorioZip directorio = DirectorioZip.abrir(destino.toPath())) {
+                    if (!esperado.equals(directorio.getComentario())) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calcula la huella SHA-256 de un archivo generado.
+     *
+     * @param fichero El archivo.
+     * @return La huella en hexadecimal.
+     * @throws IOException Si no se puede leer.
+     */
+    public static String huellaFichero(File fichero) throws IOException {
+        try (InputStream entrada = Files.newInputStream(fichero.toPath())) {
+            return ContenidoArchivo.calcularHuella(entrada);
+        }
+    }
+
+    static String huella(EntradaPaquete entrada) {
+        String huella = entrada.getHuellaSiConocida();
+        if (huella == null && entrada.getContenido() != null) {
+            huella = entrada.getContenido().getHuella();
+        }
+        return huella;
+    }
+
+    private static void actualizar(MessageDigest digest, String valor) {
+        digest.update(String.valueOf(valor).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
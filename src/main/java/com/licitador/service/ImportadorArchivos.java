@@ -0,0 +1,249 @@
+package com.licitador.service;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Canal de importación de documentos en segundo plano.
+ * <p>
+ * Lee y calcula la huella de cada fichero en un grupo acotado de hilos, fuera
+ * del Event Dispatch Thread, y registra cada documento en el
+ * {@link FileManager} en cuanto termina (en el EDT), de modo que las tablas de
+ * la interfaz se actualizan fichero a fichero. Informa del avance en bytes de
+ * cada fichero y permite cancelar el lote completo.
+ * </p>
+ */
+public class ImportadorArchivos {
+
+    /**
+     * Intervalo mínimo entre dos notificaciones de avance de un mismo fichero.
+     */
+    private static final long INTERVALO_AVANCE_MS = 100;
+
+    /**
+     * Documento a importar y hueco de la sesión al que se destina.
+     */
+    public static class Solicitud {
+
+        private final File archivo;
+        private final String nombreConfigurado;
+        private final String loteKeyPrefix;
+        private final boolean esConfidencial;
+        private final String[] supuestosSeleccionados;
+        private final String[] motivosSupuestos;
+
+        /**
+         * Crea una solicitud de importación.
+         *
+         * @param archivo El fichero a importar.
+         * @param nombreConfigurado El nombre configurado del hueco (archivo
+         * común o documento de oferta).
+         * @param loteKeyPrefix Prefijo del lote ("LoteN_" o "") para ofertas,
+         * o {@code null} para archivos comunes.
+         * @param esConfidencial Si el documento se declara confidencial.
+         * @param supuestosSeleccionados Supuestos de confidencialidad, o
+         * {@code null}.
+         * @param motivosSupuestos Motivos de cada supuesto, o {@code null}.
+         */
+        public Solicitud(File archivo, String nombreConfigurado, String loteKeyPrefix, boolean esConfidencial, String[] supuestosSeleccionados, String[] motivosSupuestos) {
+            this.archivo = archivo;
+            this.nombreConfigurado = nombreConfigurado;
+            this.loteKeyPrefix = loteKeyPrefix;
+            this.esConfidencial = esConfidencial;
+            this.supuestosSeleccionados = supuestosSeleccionados;
+            this.motivosSupuestos = motivosSupuestos;
+        }
+
+        public File getArchivo() {
+            return archivo;
+        }
+
+        public String getNombreConfigurado() {
+            return nombreConfigurado;
+        }
+
+        /**
+         * Indica si la solicitud se destina a un archivo común.
+         *
+         * @return {@code true} para archivos comunes, {@code false} para
+         * documentos de oferta.
+         */
+        public boolean esArchivoComun() {
+            return loteKeyPrefix == null;
+        }
+
+        /**
+         * Obtiene una descripción legible del hueco de destino.
+         *
+         * @return El destino (ej: "Lote 3 - Oferta Técnica").
+         */
+        public String getDestino() {
+            if (loteKeyPrefix == null || loteKeyPrefix.isEmpty()) {
+                return nombreConfigurado;
+            }
+            return loteKeyPrefix.replace("Lote", "Lote ").replace("_", "") + " - " + nombreConfigurado;
+        }
+    }
+
+    /**
+     * Receptor de los eventos de una importación. Todos los métodos se invocan
+     * en el Event Dispatch Thread.
+     */
+    public interface Oyente {
+
+        /**
+         * Avance de la lectura de un fichero.
+         *
+         * @param indice Posición de la solicitud en el lote.
+         * @param leidos Bytes leídos.
+         * @param total Tamaño del fichero.
+         */
+        void avance(int indice, long leidos, long total);
+
+        /**
+         * El documento se ha leído y registrado en la sesión.
+         *
+         * @param indice Posición de la solicitud en el lote.
+         * @param fileData El documento registrado.
+         */
+        void completado(int indice, FileData fileData);
+
+        /**
+         * El documento no se ha podido importar.
+         *
+         * @param indice Posición de la solicitud en el lote.
+         * @param error La causa.
+         */
+        void fallido(int indice, Exception error);
+
+        /**
+         * Han terminado todas las solicitudes del lote.
+         *
+         * @param cancelado {@code true} si el usuario canceló la importación.
+         */
+        void finalizado(boolean cancelado);
+    }
+
+    /**
+     * Importación en curso, que permite su cancelación.
+     */
+    public static class Importacion {
+
+        private final AtomicBoolean cancelada = new AtomicBoolean(false);
+
+        /**
+         * Cancela las lecturas pendientes y en curso. Las lecturas en curso se
+         * detienen en el siguiente bloque leído; los documentos ya registrados
+         * se conservan.
+         */
+        public void cancelar() {
+            cancelada.set(true);
+        }
+
+        public boolean isCancelada() {
+            return cancelada.get();
+        }
+    }
+
+    private final FileManager fileManager;
+    private final ExecutorService ejecutor;
+
+    /**
+     * Crea el importador con un grupo de hilos acotado al menor entre 4 y el
+     * número de procesadores (la lectura está limitada por el disco).
+     *
+     * @param fileManager El gestor en el que se registran los documentos.
+     */
+    public ImportadorArchivos(FileManager fileManager) {
+        this.fileManager = fileManager;
+        int hilos = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger contador = new AtomicInteger();
+        ThreadFactory fabrica = r -> {
+            Thread hilo = new Thread(r, "importacion-" + contador.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(hilos, hilos, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), fabrica);
+        pool.allowCoreThreadTimeOut(true);
+        this.ejecutor = pool;
+    }
+
+    /**
+     * Inicia la importación de un lote de documentos.
+     *
+     * @param solicitudes Los documentos a importar.
+     * @param oyente Receptor de los eventos (invocado en el EDT).
+     * @return La importación en curso.
+     */
+    public Importacion importar(List<Solicitud> solicitudes, Oyente oyente) {
+        Importacion importacion = new Importacion();
+        AtomicInteger pendientes = new AtomicInteger(solicitudes.size());
+        if (solicitudes.isEmpty()) {
+            SwingUtilities.invokeLater(() -> oyente.finalizado(false));
+            return importacion;
+        }
+
+        for (int i = 0; i < solicitudes.size(); i++) {
+            final int indice = i;
+            final Solicitud solicitud = solicitudes.get(i);
+            ejecutor.execute(() -> {
+                try {
+                    if (importacion.isCancelada()) {
+                        throw new InterruptedIOException("Importación cancelada");
+                    }
+                    ContenidoArchivo contenido = leer(importacion, indice, solicitud, oyente);
+                    SwingUtilities.invokeLater(() -> {
+                        if (importacion.isCancelada()) {
+                            oyente.fallido(indice, new InterruptedIOException("Importación cancelada"));
+                        } else {
+                            oyente.completado(indice, registrar(solicitud, contenido));
+                        }
+                    });
+                } catch (Exception e) {
+                    SwingUtilities.invokeLater(() -> oyente.fallido(indice, e));
+                } finally {
+                    if (pendientes.decrementAndGet() == 0) {
+                        SwingUtilities.invokeLater(() -> oyente.finalizado(importacion.isCancelada()));
+                    }
+                }
+            });
+        }
+        return importacion;
+    }
+
+    private ContenidoArchivo leer(Importacion importacion, int indice, Solicitud solicitud, Oyente oyente) throws IOException {
+        long[] ultimoAviso = {0L};
+        return ContenidoArchivo.desdeArchivo(solicitud.getArchivo(), (leidos, total) -> {
+            if (importacion.isCancelada()) {
+                throw new InterruptedIOException("Importación cancelada");
+            }
+            long ahora = System.currentTimeMillis();
+            if (ahora - ultimoAviso[0] >= INTERVALO_AVANCE_MS || leidos == total) {
+                ultimoAviso[0] = ahora;
+                SwingUtilities.invokeLater(() -> oyente.avance(indice, leidos, total));
+            }
+        });
+    }
+
+    private FileData registrar(Solicitud solicitud, ContenidoArchivo contenido) {
+        FileData fileData = new FileData(solicitud.getArchivo().getName(), contenido, solicitud.esConfidencial,
+                solicitud.supuestosSeleccionados, solicitud.motivosSupuestos);
+        String origen = solicitud.getArchivo().getAbsolutePath();
+        if (solicitud.esArchivoComun()) {
+            fileManager.registrarArchivoComun(solicitud.getNombreConfigurado(), fileData, origen);
+        } else {
+            fileManager.registrarArchivoOferta(solicitud.getNombreConfigurado(), solicitud.loteKeyPrefix, fileData, origen);
+        }
+        return fileData;
+    }
+}
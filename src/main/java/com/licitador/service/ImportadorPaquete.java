@@ -0,0 +1,467 @@
+package com.licitador.service;
+
+import com.licitador.model.LicitadorData;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Abre como sesión editable un paquete ZIP generado por la aplicación, sin
+ * extraerlo.
+ * <p>
+ * Reconoce la estructura que escribe
+ * {@link FileManager#comprimirArchivosConProgreso}: el log de la raíz (con los
+ * datos del licitador y el expediente), "Archivos Comunes/", "Documentos
+ * Oferta/" (con una carpeta "Lote N/" por lote si la licitación tiene lotes),
+ * las declaraciones {@code _Confidencial.txt} de cada documento y la carpeta
+ * de documentos compartidos de {@link DeduplicadorPaquete}. Si la oferta se
+ * generó en varios archivos (un ZIP por sobre o varios volúmenes) se abren
+ * todos juntos.
+ * </p>
+ * <p>
+ * Los documentos no se descomprimen: cada hueco queda respaldado por su
+ * entrada del ZIP, localizada con el directorio central, y se lee de ella
+ * cuando se necesita. Solo se leen el directorio central, la cabecera local
+ * de cada entrada y las entradas de texto pequeñas, de modo que el tiempo de
+ * apertura no depende del tamaño de los documentos. El Anexo Administrativo y
+ * los ficheros interactivos no se importan: se generan de nuevo, igual que al
+ * cargar una sesión.
+ * </p>
+ */
+final class ImportadorPaquete {
+
+    private static final String CARPETA_COMUNES = "Archivos Comunes/";
+    private static final String CARPETA_OFERTA = "Documentos Oferta/";
+    private static final String PREFIJO_LOTE = "Lote ";
+    private static final String SUFIJO_CONFIDENCIAL = "_Confidencial.txt";
+    private static final String PREFIJO_LOG = "log_";
+    /**
+     * Bytes del principio del log que se leen: los datos del licitador van en
+     * la cabecera.
+     */
+    private static final int CABECERA_LOG = 64 * 1024;
+    /**
+     * Tamaño máximo de las entradas de texto que se leen completas
+     * (declaraciones de confidencialidad e índice de documentos compartidos).
+     */
+    private static final int MAXIMO_TEXTO = 4 * 1024 * 1024;
+
+    /**
+     * Resultado de abrir un paquete.
+     */
+    static final class Resultado {
+
+        private final ArchivoSesion.Datos datos;
+        private final String expediente;
+        private final List<String> avisos;
+
+        Resultado(ArchivoSesion.Datos datos, String expediente, List<String> avisos) {
+            this.datos = datos;
+            this.expediente = expediente;
+            this.avisos = avisos;
+        }
+
+        /**
+         * El estado de la sesión reconstruido a partir del paquete.
+         *
+         * @return Los datos de la sesión.
+         */
+        ArchivoSesion.Datos getDatos() {
+            return datos;
+        }
+
+        /**
+         * Expediente que figura en el log del paquete.
+         *
+         * @return El número de expediente, o {@code null} si el paquete no
+         * tiene log.
+         */
+        String getExpediente() {
+            return expediente;
+        }
+
+        /**
+         * Lo que no se ha podido reconstruir (entradas sin hueco en la
+         * configuración, datos que el paquete no incluye...).
+         *
+         * @return Los avisos, en el orden en que se han producido.
+         */
+        List<String> getAvisos() {
+            return avisos;
+        }
+
+        int getNumeroDocumentos() {
+            return datos.archivosComunes.size() + datos.archivosOferta.size();
+        }
+    }
+
+    /**
+     * Una entrada del paquete y los bytes que ocupa en su fichero.
+     */
+    private static final class Ubicacion {
+
+        private final DirectorioZip.Entrada entrada;
+        private final ArchivoSesion.Region region;
+
+        Ubicacion(DirectorioZip.Entrada entrada, ArchivoSesion.Region region) {
+            this.entrada = entrada;
+            this.region = region;
+        }
+    }
+
+    private final Configuracion configuracion;
+    private final Map<String, Ubicacion> ubicaciones = new LinkedHashMap<>();
+    private final Map<String, ContenidoArchivo> contenidos = new HashMap<>();
+    private final List<String> avisos = new ArrayList<>();
+    private boolean sinHuellas;
+
+    private ImportadorPaquete(Configuracion configuracion) {
+        this.configuracion = configuracion;
+    }
+
+    /**
+     * Abre los archivos de un paquete y reconstruye la sesión.
+     *
+     * @param paquetes Los ZIP del paquete: uno solo, o todos los sobres o
+     * volúmenes de la oferta.
+     * @param configuracion La configuración de la licitación, con los huecos
+     * en los que se colocan los documentos.
+     * @return La sesión reconstruida y los avisos.
+     * @throws IOException Si algún archivo no se puede leer, está cifrado o no
+     * es un paquete de la aplicación.
+     */
+    static Resultado importar(List<File> paquetes, Configuracion configuracion) throws IOException {
+        ImportadorPaquete importador = new ImportadorPaquete(configuracion);
+        for (File paquete : paquetes) {
+            importador.leerDirectorio(paquete);
+        }
+        return importador.reconstruir();
+    }
+
+    private void leerDirectorio(File paquete) throws IOException {
+        if (paquete.getName().endsWith(CifradorSobre.EXTENSION)) {
+            throw new IOException("El sobre " + paquete.getName() + " está cifrado. Descífrelo antes de abrirlo.");
+        }
+        Path ruta = paquete.toPath();
+        try (DirectorioZip directorio = DirectorioZip.abrir(ruta)) {
+            long tamanoFichero = Files.size(ruta);
+            long fecha = Files.getLastModifiedTime(ruta).toMillis();
+            for (DirectorioZip.Entrada entrada : directorio.getEntradas()) {
+                if (entrada.esDirectorio() || ubicaciones.containsKey(entrada.getNombre())) {
+                    // Los volúmenes repiten las carpetas y el índice de volúmenes.
+                    continue;
+                }
+                if (!entrada.esLegible()) {
+                    avisos.add("La entrada '" + entrada.getNombre() + "' de " + paquete.getName() + " está cifrada o usa un método de compresión no admitido.");
+                    continue;
+                }
+                byte compresion = entrada.getMetodo() == EscritorZip.STORED ? ArchivoSesion.SIN_COMPRIMIR : ArchivoSesion.COMPRIMIDO_DEFLATE;
+                ArchivoSesion.Region region = new ArchivoSesion.Region(ruta, directorio.getInicioDatos(entrada), entrada.getTamanoComprimido(),
+                        compresion, tamanoFichero, fecha);
+                ubicaciones.put(entrada.getNombre(), new Ubicacion(entrada, region));
+            }
+        }
+    }
+
+    private Resultado reconstruir() throws IOException {
+        Map<String, String> compartidas = leerIndiceCompartidos();
+        // Cada documento, en su ubicación original (las de los documentos compartidos, según el índice).
+        List<String> rutas = new ArrayList<>();
+        for (String ruta : ubicaciones.keySet()) {
+            if (!ruta.startsWith(DeduplicadorPaquete.CARPETA_COMPARTIDOS)) {
+                rutas.add(ruta);
+            }
+        }
+        rutas.addAll(compartidas.keySet());
+
+        String[] nombresComunes = configuracion.getNombresArchivosComunes();
+        String[] nombresOfertas = configuracion.getNombresArchivosOfertas();
+        Map<String, FileData> archivosComunes = new LinkedHashMap<>();
+        Map<String, FileData> archivosOferta = new LinkedHashMap<>();
+        TreeSet<Integer> lotesConOferta = new TreeSet<>();
+        String log = null;
+        for (String ruta : rutas) {
+            Ubicacion ubicacion = ubicaciones.get(compartidas.getOrDefault(ruta, ruta));
+            if (ubicacion == null) {
+                avisos.add("El documento compartido de '" + ruta + "' no está en los archivos abiertos.");
+                continue;
+            }
+            if (ruta.startsWith(CARPETA_COMUNES)) {
+                String nombre = ruta.substring(CARPETA_COMUNES.length());
+                String hueco = buscarHueco(nombre, nombresComunes);
+                if (hueco != null) {
+                    archivosComunes.put(hueco, crearFileData(nombre, ubicacion, CARPETA_COMUNES + hueco + SUFIJO_CONFIDENCIAL));
+                } else if (!nombre.endsWith(SUFIJO_CONFIDENCIAL)) {
+                    avisos.add("'" + ruta + "' no corresponde a ningún archivo común de esta licitación.");
+                }
+            } else if (ruta.startsWith(CARPETA_OFERTA)) {
+                String carpeta = "";
+                String prefijoClave = "";
+                String nombre = ruta.substring(CARPETA_OFERTA.length());
+                int barra = nombre.indexOf('/');
+                if (barra != -1 && configuracion.isTieneLotes() && nombre.startsWith(PREFIJO_LOTE)) {
+                    try {
+                        int lote = Integer.parseInt(nombre.substring(PREFIJO_LOTE.length(), barra));
+                        carpeta = nombre.substring(0, barra + 1);
+                        prefijoClave = "Lote" + lote + "_";
+                        nombre = nombre.substring(barra + 1);
+                        lotesConOferta.add(lote);
+                    } catch (NumberFormatException e) {
+                        // Se busca el hueco como oferta general, con la ruta completa.
+                    }
+                }
+                String hueco = nombre.indexOf('/') == -1 ? buscarHueco(nombre, nombresOfertas) : null;
+                if (hueco != null) {
+                    archivosOferta.put(prefijoClave + hueco, crearFileData(nombre, ubicacion, CARPETA_OFERTA + carpeta + hueco + SUFIJO_CONFIDENCIAL));
+                } else if (!nombre.endsWith(SUFIJO_CONFIDENCIAL)) {
+                    avisos.add("'" + ruta + "' no corresponde a ningún documento de oferta de esta licitación.");
+                }
+            } else if (ruta.startsWith(PREFIJO_LOG) && ruta.endsWith(".txt") && ruta.indexOf('/') == -1 && log == null) {
+                byte[] cabecera = new byte[(int) Math.min(CABECERA_LOG, ubicacion.entrada.getTamano())];
+                int leidos = ubicacion.region.leer(0, cabecera, cabecera.length);
+                // Si el log es más largo, el corte puede partir un carácter: sin él, el UTF-8 se reconoce igual.
+                if (leidos < ubicacion.entrada.getTamano()) {
+                    leidos = sinCaracterCortado(cabecera, leidos);
+                }
+                log = decodificar(Arrays.copyOf(cabecera, leidos));
+            }
+        }
+
+        LicitadorData licitador = new LicitadorData();
+        String expediente = null;
+        if (log != null) {
+            expediente = leerLicitador(log, licitador);
+            avisos.add("Los datos del apoderado no figuran en el paquete: revíselos antes de generar el Anexo Administrativo.");
+        } else {
+            avisos.add("El paquete no incluye el log con los datos del licitador: complételos de nuevo.");
+        }
+
+        Map<Integer, Boolean> participacion = new LinkedHashMap<>();
+        if (configuracion.isTieneLotes()) {
+            for (int lote = 1; lote <= configuracion.getNumLotes(); lote++) {
+                participacion.put(lote, lotesConOferta.contains(lote));
+            }
+        }
+        if (sinHuellas) {
+            avisos.add("El paquete no registra las huellas de sus documentos: se calcularán leyéndolos, lo que puede tardar.");
+        }
+        return new Resultado(new ArchivoSesion.Datos(archivosComunes, archivosOferta, licitador, participacion), expediente, avisos);
+    }
+
+    /**
+     * Busca el hueco configurado al que corresponde el nombre de una entrada,
+     * que es el nombre configurado seguido de la extensión del documento.
+     */
+    private static String buscarHueco(String nombreEntrada, String[] nombresConfigurados) {
+        String hueco = null;
+        for (String nombre : nombresConfigurados) {
+            boolean coincide = nombreEntrada.equals(nombre)
+                    || (nombreEntrada.startsWith(nombre + ".") && nombreEntrada.indexOf('.', nombre.length() + 1) == -1);
+            // Si varios nombres configurados son prefijo uno de otro, el más largo es el exacto.
+            if (coincide && (hueco == null || nombre.length() > hueco.length())) {
+                hueco = nombre;
+            }
+        }
+        return hueco;
+    }
+
+    private FileData crearFileData(String nombre, Ubicacion ubicacion, String rutaConfidencial) throws IOException {
+        String clave = ubicacion.entrada.getNombre();
+        ContenidoArchivo contenido = contenidos.get(clave);
+        if (contenido == null) {
+            String huella = ubicacion.entrada.getHuella();
+            sinHuellas |= huella == null;
+            contenido = ContenidoArchivo.desdeSesion(null, ubicacion.entrada.getTamano(), 0L, huella, ubicacion.entrada.getCrc(), ubicacion.region);
+            contenidos.put(clave, contenido);
+        }
+        Ubicacion declaracion = ubicaciones.get(rutaConfidencial);
+        if (declaracion == null) {
+            return new FileData(nombre, contenido, false, null, null);
+        }
+        List<String> supuestos = new ArrayList<>();
+        List<String> motivos = new ArrayList<>();
+        leerDeclaracion(leerTexto(declaracion), supuestos, motivos);
+        if (supuestos.isEmpty()) {
+            avisos.add("No se han podido leer los supuestos de confidencialidad de '" + rutaConfidencial + "'.");
+            return new FileData(nombre, contenido, true, null, null);
+        }
+        return new FileData(nombre, contenido, true, supuestos.toArray(new String[0]), motivos.toArray(new String[0]));
+    }
+
+    /**
+     * Lee el índice de documentos compartidos: para cada ubicación original,
+     * la entrada de {@value DeduplicadorPaquete#CARPETA_COMPARTIDOS} que la
+     * contiene.
+     */
+    private Map<String, String> leerIndiceCompartidos() throws IOException {
+        Ubicacion indice = ubicaciones.get(DeduplicadorPaquete.NOMBRE_INDICE);
+        if (indice == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> compartidas = new LinkedHashMap<>();
+        String compartida = null;
+        for (String linea : leerTexto(indice).split("\n")) {
+            if (linea.startsWith(DeduplicadorPaquete.CARPETA_COMPARTIDOS) && linea.lastIndexOf(" (") != -1) {
+                // "Documentos Compartidos/nombre.pdf (1,2 MB)"
+                compartida = linea.substring(0, linea.lastIndexOf(" ("));
+            } else if (linea.startsWith("  - ") && compartida != null) {
+                compartidas.put(linea.substring("  - ".length()), compartida);
+            }
+        }
+        return compartidas;
+    }
+
+    /**
+     * Recupera los supuestos y motivos de una declaración de confidencialidad
+     * (ver {@code FileManager.generarContenidoConfidencialDetallado}). Los
+     * motivos pueden ocupar varias líneas.
+     */
+    private static void leerDeclaracion(String texto, List<String> supuestos, List<String> motivos) {
+        StringBuilder motivo = null;
+        for (String linea : texto.split("\n", -1)) {
+            if (linea.startsWith("- Supuesto: ")) {
+                cerrarMotivo(motivo, supuestos, motivos);
+                supuestos.add(linea.substring("- Supuesto: ".length()));
+                motivo = null;
+            } else if (linea.startsWith("  Motivo: ") && motivo == null && !supuestos.isEmpty()) {
+                motivo = new StringBuilder(linea.substring("  Motivo: ".length()));
+            } else if (linea.startsWith("-----")) {
+                break;
+            } else if (motivo != null) {
+                motivo.append('\n').append(linea);
+            }
+        }
+        cerrarMotivo(motivo, supuestos, motivos);
+    }
+
+    private static void cerrarMotivo(StringBuilder motivo, List<String> supuestos, List<String> motivos) {
+        while (motivos.size() < supuestos.size() - 1) {
+            motivos.add("");
+        }
+        if (motivos.size() < supuestos.size()) {
+            // Tras cada motivo la declaración deja una línea en blanco.
+            motivos.add(motivo != null ? motivo.toString().replaceAll("\\n+$", "") : "");
+        }
+    }
+
+    /**
+     * Rellena los datos del licitador con la cabecera del log (ver
+     * {@link LicitadorData#toString()}). Los logs antiguos se escribían en la
+     * codificación del sistema, que puede haber perdido los acentos de las
+     * etiquetas, así que estas se comparan sin ellos.
+     *
+     * @return El expediente que figura en el log, o {@code null}.
+     */
+    private static String leerLicitador(String log, LicitadorData licitador) {
+        for (String linea : log.split("\r?\n")) {
+            int separador = linea.indexOf(": ");
+            if (separador == -1) {
+                continue;
+            }
+            String valor = valorTexto(linea.substring(separador + 2));
+            switch (sinAcentos(linea.substring(0, separador))) {
+                case "Razn Social":
+                    licitador.setRazonSocial(valor);
+                    break;
+                case "NIF":
+                    licitador.setNif(valor);
+                    break;
+                case "PYME":
+                    licitador.setEsPyme(!valor.isEmpty() && !valor.equals("No"));
+                    break;
+                case "Extranjera":
+                    licitador.setEsExtranjera(!valor.isEmpty() && !valor.equals("No"));
+                    break;
+                case "Domicilio":
+                    licitador.setDomicilio(valor);
+                    break;
+                case "Telfono":
+                    licitador.setTelefono(valor);
+                    break;
+                case "Email":
+                    licitador.setEmail(valor);
+                    break;
+                case "Expediente":
+                    // Lo que sigue es el log de la aplicación.
+                    return valor.isEmpty() ? null : valor;
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Valor de un campo del log: los que no se rellenaron se escribieron como
+     * "null" (o vacíos) y vuelven como cadena vacía, el valor por defecto de
+     * {@link LicitadorData}.
+     */
+    private static String valorTexto(String valor) {
+        String limpio = valor.trim();
+        return limpio.equals("null") ? "" : limpio;
+    }
+
+    private static String sinAcentos(String etiqueta) {
+        return etiqueta.replaceAll("[^\\x20-\\x7E]|\\?", "");
+    }
+
+    private String leerTexto(Ubicacion ubicacion) throws IOException {
+        if (ubicacion.entrada.getTamano() > MAXIMO_TEXTO) {
+            throw new IOException("La entrada '" + ubicacion.entrada.getNombre() + "' es demasiado grande para ser un texto del paquete.");
+        }
+        byte[] bytes = new byte[(int) ubicacion.entrada.getTamano()];
+        try (InputStream entrada = Channels.newInputStream(ubicacion.region.abrir())) {
+            int leidos = 0;
+            int n;
+            while (leidos < bytes.length && (n = entrada.read(bytes, leidos, bytes.length - leidos)) > 0) {
+                leidos += n;
+            }
+            if (leidos < bytes.length) {
+                throw new IOException("La entrada '" + ubicacion.entrada.getNombre() + "' está truncada.");
+            }
+        }
+        return decodificar(bytes);
+    }
+
+    /**
+     * Longitud de los bytes sin la secuencia UTF-8 incompleta con la que
+     * puedan terminar.
+     */
+    private static int sinCaracterCortado(byte[] bytes, int longitud) {
+        for (int i = longitud - 1; i >= 0 && i >= longitud - 4; i--) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                int necesarios = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+                return i + necesarios > longitud ? i : longitud;
+            }
+        }
+        return longitud;
+    }
+
+    /**
+     * Los textos del paquete se escriben en UTF-8 o, en versiones anteriores,
+     * en la codificación por defecto del sistema.
+     */
+    private static String decodificar(byte[] bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(bytes, Charset.defaultCharset());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.licitador.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Manifiesto de integridad del paquete organizado como árbol de Merkle.
+ * <p>
+ * Cada ubicación de la oferta (cada documento en su lote o carpeta, el log y
+ * las declaraciones de confidencialidad) es una hoja con su ruta, la entrada
+ * del ZIP que la contiene, la huella SHA-256 y el tamaño de su contenido, el
+ * hueco al que pertenece (registro, anexo, interactivo, común, oferta o
+ * lote N) y si se ha declarado confidencial. Las hojas de cada hueco forman
+ * un subárbol y las raíces de los subárboles, en un orden fijo, el árbol del
+ * paquete. Con el manifiesto ({@value #NOMBRE}) el receptor puede
+ * comprobar el paquete entero, o un solo lote, en paralelo y sin descomprimir
+ * las entradas que no le interesan, y comparar la raíz de dos presentaciones
+ * para detectar si son la misma.
+ * </p>
+ * <p>
+ * Las hojas son {@code SHA-256(0x00 || línea)}, con la línea
+ * {@code ruta TAB entrada TAB sha256 TAB tamaño TAB hueco TAB confidencial}
+ * en UTF-8, y los nodos {@code SHA-256(0x01 || izquierdo || derecho)}; un
+ * nodo sin pareja sube de nivel sin cambios. Las hojas de cada hueco van
+ * ordenadas por ruta.
+ * </p>
+ */
+public final class ManifiestoPaquete {
+
+    /**
+     * Nombre de la entrada del manifiesto en el ZIP.
+     */
+    public static final String NOMBRE = "MANIFIESTO_INTEGRIDAD.json";
+    private static final String SUFIJO_CONFIDENCIAL = "_Confidencial.txt";
+    private static final String CARPETA_COMUNES = "Archivos Comunes/";
+    private static final String CARPETA_OFERTA = "Documentos Oferta/";
+    private static final String PREFIJO_LOTE = "Lote ";
+    private static final String PREFIJO_ANEXO = "Anexo Administrativo";
+
+    /**
+     * Una hoja del árbol.
+     */
+    private static final class Hoja {
+
+        final String ruta;
+        final String entrada;
+        final String huella;
+        final long tamano;
+        final String hueco;
+        final boolean confidencial;
+        final byte[] hash;
+
+        Hoja(String ruta, String entrada, String huella, long tamano, String hueco, boolean confidencial) {
+            this.ruta = ruta;
+            this.entrada = entrada;
+            this.huella = huella;
+            this.tamano = tamano;
+            this.hueco = hueco;
+            this.confidencial = confidencial;
+            String linea = ruta + "\t" + entrada + "\t" + huella + "\t" + tamano + "\t" + hueco + "\t" + confidencial;
+            this.hash = hash((byte) 0, linea.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private final String raiz;
+    private final Map<String, String> raicesHuecos;
+    private final byte[] contenido;
+
+    private ManifiestoPaquete(String raiz, Map<String, String> raicesHuecos, byte[] contenido) {
+        this.raiz = raiz;
+        this.raicesHuecos = raicesHuecos;
+        this.contenido = contenido;
+    }
+
+    /**
+     * Genera el manifiesto de un paquete.
+     *
+     * @param entradas Las entradas del paquete (sin el propio manifiesto).
+     * @return El manifiesto.
+     */
+    public static ManifiestoPaquete generar(List<EntradaPaquete> entradas) {
+        Set<String> rutas = new HashSet<>();
+        for (EntradaPaquete entrada : entradas) {
+            rutas.addAll(entrada.getUbicaciones());
+        }
+        Map<String, List<Hoja>> porHueco = new TreeMap<>(ManifiestoPaquete::compararHuecos);
+        for (EntradaPaquete entrada : entradas) {
+            if (entrada.esDirectorio()) {
+                continue;
+            }
+            String huella = IdentidadPaquete.huella(entrada);
+            for (String ubicacion : entrada.getUbicaciones()) {
+                String hueco = hueco(ubicacion, entrada.getContenido() != null);
+                boolean confidencial = entrada.getContenido() != null && rutas.contains(baseDocumento(ubicacion) + SUFIJO_CONFIDENCIAL);
+                porHueco.computeIfAbsent(hueco, k -> new ArrayList<>())
+                        .add(new Hoja(ubicacion, entrada.getRuta(), huella, entrada.getTamano(), hueco, confidencial));
+            }
+        }
+
+        Map<String, String> raicesHuecos = new LinkedHashMap<>();
+        List<byte[]> subarboles = new ArrayList<>();
+        StringBuilder huecos = new StringBuilder();
+        for (Map.Entry<String, List<Hoja>> hueco : porHueco.entrySet()) {
+            List<Hoja> hojas = hueco.getValue();
+            hojas.sort((a, b) -> a.ruta.compareTo(b.ruta));
+            List<byte[]> hashes = new ArrayList<>();
+            for (Hoja hoja : hojas) {
+                hashes.add(hoja.hash);
+            }
+            byte[] raizHueco = raizMerkle(hashes);
+            subarboles.add(raizHueco);
+            raicesHuecos.put(hueco.getKey(), ContenidoArchivo.aHexadecimal(raizHueco));
+
+            huecos.append(huecos.length() == 0 ? "\n" : ",\n");
+            huecos.append("    {\"hueco\": ").append(DeduplicadorPaquete.json(hueco.getKey()))
+                    .append(", \"raiz\": \"").append(ContenidoArchivo.aHexadecimal(raizHueco)).append("\", \"hojas\": [");
+            for (int i = 0; i < hojas.size(); i++) {
+                Hoja hoja = hojas.get(i);
+                huecos.append(i == 0 ? "\n" : ",\n");
+                huecos.append("      {\"ruta\": ").append(DeduplicadorPaquete.json(hoja.ruta))
+                        .append(", \"entrada\": ").append(DeduplicadorPaquete.json(hoja.entrada))
+                        .append(", \"sha256\": \"").append(hoja.huella)
+                        .append("\", \"tamano\": ").append(hoja.tamano)
+                        .append(", \"confidencial\": ").append(hoja.confidencial)
+                        .append(", \"hoja\": \"").append(ContenidoArchivo.aHexadecimal(hoja.hash)).append("\"}");
+            }
+            huecos.append("\n    ]}");
+        }
+        String raiz = ContenidoArchivo.aHexadecimal(raizMerkle(subarboles));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"version\": 1,\n  \"algoritmo\": \"SHA-256\",\n");
+        sb.append("  \"hoja\": \"SHA-256(0x00 || ruta TAB entrada TAB sha256 TAB tamano TAB hueco TAB confidencial)\",\n");
+        sb.append("  \"nodo\": \"SHA-256(0x01 || izquierdo || derecho); un nodo sin pareja sube sin cambios\",\n");
+        sb.append("  \"raiz\": \"").append(raiz).append("\",\n");
+        sb.append("  \"huecos\": [").append(huecos).append("\n  ]\n}\n");
+        return new ManifiestoPaquete(raiz, Collections.unmodifiableMap(raicesHuecos), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Huella raíz del árbol de Merkle del paquete.
+     *
+     * @return La raíz en hexadecimal.
+     */
+    public String getRaiz() {
+        return raiz;
+    }
+
+    /**
+     * Raíz del subárbol de cada hueco, en el orden del árbol.
+     *
+     * @return Las raíces por hueco (ej: "lote 2").
+     */
+    public Map<String, String> getRaicesHuecos() {
+        return raicesHuecos;
+    }
+
+    /**
+     * Entrada del ZIP con el manifiesto.
+     *
+     * @return La entrada {@value #NOMBRE}.
+     */
+    public EntradaPaquete comoEntrada() {
+        return EntradaPaquete.desdeBytes(NOMBRE, contenido, "Manifiesto de integridad añadido (raíz " + raiz + ")");
+    }
+
+    /**
+     * Hueco de la oferta al que pertenece una ruta del paquete.
+     */
+    private static String hueco(String ruta, boolean esDocumento) {
+        if (ruta.startsWith(CARPETA_COMUNES)) {
+            return "comun";
+        }
+        if (ruta.startsWith(CARPETA_OFERTA + PREFIJO_LOTE)) {
+            int barra = ruta.indexOf('/', CARPETA_OFERTA.length());
+            if (barra != -1) {
+                return "lote " + ruta.substring(CARPETA_OFERTA.length() + PREFIJO_LOTE.length(), barra);
+            }
+        }
+        if (ruta.startsWith(CARPETA_OFERTA)) {
+            return "oferta";
+        }
+        if (ruta.indexOf('/') == -1) {
+            if (!esDocumento) {
+                return "registro";
+            }
+            return ruta.startsWith(PREFIJO_ANEXO) ? "anexo" : "interactivo";
+        }
+        return "otros";
+    }
+
+    /**
+     * Orden fijo de los huecos en el árbol: registro, anexo, interactivos,
+     * comunes, oferta, lotes por número y el resto.
+     */
+    private static int compararHuecos(String a, String b) {
+        int diferencia = Integer.compare(rango(a), rango(b));
+        if (diferencia != 0) {
+            return diferencia;
+        }
+        if (a.startsWith("lote ") && b.startsWith("lote ")) {
+            try {
+                return Integer.compare(Integer.parseInt(a.substring(5)), Integer.parseInt(b.substring(5)));
+            } catch (NumberFormatException e) {
+                // Se ordenan como texto.
+            }
+        }
+        return a.compareTo(b);
+    }
+
+    private static int rango(String hueco) {
+        switch (hueco) {
+            case "registro":
+                return 0;
+            case "anexo":
+                return 1;
+            case "interactivo":
+                return 2;
+            case "comun":
+                return 3;
+            case "oferta":
+                return 4;
+            default:
+                return hueco.startsWith("lote ") ? 5 : 6;
+        }
+    }
+
+    private static String baseDocumento(String ruta) {
+        int punto = ruta.lastIndexOf('.');
+        return punto > ruta.lastIndexOf('/') ? ruta.substring(0, punto) : ruta;
+    }
+
+    /**
+     * Raíz de Merkle de una lista de hashes (la de una lista vacía es el hash
+     * de cero bytes).
+     */
+    static byte[] raizMerkle(List<byte[]> hashes) {
+        if (hashes.isEmpty()) {
+            return ContenidoArchivo.nuevoDigest().digest();
+        }
+        List<byte[]> nivel = hashes;
+        while (nivel.size() > 1) {
+            List<byte[]> siguiente = new ArrayList<>((nivel.size() + 1) / 2);
+            for (int i = 0; i < nivel.size(); i += 2) {
+                siguiente.add(i + 1 < nivel.size() ? hash((byte) 1, nivel.get(i), nivel.get(i + 1)) : nivel.get(i));
+            }
+            nivel = siguiente;
+        }
+        return nivel.get(0);
+    }
+
+    private static byte[] hash(byte prefijo, byte[]... partes) {
+        MessageDigest digest = ContenidoArchivo.nuevoDigest();
+        digest.update(prefijo);
+        for (byte[] parte : partes) {
+            digest.update(parte);
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,378 @@
+package com.licitador.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reparto de las entradas de un paquete en varios ZIP independientes
+ * (volúmenes) que no superan un tamaño máximo, para respetar el límite por
+ * fichero de las plataformas de contratación.
+ * <p>
+ * El tamaño comprimido no se conoce hasta escribir, así que el reparto usa
+ * una cota superior de lo que ocupará cada entrada en el ZIP (tamaño sin
+ * comprimir más la expansión máxima de DEFLATE y las cabeceras): el
+ * límite se respeta siempre, aunque los volúmenes con documentos
+ * comprimibles queden por debajo. Se usa el mínimo número de volúmenes que
+ * admite el reparto y se equilibran colocando primero los documentos
+ * grandes en el volumen menos cargado.
+ * </p>
+ * <p>
+ * Cada volumen es un ZIP completo que se abre por sí solo: lleva las carpetas
+ * de sus documentos y un {@value #NOMBRE_INDICE} con la lista de qué
+ * documento está en qué volumen. Las declaraciones de confidencialidad
+ * ({@code *_Confidencial.txt}) van siempre en el mismo volumen que su
+ * documento.
+ * </p>
+ */
+public class PlanVolumenes {
+
+    /**
+     * Nombre del índice que se incluye en cada volumen.
+     */
+    public static final String NOMBRE_INDICE = "INDICE_VOLUMENES.txt";
+    /**
+     * Límites habituales de las plataformas, en bytes (0 = sin dividir).
+     */
+    public static final long[] LIMITES_HABITUALES = {0, 10L << 20, 25L << 20, 50L << 20, 100L << 20, 250L << 20};
+    /**
+     * Sufijo de las declaraciones de confidencialidad que acompañan a un
+     * documento.
+     */
+    private static final String SUFIJO_CONFIDENCIAL = "_Confidencial.txt";
+    /**
+     * Cabeceras local y central de una entrada sin contar el nombre (incluidos
+     * los campos extra ZIP64).
+     */
+    private static final long CABECERAS_ENTRADA = 30 + 20 + 46 + 28;
+    /**
+     * Registros de fin de ZIP (ZIP64 incluido).
+     */
+    private static final long FIN_ZIP = 22 + 56 + 20;
+
+    /**
+     * Documento (o documento más su declaración de confidencialidad) que se
+     * coloca como una unidad.
+     */
+    private static final class Grupo {
+
+        final List<EntradaPaquete> entradas = new ArrayList<>();
+        final int orden;
+        long tamano;
+
+        Grupo(int orden) {
+            this.orden = orden;
+        }
+    }
+
+    private final long limite;
+    private final List<List<EntradaPaquete>> volumenes;
+
+    private PlanVolumenes(long limite, List<List<EntradaPaquete>> volumenes) {
+        this.limite = limite;
+        this.volumenes = volumenes;
+    }
+
+    /**
+     * Reparte las entradas en volúmenes de como mucho {@code limite} bytes.
+     * Dentro de cada volumen se conserva el orden original y se añaden las
+     * carpetas necesarias y el índice al principio.
+     *
+     * @param entradas Las entradas del paquete, en orden.
+     * @param limite Tamaño máximo de cada volumen, en bytes.
+     * @return El plan.
+     * @throws IOException Si algún documento no cabe en un volumen por sí
+     * solo.
+     */
+    public static PlanVolumenes planificar(List<EntradaPaquete> entradas, long limite) throws IOException {
+        List<Grupo> grupos = agrupar(entradas);
+        List<String> rutas = new ArrayList<>();
+        for (EntradaPaquete entrada : entradas) {
+            rutas.add(entrada.getRuta());
+        }
+        long capacidad = capacidad(limite, rutas);
+
+        List<String> demasiadoGrandes = new ArrayList<>();
+        long total = 0;
+        for (Grupo grupo : grupos) {
+            if (grupo.tamano > capacidad) {
+                demasiadoGrandes.add(grupo.entradas.get(0).getRuta() + " (" + GestorMemoria.formatearTamano(grupo.entradas.get(0).getTamano()) + ")");
+            }
+            total += grupo.tamano;
+        }
+        if (!demasiadoGrandes.isEmpty()) {
+            throw new IOException("Los siguientes documentos no caben en un volumen de " + GestorMemoria.formatearTamano(limite)
+                    + ": " + String.join(", ", demasiadoGrandes) + ". Reduzca su tamaño o elija un límite mayor.");
+        }
+
+        List<Grupo> porTamano = new ArrayList<>(grupos);
+        porTamano.sort(Comparator.comparingLong((Grupo g) -> g.tamano).reversed());
+        int numero = volumenesMinimos(total, capacidad);
+        List<List<Grupo>> reparto;
+        while ((reparto = repartir(porTamano, numero, capacidad)) == null) {
+            numero++;
+        }
+
+        List<List<EntradaPaquete>> volumenes = new ArrayList<>();
+        for (List<Grupo> volumen : reparto) {
+            // Se recupera el orden original de las entradas dentro del volumen.
+            volumen.sort(Comparator.comparingInt((Grupo g) -> g.orden));
+            List<EntradaPaquete> contenido = new ArrayList<>();
+            for (Grupo grupo : volumen) {
+                contenido.addAll(grupo.entradas);
+            }
+            volumenes.add(contenido);
+        }
+        List<EntradaPaquete> carpetasVacias = new ArrayList<>();
+        for (EntradaPaquete entrada : entradas) {
+            if (entrada.esDirectorio()) {
+                carpetasVacias.add(entrada);
+            }
+        }
+        PlanVolumenes plan = new PlanVolumenes(limite, volumenes);
+        plan.completarVolumenes(carpetasVacias);
+        return plan;
+    }
+
+    /**
+     * Reparte los grupos (ordenados de mayor a menor) en el número de
+     * volúmenes indicado, cada uno en el menos cargado en el que quepa.
+     *
+     * @return El reparto, o {@code null} si no caben.
+     */
+    private static List<List<Grupo>> repartir(List<Grupo> porTamano, int numero, long capacidad) {
+        List<List<Grupo>> reparto = new ArrayList<>();
+        long[] carga = new long[numero];
+        for (int i = 0; i < numero; i++) {
+            reparto.add(new ArrayList<>());
+        }
+        for (Grupo grupo : porTamano) {
+            int elegido = -1;
+            for (int i = 0; i < numero; i++) {
+                if (carga[i] + grupo.tamano <= capacidad && (elegido == -1 || carga[i] < carga[elegido])) {
+                    elegido = i;
+                }
+            }
+            if (elegido == -1) {
+                return null;
+            }
+            carga[elegido] += grupo.tamano;
+            reparto.get(elegido).add(grupo);
+        }
+        return reparto;
+    }
+
+    /**
+     * Agrupa cada documento con su declaración de confidencialidad. Las
+     * carpetas no forman grupo: se añaden después a cada volumen que las
+     * necesita.
+     */
+    private static List<Grupo> agrupar(List<EntradaPaquete> entradas) {
+        List<Grupo> grupos = new ArrayList<>();
+        Grupo anterior = null;
+        for (EntradaPaquete entrada : entradas) {
+            if (entrada.esDirectorio()) {
+                continue;
+            }
+            if (anterior != null && esConfidencialDe(entrada, anterior.entradas.get(0))) {
+                anterior.entradas.add(entrada);
+                anterior.tamano += cotaEntrada(entrada.getRuta(), entrada.getTamano());
+                continue;
+            }
+            Grupo grupo = new Grupo(grupos.size());
+            grupo.entradas.add(entrada);
+            grupo.tamano = cotaDocumento(entrada.getRuta(), entrada.getTamano());
+            grupos.add(grupo);
+            anterior = grupo;
+        }
+        return grupos;
+    }
+
+    private static boolean esConfidencialDe(EntradaPaquete entrada, EntradaPaquete documento) {
+        String ruta = entrada.getRuta();
+        if (!ruta.endsWith(SUFIJO_CONFIDENCIAL)) {
+            return false;
+        }
+        String base = ruta.substring(0, ruta.length() - SUFIJO_CONFIDENCIAL.length());
+        String rutaDocumento = documento.getRuta();
+        int punto = rutaDocumento.lastIndexOf('.');
+        String baseDocumento = punto > rutaDocumento.lastIndexOf('/') ? rutaDocumento.substring(0, punto) : rutaDocumento;
+        return base.equals(baseDocumento);
+    }
+
+    /**
+     * Cota superior de lo que ocupa un documento en un volumen: su entrada y
+     * las carpetas de su ruta. Es lo que cuenta el reparto, no el tamaño
+     * comprimido, así que un documento que no cabe por esta cota hace fallar
+     * el empaquetado aunque comprimido fuese menor que el límite.
+     *
+     * @param ruta Ruta del documento en el ZIP.
+     * @param tamano Tamaño del documento sin comprimir.
+     * @return Los bytes que se le reservan.
+     */
+    public static long cotaDocumento(String ruta, long tamano) {
+        return cotaEntrada(ruta, tamano) + cotaCarpetas(ruta);
+    }
+
+    /**
+     * Espacio de un volumen disponible para documentos: el límite menos el
+     * índice y los registros de fin de ZIP.
+     *
+     * @param limite Tamaño máximo de cada volumen, en bytes.
+     * @param rutas Rutas de las entradas del paquete, que lista el índice.
+     * @return Los bytes disponibles.
+     */
+    public static long capacidad(long limite, List<String> rutas) {
+        return limite - FIN_ZIP - cotaEntrada(NOMBRE_INDICE, tamanoMaximoIndice(rutas));
+    }
+
+    /**
+     * Número de volúmenes del que parte el reparto: el necesario si las cotas
+     * se pudieran repartir sin huecos.
+     *
+     * @param total Suma de las {@link #cotaDocumento cotas} de los documentos.
+     * @param capacidad La {@link #capacidad} de cada volumen.
+     * @return El número mínimo de volúmenes.
+     */
+    public static int volumenesMinimos(long total, long capacidad) {
+        return (int) Math.max(1, (total + capacidad - 1) / capacidad);
+    }
+
+    /**
+     * Cota superior de lo que ocupa una entrada en el ZIP: datos más la
+     * expansión máxima de DEFLATE (5 bytes por bloque de 16 KB en el peor
+     * caso, más los vaciados por bloque del empaquetador) y cabeceras.
+     */
+    private static long cotaEntrada(String ruta, long tamano) {
+        long expansion = (tamano >> 10) + 5 * (tamano / EmpaquetadorZip.TAMANO_BLOQUE + 1) + 64;
+        return tamano + expansion + CABECERAS_ENTRADA + 2L * ruta.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Cota de las carpetas que un documento obliga a incluir en su volumen.
+     */
+    private static long cotaCarpetas(String ruta) {
+        long cota = 0;
+        int barra = ruta.indexOf('/');
+        while (barra != -1) {
+            cota += cotaEntrada(ruta.substring(0, barra + 1), 0);
+            barra = ruta.indexOf('/', barra + 1);
+        }
+        return cota;
+    }
+
+    /**
+     * Tamaño máximo que puede llegar a tener el índice, sea cual sea el
+     * reparto.
+     */
+    private static long tamanoMaximoIndice(List<String> rutas) {
+        long tamano = 1024;
+        for (String ruta : rutas) {
+            // Línea del documento y, en el peor caso, la cabecera de un volumen propio.
+            tamano += ruta.getBytes(StandardCharsets.UTF_8).length + 96;
+        }
+        return tamano;
+    }
+
+    /**
+     * Añade a cada volumen, al principio, el índice y las carpetas de sus
+     * documentos. Las carpetas sin documentos van en el primer volumen.
+     */
+    private void completarVolumenes(List<EntradaPaquete> carpetas) {
+        byte[] indice = generarIndice().getBytes(StandardCharsets.UTF_8);
+        Set<String> carpetasUsadas = new LinkedHashSet<>();
+        for (List<EntradaPaquete> volumen : volumenes) {
+            for (EntradaPaquete entrada : volumen) {
+                carpetasUsadas.addAll(carpetasDe(entrada.getRuta()));
+            }
+        }
+        for (int i = 0; i < volumenes.size(); i++) {
+            List<EntradaPaquete> volumen = volumenes.get(i);
+            Set<String> necesarias = new LinkedHashSet<>();
+            for (EntradaPaquete entrada : volumen) {
+                necesarias.addAll(carpetasDe(entrada.getRuta()));
+            }
+            if (i == 0) {
+                for (EntradaPaquete carpeta : carpetas) {
+                    if (!carpetasUsadas.contains(carpeta.getRuta())) {
+                        necesarias.add(carpeta.getRuta());
+                    }
+                }
+            }
+            List<EntradaPaquete> completo = new ArrayList<>();
+            completo.add(EntradaPaquete.desdeBytes(NOMBRE_INDICE, indice, null));
+            for (String carpeta : necesarias) {
+                completo.add(EntradaPaquete.directorio(carpeta));
+            }
+            completo.addAll(volumen);
+            volumenes.set(i, completo);
+        }
+    }
+
+    private static List<String> carpetasDe(String ruta) {
+        List<String> carpetas = new ArrayList<>();
+        int barra = ruta.indexOf('/');
+        while (barra != -1 && barra < ruta.length() - 1) {
+            carpetas.add(ruta.substring(0, barra + 1));
+            barra = ruta.indexOf('/', barra + 1);
+        }
+        return carpetas;
+    }
+
+    /**
+     * Texto del índice: qué documento está en qué volumen.
+     */
+    private String generarIndice() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ÍNDICE DE VOLÚMENES\r\n");
+        sb.append("===================\r\n");
+        sb.append("La oferta se ha dividido en ").append(volumenes.size()).append(" archivos ZIP independientes de como máximo ")
+                .append(GestorMemoria.formatearTamano(limite)).append(" cada uno.\r\n");
+        sb.append("Deben presentarse todos los volúmenes.\r\n");
+        for (int i = 0; i < volumenes.size(); i++) {
+            sb.append("\r\nVolumen ").append(i + 1).append(" de ").append(volumenes.size()).append(":\r\n");
+            for (EntradaPaquete entrada : volumenes.get(i)) {
+                if (!entrada.esDirectorio()) {
+                    sb.append("  ").append(entrada.getRuta()).append(" (").append(GestorMemoria.formatearTamano(entrada.getTamano())).append(")\r\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Nombre del fichero de un volumen a partir del nombre del paquete.
+     *
+     * @param destino El fichero del paquete (ej: "Oferta_B123_20250101.zip").
+     * @param volumen Índice del volumen (desde 0).
+     * @param total Número de volúmenes.
+     * @return El fichero del volumen (ej: "Oferta_B123_20250101_vol1de3.zip").
+     */
+    public static File ficheroVolumen(File destino, int volumen, int total) {
+        String nombre = destino.getName();
+        int punto = nombre.toLowerCase().endsWith(".zip") ? nombre.length() - 4 : nombre.length();
+        return new File(destino.getParentFile(), nombre.substring(0, punto) + "_vol" + (volumen + 1) + "de" + total + ".zip");
+    }
+
+    /**
+     * Entradas de cada volumen, con sus carpetas y el índice.
+     *
+     * @return Una lista por volumen.
+     */
+    public List<List<EntradaPaquete>> getVolumenes() {
+        return volumenes;
+    }
+
+    public int getNumeroVolumenes() {
+        return volumenes.size();
+    }
+
+    public long getLimite() {
+        return limite;
+    }
+}
@@ -0,0 +1,329 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Decide, entrada a entrada, cómo se guarda cada documento en el paquete ZIP:
+ * almacenado sin comprimir (STORED) o comprimido con DEFLATE a un nivel
+ * determinado.
+ * <p>
+ * La mayoría de los adjuntos (PDF, JPEG, DOCX/XLSX, ZIP...) ya vienen
+ * comprimidos y volver a pasarlos por DEFLATE consume CPU para ganar un 0-2 %.
+ * La política reconoce esos formatos por sus bytes mágicos y, para el resto,
+ * estima la entropía de unas muestras del contenido (inicio, mitad y final):
+ * los datos con entropía cercana a 8 bits por byte se almacenan tal cual.
+ * </p>
+ * <p>
+ * El comportamiento depende del {@link Perfil}: el rápido prima la velocidad,
+ * el equilibrado (por defecto) solo comprime lo que merece la pena, y el de
+ * máxima compresión prueba incluso los formatos ya comprimidos y usa el nivel
+ * más alto de DEFLATE.
+ * </p>
+ */
+public class PoliticaCompresion {
+
+    /**
+     * Propiedad de sistema con el perfil por defecto (RAPIDO, EQUILIBRADO o
+     * MAXIMO).
+     */
+    public static final String PROPIEDAD_PERFIL = "licitador.compresion.perfil";
+
+    /**
+     * Entradas más pequeñas que esto se almacenan: la cabecera DEFLATE
+     * anularía cualquier ganancia.
+     */
+    private static final int TAMANO_MINIMO_COMPRESION = 64;
+    /**
+     * Tamaño de cada una de las muestras que se analizan.
+     */
+    private static final int TAMANO_MUESTRA = 32 * 1024;
+    /**
+     * Ganancia mínima (en tanto por uno) que debe lograr la prueba de
+     * compresión del perfil máximo para comprimir un formato ya comprimido.
+     */
+    private static final double GANANCIA_MINIMA = 0.02;
+
+    /**
+     * Perfiles de compresión disponibles.
+     */
+    public enum Perfil {
+        RAPIDO("Rápido", 1, 7.5),
+        EQUILIBRADO("Equilibrado", 6, 7.9),
+        MAXIMO("Máxima compresión", 9, 7.98);
+
+        private final String etiqueta;
+        private final int nivel;
+        private final double entropiaMaxima;
+
+        Perfil(String etiqueta, int nivel, double entropiaMaxima) {
+            this.etiqueta = etiqueta;
+            this.nivel = nivel;
+            this.entropiaMaxima = entropiaMaxima;
+        }
+
+        /**
+         * Nivel DEFLATE usado para las entradas que se comprimen.
+         *
+         * @return El nivel (1-9).
+         */
+        public int getNivel() {
+            return nivel;
+        }
+
+        @Override
+        public String toString() {
+            return etiqueta;
+        }
+
+        /**
+         * Obtiene el perfil indicado en la propiedad de sistema
+         * {@value PoliticaCompresion#PROPIEDAD_PERFIL}, o el equilibrado.
+         *
+         * @return El perfil por defecto.
+         */
+        public static Perfil porDefecto() {
+            try {
+                return valueOf(System.getProperty(PROPIEDAD_PERFIL, EQUILIBRADO.name()).trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return EQUILIBRADO;
+            }
+        }
+    }
+
+    /**
+     * Método y nivel elegidos para una entrada.
+     */
+    public static final class Decision {
+
+        private final int metodo;
+        private final int nivel;
+        private final String motivo;
+
+        Decision(int metodo, int nivel, String motivo) {
+            this.metodo = metodo;
+            this.nivel = nivel;
+            this.motivo = motivo;
+        }
+
+        /**
+         * Método ZIP de la entrada.
+         *
+         * @return {@link EscritorZip#STORED} o {@link EscritorZip#DEFLATED}.
+         */
+        public int getMetodo() {
+            return metodo;
+        }
+
+        public int getNivel() {
+            return nivel;
+        }
+
+        public boolean esAlmacenada() {
+            return metodo == EscritorZip.STORED;
+        }
+
+        /**
+         * Explicación breve de la decisión, para el log.
+         *
+         * @return El motivo (ej: "formato ya comprimido (JPEG)").
+         */
+        public String getMotivo() {
+            return motivo;
+        }
+    }
+
+    private final Perfil perfil;
+
+    public PoliticaCompresion(Perfil perfil) {
+        this.perfil = perfil != null ? perfil : Perfil.EQUILIBRADO;
+    }
+
+    public Perfil getPerfil() {
+        return perfil;
+    }
+
+    /**
+     * Decide cómo guardar una entrada, leyendo como mucho tres muestras de
+     * {@value #TAMANO_MUESTRA} bytes.
+     *
+     * @param entrada La entrada a analizar.
+     * @return La decisión.
+     * @throws IOException Si no se pueden leer las muestras.
+     */
+    public Decision decidir(EntradaPaquete entrada) throws IOException {
+        long tamano = entrada.getTamano();
+        if (entrada.esDirectorio() || tamano < TAMANO_MINIMO_COMPRESION) {
+            return new Decision(EscritorZip.STORED, 0, "entrada vacía o muy pequeña");
+        }
+        return decidir(entrada, tomarMuestras(entrada));
+    }
+
+    /**
+     * Decide cómo guardar una entrada a partir de muestras ya leídas con
+     * {@link #tomarMuestras(EntradaPaquete)}.
+     */
+    Decision decidir(EntradaPaquete entrada, byte[][] muestras) {
+        if (entrada.esDirectorio() || entrada.getTamano() < TAMANO_MINIMO_COMPRESION) {
+            return new Decision(EscritorZip.STORED, 0, "entrada vacía o muy pequeña");
+        }
+        String formato = detectarFormatoComprimido(muestras[0]);
+        if (formato != null) {
+            if (perfil != Perfil.MAXIMO || !compensaComprimir(muestras)) {
+                return new Decision(EscritorZip.STORED, 0, "formato ya comprimido (" + formato + ")");
+            }
+            return new Decision(EscritorZip.DEFLATED, perfil.getNivel(), formato + " recomprimible");
+        }
+
+        double entropia = calcularEntropia(muestras);
+        if (entropia > perfil.entropiaMaxima) {
+            return new Decision(EscritorZip.STORED, 0, String.format("datos incompresibles (%.2f bits/byte)", entropia));
+        }
+        return new Decision(EscritorZip.DEFLATED, perfil.getNivel(), String.format("%.2f bits/byte", entropia));
+    }
+
+    /**
+     * Lee las muestras que se analizan: el contenido entero si es pequeño o,
+     * si no, su inicio, su mitad y su final.
+     */
+    byte[][] tomarMuestras(EntradaPaquete entrada) throws IOException {
+        long tamano = entrada.getTamano();
+        ContenidoArchivo contenido = entrada.getContenido();
+        if (tamano <= 3L * TAMANO_MUESTRA || contenido == null) {
+            byte[] muestra = new byte[(int) Math.min(tamano, 3L * TAMANO_MUESTRA)];
+            try (InputStream in = entrada.abrir()) {
+                int leidos = 0;
+                while (leidos < muestra.length) {
+                    int n = in.read(muestra, leidos, muestra.length - leidos);
+                    if (n < 0) {
+                        break;
+                    }
+                    leidos += n;
+                }
+            }
+            return new byte[][]{muestra};
+        }
+        long[] posiciones = {0, tamano / 2 - TAMANO_MUESTRA / 2, tamano - TAMANO_MUESTRA};
+        byte[][] muestras = new byte[posiciones.length][];
+        for (int i = 0; i < posiciones.length; i++) {
+            byte[] muestra = new byte[TAMANO_MUESTRA];
+            int leidos = contenido.leerFragmento(posiciones[i], muestra);
+            muestras[i] = leidos == muestra.length ? muestra : Arrays.copyOf(muestra, leidos);
+        }
+        return muestras;
+    }
+
+    /**
+     * Reconoce por su cabecera los formatos que ya incorporan compresión.
+     *
+     * @param cabecera Los primeros bytes del contenido.
+     * @return El nombre del formato, o {@code null} si no se reconoce.
+     */
+    static String detectarFormatoComprimido(byte[] cabecera) {
+        if (empiezaPor(cabecera, 0, 0x25, 0x50, 0x44, 0x46)) {
+            return "PDF";
+        }
+        if (empiezaPor(cabecera, 0, 0xFF, 0xD8, 0xFF)) {
+            return "JPEG";
+        }
+        if (empiezaPor(cabecera, 0, 0x89, 0x50, 0x4E, 0x47)) {
+            return "PNG";
+        }
+        if (empiezaPor(cabecera, 0, 0x47, 0x49, 0x46, 0x38)) {
+            return "GIF";
+        }
+        if (empiezaPor(cabecera, 0, 0x50, 0x4B, 0x03, 0x04) || empiezaPor(cabecera, 0, 0x50, 0x4B, 0x05, 0x06)) {
+            return "ZIP/Office";
+        }
+        if (empiezaPor(cabecera, 0, 0x1F, 0x8B)) {
+            return "GZIP";
+        }
+        if (empiezaPor(cabecera, 0, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C)) {
+            return "7z";
+        }
+        if (empiezaPor(cabecera, 0, 0x52, 0x61, 0x72, 0x21)) {
+            return "RAR";
+        }
+        if (empiezaPor(cabecera, 0, 0x42, 0x5A, 0x68)) {
+            return "BZIP2";
+        }
+        if (empiezaPor(cabecera, 0, 0xFD, 0x37, 0x7A, 0x58, 0x5A)) {
+            return "XZ";
+        }
+        if (empiezaPor(cabecera, 4, 0x66, 0x74, 0x79, 0x70)) {
+            return "MP4/HEIC";
+        }
+        if (empiezaPor(cabecera, 0, 0x52, 0x49, 0x46, 0x46) && empiezaPor(cabecera, 8, 0x57, 0x45, 0x42, 0x50)) {
+            return "WEBP";
+        }
+        if (empiezaPor(cabecera, 0, 0x49, 0x44, 0x33) || empiezaPor(cabecera, 0, 0x4F, 0x67, 0x67, 0x53)) {
+            return "audio";
+        }
+        return null;
+    }
+
+    private static boolean empiezaPor(byte[] datos, int desde, int... firma) {
+        if (datos.length < desde + firma.length) {
+            return false;
+        }
+        for (int i = 0; i < firma.length; i++) {
+            if ((datos[desde + i] & 0xFF) != firma[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Entropía de Shannon (bits por byte) del histograma conjunto de las
+     * muestras.
+     */
+    static double calcularEntropia(byte[][] muestras) {
+        long[] frecuencias = new long[256];
+        long total = 0;
+        for (byte[] muestra : muestras) {
+            for (byte b : muestra) {
+                frecuencias[b & 0xFF]++;
+            }
+            total += muestra.length;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double entropia = 0;
+        for (long frecuencia : frecuencias) {
+            if (frecuencia > 0) {
+                double p = (double) frecuencia / total;
+                entropia -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropia;
+    }
+
+    /**
+     * Prueba a comprimir las muestras al nivel del perfil y comprueba si se
+     * gana al menos {@value #GANANCIA_MINIMA} en tanto por uno.
+     */
+    private boolean compensaComprimir(byte[][] muestras) {
+        Deflater deflater = new Deflater(perfil.getNivel(), true);
+        try {
+            long original = 0;
+            long comprimido = 0;
+            byte[] salida = new byte[TAMANO_MUESTRA + 1024];
+            for (byte[] muestra : muestras) {
+                deflater.reset();
+                deflater.setInput(muestra);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    comprimido += deflater.deflate(salida);
+                }
+                original += muestra.length;
+            }
+            return original > 0 && comprimido < original * (1 - GANANCIA_MINIMA);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.licitador.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Conjunto fijo de {@link ByteBuffer} directos (fuera del heap) que se
+ * reutilizan durante una operación de E/S intensiva.
+ * <p>
+ * Los buffers se crean de forma perezosa hasta el máximo indicado; a partir
+ * de ahí {@link #tomar()} espera a que se devuelva alguno. Esto limita la
+ * memoria total usada y, a la vez, frena al productor cuando el consumidor va
+ * más lento (contrapresión).
+ * </p>
+ */
+public class PoolBuffers {
+
+    private final BlockingQueue<ByteBuffer> libres;
+    private final int capacidad;
+    private final int maximo;
+    private int creados;
+
+    /**
+     * Crea el pool.
+     *
+     * @param capacidad Tamaño en bytes de cada buffer.
+     * @param maximo Número máximo de buffers.
+     */
+    public PoolBuffers(int capacidad, int maximo) {
+        this.capacidad = capacidad;
+        this.maximo = Math.max(1, maximo);
+        this.libres = new ArrayBlockingQueue<>(this.maximo);
+    }
+
+    /**
+     * Obtiene un buffer vacío, esperando si todos están en uso.
+     *
+     * @return Un buffer con la posición a cero y el límite en su capacidad.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    public ByteBuffer tomar() throws InterruptedException {
+        ByteBuffer buffer = libres.poll();
+        if (buffer == null) {
+            synchronized (this) {
+                if (creados < maximo) {
+                    creados++;
+                    return ByteBuffer.allocateDirect(capacidad);
+                }
+            }
+            buffer = libres.take();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Devuelve al pool un buffer obtenido con {@link #tomar()}.
+     *
+     * @param buffer El buffer que ya no se usa.
+     */
+    public void devolver(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == capacidad) {
+            libres.offer(buffer);
+        }
+    }
+
+    public int getCapacidad() {
+        return capacidad;
+    }
+
+    /**
+     * Memoria máxima que puede llegar a reservar el pool.
+     *
+     * @return Bytes fuera del heap.
+     */
+    public long getMemoriaMaxima() {
+        return (long) capacidad * maximo;
+    }
+}
@@ -0,0 +1,182 @@
+package com.licitador.service;
+
+/**
+ * Seguimiento del avance de un empaquetado por bytes, con velocidad y tiempo
+ * restante estimado.
+ * <p>
+ * El motor de empaquetado informa de cada bloque escrito, lo que en un
+ * paquete de varios GB supone miles de avisos por segundo. Esta clase los
+ * acumula y solo indica que hay que publicar (por ejemplo, con
+ * {@code SwingWorker.publish}) cada {@value #INTERVALO_PUBLICACION_MS} ms o al
+ * terminar, de modo que la interfaz no se satura. La velocidad se suaviza con
+ * una media móvil exponencial para que el tiempo restante no oscile entre
+ * documentos comprimibles y ya comprimidos.
+ * </p>
+ * <p>
+ * No es segura para hilos: debe usarse desde un único hilo (el que escribe el
+ * paquete). Las {@link Instantanea} que genera son inmutables y se pueden
+ * pasar al Event Dispatch Thread.
+ * </p>
+ */
+public class ProgresoEmpaquetado {
+
+    /**
+     * Intervalo mínimo entre dos publicaciones.
+     */
+    public static final long INTERVALO_PUBLICACION_MS = 150;
+    /**
+     * Intervalo mínimo entre dos muestras de velocidad.
+     */
+    private static final long INTERVALO_MUESTRA_MS = 500;
+    /**
+     * Peso de la última muestra en la media móvil de la velocidad.
+     */
+    private static final double PESO_MUESTRA = 0.3;
+
+    /**
+     * Estado del progreso en un instante, listo para mostrarse.
+     */
+    public static final class Instantanea {
+
+        private final int porcentaje;
+        private final long procesados;
+        private final long total;
+        private final double bytesPorSegundo;
+        private final long segundosRestantes;
+
+        Instantanea(int porcentaje, long procesados, long total, double bytesPorSegundo, long segundosRestantes) {
+            this.porcentaje = porcentaje;
+            this.procesados = procesados;
+            this.total = total;
+            this.bytesPorSegundo = bytesPorSegundo;
+            this.segundosRestantes = segundosRestantes;
+        }
+
+        public int getPorcentaje() {
+            return porcentaje;
+        }
+
+        public long getProcesados() {
+            return procesados;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public double getBytesPorSegundo() {
+            return bytesPorSegundo;
+        }
+
+        /**
+         * Tiempo restante estimado.
+         *
+         * @return Los segundos, o -1 si aún no se puede estimar.
+         */
+        public long getSegundosRestantes() {
+            return segundosRestantes;
+        }
+
+        /**
+         * Texto para mostrar junto a la barra de progreso.
+         *
+         * @return El resumen (ej: "1,2 GB de 4,0 GB · 85,3 MB/s · quedan 00:34").
+         */
+        public String getTexto() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(GestorMemoria.formatearTamano(procesados)).append(" de ").append(GestorMemoria.formatearTamano(total));
+            if (bytesPorSegundo > 0) {
+                sb.append(" · ").append(String.format("%.1f MB/s", bytesPorSegundo / (1024 * 1024)));
+            }
+            if (segundosRestantes >= 0) {
+                sb.append(" · quedan ").append(formatearDuracion(segundosRestantes));
+            } else {
+                sb.append(" · calculando...");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final long total;
+    private final long inicio;
+    private long procesados;
+    private long ultimaPublicacion;
+    private long ultimaMuestra;
+    private long procesadosUltimaMuestra;
+    private double velocidad;
+
+    /**
+     * Inicia el seguimiento.
+     *
+     * @param total Bytes totales a procesar.
+     */
+    public ProgresoEmpaquetado(long total) {
+        this.total = Math.max(0, total);
+        this.inicio = System.currentTimeMillis();
+        this.ultimaMuestra = inicio;
+    }
+
+    /**
+     * Registra el total de bytes procesados hasta ahora.
+     *
+     * @param procesados Bytes procesados acumulados.
+     * @return {@code true} si ha pasado el intervalo de publicación o se ha
+     * terminado, es decir, si conviene publicar una {@link Instantanea}.
+     */
+    public boolean actualizar(long procesados) {
+        this.procesados = Math.min(procesados, total);
+        long ahora = System.currentTimeMillis();
+        if (ahora - ultimaMuestra >= INTERVALO_MUESTRA_MS) {
+            double muestra = (this.procesados - procesadosUltimaMuestra) * 1000.0 / (ahora - ultimaMuestra);
+            velocidad = velocidad == 0 ? muestra : PESO_MUESTRA * muestra + (1 - PESO_MUESTRA) * velocidad;
+            ultimaMuestra = ahora;
+            procesadosUltimaMuestra = this.procesados;
+        }
+        if (this.procesados >= total || ahora - ultimaPublicacion >= INTERVALO_PUBLICACION_MS) {
+            ultimaPublicacion = ahora;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Genera el estado actual.
+     *
+     * @return La instantánea del progreso.
+     */
+    public Instantanea getInstantanea() {
+        int porcentaje = total == 0 ? 100 : (int) (procesados * 100 / total);
+        long restantes = -1;
+        if (velocidad > 0) {
+            restantes = (long) Math.ceil((total - procesados) / velocidad);
+        } else if (procesados >= total) {
+            restantes = 0;
+        }
+        return new Instantanea(porcentaje, procesados, total, velocidad, restantes);
+    }
+
+    /**
+     * Tiempo transcurrido desde el inicio.
+     *
+     * @return Milisegundos transcurridos.
+     */
+    public long getMilisegundosTranscurridos() {
+        return System.currentTimeMillis() - inicio;
+    }
+
+    /**
+     * Formatea una duración como mm:ss, o hh:mm:ss si pasa de una hora.
+     *
+     * @param segundos La duración en segundos.
+     * @return El texto formateado.
+     */
+    public static String formatearDuracion(long segundos) {
+        long horas = segundos / 3600;
+        long minutos = (segundos % 3600) / 60;
+        long resto = segundos % 60;
+        if (horas > 0) {
+            return String.format("%d:%02d:%02d", horas, minutos, resto);
+        }
+        return String.format("%02d:%02d", minutos, resto);
+    }
+}
@@ -0,0 +1,179 @@
+package com.licitador.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Mide el rendimiento de {@link CodecLZ} frente a Deflate
+ * ({@code java.util.zip}) en su nivel más rápido.
+ * <p>
+ * Uso: {@code java -cp <clases> com.licitador.service.RendimientoCodec [ficheros...]}.
+ * Sin argumentos se usa un corpus sintético de texto administrativo (como el
+ * de los registros, las declaraciones de confidencialidad o los anexos) y de
+ * datos binarios poco compresibles. Se muestra la mejor de varias pasadas
+ * tras calentar la JVM.
+ * </p>
+ */
+public final class RendimientoCodec {
+
+    private static final int PASADAS = 5;
+
+    private RendimientoCodec() {
+    }
+
+    public static void main(String[] args) throws IOException, DataFormatException {
+        if (args.length == 0) {
+            medir("texto (sintético)", corpusTexto(32 * 1024 * 1024));
+            medir("binario (sintético)", corpusBinario(32 * 1024 * 1024));
+        } else {
+            for (String ruta : args) {
+                medir(ruta, Files.readAllBytes(Paths.get(ruta)));
+            }
+        }
+    }
+
+    private static void medir(String nombre, byte[] datos) throws IOException, DataFormatException {
+        System.out.println(nombre + ": " + GestorMemoria.formatearTamano(datos.length) + ", "
+                + Runtime.getRuntime().availableProcessors() + " hilos");
+        System.out.println(String.format("  %-26s %10s %14s %14s", "", "tamaño", "comprimir", "descomprimir"));
+
+        // CodecLZ por bloques en un solo hilo.
+        byte[] comprimido = new byte[CodecLZ.cotaComprimido(CodecLZ.TAMANO_BLOQUE) * (datos.length / CodecLZ.TAMANO_BLOQUE + 1)];
+        int[] longitudes = new int[datos.length / CodecLZ.TAMANO_BLOQUE + 1];
+        long mejorC = Long.MAX_VALUE;
+        long mejorD = Long.MAX_VALUE;
+        int total = 0;
+        byte[] restaurado = new byte[datos.length];
+        for (int p = 0; p < PASADAS; p++) {
+            long inicio = System.nanoTime();
+            total = 0;
+            for (int b = 0, desde = 0; desde < datos.length; b++, desde += CodecLZ.TAMANO_BLOQUE) {
+                longitudes[b] = CodecLZ.comprimir(datos, desde, Math.min(CodecLZ.TAMANO_BLOQUE, datos.length - desde), comprimido, total);
+                total += longitudes[b];
+            }
+            mejorC = Math.min(mejorC, System.nanoTime() - inicio);
+            inicio = System.nanoTime();
+            for (int b = 0, desde = 0, leidos = 0; desde < datos.length; b++, desde += CodecLZ.TAMANO_BLOQUE) {
+                CodecLZ.descomprimir(comprimido, leidos, longitudes[b], restaurado, desde, Math.min(CodecLZ.TAMANO_BLOQUE, datos.length - desde));
+                leidos += longitudes[b];
+            }
+            mejorD = Math.min(mejorD, System.nanoTime() - inicio);
+        }
+        comprobar(datos, restaurado);
+        imprimir("CodecLZ (1 hilo)", datos.length, total, mejorC, mejorD);
+
+        // CodecLZ en formato de flujo, con los bloques en paralelo.
+        mejorC = Long.MAX_VALUE;
+        mejorD = Long.MAX_VALUE;
+        byte[] flujo = null;
+        for (int p = 0; p < PASADAS; p++) {
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(datos.length / 2);
+            long inicio = System.nanoTime();
+            try (CodecLZ.Salida lz = new CodecLZ.Salida(salida)) {
+                lz.write(datos);
+            }
+            mejorC = Math.min(mejorC, System.nanoTime() - inicio);
+            flujo = salida.toByteArray();
+            inicio = System.nanoTime();
+            try (InputStream lz = new CodecLZ.Entrada(new ByteArrayInputStream(flujo))) {
+                leerCompleto(lz, restaurado);
+            }
+            mejorD = Math.min(mejorD, System.nanoTime() - inicio);
+        }
+        comprobar(datos, restaurado);
+        imprimir("CodecLZ (flujo paralelo)", datos.length, flujo.length, mejorC, mejorD);
+
+        // Deflate en su nivel más rápido.
+        byte[] deflate = new byte[datos.length + datos.length / 100 + 1024];
+        mejorC = Long.MAX_VALUE;
+        mejorD = Long.MAX_VALUE;
+        for (int p = 0; p < PASADAS; p++) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            long inicio = System.nanoTime();
+            deflater.setInput(datos);
+            deflater.finish();
+            total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(deflate, total, deflate.length - total);
+            }
+            mejorC = Math.min(mejorC, System.nanoTime() - inicio);
+            deflater.end();
+            Inflater inflater = new Inflater(true);
+            inicio = System.nanoTime();
+            inflater.setInput(deflate, 0, total);
+            int leidos = 0;
+            while (!inflater.finished() && leidos < restaurado.length) {
+                leidos += inflater.inflate(restaurado, leidos, restaurado.length - leidos);
+            }
+            mejorD = Math.min(mejorD, System.nanoTime() - inicio);
+            inflater.end();
+        }
+        comprobar(datos, restaurado);
+        imprimir("Deflate (BEST_SPEED)", datos.length, total, mejorC, mejorD);
+        System.out.println();
+    }
+
+    private static void imprimir(String metodo, long original, long comprimido, long nanosC, long nanosD) {
+        System.out.println(String.format("  %-26s %9.1f%% %9.0f MB/s %9.0f MB/s", metodo, comprimido * 100.0 / original,
+                original / (1024.0 * 1024) / (nanosC / 1e9), original / (1024.0 * 1024) / (nanosD / 1e9)));
+    }
+
+    private static void leerCompleto(InputStream entrada, byte[] destino) throws IOException {
+        int leidos = 0;
+        int n;
+        while (leidos < destino.length && (n = entrada.read(destino, leidos, destino.length - leidos)) > 0) {
+            leidos += n;
+        }
+    }
+
+    private static void comprobar(byte[] esperado, byte[] obtenido) {
+        if (!Arrays.equals(esperado, obtenido)) {
+            throw new IllegalStateException("Los datos restaurados no coinciden con los originales.");
+        }
+        Arrays.fill(obtenido, (byte) 0);
+    }
+
+    private static byte[] corpusTexto(int tamano) {
+        String[] palabras = {"el", "la", "de", "que", "y", "en", "los", "del", "las", "por", "licitador", "oferta", "lote",
+            "contratación", "declaración", "responsable", "confidencialidad", "documentación", "administrativo", "artículo",
+            "pliego", "cláusulas", "técnicas", "órgano", "expediente", "presentación", "sobre", "anexo", "adjudicación",
+            "solvencia", "económica", "financiera", "profesional", "garantía", "provisional", "definitiva"};
+        Random aleatorio = new Random(20240601L);
+        StringBuilder texto = new StringBuilder(tamano + 64);
+        int linea = 0;
+        while (texto.length() < tamano) {
+            if (linea == 0) {
+                texto.append(String.format("[%02d:%02d:%02d] [LOG] ", aleatorio.nextInt(24), aleatorio.nextInt(60), aleatorio.nextInt(60)));
+            }
+            texto.append(palabras[(int) Math.min(palabras.length - 1, Math.abs(aleatorio.nextGaussian()) * 9)]);
+            if (++linea > 8 + aleatorio.nextInt(12)) {
+                texto.append(".\n");
+                linea = 0;
+            } else {
+                texto.append(' ');
+            }
+        }
+        return Arrays.copyOf(texto.toString().getBytes(StandardCharsets.UTF_8), tamano);
+    }
+
+    private static byte[] corpusBinario(int tamano) {
+        Random aleatorio = new Random(7L);
+        byte[] datos = new byte[tamano];
+        aleatorio.nextBytes(datos);
+        // Zonas repetidas, como las tablas de objetos y las fuentes incrustadas de un PDF.
+        for (int i = 0; i + 4096 < tamano; i += 65536) {
+            Arrays.fill(datos, i, i + 4096, (byte) ' ');
+        }
+        return datos;
+    }
+}
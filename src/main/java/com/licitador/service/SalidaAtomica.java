@@ -0,0 +1,237 @@
+package com.licitador.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fichero de salida que solo aparece con su nombre definitivo cuando está
+ * completo.
+ * <p>
+ * El contenido se escribe en un fichero temporal oculto de la misma carpeta
+ * (para que el renombrado no cruce de sistema de ficheros). Tras
+ * {@link #confirmar()} el temporal se sincroniza en disco y se renombra de
+ * forma atómica al nombre definitivo; si se cierra sin confirmar (error o
+ * cancelación), el temporal se elimina. Así nunca queda en la carpeta de
+ * destino un ZIP truncado con aspecto de oferta válida.
+ * </p>
+ * <p>
+ * Pensado para usarse con try-with-resources:
+ * </p>
+ * <pre>
+ * try (SalidaAtomica salida = SalidaAtomica.crear(destino)) {
+ *     escribir(salida.getTemporal());
+ *     salida.confirmar();
+ * }
+ * </pre>
+ */
+public class SalidaAtomica implements Closeable {
+
+    /**
+     * Sufijo de los ficheros temporales de salida.
+     */
+    static final String SUFIJO_TEMPORAL = ".tmp";
+    /**
+     * Sufijo de la copia de seguridad del fichero que se sustituye al
+     * confirmar varias salidas a la vez. No se borra en
+     * {@link #limpiarTemporales(File, String)}: tras un cierre inesperado a
+     * mitad de la publicación puede ser la única versión que quede.
+     */
+    private static final String SUFIJO_RESPALDO = ".bak";
+
+    private final File destino;
+    private final File temporal;
+    private boolean confirmada;
+
+    private SalidaAtomica(File destino, File temporal) {
+        this.destino = destino;
+        this.temporal = temporal;
+    }
+
+    /**
+     * Prepara la escritura del fichero indicado creando su temporal en la
+     * misma carpeta.
+     *
+     * @param destino El fichero definitivo.
+     * @return La salida, con su fichero temporal ya creado.
+     * @throws IOException Si no se puede crear el temporal.
+     */
+    public static SalidaAtomica crear(File destino) throws IOException {
+        Path carpeta = destino.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(carpeta);
+        Path temporal = Files.createTempFile(carpeta, "." + destino.getName() + ".", SUFIJO_TEMPORAL);
+        return new SalidaAtomica(destino, temporal.toFile());
+    }
+
+    /**
+     * Elimina los temporales huérfanos (de cierres inesperados anteriores)
+     * cuyo nombre empieza por el prefijo indicado.
+     *
+     * @param carpeta La carpeta de destino.
+     * @param prefijo Prefijo del nombre de los ficheros definitivos.
+     * @return El número de temporales eliminados.
+     */
+    public static int limpiarTemporales(File carpeta, String prefijo) {
+        int eliminados = 0;
+        if (carpeta == null || !carpeta.isDirectory()) {
+            return 0;
+        }
+        try (DirectoryStream<Path> rutas = Files.newDirectoryStream(carpeta.toPath(), "." + prefijo + "*" + SUFIJO_TEMPORAL)) {
+            for (Path ruta : rutas) {
+                if (Files.deleteIfExists(ruta)) {
+                    eliminados++;
+                }
+            }
+        } catch (IOException e) {
+            // Limpieza oportunista: si no se puede, se intentará en la siguiente ejecución.
+        }
+        return eliminados;
+    }
+
+    /**
+     * Fichero temporal en el que se debe escribir.
+     *
+     * @return El temporal.
+     */
+    public File getTemporal() {
+        return temporal;
+    }
+
+    public File getDestino() {
+        return destino;
+    }
+
+    /**
+     * Sincroniza el temporal en disco y lo renombra de forma atómica al nombre
+     * definitivo.
+     *
+     * @throws IOException Si no se puede sincronizar o renombrar.
+     */
+    public void confirmar() throws IOException {
+        sincronizarTemporal();
+        mover(temporal.toPath(), destino.toPath());
+        confirmada = true;
+        sincronizarCarpeta(destino.getAbsoluteFile().getParentFile().toPath());
+    }
+
+    /**
+     * Confirma varias salidas como un todo: o se publican todas o no se
+     * publica ninguna. Primero se sincronizan en disco todos los temporales;
+     * después cada fichero que se va a sustituir se aparta como copia de
+     * seguridad y se renombra el temporal. Si un renombrado falla, se retiran
+     * los ya publicados y se restauran los ficheros que sustituyeron.
+     *
+     * @param salidas Las salidas a confirmar.
+     * @throws IOException Si alguna no se puede publicar. Si además no se
+     * pudo retirar alguna de las ya publicadas, el mensaje indica cuáles
+     * quedan.
+     */
+    public static void confirmarTodas(List<SalidaAtomica> salidas) throws IOException {
+        for (SalidaAtomica salida : salidas) {
+            salida.sincronizarTemporal();
+        }
+        List<SalidaAtomica> publicadas = new ArrayList<>();
+        List<Path> respaldos = new ArrayList<>();
+        try {
+            for (SalidaAtomica salida : salidas) {
+                Path destino = salida.destino.toPath();
+                Path respaldo = null;
+                if (Files.exists(destino)) {
+                    respaldo = Files.createTempFile(destino.toAbsolutePath().getParent(), "." + salida.destino.getName() + ".", SUFIJO_RESPALDO);
+                    try {
+                        mover(destino, respaldo);
+                    } catch (IOException e) {
+                        Files.deleteIfExists(respaldo);
+                        throw e;
+                    }
+                }
+                try {
+                    mover(salida.temporal.toPath(), destino);
+                } catch (IOException e) {
+                    if (respaldo != null) {
+                        mover(respaldo, destino);
+                    }
+                    throw e;
+                }
+                salida.confirmada = true;
+                publicadas.add(salida);
+                respaldos.add(respaldo);
+            }
+        } catch (IOException e) {
+            List<String> sinRetirar = new ArrayList<>();
+            for (int i = publicadas.size() - 1; i >= 0; i--) {
+                SalidaAtomica salida = publicadas.get(i);
+                try {
+                    Files.delete(salida.destino.toPath());
+                    if (respaldos.get(i) != null) {
+                        mover(respaldos.get(i), salida.destino.toPath());
+                    }
+                } catch (IOException deshacer) {
+                    e.addSuppressed(deshacer);
+                    sinRetirar.add(salida.destino.getName());
+                }
+            }
+            if (!sinRetirar.isEmpty()) {
+                throw new IOException(e.getMessage() + ". No se han podido retirar los archivos ya publicados: " + String.join(", ", sinRetirar), e);
+            }
+            throw e;
+        }
+        for (Path respaldo : respaldos) {
+            if (respaldo != null) {
+                Files.deleteIfExists(respaldo);
+            }
+        }
+        for (SalidaAtomica salida : salidas) {
+            sincronizarCarpeta(salida.destino.getAbsoluteFile().getParentFile().toPath());
+        }
+    }
+
+    private void sincronizarTemporal() throws IOException {
+        try (FileChannel canal = FileChannel.open(temporal.toPath(), StandardOpenOption.WRITE)) {
+            canal.force(true);
+        }
+    }
+
+    private static void mover(Path origen, Path destino) throws IOException {
+        try {
+            Files.move(origen, destino, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(origen, destino, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Sincroniza la entrada de directorio del renombrado (solo posible en
+     * sistemas POSIX; en Windows se ignora).
+     */
+    private static void sincronizarCarpeta(Path carpeta) {
+        try (FileChannel canal = FileChannel.open(carpeta, StandardOpenOption.READ)) {
+            canal.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            // El sistema no permite abrir carpetas como canal: el renombrado ya es atómico.
+        }
+    }
+
+    /**
+     * Elimina el temporal si no se ha confirmado la salida.
+     */
+    @Override
+    public void close() {
+        if (!confirmada) {
+            try {
+                Files.deleteIfExists(temporal.toPath());
+            } catch (IOException e) {
+                temporal.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Salida que cifra el paquete en la misma pasada en que se escribe (formato
+ * descrito en {@link CifradorSobre}).
+ * <p>
+ * Los bytes se agrupan en bloques; cada bloque completo se cifra en un hilo
+ * del grupo mientras se siguen llenando los siguientes, y los bloques
+ * cifrados se escriben en el hilo que llama, en el orden en que se enviaron
+ * y en su posición fija del fichero. Como mucho hay cuatro bloques por hilo en
+ * vuelo, para acotar la memoria.
+ * </p>
+ * <p>
+ * {@link EscritorZip} rellena la cabecera local de cada entrada al terminarla:
+ * los bloques que solapan el rango reservado se retienen sin cifrar hasta
+ * {@link #liberar()}, y las reescrituras se aplican sobre ellos.
+ * </p>
+ */
+class SalidaCifrada implements SalidaPaquete {
+
+    /**
+     * Huellas de lo escrito, para comprobar el fichero releyéndolo sin
+     * descifrarlo (el licitador no tiene la clave del órgano).
+     */
+    static final class Huellas {
+
+        private final byte[] cabecera;
+        private final long inicioBloques;
+        private final int longitudBloque;
+        private final List<byte[]> bloques;
+        private final long longitud;
+
+        Huellas(byte[] cabecera, long inicioBloques, int longitudBloque, List<byte[]> bloques, long longitud) {
+            this.cabecera = cabecera;
+            this.inicioBloques = inicioBloques;
+            this.longitudBloque = longitudBloque;
+            this.bloques = bloques;
+            this.longitud = longitud;
+        }
+
+        /**
+         * Huella SHA-256 de la cabecera.
+         */
+        byte[] getCabecera() {
+            return cabecera;
+        }
+
+        /**
+         * Posición del primer bloque (tras la cabecera).
+         */
+        long getInicioBloques() {
+            return inicioBloques;
+        }
+
+        /**
+         * Longitud cifrada de cada bloque, salvo el último.
+         */
+        int getLongitudBloque() {
+            return longitudBloque;
+        }
+
+        /**
+         * Huella SHA-256 de cada bloque cifrado, por orden.
+         */
+        List<byte[]> getBloques() {
+            return bloques;
+        }
+
+        /**
+         * Tamaño total del fichero.
+         */
+        long getLongitud() {
+            return longitud;
+        }
+    }
+
+    /**
+     * Un bloque enviado a cifrar.
+     */
+    private static final class Pendiente {
+
+        final long indice;
+        final Future<byte[]> cifrado;
+
+        Pendiente(long indice, Future<byte[]> cifrado) {
+            this.indice = indice;
+            this.cifrado = cifrado;
+        }
+    }
+
+    private final SalidaPaquete destino;
+    private final CifradorSobre.Fichero fichero;
+    private final ExecutorService cifradores;
+    private final int maximoEnVuelo;
+    private final int tamanoBloque;
+    private final long inicioBloques;
+    private final Deque<Pendiente> enVuelo = new ArrayDeque<>();
+    private final Map<Long, byte[]> retenidos = new TreeMap<>();
+    private final Map<Long, byte[]> huellas = new TreeMap<>();
+    private byte[] bloque;
+    private int lleno;
+    private long indice;
+    private long reservaDesde = -1;
+    private long reservaHasta = -1;
+    private long longitud;
+    private boolean abierta = true;
+
+    /**
+     * Escribe la cabecera del fichero cifrado en {@code destino}.
+     *
+     * @param destino La salida que recibe los bytes cifrados.
+     * @param fichero La clave y la cabecera del fichero.
+     * @param hilos Número de bloques que se cifran a la vez.
+     * @throws IOException Si no se puede escribir la cabecera.
+     */
+    SalidaCifrada(SalidaPaquete destino, CifradorSobre.Fichero fichero, int hilos) throws IOException {
+        this.destino = destino;
+        this.fichero = fichero;
+        this.tamanoBloque = fichero.getTamanoBloque();
+        this.inicioBloques = fichero.getCabecera().length;
+        this.maximoEnVuelo = Math.max(1, hilos) * 4;
+        this.bloque = new byte[tamanoBloque];
+        AtomicInteger contador = new AtomicInteger();
+        this.cifradores = Executors.newFixedThreadPool(Math.max(1, hilos), r -> {
+            Thread t = new Thread(r, "cifrado-" + contador.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        destino.write(ByteBuffer.wrap(fichero.getCabecera()), 0);
+    }
+
+    @Override
+    public int write(ByteBuffer datos) throws IOException {
+        if (!abierta) {
+            throw new ClosedChannelException();
+        }
+        int escritos = datos.remaining();
+        while (datos.hasRemaining()) {
+            int n = Math.min(datos.remaining(), tamanoBloque - lleno);
+            datos.get(bloque, lleno, n);
+            lleno += n;
+            if (lleno == tamanoBloque) {
+                completarBloque();
+            }
+        }
+        return escritos;
+    }
+
+    /**
+     * Reescribe bytes del bloque en curso o de un bloque retenido.
+     *
+     * @throws IOException Si el rango ya se ha cifrado (no estaba reservado).
+     */
+    @Override
+    public void write(ByteBuffer datos, long desplazamiento) throws IOException {
+        long posicion = desplazamiento;
+        while (datos.hasRemaining()) {
+            long numero = posicion / tamanoBloque;
+            int dentro = (int) (posicion % tamanoBloque);
+            byte[] objetivo = numero == indice ? bloque : retenidos.get(numero);
+            if (objetivo == null || (numero == indice && dentro >= lleno)) {
+                throw new IOException("No se puede reescribir la posición " + posicion + " del sobre cifrado: ya se ha cifrado.");
+            }
+            int n = Math.min(datos.remaining(), tamanoBloque - dentro);
+            datos.get(objetivo, dentro, n);
+            posicion += n;
+        }
+    }
+
+    @Override
+    public void reservar(long desde, long hasta) {
+        reservaDesde = desde;
+        reservaHasta = hasta;
+    }
+
+    @Override
+    public void liberar() throws IOException {
+        reservaDesde = -1;
+        reservaHasta = -1;
+        List<Map.Entry<Long, byte[]>> liberados = new ArrayList<>(retenidos.entrySet());
+        retenidos.clear();
+        for (Map.Entry<Long, byte[]> liberado : liberados) {
+            enviar(liberado.getKey(), liberado.getValue(), tamanoBloque, false);
+        }
+    }
+
+    /**
+     * Cifra el último bloque, escribe todo lo pendiente y termina el
+     * destino.
+     */
+    @Override
+    public void terminar() throws IOException {
+        liberar();
+        enviar(indice, bloque, lleno, true);
+        while (!enVuelo.isEmpty()) {
+            escribirSiguiente();
+        }
+        destino.terminar();
+    }
+
+    /**
+     * Los bytes transferidos desde otro fichero también hay que cifrarlos.
+     */
+    @Override
+    public WritableByteChannel canalTransferencia() {
+        return this;
+    }
+
+    /**
+     * Huellas de los bloques escritos. Solo tiene sentido tras
+     * {@link #terminar()}.
+     *
+     * @return Las huellas.
+     */
+    Huellas getHuellas() {
+        return new Huellas(ContenidoArchivo.nuevoDigest().digest(fichero.getCabecera()), inicioBloques, tamanoBloque + CifradorSobre.LONGITUD_ETIQUETA,
+                Collections.unmodifiableList(new ArrayList<>(huellas.values())), longitud);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return abierta;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!abierta) {
+            return;
+        }
+        abierta = false;
+        cifradores.shutdownNow();
+        destino.close();
+    }
+
+    private void completarBloque() throws IOException {
+        long inicio = indice * tamanoBloque;
+        if (reservaDesde >= 0 && inicio < reservaHasta && reservaDesde < inicio + tamanoBloque) {
+            retenidos.put(indice, bloque);
+        } else {
+            enviar(indice, bloque, tamanoBloque, false);
+        }
+        bloque = new byte[tamanoBloque];
+        lleno = 0;
+        indice++;
+    }
+
+    /**
+     * Envía un bloque a cifrar, esperando antes a que se escriban los más
+     * antiguos si hay demasiados en vuelo.
+     */
+    private void enviar(long numero, byte[] datos, int bytes, boolean ultimo) throws IOException {
+        while (enVuelo.size() >= maximoEnVuelo || (!enVuelo.isEmpty() && enVuelo.peekFirst().cifrado.isDone())) {
+            escribirSiguiente();
+        }
+        enVuelo.addLast(new Pendiente(numero, cifradores.submit(() -> fichero.cifrar(numero, ultimo, datos, bytes))));
+    }
+
+    private void escribirSiguiente() throws IOException {
+        Pendiente pendiente = enVuelo.removeFirst();
+        byte[] cifrado;
+        try {
+            cifrado = pendiente.cifrado.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof GeneralSecurityException) {
+                throw new IOException("No se puede cifrar el sobre: " + causa.getMessage(), causa);
+            }
+            throw new IOException(causa);
+        }
+        long posicion = inicioBloques + pendiente.indice * (tamanoBloque + CifradorSobre.LONGITUD_ETIQUETA);
+        destino.write(ByteBuffer.wrap(cifrado), posicion);
+        huellas.put(pendiente.indice, ContenidoArchivo.nuevoDigest().digest(cifrado));
+        longitud = Math.max(longitud, posicion + cifrado.length);
+    }
+}
@@ -0,0 +1,57 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destino de los bytes que genera {@link EscritorZip}: un fichero (con sus
+ * copias, ver {@link SalidaReplicada}) o un fichero cifrado (ver
+ * {@link SalidaCifrada}).
+ */
+interface SalidaPaquete extends WritableByteChannel {
+
+    /**
+     * Escribe todos los bytes restantes en una posición ya escrita del
+     * paquete, sin mover la posición actual.
+     *
+     * @param datos Los bytes a escribir.
+     * @param desplazamiento La posición en el paquete.
+     * @throws IOException Si no se puede escribir.
+     */
+    void write(ByteBuffer datos, long desplazamiento) throws IOException;
+
+    /**
+     * Avisa de que el rango indicado se reescribirá con
+     * {@link #write(ByteBuffer, long)} antes de {@link #liberar()} (la
+     * cabecera local de la entrada en curso).
+     *
+     * @param desde Inicio del rango.
+     * @param hasta Fin del rango (excluido).
+     */
+    default void reservar(long desde, long hasta) {
+    }
+
+    /**
+     * Indica que el rango reservado ya no se va a reescribir.
+     *
+     * @throws IOException Si no se puede escribir lo que estaba retenido.
+     */
+    default void liberar() throws IOException {
+    }
+
+    /**
+     * Escribe todo lo pendiente y sincroniza el resultado en disco. Después
+     * solo queda cerrar la salida.
+     *
+     * @throws IOException Si no se puede escribir o sincronizar.
+     */
+    void terminar() throws IOException;
+
+    /**
+     * Canal al que se pueden transferir directamente bytes de otro fichero.
+     *
+     * @return El canal de destino.
+     */
+    WritableByteChannel canalTransferencia();
+}
@@ -0,0 +1,274 @@
+package com.licitador.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canal de escritura que reproduce lo escrito en un fichero principal en
+ * varias copias a la vez (por ejemplo, el archivo local y una memoria USB),
+ * para generar todas en una sola pasada de compresión.
+ * <p>
+ * El fichero principal se escribe en el hilo que llama. Cada copia tiene su
+ * propio hilo, que escribe a la vez una vista ({@link ByteBuffer#duplicate()})
+ * de los mismos bytes, sin copiarlos; cada escritura termina cuando el
+ * principal y todas las copias la han hecho, así que el llamante puede
+ * reutilizar el buffer en cuanto vuelve. Los errores de una copia (memoria
+ * retirada, disco lleno...) la descartan sin afectar al resto, y se consultan
+ * con {@link #getCopiasFallidas()}; los del fichero principal se lanzan como
+ * siempre.
+ * </p>
+ */
+class SalidaReplicada implements SalidaPaquete {
+
+    /**
+     * Una copia con su hilo de escritura.
+     */
+    private static final class Copia {
+
+        final Path ruta;
+        final FileChannel canal;
+        final ExecutorService hilo;
+        volatile IOException error;
+
+        Copia(Path ruta, FileChannel canal) {
+            this.ruta = ruta;
+            this.canal = canal;
+            this.hilo = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "copia-" + ruta.getFileName());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private final FileChannel principal;
+    private final List<Copia> copias = new ArrayList<>();
+    private boolean abierta = true;
+
+    /**
+     * Crea (o trunca) el fichero principal y sus copias.
+     *
+     * @param principal El fichero principal.
+     * @param copias Los ficheros que reciben una copia.
+     * @throws IOException Si no se puede abrir el fichero principal. Las
+     * copias que no se puedan abrir se dan por fallidas.
+     */
+    SalidaReplicada(Path principal, List<Path> copias) throws IOException {
+        this.principal = abrir(principal);
+        for (Path ruta : copias) {
+            try {
+                this.copias.add(new Copia(ruta, abrir(ruta)));
+            } catch (IOException e) {
+                Copia fallida = new Copia(ruta, null);
+                fallida.error = e;
+                fallida.hilo.shutdown();
+                this.copias.add(fallida);
+            }
+        }
+    }
+
+    private static FileChannel abrir(Path ruta) throws IOException {
+        return FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public int write(ByteBuffer datos) throws IOException {
+        List<Future<?>> pendientes = replicar(datos, -1);
+        int escritos = 0;
+        try {
+            while (datos.hasRemaining()) {
+                escritos += principal.write(datos);
+            }
+        } finally {
+            esperar(pendientes);
+        }
+        return escritos;
+    }
+
+    /**
+     * Escribe en una posición determinada del fichero (y de las copias) sin
+     * mover la posición actual.
+     *
+     * @param datos Los bytes a escribir.
+     * @param desplazamiento La posición en el fichero.
+     * @throws IOException Si falla la escritura del fichero principal.
+     */
+    @Override
+    public void write(ByteBuffer datos, long desplazamiento) throws IOException {
+        List<Future<?>> pendientes = replicar(datos, desplazamiento);
+        long destino = desplazamiento;
+        try {
+            while (datos.hasRemaining()) {
+                destino += principal.write(datos, destino);
+            }
+        } finally {
+            esperar(pendientes);
+        }
+    }
+
+    /**
+     * Sincroniza en disco el fichero principal y, cuando terminan sus
+     * escrituras pendientes, las copias.
+     *
+     * @throws IOException Si no se puede sincronizar el fichero principal.
+     */
+    @Override
+    public void terminar() throws IOException {
+        List<Future<?>> pendientes = new ArrayList<>();
+        for (Copia copia : copias) {
+            if (copia.error == null) {
+                pendientes.add(copia.hilo.submit(() -> {
+                    if (copia.error == null) {
+                        try {
+                            copia.canal.force(true);
+                        } catch (IOException e) {
+                            copia.error = e;
+                        }
+                    }
+                }));
+            }
+        }
+        principal.force(true);
+        esperar(pendientes);
+    }
+
+    /**
+     * Canal por el que se pueden transferir bytes desde otro fichero: el
+     * propio fichero principal si no hay copias, para no perder la
+     * transferencia directa entre ficheros.
+     *
+     * @return El canal de destino.
+     */
+    @Override
+    public WritableByteChannel canalTransferencia() {
+        return copias.isEmpty() ? principal : this;
+    }
+
+    /**
+     * Copias que han fallado, con el error que las descartó.
+     *
+     * @return Los errores por fichero de copia.
+     */
+    Map<Path, IOException> getCopiasFallidas() {
+        Map<Path, IOException> fallidas = new LinkedHashMap<>();
+        for (Copia copia : copias) {
+            if (copia.error != null) {
+                fallidas.put(copia.ruta, copia.error);
+            }
+        }
+        return Collections.unmodifiableMap(fallidas);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return abierta;
+    }
+
+    /**
+     * Espera a que las copias terminen sus escrituras pendientes y cierra
+     * todos los ficheros.
+     *
+     * @throws IOException Si no se puede cerrar el fichero principal.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!abierta) {
+            return;
+        }
+        abierta = false;
+        try {
+            for (Copia copia : copias) {
+                copia.hilo.shutdown();
+            }
+            for (Copia copia : copias) {
+                try {
+                    while (!copia.hilo.awaitTermination(1, TimeUnit.SECONDS)) {
+                        // Una copia en un dispositivo lento puede tardar en terminar su escritura.
+                    }
+                } catch (InterruptedException e) {
+                    copia.hilo.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                if (copia.canal != null) {
+                    try {
+                        copia.canal.close();
+                    } catch (IOException e) {
+                        if (copia.error == null) {
+                            copia.error = e;
+                        }
+                    }
+                }
+            }
+        } finally {
+            principal.close();
+        }
+    }
+
+    /**
+     * Encarga a cada copia sana la escritura de los bytes pendientes de
+     * {@code datos}, a través de una vista que no modifica su posición. Hay
+     * que esperar a las tareas devueltas antes de que el llamante reutilice
+     * el buffer.
+     */
+    private List<Future<?>> replicar(ByteBuffer datos, long desplazamiento) throws IOException {
+        if (!abierta) {
+            throw new ClosedChannelException();
+        }
+        if (copias.isEmpty() || !datos.hasRemaining()) {
+            return Collections.emptyList();
+        }
+        List<Future<?>> pendientes = new ArrayList<>();
+        for (Copia copia : copias) {
+            if (copia.error != null) {
+                continue;
+            }
+            ByteBuffer vista = datos.duplicate();
+            pendientes.add(copia.hilo.submit(() -> {
+                try {
+                    if (copia.error == null) {
+                        long destino = desplazamiento;
+                        while (vista.hasRemaining()) {
+                            if (desplazamiento < 0) {
+                                copia.canal.write(vista);
+                            } else {
+                                destino += copia.canal.write(vista, destino);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    copia.error = e;
+                }
+            }));
+        }
+        return pendientes;
+    }
+
+    private static void esperar(List<Future<?>> pendientes) throws IOException {
+        for (Future<?> pendiente : pendientes) {
+            try {
+                pendiente.get();
+            } catch (ExecutionException e) {
+                // Los errores de las copias quedan registrados en cada una.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(EmpaquetadorZip.MENSAJE_CANCELACION);
+            }
+        }
+    }
+}
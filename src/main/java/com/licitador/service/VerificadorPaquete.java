@@ -0,0 +1,279 @@
+package com.licitador.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Comprobación de integridad de un paquete ZIP recién escrito, antes de
+ * publicarlo con su nombre definitivo.
+ * <p>
+ * Abre el ZIP con {@link ZipFile} (un lector independiente del escritor),
+ * comprueba que el directorio central contiene exactamente las entradas
+ * escritas con sus tamaños y CRC, y descomprime cada entrada recalculando su
+ * CRC-32 y su huella SHA-256 para compararlos con los calculados al
+ * escribirla. Las entradas se comprueban en paralelo, de mayor a menor, en
+ * tantos hilos como se indique, de modo que la verificación añade segundos y
+ * no minutos. Se comprueban todas las entradas aunque alguna falle, y la
+ * {@link IOException} final detalla el problema de cada una.
+ * </p>
+ * <p>
+ * Un sobre cifrado no se puede abrir sin la clave del órgano; se comprueba
+ * releyendo cada bloque cifrado y comparando su huella con la calculada al
+ * escribirlo ({@link #verificarCifrado}).
+ * </p>
+ */
+public class VerificadorPaquete {
+
+    /**
+     * Número máximo de entradas dañadas que se detallan en el mensaje de
+     * error.
+     */
+    private static final int MAXIMO_DETALLADAS = 10;
+
+    private VerificadorPaquete() {
+    }
+
+    /**
+     * Verifica el paquete usando todos los procesadores.
+     *
+     * @param zip El fichero ZIP a comprobar.
+     * @param esperadas Las entradas (sin directorios) que se escribieron.
+     * @param cancelado Devuelve {@code true} si el usuario cancela la
+     * operación.
+     * @throws IOException Si el paquete no es íntegro, no se puede leer o se
+     * cancela la verificación ({@link InterruptedIOException}).
+     */
+    public static void verificar(File zip, List<EmpaquetadorZip.EntradaEscrita> esperadas, BooleanSupplier cancelado) throws IOException {
+        verificar(zip, esperadas, cancelado, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Verifica el paquete.
+     *
+     * @param zip El fichero ZIP a comprobar.
+     * @param esperadas Las entradas (sin directorios) que se escribieron.
+     * @param cancelado Devuelve {@code true} si el usuario cancela la
+     * operación.
+     * @param hilos Número de entradas que se comprueban a la vez.
+     * @throws IOException Si el paquete no es íntegro, no se puede leer o se
+     * cancela la verificación ({@link InterruptedIOException}).
+     */
+    public static void verificar(File zip, List<EmpaquetadorZip.EntradaEscrita> esperadas, BooleanSupplier cancelado, int hilos) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            int ficheros = 0;
+            Enumeration<? extends ZipEntry> entradas = zipFile.entries();
+            while (entradas.hasMoreElements()) {
+                if (!entradas.nextElement().isDirectory()) {
+                    ficheros++;
+                }
+            }
+            if (ficheros != esperadas.size()) {
+                throw new IOException("El paquete contiene " + ficheros + " archivos, pero se escribieron " + esperadas.size() + ".");
+            }
+
+            // Las más grandes primero, para que ninguna quede sola al final.
+            List<EmpaquetadorZip.EntradaEscrita> porTamano = new ArrayList<>(esperadas);
+            porTamano.sort(Comparator.comparingLong(EmpaquetadorZip.EntradaEscrita::getTamano).reversed());
+            AtomicInteger contador = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(hilos, porTamano.size())), r -> {
+                Thread hilo = new Thread(r, "verificacion-" + contador.incrementAndGet());
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            List<String> fallos = new ArrayList<>();
+            try {
+                List<Future<String>> tareas = new ArrayList<>();
+                for (EmpaquetadorZip.EntradaEscrita esperada : porTamano) {
+                    tareas.add(pool.submit(() -> verificarEntrada(zipFile, esperada, cancelado)));
+                }
+                for (Future<String> tarea : tareas) {
+                    String fallo = tarea.get();
+                    if (fallo != null) {
+                        fallos.add(fallo);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error al verificar el paquete: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Verificación cancelada");
+            } finally {
+                pool.shutdownNow();
+            }
+
+            if (!fallos.isEmpty()) {
+                StringBuilder mensaje = new StringBuilder("El paquete está dañado: " + fallos.size() + " de " + esperadas.size() + " archivos no coinciden con lo escrito.");
+                for (int i = 0; i < Math.min(fallos.size(), MAXIMO_DETALLADAS); i++) {
+                    mensaje.append("\n - ").append(fallos.get(i));
+                }
+                if (fallos.size() > MAXIMO_DETALLADAS) {
+                    mensaje.append("\n - ... y ").append(fallos.size() - MAXIMO_DETALLADAS).append(" más.");
+                }
+                throw new IOException(mensaje.toString());
+            }
+        }
+    }
+
+    /**
+     * Verifica un sobre cifrado sin descifrarlo: comprueba su tamaño y
+     * relee en paralelo la cabecera y cada bloque cifrado para comparar sus
+     * huellas con las calculadas al escribirlo.
+     *
+     * @param cifrado El fichero cifrado.
+     * @param esperadas Las huellas calculadas al escribirlo.
+     * @param cancelado Devuelve {@code true} si el usuario cancela la
+     * operación.
+     * @param hilos Número de bloques que se comprueban a la vez.
+     * @throws IOException Si el fichero no coincide con lo escrito, no se
+     * puede leer o se cancela la verificación.
+     */
+    static void verificarCifrado(File cifrado, SalidaCifrada.Huellas esperadas, BooleanSupplier cancelado, int hilos) throws IOException {
+        try (FileChannel canal = FileChannel.open(cifrado.toPath(), StandardOpenOption.READ)) {
+            if (canal.size() != esperadas.getLongitud()) {
+                throw new IOException("El sobre cifrado ocupa " + canal.size() + " bytes, pero se escribieron " + esperadas.getLongitud() + ".");
+            }
+            if (!Arrays.equals(huella(canal, 0, esperadas.getInicioBloques(), cancelado), esperadas.getCabecera())) {
+                throw new IOException("El sobre cifrado está dañado: la cabecera no coincide con lo escrito.");
+            }
+            List<byte[]> bloques = esperadas.getBloques();
+            AtomicInteger contador = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(hilos, bloques.size())), r -> {
+                Thread hilo = new Thread(r, "verificacion-" + contador.incrementAndGet());
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            List<Long> fallos = new ArrayList<>();
+            try {
+                List<Future<Boolean>> tareas = new ArrayList<>();
+                for (int i = 0; i < bloques.size(); i++) {
+                    long desde = esperadas.getInicioBloques() + (long) i * esperadas.getLongitudBloque();
+                    long hasta = Math.min(desde + esperadas.getLongitudBloque(), esperadas.getLongitud());
+                    byte[] esperada = bloques.get(i);
+                    tareas.add(pool.submit(() -> Arrays.equals(huella(canal, desde, hasta, cancelado), esperada)));
+                }
+                for (int i = 0; i < tareas.size(); i++) {
+                    if (!tareas.get(i).get()) {
+                        fallos.add((long) i);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error al verificar el sobre cifrado: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Verificación cancelada");
+            } finally {
+                pool.shutdownNow();
+            }
+
+            if (!fallos.isEmpty()) {
+                StringBuilder mensaje = new StringBuilder("El sobre cifrado está dañado: " + fallos.size() + " de " + bloques.size() + " bloques no coinciden con lo escrito.");
+                for (int i = 0; i < Math.min(fallos.size(), MAXIMO_DETALLADAS); i++) {
+                    long desde = esperadas.getInicioBloques() + fallos.get(i) * esperadas.getLongitudBloque();
+                    mensaje.append("\n - bloque ").append(fallos.get(i)).append(" (desde el byte ").append(desde).append(")");
+                }
+                if (fallos.size() > MAXIMO_DETALLADAS) {
+                    mensaje.append("\n - ... y ").append(fallos.size() - MAXIMO_DETALLADAS).append(" más.");
+                }
+                throw new IOException(mensaje.toString());
+            }
+        }
+    }
+
+    /**
+     * Huella SHA-256 de un rango del fichero, leído con lecturas
+     * posicionales (que se pueden hacer desde varios hilos a la vez).
+     */
+    private static byte[] huella(FileChannel canal, long desde, long hasta, BooleanSupplier cancelado) throws IOException {
+        MessageDigest digest = ContenidoArchivo.nuevoDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(ContenidoArchivo.TAMANO_BUFFER);
+        long posicion = desde;
+        while (posicion < hasta) {
+            if (cancelado != null && cancelado.getAsBoolean()) {
+                throw new InterruptedIOException("Verificación cancelada");
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), hasta - posicion));
+            int n = canal.read(buffer, posicion);
+            if (n < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            posicion += n;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Comprueba una entrada.
+     *
+     * @return La descripción del problema, o {@code null} si la entrada es
+     * correcta.
+     */
+    private static String verificarEntrada(ZipFile zipFile, EmpaquetadorZip.EntradaEscrita esperada, BooleanSupplier cancelado) throws IOException {
+        String ruta = esperada.getRuta();
+        ZipEntry entrada = zipFile.getEntry(ruta);
+        if (entrada == null) {
+            return "'" + ruta + "': falta en el paquete";
+        }
+        if (entrada.getSize() != esperada.getTamano() || entrada.getCrc() != esperada.getCrc()) {
+            return "'" + ruta + "': el directorio central no coincide con lo escrito";
+        }
+        CRC32 crc = new CRC32();
+        MessageDigest digest = esperada.getHuella() != null ? ContenidoArchivo.nuevoDigest() : null;
+        byte[] buffer = new byte[ContenidoArchivo.TAMANO_BUFFER];
+        long leidos = 0;
+        try (InputStream in = zipFile.getInputStream(entrada)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (cancelado != null && cancelado.getAsBoolean()) {
+                    throw new InterruptedIOException("Verificación cancelada");
+                }
+                crc.update(buffer, 0, n);
+                if (digest != null) {
+                    digest.update(buffer, 0, n);
+                }
+                leidos += n;
+            }
+        } catch (ZipException e) {
+            return "'" + ruta + "': datos comprimidos dañados (" + e.getMessage() + ")";
+        }
+        if (leidos != esperada.getTamano()) {
+            return "'" + ruta + "': tamaño " + leidos + " en lugar de " + esperada.getTamano();
+        }
+        if (crc.getValue() != esperada.getCrc()) {
+            return "'" + ruta + "': CRC-32 incorrecto";
+        }
+        if (digest != null && !esperada.getHuella().equals(ContenidoArchivo.aHexadecimal(digest.digest()))) {
+            return "'" + ruta + "': la huella SHA-256 no coincide con la calculada al escribir";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,72 @@
+package com.licitador.ui;
+
+import javax.swing.JComponent;
+import javax.swing.TransferHandler;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link TransferHandler} que acepta ficheros arrastrados desde el explorador
+ * del sistema operativo y los entrega, en el orden recibido, a la acción
+ * indicada. Se ignoran las carpetas.
+ */
+public class ArrastrarArchivosHandler extends TransferHandler {
+
+    private final Consumer<List<File>> accion;
+
+    /**
+     * Crea el manejador.
+     *
+     * @param accion Acción que recibe los ficheros soltados.
+     */
+    public ArrastrarArchivosHandler(Consumer<List<File>> accion) {
+        this.accion = accion;
+    }
+
+    /**
+     * Instala el mismo manejador en todos los componentes indicados, para que
+     * se pueda soltar sobre cualquier zona del diálogo.
+     *
+     * @param accion Acción que recibe los ficheros soltados.
+     * @param componentes Componentes que aceptarán los ficheros.
+     */
+    public static void instalar(Consumer<List<File>> accion, JComponent... componentes) {
+        ArrastrarArchivosHandler handler = new ArrastrarArchivosHandler(accion);
+        for (JComponent componente : componentes) {
+            componente.setTransferHandler(handler);
+        }
+    }
+
+    @Override
+    public boolean canImport(TransferSupport support) {
+        return support.isDrop() && support.isDataFlavorSupported(DataFlavor.javaFileListFlavor);
+    }
+
+    @Override
+    public boolean importData(TransferSupport support) {
+        if (!canImport(support)) {
+            return false;
+        }
+        try {
+            List<?> soltados = (List<?>) support.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
+            List<File> archivos = new ArrayList<>();
+            for (Object objeto : soltados) {
+                if (objeto instanceof File && ((File) objeto).isFile()) {
+                    archivos.add((File) objeto);
+                }
+            }
+            if (archivos.isEmpty()) {
+                return false;
+            }
+            accion.accept(archivos);
+            return true;
+        } catch (UnsupportedFlavorException | IOException e) {
+            return false;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.licitador.ui;
 
 import com.licitador.service.FileManager;
+import com.licitador.service.ImportadorArchivos;
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
 import java.io.IOException;
@@ -66,7 +69,8 @@ public class CargarArchivoComunDialog extends JDialog {
         JPanel panelCentral = new JPanel(new GridLayout(2, 1, 5, 5));
         panelCentral.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-        JLabel instruccionLabel = new JLabel("<html>Seleccione un archivo de la lista para cargarlo o sobrescribirlo.</html>");
+        JLabel instruccionLabel = new JLabel("<html>Seleccione un archivo de la lista para cargarlo o sobrescribirlo.<br>"
+                + "Puede seleccionar o arrastrar varios archivos: se asignan en orden a partir del elegido.</html>");
         String[] nombresArchivos = fileManager.getConfiguracion().getNombresArchivosComunes();
         archivoComboBox = new JComboBox<>(nombresArchivos);
         seleccionarArchivoButton = new JButton("Seleccionar Archivo");
@@ -92,63 +96,18 @@ public class CargarArchivoComunDialog extends JDialog {
             }
 
             JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setMultiSelectionEnabled(true);
             int userSelection = fileChooser.showOpenDialog(this);
 
             if (userSelection == JFileChooser.APPROVE_OPTION) {
-                File selectedFile = fileChooser.getSelectedFile();
-
-                // Buscar el índice del archivo seleccionado en la configuración
-                String[] nombresComunes = fileManager.getConfiguracion().getNombresArchivosComunes();
-                int index = Arrays.asList(nombresComunes).indexOf(nombreSeleccionado);
-
-                // 1. Verificar si el archivo es susceptible de ser confidencial
-                boolean esSusceptibleConfidencial = (index != -1 && fileManager.getConfiguracion().getArchivosComunesConfidenciales()[index]);
-                boolean esConfidencial = false;
-                String[] supuestosSeleccionados = null;
-                String[] motivosSupuestos = null;
-
-                // 2. Si es susceptible, preguntar al usuario
-                if (esSusceptibleConfidencial) {
-                    int confirm = JOptionPane.showConfirmDialog(
-                            this,
-                            "Este archivo puede ser declarado como confidencial. ¿Desea marcarlo como tal?",
-                            "Declarar Confidencialidad",
-                            JOptionPane.YES_NO_OPTION,
-                            JOptionPane.QUESTION_MESSAGE
-                    );
-
-                    if (confirm == JOptionPane.YES_OPTION) {
-                        // Si el usuario confirma, mostrar el diálogo de supuestos
-                        // Se asume que ConfidencialidadDialog es accesible
-                        ConfidencialidadDialog dialog = new ConfidencialidadDialog(this, fileManager.getConfiguracion().getSupuestosConfidencialidad());
-                        dialog.setVisible(true);
-
-                        if (dialog.isConfirmado()) {
-                            Map<String, String> seleccion = dialog.getConfidencialidadSeleccionada();
-                            esConfidencial = true;
-                            supuestosSeleccionados = seleccion.keySet().toArray(new String[0]);
-                            motivosSupuestos = seleccion.values().toArray(new String[0]);
-                        } else {
-                            // Si el usuario cancela, no se carga nada y se sale
-                            return;
-                        }
-                    }
-                }
-
-                // 3. Cargar el archivo, pasando la información de confidencialidad
-                if (fileManager.cargarArchivoComun(nombreSeleccionado, selectedFile, esConfidencial, supuestosSeleccionados, motivosSupuestos)) {
-                    JOptionPane.showMessageDialog(this, "Archivo cargado correctamente.", "Carga exitosa", JOptionPane.INFORMATION_MESSAGE);
-                    if (callback != null) {
-                        callback.run();
-                    }
-                    //dispose(); // Mantenido comentado, ya que el original no lo hacía.
-                } else {
-                    JOptionPane.showMessageDialog(this, "Error al cargar el archivo. Por favor, intente de nuevo.", "Error de carga", JOptionPane.ERROR_MESSAGE);
-                }
+                importarArchivos(Arrays.asList(fileChooser.getSelectedFiles()));
             }
         });
         // --- Fin de la lógica corregida ---
 
+        // Los archivos también se pueden arrastrar desde el explorador sobre el diálogo.
+        ArrastrarArchivosHandler.instalar(this::importarArchivos, getRootPane(), panelCentral, panelBotones);
+
         cerrarButton.addActionListener(e -> {
             this.dispose();
         });
@@ -156,4 +115,82 @@ public class CargarArchivoComunDialog extends JDialog {
         pack();
         setLocationRelativeTo(parent);
     }
+
+    /**
+     * Asigna los archivos recibidos, en orden, a los documentos comunes a
+     * partir del seleccionado en el combo, pide la confidencialidad de los que
+     * la admiten y lanza su lectura en segundo plano mediante el
+     * {@link com.licitador.service.ImportadorArchivos}.
+     *
+     * @param archivos Los archivos elegidos o arrastrados.
+     */
+    private void importarArchivos(List<File> archivos) {
+        String[] nombresComunes = fileManager.getConfiguracion().getNombresArchivosComunes();
+        int inicio = Math.max(0, archivoComboBox.getSelectedIndex());
+        int disponibles = nombresComunes.length - inicio;
+        if (archivos.size() > disponibles) {
+            JOptionPane.showMessageDialog(this, "Se han indicado " + archivos.size() + " archivos, pero solo hay " + disponibles
+                    + " documento(s) a partir de '" + nombresComunes[inicio] + "'. Se cargarán los " + disponibles + " primeros.",
+                    "Advertencia", JOptionPane.WARNING_MESSAGE);
+        }
+
+        List<ImportadorArchivos.Solicitud> solicitudes = new ArrayList<>();
+        List<String> sobrescritos = new ArrayList<>();
+        for (int i = 0; i < Math.min(archivos.size(), disponibles); i++) {
+            int index = inicio + i;
+            String nombreConfigurado = nombresComunes[index];
+            File selectedFile = archivos.get(i);
+
+            // 1. Verificar si el archivo es susceptible de ser confidencial
+            boolean esSusceptibleConfidencial = fileManager.getConfiguracion().getArchivosComunesConfidenciales()[index];
+            boolean esConfidencial = false;
+            String[] supuestosSeleccionados = null;
+            String[] motivosSupuestos = null;
+
+            // 2. Si es susceptible, preguntar al usuario
+            if (esSusceptibleConfidencial) {
+                int confirm = JOptionPane.showConfirmDialog(
+                        this,
+                        "El archivo '" + selectedFile.getName() + "' (" + nombreConfigurado + ") puede ser declarado como confidencial. ¿Desea marcarlo como tal?",
+                        "Declarar Confidencialidad",
+                        JOptionPane.YES_NO_OPTION,
+                        JOptionPane.QUESTION_MESSAGE
+                );
+
+                if (confirm == JOptionPane.YES_OPTION) {
+                    ConfidencialidadDialog dialog = new ConfidencialidadDialog(this, fileManager.getConfiguracion().getSupuestosConfidencialidad());
+                    dialog.setVisible(true);
+
+                    if (dialog.isConfirmado()) {
+                        Map<String, String> seleccion = dialog.getConfidencialidadSeleccionada();
+                        esConfidencial = true;
+                        supuestosSeleccionados = seleccion.keySet().toArray(new String[0]);
+                        motivosSupuestos = seleccion.values().toArray(new String[0]);
+                    } else {
+                        // Si el usuario cancela, no se carga nada y se sale
+                        return;
+                    }
+                }
+            }
+
+            if (fileManager.getArchivosComunes().containsKey(nombreConfigurado)) {
+                sobrescritos.add(nombreConfigurado);
+            }
+            solicitudes.add(new ImportadorArchivos.Solicitud(selectedFile, nombreConfigurado, null, esConfidencial, supuestosSeleccionados, motivosSupuestos));
+        }
+
+        // 3. Confirmar una sola vez la sobrescritura de los documentos ya cargados
+        if (!sobrescritos.isEmpty()) {
+            int respuesta = JOptionPane.showConfirmDialog(this, "Ya existe un archivo cargado para: " + String.join(", ", sobrescritos) + ". ¿Desea sobrescribirlo?",
+                    "Advertencia", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (respuesta != JOptionPane.YES_OPTION) {
+                fileManager.log("Operación de carga de '" + String.join(", ", sobrescritos) + "' cancelada por el usuario.");
+                return;
+            }
+        }
+
+        // 4. Leer los archivos en segundo plano; la tabla principal se refresca con cada uno
+        ProgresoImportacionDialog progreso = new ProgresoImportacionDialog(this, solicitudes, callback);
+        progreso.iniciar(fileManager.getImportador(), solicitudes);
+    }
 }
@@ -3,6 +3,7 @@ package com.licitador.ui;
 import com.licitador.service.Configuracion;
 import com.licitador.service.FileData;
 import com.licitador.service.FileManager;
+import com.licitador.service.ImportadorArchivos;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -10,8 +11,10 @@ import javax.swing.table.DefaultTableModel;
 import javax.swing.table.JTableHeader;
 import java.awt.*;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -139,9 +142,9 @@ public class CargarOfertaDialog extends JDialog {
         // Lógica condicional para la instrucción
         String instruccion;
         if (this.mostrarLoteComboBox) {
-            instruccion = "<html><b>Seleccione lote, documento y posteriormente cargue el Archivo</b></html>";
+            instruccion = "<html><b>Seleccione lote, documento y posteriormente cargue el Archivo</b><br>Puede seleccionar o arrastrar varios archivos: se asignan en orden a partir del documento elegido.</html>";
         } else {
-            instruccion = "<html><b>Seleccione documento y posteriormente cargue el Archivo</b></html>";
+            instruccion = "<html><b>Seleccione documento y posteriormente cargue el Archivo</b><br>Puede seleccionar o arrastrar varios archivos: se asignan en orden a partir del documento elegido.</html>";
         }
 
         // Título principal
@@ -248,9 +251,15 @@ public class CargarOfertaDialog extends JDialog {
         JButton cerrarButton = new JButton("Finalizar y Cerrar");
         cerrarButton.setFont(new Font("Segoe UI", Font.PLAIN, 12));
 
+        // Botón de asignación masiva (solo con lotes): reutiliza el documento cargado sin duplicar su contenido
+        JButton asignarLotesButton = new JButton("Copiar a otros lotes...");
+        asignarLotesButton.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        asignarLotesButton.setVisible(this.mostrarLoteComboBox);
+
         // Panel de botones
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 15, 0));
         buttonPanel.add(seleccionarArchivoButton);
+        buttonPanel.add(asignarLotesButton);
         buttonPanel.add(cerrarButton);
 
         gbc.gridx = 0;
@@ -329,6 +338,7 @@ public class CargarOfertaDialog extends JDialog {
             }
 
             JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setMultiSelectionEnabled(true);
             String title = "Seleccionar archivo para: " + nombreOfertaSeleccionada;
 
             if (this.mostrarLoteComboBox && loteComboBox != null && loteComboBox.getSelectedItem() != null) {
@@ -340,56 +350,15 @@ public class CargarOfertaDialog extends JDialog {
 
             int userSelection = fileChooser.showOpenDialog(this);
             if (userSelection == JFileChooser.APPROVE_OPTION) {
-                File archivoSeleccionado = fileChooser.getSelectedFile();
-
-                // Lógica de Confidencialidad
-                boolean esConfidencial = false;
-                String[] supuestosSeleccionados = null;
-                String[] motivosSupuestos = null;
-
-                Optional<Configuracion.ArchivoOferta> ofertaConfOptional = Arrays.stream(configuracion.getArchivosOferta())
-                        .filter(oferta -> oferta.getNombre().equals(nombreOfertaSeleccionada))
-                        .findFirst();
-
-                if (ofertaConfOptional.isPresent() && ofertaConfOptional.get().esConfidencial()) {
-                    int respuestaConfidencial = JOptionPane.showConfirmDialog(
-                            this, "El archivo '" + nombreOfertaSeleccionada + "' puede ser confidencial. ¿Desea marcarlo como tal?",
-                            "Confidencialidad del Archivo", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
-                    );
-
-                    if (respuestaConfidencial == JOptionPane.YES_OPTION) {
-                        // Se asume que ConfidencialidadDialog es accesible
-                        ConfidencialidadDialog confidencialidadDialog = new ConfidencialidadDialog(CargarOfertaDialog.this, configuracion.getSupuestosConfidencialidad());
-                        confidencialidadDialog.setVisible(true);
-
-                        if (confidencialidadDialog.isConfirmado()) {
-                            Map<String, String> seleccionConfidencialidad = confidencialidadDialog.getConfidencialidadSeleccionada();
-                            esConfidencial = true;
-                            supuestosSeleccionados = seleccionConfidencialidad.keySet().toArray(new String[0]);
-                            motivosSupuestos = seleccionConfidencialidad.values().toArray(new String[0]);
-                            if (supuestosSeleccionados.length == 0) {
-                                JOptionPane.showMessageDialog(CargarOfertaDialog.this, "Debe seleccionar al menos un supuesto de confidencialidad y una motivación.", "Advertencia", JOptionPane.WARNING_MESSAGE);
-                                return;
-                            }
-                        } else {
-                            return;
-                        }
-                    }
-                }
-
-                // CLAVE 2: Llamada al FileManager
-                if (fileManager.cargarArchivoOferta(nombreOfertaSeleccionada, archivoSeleccionado, loteKeyPrefix, esConfidencial, supuestosSeleccionados, motivosSupuestos)) {
-                    JOptionPane.showMessageDialog(CargarOfertaDialog.this, "Archivo de oferta cargado correctamente.", "Carga exitosa", JOptionPane.INFORMATION_MESSAGE);
-                    llenarTablaDetalles();
-                    if (getParent() instanceof MainWindow) {
-                        ((MainWindow) getParent()).actualizarTablas();
-                    }
-                } else {
-                    // El FileManager ya maneja los mensajes de error
-                }
+                importarArchivos(Arrays.asList(fileChooser.getSelectedFiles()));
             }
         });
 
+        // Los archivos también se pueden arrastrar desde el explorador sobre el diálogo o la tabla.
+        ArrastrarArchivosHandler.instalar(this::importarArchivos, getRootPane(), panelPrincipal, detalleTable, scrollPane);
+
+        asignarLotesButton.addActionListener(e -> asignarDocumentoARangoDeLotes());
+
         cerrarButton.addActionListener(e -> dispose());
 
         add(panelPrincipal, BorderLayout.CENTER);
@@ -424,6 +393,142 @@ public class CargarOfertaDialog extends JDialog {
         return "Lote" + this.numeroLote + "_";
     }
 
+    /**
+     * Asigna los archivos recibidos, en orden, a los documentos de oferta a
+     * partir del seleccionado en el combo (dentro del lote actual), pide la
+     * confidencialidad de los que la admiten y lanza su lectura en segundo
+     * plano mediante el {@link ImportadorArchivos}.
+     *
+     * @param archivos Los archivos elegidos o arrastrados.
+     */
+    private void importarArchivos(List<File> archivos) {
+        String nombreOfertaInicial = (String) ofertaComboBox.getSelectedItem();
+        if (nombreOfertaInicial == null || nombreOfertaInicial.startsWith("ERROR")) {
+            JOptionPane.showMessageDialog(this, "Debe seleccionar un documento válido de la lista. Revise su configuración de ofertas.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // CLAVE 1: Obtener el prefijo de clave para el lote seleccionado (ej: "Lote3_" o "")
+        String loteKeyPrefix = getLoteKeyPrefix();
+        if (this.mostrarLoteComboBox && loteKeyPrefix.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Debe seleccionar un lote.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        int inicio = Math.max(0, ofertaComboBox.getSelectedIndex());
+        int disponibles = ofertaComboBox.getItemCount() - inicio;
+        if (archivos.size() > disponibles) {
+            JOptionPane.showMessageDialog(this, "Se han indicado " + archivos.size() + " archivos, pero solo hay " + disponibles
+                    + " documento(s) a partir de '" + nombreOfertaInicial + "'. Se cargarán los " + disponibles + " primeros.",
+                    "Advertencia", JOptionPane.WARNING_MESSAGE);
+        }
+
+        List<ImportadorArchivos.Solicitud> solicitudes = new ArrayList<>();
+        List<String> sobrescritos = new ArrayList<>();
+        for (int i = 0; i < Math.min(archivos.size(), disponibles); i++) {
+            String nombreOferta = ofertaComboBox.getItemAt(inicio + i);
+            File archivoSeleccionado = archivos.get(i);
+
+            // Lógica de Confidencialidad
+            boolean esConfidencial = false;
+            String[] supuestosSeleccionados = null;
+            String[] motivosSupuestos = null;
+
+            Optional<Configuracion.ArchivoOferta> ofertaConfOptional = Arrays.stream(configuracion.getArchivosOferta())
+                    .filter(oferta -> oferta.getNombre().equals(nombreOferta))
+                    .findFirst();
+
+            if (ofertaConfOptional.isPresent() && ofertaConfOptional.get().esConfidencial()) {
+                int respuestaConfidencial = JOptionPane.showConfirmDialog(
+                        this, "El archivo '" + archivoSeleccionado.getName() + "' (" + nombreOferta + ") puede ser confidencial. ¿Desea marcarlo como tal?",
+                        "Confidencialidad del Archivo", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
+                );
+
+                if (respuestaConfidencial == JOptionPane.YES_OPTION) {
+                    ConfidencialidadDialog confidencialidadDialog = new ConfidencialidadDialog(CargarOfertaDialog.this, configuracion.getSupuestosConfidencialidad());
+                    confidencialidadDialog.setVisible(true);
+
+                    if (confidencialidadDialog.isConfirmado()) {
+                        Map<String, String> seleccionConfidencialidad = confidencialidadDialog.getConfidencialidadSeleccionada();
+                        esConfidencial = true;
+                        supuestosSeleccionados = seleccionConfidencialidad.keySet().toArray(new String[0]);
+                        motivosSupuestos = seleccionConfidencialidad.values().toArray(new String[0]);
+                        if (supuestosSeleccionados.length == 0) {
+                            JOptionPane.showMessageDialog(CargarOfertaDialog.this, "Debe seleccionar al menos un supuesto de confidencialidad y una motivación.", "Advertencia", JOptionPane.WARNING_MESSAGE);
+                            return;
+                        }
+                    } else {
+                        return;
+                    }
+                }
+            }
+
+            if (fileManager.getArchivosOferta().containsKey(loteKeyPrefix + nombreOferta)) {
+                sobrescritos.add(nombreOferta);
+            }
+            solicitudes.add(new ImportadorArchivos.Solicitud(archivoSeleccionado, nombreOferta, loteKeyPrefix, esConfidencial, supuestosSeleccionados, motivosSupuestos));
+        }
+
+        if (!sobrescritos.isEmpty()) {
+            int respuesta = JOptionPane.showConfirmDialog(this, "Ya existe un archivo cargado para: " + String.join(", ", sobrescritos) + ". ¿Desea sobrescribirlo?",
+                    "Advertencia", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (respuesta != JOptionPane.YES_OPTION) {
+                fileManager.log("Operación de carga de '" + String.join(", ", sobrescritos) + "' cancelada por el usuario.");
+                return;
+            }
+        }
+
+        // CLAVE 2: Lectura en segundo plano; las tablas se refrescan con cada documento registrado
+        ProgresoImportacionDialog progreso = new ProgresoImportacionDialog(this, solicitudes, () -> {
+            llenarTablaDetalles();
+            if (getParent() instanceof MainWindow) {
+                ((MainWindow) getParent()).actualizarTablas();
+            }
+        });
+        progreso.iniciar(fileManager.getImportador(), solicitudes);
+    }
+
+    /**
+     * Pide al usuario un rango de lotes y asigna a todos ellos el documento
+     * seleccionado tal y como está cargado en el lote actual. El contenido se
+     * comparte entre los lotes a través del almacén de {@link FileManager}.
+     */
+    private void asignarDocumentoARangoDeLotes() {
+        String nombreOferta = (String) ofertaComboBox.getSelectedItem();
+        if (nombreOferta == null || nombreOferta.startsWith("ERROR")) {
+            return;
+        }
+        String claveOrigen = getLoteKeyPrefix() + nombreOferta;
+        if (!fileManager.getArchivosOferta().containsKey(claveOrigen)) {
+            JOptionPane.showMessageDialog(this, "Cargue primero '" + nombreOferta + "' en el lote seleccionado.", "Advertencia", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        int numLotes = configuracion.getNumLotes();
+        JSpinner desdeSpinner = new JSpinner(new SpinnerNumberModel(1, 1, numLotes, 1));
+        JSpinner hastaSpinner = new JSpinner(new SpinnerNumberModel(numLotes, 1, numLotes, 1));
+        JPanel rangoPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        rangoPanel.add(new JLabel("Desde el lote:"));
+        rangoPanel.add(desdeSpinner);
+        rangoPanel.add(new JLabel("hasta el lote:"));
+        rangoPanel.add(hastaSpinner);
+
+        int opcion = JOptionPane.showConfirmDialog(this, rangoPanel,
+                "Copiar '" + nombreOferta + "' a otros lotes (solo lotes en los que participa)",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (opcion != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        int asignados = fileManager.asignarArchivoOfertaALotes(nombreOferta, this.numeroLote,
+                (Integer) desdeSpinner.getValue(), (Integer) hastaSpinner.getValue(), true);
+        JOptionPane.showMessageDialog(this, "Documento asignado a " + asignados + " lote(s).", "Asignación completada", JOptionPane.INFORMATION_MESSAGE);
+        llenarTablaDetalles();
+        if (getParent() instanceof MainWindow) {
+            ((MainWindow) getParent()).actualizarTablas();
+        }
+    }
+
     /**
      * Llena la tabla {@link #detalleTable} con el estado actual de los archivos
      * de oferta para el lote {@link #numeroLote} seleccionado.
@@ -6,7 +6,10 @@ import com.licitador.model.LicitadorData;
 import com.licitador.service.Configuracion;
 import com.licitador.service.FileData;
 import com.licitador.service.FileManager;
+import com.licitador.service.GestorMemoria;
 import com.licitador.service.Logger;
+import com.licitador.service.PlanVolumenes;
+import com.licitador.service.PoliticaCompresion;
 import com.licitador.service.TextAreaLogger;
 import com.licitador.jar.AnexoGenerator;
 import com.licitador.jar.model.RequerimientoLicitador;
@@ -20,17 +23,12 @@ import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Map;
 import java.util.Objects;
@@ -39,6 +37,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.stream.Collectors;
 import javax.swing.event.TableModelEvent;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
 
@@ -52,6 +51,7 @@ public class MainWindow extends JFrame {
     private JButton cargarArchivosComunesButton;
     private JButton cargarOfertasButton;
     private JButton comprimirButton;
+    private JButton actualizarPaqueteButton;
     private JButton instruccionesButton;
     private JButton guardarSesionButton;
     private JButton cargarSesionButton;
@@ -65,6 +65,15 @@ public class MainWindow extends JFrame {
     private JLabel numLotesLabel;
     private JLabel ofertasLabel;
     private JProgressBar progressBar;
+    private JLabel progresoLabel;
+    private JLabel guardadoLabel;
+    private JButton cancelarCompresionButton;
+    private JComboBox<PoliticaCompresion.Perfil> perfilCompresionComboBox;
+    private JComboBox<Long> limiteVolumenComboBox;
+    private JCheckBox porSobresCheckBox;
+    private JCheckBox reproducibleCheckBox;
+    private JCheckBox compartidosCheckBox;
+    private JCheckBox verificarCheckBox;
 
     // --- Componentes UI para Datos del Licitador ---
     private JTextField razonSocialField;
@@ -176,6 +185,7 @@ public class MainWindow extends JFrame {
         // 2. Guardar Radio Buttons (PYME y Extranjera) <-- SOLUCIONA ERROR DE DATOS
         fileManager.getLicitadorData().setEsPyme(esPyme);
         fileManager.getLicitadorData().setEsExtranjera(esExtranjera);
+        fileManager.registrarCambiosLicitador();
 
         // 3. Sincronizar el estado de participación de lotes desde el MODELO DEL DIÁLOGO.
         if (configuracion.isTieneLotes() && lotesModel != null) {
@@ -307,6 +317,9 @@ public class MainWindow extends JFrame {
     // --- FIN MÉTODOS ADAPTADOS O NUEVOS PARA LICITADORDATA ---
 // REEMPLAZAR el método iniciarFlujoAplicacion() en MainWindow.java
     private void iniciarFlujoAplicacion() {
+        if (ofrecerRecuperacion()) {
+            return;
+        }
         boolean sesionIniciada = false;
 
         while (!sesionIniciada) {
@@ -358,6 +371,36 @@ public class MainWindow extends JFrame {
         }
     }
 
+    /**
+     * Si la última ejecución no se cerró con normalidad, ofrece recuperar los
+     * cambios guardados automáticamente.
+     *
+     * @return {@code true} si se ha recuperado la sesión.
+     */
+    private boolean ofrecerRecuperacion() {
+        if (!fileManager.hayRecuperacionPendiente()) {
+            return false;
+        }
+        String fecha = new SimpleDateFormat("dd/MM/yyyy HH:mm").format(new Date(fileManager.getFechaRecuperacion()));
+        int respuesta = JOptionPane.showConfirmDialog(this,
+                "La aplicación no se cerró correctamente la última vez.\n"
+                + "¿Desea recuperar los cambios guardados automáticamente (última modificación: " + fecha + ")?",
+                "Recuperar Sesión",
+                JOptionPane.YES_NO_OPTION,
+                JOptionPane.QUESTION_MESSAGE);
+        if (respuesta == JOptionPane.YES_OPTION) {
+            if (fileManager.recuperarSesion()) {
+                cargarDatosLicitadorUI();
+                actualizarTablas();
+                actualizarTablaArchivosComunes();
+                return true;
+            }
+        } else if (respuesta == JOptionPane.NO_OPTION) {
+            fileManager.descartarRecuperacion();
+        }
+        return false;
+    }
+
     private void iniciarNuevaSesion() {
         // En lugar de un showInputDialog simple, mostramos el diálogo completo
         mostrarConfiguracionInicialDialog();
@@ -411,7 +454,8 @@ public class MainWindow extends JFrame {
                         "Incluye secretos comerciales",
                         "Contiene secretos industriales"
                     },
-                    articulosAnexos // <-- El parámetro que añadiste
+                    articulosAnexos, // <-- El parámetro que añadiste
+                    datos.getCifrado()
             );
         } catch (Exception e) {
             logger.logError("Error al cargar configuración: " + e.getMessage());
@@ -459,9 +503,84 @@ public class MainWindow extends JFrame {
         cargarArchivosComunesButton = new JButton("Cargar Archivos Comunes");
         cargarOfertasButton = new JButton("Cargar Ofertas");
         comprimirButton = new JButton("Comprimir Archivos");
+        actualizarPaqueteButton = new JButton("Actualizar Paquete");
+        actualizarPaqueteButton.setToolTipText("<html>Actualiza un ZIP generado antes: copia los documentos sin cambios<br>"
+                + "y solo comprime los nuevos o sustituidos.</html>");
+        perfilCompresionComboBox = new JComboBox<>(PoliticaCompresion.Perfil.values());
+        perfilCompresionComboBox.setSelectedItem(PoliticaCompresion.Perfil.porDefecto());
+        perfilCompresionComboBox.setToolTipText("<html>Rápido: comprime poco y deprisa.<br>"
+                + "Equilibrado: no recomprime PDF, imágenes, Office ni ZIP.<br>"
+                + "Máxima compresión: el menor tamaño posible, más lento.</html>");
+        perfilCompresionComboBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setPerfilCompresion((PoliticaCompresion.Perfil) perfilCompresionComboBox.getSelectedItem());
+            }
+        });
+        cancelarCompresionButton = new JButton("Cancelar");
+        cancelarCompresionButton.setToolTipText("Detiene la compresión sin generar ningún archivo.");
+        cancelarCompresionButton.setVisible(false);
+        cancelarCompresionButton.addActionListener(e -> {
+            if (fileManager != null && fileManager.cancelarCompresion()) {
+                cancelarCompresionButton.setEnabled(false);
+                progresoLabel.setText("Cancelando...");
+            }
+        });
+        limiteVolumenComboBox = new JComboBox<>();
+        for (long limite : PlanVolumenes.LIMITES_HABITUALES) {
+            limiteVolumenComboBox.addItem(limite);
+        }
+        limiteVolumenComboBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                long limite = value == null ? 0 : (Long) value;
+                String texto = limite == 0 ? "Sin dividir" : "Máx. " + GestorMemoria.formatearTamano(limite);
+                return super.getListCellRendererComponent(list, texto, index, isSelected, cellHasFocus);
+            }
+        });
+        limiteVolumenComboBox.setToolTipText("<html>Tamaño máximo de cada archivo que admite la plataforma de presentación.<br>"
+                + "Si la oferta lo supera, se genera en varios ZIP independientes con un índice de su contenido.</html>");
+        limiteVolumenComboBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setTamanoMaximoVolumen((Long) limiteVolumenComboBox.getSelectedItem());
+            }
+        });
+        porSobresCheckBox = new JCheckBox("Un ZIP por sobre");
+        porSobresCheckBox.setToolTipText("<html>Genera un archivo con la documentación administrativa y otro por cada lote en el que participa,<br>"
+                + "en lugar de un único ZIP con carpetas por lote.</html>");
+        porSobresCheckBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setPaquetePorSobres(porSobresCheckBox.isSelected());
+            }
+        });
+        reproducibleCheckBox = new JCheckBox("Reproducible");
+        reproducibleCheckBox.setToolTipText("<html>La misma oferta genera siempre un archivo idéntico byte a byte (orden fijo, sin fechas).<br>"
+                + "Si no ha cambiado desde el último empaquetado, se conserva el archivo existente.</html>");
+        reproducibleCheckBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setPaqueteReproducible(reproducibleCheckBox.isSelected());
+            }
+        });
+        compartidosCheckBox = new JCheckBox("Sin duplicados");
+        compartidosCheckBox.setToolTipText("<html>Los documentos idénticos en varios lotes se incluyen una sola vez en la carpeta<br>"
+                + "'Documentos Compartidos', con un índice de dónde corresponde cada uno.</html>");
+        compartidosCheckBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setDocumentosCompartidos(compartidosCheckBox.isSelected());
+            }
+        });
+        verificarCheckBox = new JCheckBox("Verificar", true);
+        verificarCheckBox.setToolTipText("<html>Vuelve a leer el paquete terminado y comprueba cada archivo antes de darlo por bueno.<br>"
+                + "Recomendado al guardar en memorias USB o carpetas de red.</html>");
+        verificarCheckBox.addActionListener(e -> {
+            if (fileManager != null) {
+                fileManager.setVerificarPaquete(verificarCheckBox.isSelected());
+            }
+        });
         instruccionesButton = new JButton("Instrucciones");
         guardarSesionButton = new JButton("Guardar Sesión");
         cargarSesionButton = new JButton("Cargar Sesión");
+        cargarSesionButton.setToolTipText("<html>Abre una sesión guardada o, si se ha perdido, los archivos ZIP de una oferta ya generada<br>"
+                + "(todos sus sobres o volúmenes) para modificarla sin volver a cargar cada documento.</html>");
         salirButton = new JButton("Salir");
         resetButton = new JButton("Restablecer");
 
@@ -1029,14 +1148,29 @@ public class MainWindow extends JFrame {
         centerPanel.add(cargarSesionButton);
         centerPanel.add(guardarSesionButton);
         centerPanel.add(resetButton);
+        guardadoLabel = new JLabel(" ");
+        guardadoLabel.setForeground(Color.GRAY);
+        centerPanel.add(guardadoLabel);
         panel.add(centerPanel, BorderLayout.CENTER);
 
         JPanel rightPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
         progressBar = new JProgressBar(0, 100);
         progressBar.setStringPainted(true);
         progressBar.setVisible(false);
+        progresoLabel = new JLabel(" ");
+        progresoLabel.setVisible(false);
+        rightPanel.add(progresoLabel);
         rightPanel.add(progressBar);
+        rightPanel.add(cancelarCompresionButton);
+        rightPanel.add(new JLabel("Compresión:"));
+        rightPanel.add(perfilCompresionComboBox);
+        rightPanel.add(limiteVolumenComboBox);
+        rightPanel.add(porSobresCheckBox);
+        rightPanel.add(compartidosCheckBox);
+        rightPanel.add(reproducibleCheckBox);
+        rightPanel.add(verificarCheckBox);
         rightPanel.add(comprimirButton);
+        rightPanel.add(actualizarPaqueteButton);
         rightPanel.add(salirButton);
         panel.add(rightPanel, BorderLayout.EAST);
 
@@ -1045,11 +1179,24 @@ public class MainWindow extends JFrame {
 
     private void confirmarSalida() {
         int confirm = JOptionPane.showConfirmDialog(this,
-                "¿Está seguro de que desea salir? Si no ha guardado la sesión, los datos se perderán.",
+                "¿Está seguro de que desea salir? Si no ha guardado la sesión, los datos se perderán\n"
+                + "(el guardado automático solo se conserva si la aplicación se cierra de forma inesperada).",
                 "Confirmar Salida",
                 JOptionPane.YES_NO_OPTION,
                 JOptionPane.WARNING_MESSAGE);
+        if (confirm == JOptionPane.YES_OPTION && fileManager != null && fileManager.isGuardadoEnCurso()) {
+            confirm = JOptionPane.showConfirmDialog(this,
+                    "Se está guardando la sesión. Si sale ahora, el archivo de sesión no se actualizará.\n¿Desea salir de todos modos?",
+                    "Guardado en curso",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE);
+        }
         if (confirm == JOptionPane.YES_OPTION) {
+            // Una compresión a medias no debe dejar su temporal en la carpeta de destino.
+            if (fileManager != null) {
+                fileManager.cancelarCompresion();
+                fileManager.cerrarDiario();
+            }
             eliminarCarpetaTemp();
             dispose();
         }
@@ -1238,6 +1385,49 @@ public class MainWindow extends JFrame {
             }
         });
 
+        actualizarPaqueteButton.addActionListener(e -> {
+            if (!validarDatosLicitador()) {
+                logger.logError("Actualización del paquete cancelada: Faltan datos obligatorios del licitador.");
+                return;
+            }
+            if (!fileManager.validarMinimoParticipacion()) {
+                JOptionPane.showMessageDialog(this,
+                        "Debe seleccionar al menos un lote o una oferta marcando la casilla 'Participa' para poder comprimir.",
+                        "Advertencia de Participación",
+                        JOptionPane.WARNING_MESSAGE);
+                logger.logError("Actualización del paquete cancelada: Ningún lote marcado para participar.");
+                return;
+            }
+
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Seleccione el paquete a actualizar");
+            fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+            fileChooser.setFileFilter(new FileNameExtensionFilter("Archivos ZIP (*.zip)", "zip"));
+            fileChooser.setCurrentDirectory(new File(System.getProperty("user.home")));
+            if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                logger.log("Actualización del paquete cancelada por el usuario.");
+                return;
+            }
+            File paquete = fileChooser.getSelectedFile();
+            File carpeta = paquete.getParentFile();
+            if (!paquete.isFile() || carpeta == null || !carpeta.canWrite()) {
+                JOptionPane.showMessageDialog(this,
+                        "No se puede modificar el paquete seleccionado. Compruebe que existe y que tiene permiso de escritura en su carpeta.",
+                        "Error de Permiso",
+                        JOptionPane.ERROR_MESSAGE);
+                logger.logError("El paquete seleccionado para actualizar no existe o su carpeta no es escribible.");
+                return;
+            }
+
+            setBotonesEnabled(false);
+            cancelarCompresionButton.setEnabled(true);
+            cancelarCompresionButton.setVisible(true);
+            fileManager.actualizarPaqueteConProgreso(paquete, logArea.getText(), progressBar, progresoLabel, () -> {
+                cancelarCompresionButton.setVisible(false);
+                setBotonesEnabled(true);
+            });
+        });
+
         comprimirButton.addActionListener(e -> {
             // --- INICIO MANEJADOR DE COMPRIMIR ---
 
@@ -1314,16 +1504,25 @@ public class MainWindow extends JFrame {
                     return;
                 }
 
+                // Copias opcionales (memoria USB, carpeta compartida), escritas en la misma pasada
+                List<File> carpetasDestino = new ArrayList<>();
+                carpetasDestino.add(carpetaDestino);
+                carpetasDestino.addAll(elegirCarpetasCopia(carpetaDestino));
+
                 // Iniciar la compresión
                 setBotonesEnabled(false);
+                cancelarCompresionButton.setEnabled(true);
+                cancelarCompresionButton.setVisible(true);
 
                 // 5. Llamada al método del FileManager 
                 fileManager.comprimirArchivosConProgreso(
-                        carpetaDestino,
+                        carpetasDestino,
                         zipFileNameBase, // "Oferta"
                         logArea.getText(),
                         progressBar,
+                        progresoLabel,
                         () -> {
+                            cancelarCompresionButton.setVisible(false);
                             setBotonesEnabled(true);
                         }
                 );
@@ -1344,12 +1543,8 @@ public class MainWindow extends JFrame {
             // 1. Sincronizar UI -> Modelo antes de guardar
             // 🔥 ELIMINAR ESTA LÍNEA: guardarDatosLicitador();
 
-            // 2. Ejecutar el guardado
-            if (fileManager.guardarSesion()) {
-                logger.log("Sesión guardada con éxito.");
-            } else {
-                logger.logError("Error al guardar la sesión.");
-            }
+            // 2. Ejecutar el guardado en segundo plano (el resultado se muestra en guardadoLabel)
+            fileManager.guardarSesion(guardadoLabel);
         });
         // 💾 --- FIN CORRECCIÓN: MANEJADOR DE GUARDAR SESIÓN AÑADIDO --- 💾
 
@@ -1556,6 +1751,38 @@ public class MainWindow extends JFrame {
         // --- FIN: LÓGICA DEL ANEXO ADMINISTRATIVO ---
     }
 
+    /**
+     * Pregunta si se desea guardar también una copia del paquete en otras
+     * carpetas y permite elegirlas una a una.
+     *
+     * @param carpetaPrincipal La carpeta principal de destino.
+     * @return Las carpetas de copia elegidas (puede estar vacía).
+     */
+    private List<File> elegirCarpetasCopia(File carpetaPrincipal) {
+        List<File> carpetas = new ArrayList<>();
+        String pregunta = "¿Desea guardar también una copia del paquete en otra carpeta (memoria USB, carpeta compartida...)?\n"
+                + "La copia se escribe a la vez que el archivo principal, sin comprimir dos veces.";
+        while (JOptionPane.showConfirmDialog(this, pregunta, "Copias del paquete", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Carpeta para la copia del paquete");
+            fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                break;
+            }
+            File carpeta = fileChooser.getSelectedFile().getAbsoluteFile();
+            if (!carpeta.isDirectory() || !carpeta.canWrite()) {
+                JOptionPane.showMessageDialog(this, "No se puede escribir en la carpeta seleccionada.", "Error de Permiso", JOptionPane.ERROR_MESSAGE);
+            } else if (carpeta.equals(carpetaPrincipal.getAbsoluteFile()) || carpetas.contains(carpeta)) {
+                JOptionPane.showMessageDialog(this, "La carpeta ya está elegida como destino.", "Advertencia", JOptionPane.WARNING_MESSAGE);
+            } else {
+                carpetas.add(carpeta);
+                logger.log("Se guardará una copia del paquete en: " + carpeta.getAbsolutePath());
+            }
+            pregunta = "¿Desea guardar una copia en otra carpeta más?";
+        }
+        return carpetas;
+    }
+
     /**
      * Muestra un diálogo modal para la lectura y aceptación final del Anexo.
      *
@@ -1724,6 +1951,13 @@ public class MainWindow extends JFrame {
         cargarArchivosComunesButton.setEnabled(enabled);
         cargarOfertasButton.setEnabled(enabled);
         comprimirButton.setEnabled(enabled);
+        actualizarPaqueteButton.setEnabled(enabled);
+        perfilCompresionComboBox.setEnabled(enabled);
+        limiteVolumenComboBox.setEnabled(enabled);
+        porSobresCheckBox.setEnabled(enabled);
+        reproducibleCheckBox.setEnabled(enabled);
+        compartidosCheckBox.setEnabled(enabled);
+        verificarCheckBox.setEnabled(enabled);
         instruccionesButton.setEnabled(enabled);
         guardarSesionButton.setEnabled(enabled);
         cargarSesionButton.setEnabled(enabled);
@@ -2232,22 +2466,14 @@ public class MainWindow extends JFrame {
     }
 
     /**
-     * Intenta eliminar la carpeta temporal "temp" y todo su contenido. Se llama
-     * típicamente al cerrar la aplicación para limpiar los archivos temporales.
-     * Si ocurre un error durante la eliminación, lo registra.
+     * Elimina el área temporal gestionada por {@link GestorMemoria} (volcados
+     * de contenidos) dentro de la carpeta "temp". Se llama típicamente al
+     * cerrar la aplicación para limpiar los archivos temporales.
      */
     public void eliminarCarpetaTemp() {
-        try {
-            Path tempDir = Paths.get("temp");
-            if (Files.exists(tempDir)) {
-                Files.walk(tempDir)
-                        .sorted(Comparator.reverseOrder())
-                        .map(Path::toFile)
-                        .forEach(File::delete);
-                logger.log("Carpeta temporal 'temp' eliminada.");
-            }
-        } catch (IOException e) {
-            logger.logError("Error al eliminar la carpeta temporal: " + e.getMessage());
+        logger.log(GestorMemoria.getInstancia().getResumen());
+        if (GestorMemoria.getInstancia().eliminarAreaTemporal()) {
+            logger.log("Carpeta temporal 'temp' eliminada.");
         }
     }
 
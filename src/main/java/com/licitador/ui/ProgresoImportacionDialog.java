@@ -0,0 +1,174 @@
+package com.licitador.ui;
+
+import com.licitador.service.FileData;
+import com.licitador.service.GestorMemoria;
+import com.licitador.service.ImportadorArchivos;
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Diálogo no modal que muestra el avance de una importación de documentos en
+ * segundo plano ({@link ImportadorArchivos}).
+ * <p>
+ * Presenta una fila por fichero con su progreso en bytes y su estado, y
+ * permite cancelar la importación. Cada documento que termina se notifica de
+ * inmediato mediante el callback, para que las tablas de la ventana que lo
+ * abrió se actualicen sin esperar al resto del lote.
+ * </p>
+ */
+public class ProgresoImportacionDialog extends JDialog implements ImportadorArchivos.Oyente {
+
+    private static final int COLUMNA_PROGRESO = 2;
+    private static final int COLUMNA_ESTADO = 3;
+
+    private final DefaultTableModel tableModel;
+    private final JButton cancelarButton;
+    private final JLabel resumenLabel;
+    private final Runnable alRegistrarDocumento;
+    private final int total;
+    private int terminados;
+    private int fallidos;
+    private ImportadorArchivos.Importacion importacion;
+
+    /**
+     * Renderizador que dibuja el porcentaje de la columna "Progreso" como una
+     * barra de progreso.
+     */
+    private static class ProgresoCellRenderer extends JProgressBar implements TableCellRenderer {
+
+        ProgresoCellRenderer() {
+            super(0, 100);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            setValue(value instanceof Integer ? (Integer) value : 0);
+            return this;
+        }
+    }
+
+    /**
+     * Crea el diálogo con una fila por cada solicitud.
+     *
+     * @param owner La ventana que inicia la importación.
+     * @param solicitudes Los documentos que se van a importar.
+     * @param alRegistrarDocumento Acción a ejecutar cada vez que un documento
+     * queda registrado (ej: refrescar tablas).
+     */
+    public ProgresoImportacionDialog(Window owner, List<ImportadorArchivos.Solicitud> solicitudes, Runnable alRegistrarDocumento) {
+        super(owner, "Importando documentos", ModalityType.MODELESS);
+        this.alRegistrarDocumento = alRegistrarDocumento;
+        this.total = solicitudes.size();
+        setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+
+        tableModel = new DefaultTableModel(new Object[]{"Archivo", "Destino", "Progreso", "Estado"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        for (ImportadorArchivos.Solicitud solicitud : solicitudes) {
+            tableModel.addRow(new Object[]{
+                solicitud.getArchivo().getName(),
+                solicitud.getDestino(),
+                0,
+                "En cola (" + GestorMemoria.formatearTamano(solicitud.getArchivo().length()) + ")"
+            });
+        }
+
+        JTable table = new JTable(tableModel);
+        table.setRowHeight(22);
+        table.getColumnModel().getColumn(COLUMNA_PROGRESO).setCellRenderer(new ProgresoCellRenderer());
+        table.getColumnModel().getColumn(0).setPreferredWidth(220);
+        table.getColumnModel().getColumn(1).setPreferredWidth(200);
+        table.getColumnModel().getColumn(COLUMNA_PROGRESO).setPreferredWidth(140);
+        table.getColumnModel().getColumn(COLUMNA_ESTADO).setPreferredWidth(160);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(720, Math.min(400, 60 + 22 * solicitudes.size())));
+        mainPanel.add(scrollPane, BorderLayout.CENTER);
+
+        resumenLabel = new JLabel("0 de " + total + " documentos importados");
+        cancelarButton = new JButton("Cancelar");
+        cancelarButton.addActionListener(e -> {
+            if (importacion != null && terminados < total) {
+                importacion.cancelar();
+                cancelarButton.setEnabled(false);
+                resumenLabel.setText("Cancelando...");
+            } else {
+                dispose();
+            }
+        });
+
+        JPanel surPanel = new JPanel(new BorderLayout());
+        surPanel.add(resumenLabel, BorderLayout.WEST);
+        surPanel.add(cancelarButton, BorderLayout.EAST);
+        mainPanel.add(surPanel, BorderLayout.SOUTH);
+
+        add(mainPanel);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    /**
+     * Muestra el diálogo e inicia la importación.
+     *
+     * @param importador El importador de la sesión.
+     * @param solicitudes Los documentos a importar (mismo orden que en el
+     * constructor).
+     */
+    public void iniciar(ImportadorArchivos importador, List<ImportadorArchivos.Solicitud> solicitudes) {
+        setVisible(true);
+        importacion = importador.importar(solicitudes, this);
+    }
+
+    @Override
+    public void avance(int indice, long leidos, long totalBytes) {
+        int porcentaje = totalBytes > 0 ? (int) (leidos * 100 / totalBytes) : 100;
+        tableModel.setValueAt(porcentaje, indice, COLUMNA_PROGRESO);
+        tableModel.setValueAt("Leyendo " + GestorMemoria.formatearTamano(leidos) + " de " + GestorMemoria.formatearTamano(totalBytes), indice, COLUMNA_ESTADO);
+    }
+
+    @Override
+    public void completado(int indice, FileData fileData) {
+        terminados++;
+        tableModel.setValueAt(100, indice, COLUMNA_PROGRESO);
+        tableModel.setValueAt("Cargado", indice, COLUMNA_ESTADO);
+        actualizarResumen();
+        if (alRegistrarDocumento != null) {
+            alRegistrarDocumento.run();
+        }
+    }
+
+    @Override
+    public void fallido(int indice, Exception error) {
+        terminados++;
+        fallidos++;
+        boolean cancelado = error instanceof InterruptedIOException;
+        tableModel.setValueAt(cancelado ? "Cancelado" : "Error: " + error.getMessage(), indice, COLUMNA_ESTADO);
+        actualizarResumen();
+    }
+
+    @Override
+    public void finalizado(boolean cancelado) {
+        terminados = total;
+        resumenLabel.setText((cancelado ? "Importación cancelada. " : "Importación finalizada. ")
+                + (total - fallidos) + " de " + total + " documentos cargados.");
+        cancelarButton.setText("Cerrar");
+        cancelarButton.setEnabled(true);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+    }
+
+    private void actualizarResumen() {
+        resumenLabel.setText((terminados - fallidos) + " de " + total + " documentos importados"
+                + (fallidos > 0 ? " (" + fallidos + " con incidencias)" : ""));
+    }
+}